@@ -0,0 +1,21 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Routing benchmarks on the topologies run_mininet.py provides, given the
+ * same way as to run_mininet.py.
+ */
+@State(Scope.Thread)
+public class MininetRoutingBenchmark extends RoutingBenchmark
+{
+	@Param({ "assign1", "triangle", "someloops", "mesh,5", "linear,10",
+			"tree,3" })
+	public String topo;
+
+	@Override
+	protected Topology createTopology()
+	{ return Topology.fromMininet(this.topo); }
+}
@@ -0,0 +1,465 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+import edu.wisc.cs.sdn.apps.util.IHostMACService;
+import edu.wisc.cs.sdn.apps.util.IpMacTable;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.linkdiscovery.LinkInfo;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Stand-ins for the Floodlight services the apps use, so the apps can be
+ * driven without a controller or switches. Each is a dynamic proxy that
+ * answers the handful of methods the apps call and returns a default value
+ * for the rest, so they do not depend on every method of the interfaces.
+ */
+public class Mocks
+{
+	/**
+	 * Create a proxy implementing an interface.
+	 */
+	public static <T> T proxy(Class<T> type, InvocationHandler handler)
+	{
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * Create a proxy implementing an interface, which does nothing and
+	 * returns the default value from every method.
+	 */
+	public static <T> T stub(Class<T> type)
+	{
+		return proxy(type, new InvocationHandler()
+				{
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args)
+					{ return defaultResult(proxy, method, args); }
+				});
+	}
+
+	/**
+	 * Answer the methods every object has, and give the default value for
+	 * any other method's return type.
+	 */
+	private static Object defaultResult(Object proxy, Method method,
+			Object[] args)
+	{
+		String name = method.getName();
+		if ("equals".equals(name) && args != null && 1 == args.length)
+		{ return (proxy == args[0]); }
+		if ("hashCode".equals(name))
+		{ return System.identityHashCode(proxy); }
+		if ("toString".equals(name))
+		{ return method.getDeclaringClass().getSimpleName() + "@"
+				+ Integer.toHexString(System.identityHashCode(proxy)); }
+
+		Class<?> type = method.getReturnType();
+		if (!type.isPrimitive() || void.class == type)
+		{ return null; }
+		if (boolean.class == type)
+		{ return false; }
+		if (char.class == type)
+		{ return (char)0; }
+		if (byte.class == type)
+		{ return (byte)0; }
+		if (short.class == type)
+		{ return (short)0; }
+		if (int.class == type)
+		{ return 0; }
+		if (long.class == type)
+		{ return 0L; }
+		if (float.class == type)
+		{ return 0f; }
+		return 0d;
+	}
+
+	/**
+	 * A switch that counts the messages written to it instead of sending
+	 * them.
+	 */
+	public static class RecordingSwitch implements InvocationHandler
+	{
+		private final long switchId;
+		private final Collection<Integer> ports;
+		private final IOFSwitch sw;
+
+		// Number of messages and rules written to the switch, and the last
+		// message
+		private long messages;
+		private long flowMods;
+		private OFMessage lastMessage;
+
+		public RecordingSwitch(long switchId, Collection<Integer> ports)
+		{
+			this.switchId = switchId;
+			this.ports = ports;
+			this.sw = proxy(IOFSwitch.class, this);
+		}
+
+		public IOFSwitch getSwitch()
+		{ return this.sw; }
+
+		public long getMessages()
+		{ return this.messages; }
+
+		public long getFlowMods()
+		{ return this.flowMods; }
+
+		public OFMessage getLastMessage()
+		{ return this.lastMessage; }
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if ("getId".equals(name))
+			{ return this.switchId; }
+			if ("getStringId".equals(name))
+			{ return String.format("s%d", this.switchId); }
+			if ("getEnabledPortNumbers".equals(name))
+			{ return this.ports; }
+			if ("isConnected".equals(name))
+			{ return true; }
+			if ("write".equals(name))
+			{
+				if (args[0] instanceof List)
+				{
+					for (Object message : (List<?>)args[0])
+					{ this.record((OFMessage)message); }
+				}
+				else
+				{ this.record((OFMessage)args[0]); }
+				return null;
+			}
+			return defaultResult(proxy, method, args);
+		}
+
+		private void record(OFMessage message)
+		{
+			this.messages++;
+			if (OFType.FLOW_MOD == message.getType())
+			{ this.flowMods++; }
+			this.lastMessage = message;
+		}
+	}
+
+	/**
+	 * Floodlight core, holding a set of recording switches. Switches are only
+	 * added and removed when a caller says so; the switch listeners the apps
+	 * register are kept so the caller can tell them.
+	 */
+	public static class Controller implements InvocationHandler
+	{
+		private final Map<Long,IOFSwitch> switches;
+		private final Map<Long,RecordingSwitch> recorders;
+		private final List<IOFSwitchListener> listeners;
+
+		public Controller()
+		{
+			this.switches = new ConcurrentHashMap<Long,IOFSwitch>();
+			this.recorders = new ConcurrentHashMap<Long,RecordingSwitch>();
+			this.listeners = new CopyOnWriteArrayList<IOFSwitchListener>();
+		}
+
+		public IFloodlightProviderService getService()
+		{ return proxy(IFloodlightProviderService.class, this); }
+
+		/**
+		 * Connect a switch. A switch that reconnects keeps its recorder, and
+		 * so the count of messages written to it, but not its new ports.
+		 */
+		public void addSwitch(long switchId, Collection<Integer> ports)
+		{
+			RecordingSwitch recorder = this.recorders.get(switchId);
+			if (null == recorder)
+			{
+				recorder = new RecordingSwitch(switchId, ports);
+				this.recorders.put(switchId, recorder);
+			}
+			this.switches.put(switchId, recorder.getSwitch());
+		}
+
+		public void removeSwitch(long switchId)
+		{ this.switches.remove(switchId); }
+
+		public RecordingSwitch getRecorder(long switchId)
+		{ return this.recorders.get(switchId); }
+
+		/**
+		 * Get the recorder for every switch that was ever connected.
+		 */
+		public Map<Long,RecordingSwitch> getRecorders()
+		{ return this.recorders; }
+
+		public List<IOFSwitchListener> getListeners()
+		{ return this.listeners; }
+
+		/**
+		 * Get the total number of messages written to every switch.
+		 */
+		public long getMessages()
+		{
+			long messages = 0;
+			for (RecordingSwitch recorder : this.recorders.values())
+			{ messages += recorder.getMessages(); }
+			return messages;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if ("getAllSwitchMap".equals(name))
+			{ return this.switches; }
+			if ("getSwitch".equals(name))
+			{ return this.switches.get((Long)args[0]); }
+			if ("addOFSwitchListener".equals(name))
+			{
+				this.listeners.add((IOFSwitchListener)args[0]);
+				return null;
+			}
+			return defaultResult(proxy, method, args);
+		}
+	}
+
+	/**
+	 * Link discovery, reporting whichever links are currently up.
+	 */
+	public static class LinkDiscovery implements InvocationHandler
+	{
+		// Links that are up; link discovery's LinkInfo is not used by the
+		// apps, so every value is null
+		private final Map<Link,LinkInfo> links;
+		private final List<ILinkDiscoveryListener> listeners;
+
+		public LinkDiscovery()
+		{
+			this.links = Collections.synchronizedMap(
+					new LinkedHashMap<Link,LinkInfo>());
+			this.listeners =
+					new CopyOnWriteArrayList<ILinkDiscoveryListener>();
+		}
+
+		public ILinkDiscoveryService getService()
+		{ return proxy(ILinkDiscoveryService.class, this); }
+
+		public void addLink(Link link)
+		{ this.links.put(link, null); }
+
+		public void removeLink(Link link)
+		{ this.links.remove(link); }
+
+		public List<ILinkDiscoveryListener> getListeners()
+		{ return this.listeners; }
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if ("getLinks".equals(name))
+			{ return this.links; }
+			if ("addListener".equals(name))
+			{
+				this.listeners.add((ILinkDiscoveryListener)args[0]);
+				return null;
+			}
+			return defaultResult(proxy, method, args);
+		}
+	}
+
+	/**
+	 * The device manager, holding the hosts a caller adds.
+	 */
+	public static class DeviceManager implements InvocationHandler
+	{
+		private final List<IDevice> devices;
+		private final List<IDeviceListener> listeners;
+
+		public DeviceManager()
+		{
+			this.devices = new ArrayList<IDevice>();
+			this.listeners = new CopyOnWriteArrayList<IDeviceListener>();
+		}
+
+		public IDeviceService getService()
+		{ return proxy(IDeviceService.class, this); }
+
+		public void addDevice(IDevice device)
+		{ this.devices.add(device); }
+
+		public void removeDevice(IDevice device)
+		{ this.devices.remove(device); }
+
+		public List<IDeviceListener> getListeners()
+		{ return this.listeners; }
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if ("getAllDevices".equals(name))
+			{ return this.devices; }
+			if ("queryDevices".equals(name))
+			{ return this.query((Long)args[0], (Integer)args[2]); }
+			if ("addListener".equals(name))
+			{
+				this.listeners.add((IDeviceListener)args[0]);
+				return null;
+			}
+			return defaultResult(proxy, method, args);
+		}
+
+		private Iterator<IDevice> query(Long mac, Integer ip)
+		{
+			List<IDevice> matches = new ArrayList<IDevice>();
+			for (IDevice device : this.devices)
+			{
+				if (mac != null && mac != device.getMACAddress())
+				{ continue; }
+				if (ip != null && (0 == device.getIPv4Addresses().length
+						|| !ip.equals(device.getIPv4Addresses()[0])))
+				{ continue; }
+				matches.add(device);
+			}
+			return matches.iterator();
+		}
+	}
+
+	/**
+	 * A host, which can be moved between switches or given a new address.
+	 */
+	public static class Device implements InvocationHandler
+	{
+		private final long mac;
+		private volatile int ip;
+		private final IDevice device;
+		private volatile SwitchPort attachmentPoint;
+
+		public Device(long mac, int ip, long switchId, int port)
+		{
+			this.mac = mac;
+			this.ip = ip;
+			this.device = proxy(IDevice.class, this);
+			this.moveTo(switchId, port);
+		}
+
+		public IDevice getDevice()
+		{ return this.device; }
+
+		/**
+		 * Attach the host to a switch port, or detach it if the switch is 0.
+		 */
+		public void moveTo(long switchId, int port)
+		{
+			this.attachmentPoint = (0 == switchId ? null
+					: new SwitchPort(switchId, port));
+		}
+
+		/**
+		 * Give the host an IP address, or take its address away if it is 0.
+		 */
+		public void setIPv4Address(int ip)
+		{ this.ip = ip; }
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			String name = method.getName();
+			if ("getMACAddress".equals(name))
+			{ return this.mac; }
+			if ("getMACAddressString".equals(name))
+			{ return String.format("%012x", this.mac); }
+			if ("getDeviceKey".equals(name))
+			{ return this.mac; }
+			if ("getIPv4Addresses".equals(name))
+			{ return (0 == this.ip ? new Integer[0]
+					: new Integer[] { this.ip }); }
+			if ("getAttachmentPoints".equals(name))
+			{
+				SwitchPort attachmentPoint = this.attachmentPoint;
+				return (null == attachmentPoint ? new SwitchPort[0]
+						: new SwitchPort[] { attachmentPoint });
+			}
+			return defaultResult(proxy, method, args);
+		}
+	}
+
+	/**
+	 * The host MAC cache, knowing a fixed set of hosts.
+	 */
+	public static class MACService implements InvocationHandler
+	{
+		private final Map<Integer,Long> macs;
+
+		public MACService()
+		{ this.macs = new ConcurrentHashMap<Integer,Long>(); }
+
+		public IHostMACService getService()
+		{ return proxy(IHostMACService.class, this); }
+
+		public void addHost(int ip, long mac)
+		{ this.macs.put(ip, mac); }
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			if ("getMACAddress".equals(method.getName()))
+			{
+				Long mac = this.macs.get((Integer)args[0]);
+				return (null == mac ? IpMacTable.UNKNOWN_MAC : mac);
+			}
+			return defaultResult(proxy, method, args);
+		}
+	}
+
+	/**
+	 * The thread pool, handing out an executor that never runs anything, so
+	 * the apps' periodic tasks stay out of measurements.
+	 */
+	public static class ThreadPool implements InvocationHandler
+	{
+		private final ScheduledExecutorService executor;
+
+		public ThreadPool()
+		{ this.executor = stub(ScheduledExecutorService.class); }
+
+		public IThreadPoolService getService()
+		{ return proxy(IThreadPoolService.class, this); }
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+		{
+			if ("getScheduledExecutor".equals(method.getName()))
+			{ return this.executor; }
+			return defaultResult(proxy, method, args);
+		}
+	}
+}
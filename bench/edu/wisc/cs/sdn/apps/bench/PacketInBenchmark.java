@@ -0,0 +1,178 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.cs.sdn.apps.loadbalancer.LoadBalancer;
+import edu.wisc.cs.sdn.apps.util.ArpServer;
+import edu.wisc.cs.sdn.apps.util.IHostMACService;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IListener.Command;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+
+/**
+ * Measures the packet-in handlers on their hot paths: the load balancer
+ * answering ARP for a virtual IP and assigning a new connection on a SYN,
+ * and the ARP server answering a request or dropping a repeated one. Each
+ * handler gets a prebuilt packet-in with a fresh Floodlight context, as the
+ * packet-in dispatcher would give it, and writes to a switch that only
+ * records messages. Sample time mode gives latency percentiles; run with
+ * "-prof gc" (as the bench target does) for bytes allocated per packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketInBenchmark
+{
+	// Load balancer instance for 10.0.100.10, spreading connections over
+	// three hosts, with no limit on SYNs per client
+	private static final String INSTANCE = "10.0.100.10 00:00:00:00:00:fe "
+			+ "10.0.0.2,10.0.0.3,10.0.0.4 clientrate=0";
+	private static final int VIRTUAL_IP = 0x0a00640a;
+
+	// Hosts 10.0.0.1 to 10.0.0.4, with MAC addresses 1 to 4 on ports 1 to 4;
+	// the first is the client
+	private static final int HOSTS = 4;
+	private static final int FIRST_IP = 0x0a000001;
+	private static final int CLIENT_PORT = 1;
+
+	// Buffer the switch kept each SYN in
+	private static final int SYN_BUFFER_ID = 1;
+
+	private IOFSwitch sw;
+	private FloodlightModuleContext context;
+	private LoadBalancer loadBalancer;
+	private ArpServer arpServer;
+
+	private OFPacketIn virtualIPRequest;
+	private OFPacketIn hostRequest;
+	private OFPacketIn repeatedRequest;
+	private OFPacketIn syn;
+
+	// Counter stamped into packets so each looks like it came from a new
+	// client and is handled in full
+	private int nextClient;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		Mocks.Controller controller = new Mocks.Controller();
+		controller.addSwitch(1, Arrays.asList(1, 2, 3, 4));
+		this.sw = controller.getRecorder(1).getSwitch();
+
+		Mocks.DeviceManager deviceManager = new Mocks.DeviceManager();
+		Mocks.MACService macService = new Mocks.MACService();
+		for (int i = 0; i < HOSTS; i++)
+		{
+			Mocks.Device device = new Mocks.Device(i + 1, FIRST_IP + i, 1,
+					i + 1);
+			deviceManager.addDevice(device.getDevice());
+			macService.addHost(FIRST_IP + i, i + 1);
+		}
+
+		this.context = new FloodlightModuleContext();
+		this.context.addService(IFloodlightProviderService.class,
+				controller.getService());
+		this.context.addService(IDeviceService.class,
+				deviceManager.getService());
+		this.context.addService(IHostMACService.class,
+				macService.getService());
+
+		this.arpServer = new ArpServer();
+		this.arpServer.init(this.context);
+
+		this.virtualIPRequest = Packets.packetIn(
+				Packets.arpRequest(1, FIRST_IP, VIRTUAL_IP), CLIENT_PORT,
+				OFPacketOut.BUFFER_ID_NONE);
+		this.hostRequest = Packets.packetIn(
+				Packets.arpRequest(1, FIRST_IP, FIRST_IP + 1), CLIENT_PORT,
+				OFPacketOut.BUFFER_ID_NONE);
+		this.repeatedRequest = Packets.packetIn(
+				Packets.arpRequest(1, FIRST_IP, FIRST_IP + 2), CLIENT_PORT,
+				OFPacketOut.BUFFER_ID_NONE);
+		this.syn = Packets.packetIn(
+				Packets.tcpSyn(1, 0xfe, FIRST_IP, VIRTUAL_IP, (short)40000,
+						(short)80),
+				CLIENT_PORT, SYN_BUFFER_ID);
+	}
+
+	/**
+	 * Start each iteration with a new load balancer, so the connection table
+	 * does not grow across iterations.
+	 */
+	@Setup(Level.Iteration)
+	public void setUpLoadBalancer() throws Exception
+	{
+		this.loadBalancer = new LoadBalancer();
+		this.context.addConfigParam(this.loadBalancer, "table", "0");
+		this.context.addConfigParam(this.loadBalancer, "instances", INSTANCE);
+		this.loadBalancer.init(this.context);
+	}
+
+	/**
+	 * The load balancer answers an ARP request for its virtual IP.
+	 */
+	@Benchmark
+	public Command loadBalancerArp()
+	{
+		return this.loadBalancer.receive(this.sw, this.virtualIPRequest,
+				new FloodlightContext());
+	}
+
+	/**
+	 * The load balancer assigns a new client's connection to a host,
+	 * installs the connection's rules and releases the buffered SYN.
+	 */
+	@Benchmark
+	public Command loadBalancerSyn()
+	{
+		Packets.putInt(this.syn.getPacketData(), Packets.IPV4_SRC,
+				this.nextClient++);
+		return this.loadBalancer.receive(this.sw, this.syn,
+				new FloodlightContext());
+	}
+
+	/**
+	 * The ARP server answers a request from a host it has not answered
+	 * recently.
+	 */
+	@Benchmark
+	public Command arpServerReply()
+	{
+		Packets.putInt(this.hostRequest.getPacketData(), Packets.ARP_SHA + 2,
+				this.nextClient++);
+		return this.arpServer.receive(this.sw, this.hostRequest,
+				new FloodlightContext());
+	}
+
+	/**
+	 * The ARP server drops a request it answered moments ago.
+	 */
+	@Benchmark
+	public Command arpServerCoalesced()
+	{
+		return this.arpServer.receive(this.sw, this.repeatedRequest,
+				new FloodlightContext());
+	}
+}
@@ -0,0 +1,112 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import java.nio.ByteBuffer;
+
+import org.openflow.protocol.OFPacketIn;
+
+/**
+ * Builds the packet-ins the packet handlers are benchmarked with. Frames are
+ * written byte by byte rather than serialized from packet objects, so
+ * building them does not depend on the code being measured; checksums are
+ * left zero, since no handler checks them.
+ */
+public class Packets
+{
+	// Offsets of the fields benchmarks change between packets, so each
+	// packet looks new to the handlers
+	public static final int ARP_SHA = 22;
+	public static final int IPV4_SRC = 26;
+
+	private static final short TYPE_ARP = 0x0806;
+	private static final short TYPE_IPV4 = 0x0800;
+	private static final byte PROTO_TCP = 6;
+	private static final byte TCP_FLAG_SYN = 0x02;
+
+	/**
+	 * Build an ARP request.
+	 * @param senderMAC MAC address of the host asking
+	 * @param senderIP IP address of the host asking
+	 * @param targetIP IP address being asked for
+	 * @return the Ethernet frame
+	 */
+	public static byte[] arpRequest(long senderMAC, int senderIP, int targetIP)
+	{
+		ByteBuffer bb = ByteBuffer.allocate(42);
+		putMAC(bb, 0xffffffffffffL);
+		putMAC(bb, senderMAC);
+		bb.putShort(TYPE_ARP);
+		bb.putShort((short)1);          // Hardware type Ethernet
+		bb.putShort(TYPE_IPV4);         // Protocol type IPv4
+		bb.put((byte)6).put((byte)4);   // Address lengths
+		bb.putShort((short)1);          // Opcode request
+		putMAC(bb, senderMAC);
+		bb.putInt(senderIP);
+		putMAC(bb, 0);
+		bb.putInt(targetIP);
+		return bb.array();
+	}
+
+	/**
+	 * Build a TCP SYN with no options or payload.
+	 * @return the Ethernet frame
+	 */
+	public static byte[] tcpSyn(long srcMAC, long dstMAC, int srcIP, int dstIP,
+			short srcPort, short dstPort)
+	{
+		ByteBuffer bb = ByteBuffer.allocate(54);
+		putMAC(bb, dstMAC);
+		putMAC(bb, srcMAC);
+		bb.putShort(TYPE_IPV4);
+		bb.put((byte)0x45).put((byte)0);  // Version, header length, DSCP
+		bb.putShort((short)40);           // Total length
+		bb.putInt(0);                     // Identification and fragments
+		bb.put((byte)64).put(PROTO_TCP);  // TTL and protocol
+		bb.putShort((short)0);            // Checksum
+		bb.putInt(srcIP);
+		bb.putInt(dstIP);
+		bb.putShort(srcPort);
+		bb.putShort(dstPort);
+		bb.putInt(1);                     // Sequence number
+		bb.putInt(0);                     // Acknowledgement number
+		bb.put((byte)0x50).put(TCP_FLAG_SYN);
+		bb.putShort((short)0xffff);       // Window
+		bb.putInt(0);                     // Checksum and urgent pointer
+		return bb.array();
+	}
+
+	/**
+	 * Wrap a frame in a packet-in.
+	 * @param data the Ethernet frame
+	 * @param inPort the port the frame arrived on
+	 * @param bufferId the buffer the switch kept the frame in, or
+	 *        OFPacketOut.BUFFER_ID_NONE
+	 * @return the packet-in
+	 */
+	public static OFPacketIn packetIn(byte[] data, int inPort, int bufferId)
+	{
+		OFPacketIn pktIn = new OFPacketIn();
+		pktIn.setInPort(inPort);
+		pktIn.setBufferId(bufferId);
+		pktIn.setTotalLength((short)data.length);
+		pktIn.setPacketData(data);
+		return pktIn;
+	}
+
+	/**
+	 * Overwrite four bytes of a frame, e.g. to give each packet sent through
+	 * a handler a different address.
+	 */
+	public static void putInt(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte)(value >>> 24);
+		data[offset + 1] = (byte)(value >>> 16);
+		data[offset + 2] = (byte)(value >>> 8);
+		data[offset + 3] = (byte)value;
+	}
+
+	private static void putMAC(ByteBuffer bb, long mac)
+	{
+		bb.putShort((short)(mac >>> 32));
+		bb.putInt((int)mac);
+	}
+}
@@ -0,0 +1,177 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import edu.wisc.cs.sdn.apps.l3routing.L3Routing;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Measures how long L3Routing takes to react to changes in the network: a
+ * recompute of every route, a link going down and coming back, a host
+ * joining and a host moving. Subclasses choose the topology. Run with
+ * "-prof gc" (as the bench target does) to also get the bytes allocated per
+ * operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class RoutingBenchmark
+{
+	// First address handed out to hosts (10.0.0.1)
+	private static final int FIRST_IP = 0x0a000001;
+
+	private Mocks.Controller controller;
+	private Mocks.LinkDiscovery linkDisc;
+	private L3Routing routing;
+
+	// Host that joins and moves, between the first and last host's switches
+	private Mocks.Device mobile;
+	private long[] home;
+	private long[] away;
+	private boolean moved;
+
+	// Link that goes down and comes back, in both directions
+	private Link flapped;
+	private Link flappedReverse;
+
+	/**
+	 * Create the topology to benchmark.
+	 */
+	protected abstract Topology createTopology();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		Topology topo = this.createTopology();
+		List<long[]> hosts = topo.getHosts();
+		int fixedHosts = hosts.size();
+
+		// Give the mobile host a port on the first and last host's switches
+		topo.addHost(hosts.get(0)[0]);
+		topo.addHost(hosts.get(fixedHosts - 1)[0]);
+		this.home = hosts.get(fixedHosts);
+		this.away = hosts.get(fixedHosts + 1);
+
+		this.controller = new Mocks.Controller();
+		for (long switchId : topo.getSwitchIds())
+		{ this.controller.addSwitch(switchId, topo.getPorts(switchId)); }
+		this.linkDisc = new Mocks.LinkDiscovery();
+		for (Link link : topo.getLinks())
+		{ this.linkDisc.addLink(link); }
+		Mocks.DeviceManager deviceManager = new Mocks.DeviceManager();
+
+		this.routing = new L3Routing();
+		FloodlightModuleContext context = new FloodlightModuleContext();
+		context.addService(IFloodlightProviderService.class,
+				this.controller.getService());
+		context.addService(ILinkDiscoveryService.class,
+				this.linkDisc.getService());
+		context.addService(IDeviceService.class, deviceManager.getService());
+		context.addConfigParam(this.routing, "table", "0");
+		this.routing.init(context);
+
+		for (int i = 0; i < fixedHosts; i++)
+		{
+			long[] host = hosts.get(i);
+			Mocks.Device device = new Mocks.Device(i + 1, FIRST_IP + i,
+					host[0], (int)host[1]);
+			deviceManager.addDevice(device.getDevice());
+			this.routing.deviceAdded(device.getDevice());
+		}
+		this.mobile = new Mocks.Device(fixedHosts + 1, FIRST_IP + fixedHosts,
+				this.home[0], (int)this.home[1]);
+		deviceManager.addDevice(this.mobile.getDevice());
+		this.routing.deviceAdded(this.mobile.getDevice());
+
+		if (topo.getLinks().size() > 0)
+		{
+			this.flapped = topo.getLinks().get(0);
+			this.flappedReverse = topo.getLinks().get(1);
+		}
+	}
+
+	/**
+	 * Before each host join, make the mobile host leave so it is new again.
+	 */
+	@Setup(Level.Invocation)
+	public void resetMobileHost(BenchmarkParams params)
+	{
+		if (params.getBenchmark().endsWith(".hostAdd"))
+		{ this.routing.deviceRemoved(this.mobile.getDevice()); }
+	}
+
+	/**
+	 * Recompute the routes to every host, as L3Routing does for any change in
+	 * links or switches.
+	 */
+	@Benchmark
+	public long fullRecompute()
+	{
+		this.routing.linkDiscoveryUpdate(Collections.<LDUpdate>emptyList());
+		return this.controller.getMessages();
+	}
+
+	/**
+	 * Take one link down, then bring it back up.
+	 */
+	@Benchmark
+	public long linkFlap()
+	{
+		if (null == this.flapped)
+		{ return 0; }
+		this.linkDisc.removeLink(this.flapped);
+		this.linkDisc.removeLink(this.flappedReverse);
+		this.routing.linkDiscoveryUpdate(Collections.<LDUpdate>emptyList());
+		this.linkDisc.addLink(this.flapped);
+		this.linkDisc.addLink(this.flappedReverse);
+		this.routing.linkDiscoveryUpdate(Collections.<LDUpdate>emptyList());
+		return this.controller.getMessages();
+	}
+
+	/**
+	 * Have a host join the network.
+	 */
+	@Benchmark
+	public long hostAdd()
+	{
+		this.routing.deviceAdded(this.mobile.getDevice());
+		return this.controller.getMessages();
+	}
+
+	/**
+	 * Move a host between two switches, one each way on alternate calls.
+	 */
+	@Benchmark
+	public long hostMove()
+	{
+		long[] target = (this.moved ? this.home : this.away);
+		this.moved = !this.moved;
+		this.mobile.moveTo(target[0], (int)target[1]);
+		this.routing.deviceMoved(this.mobile.getDevice());
+		return this.controller.getMessages();
+	}
+}
@@ -0,0 +1,109 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.wisc.cs.sdn.apps.util.ArpReplyTemplate;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Measures building rules and packet-outs and writing them to a switch that
+ * only records messages, which every handler pays for on top of its own
+ * work. The rule is the kind L3Routing installs for each host.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SwitchCommandsBenchmark
+{
+	// Table the rule is installed in
+	private static final byte TABLE = 1;
+
+	private IOFSwitch sw;
+	private OFMatch match;
+	private List<OFInstruction> instructions;
+	private List<OFAction> actions;
+	private byte[] packetData;
+	private OFPacketIn bufferedPacketIn;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		this.sw = new Mocks.RecordingSwitch(1, Arrays.asList(1, 2))
+				.getSwitch();
+
+		this.match = new OFMatch();
+		this.match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		this.match.setNetworkDestination(0x0a000002);
+		OFAction output = new OFActionOutput(2);
+		this.actions = Arrays.asList(output);
+		OFInstruction apply = new OFInstructionApplyActions(this.actions);
+		this.instructions = Arrays.asList(apply);
+
+		this.packetData = ArpReplyTemplate.build(2, 0x0a000002, 1, 0x0a000001);
+		this.bufferedPacketIn = Packets.packetIn(
+				Packets.arpRequest(1, 0x0a000001, 0x0a000002), 1, 1);
+	}
+
+	/**
+	 * Build a rule without sending it.
+	 */
+	@Benchmark
+	public OFFlowMod buildRule()
+	{
+		return SwitchCommands.buildRule(TABLE,
+				SwitchCommands.DEFAULT_PRIORITY, this.match, this.instructions);
+	}
+
+	/**
+	 * Build a rule and send it.
+	 */
+	@Benchmark
+	public boolean installRule()
+	{
+		return SwitchCommands.installRule(this.sw, TABLE,
+				SwitchCommands.DEFAULT_PRIORITY, this.match, this.instructions);
+	}
+
+	/**
+	 * Send a frame the controller built, like an ARP reply.
+	 */
+	@Benchmark
+	public boolean sendPacket()
+	{ return SwitchCommands.sendPacket(this.sw, (short)1, this.packetData); }
+
+	/**
+	 * Send a packet the switch buffered back through a list of actions.
+	 */
+	@Benchmark
+	public boolean sendBufferedPacket()
+	{
+		return SwitchCommands.sendPacket(this.sw, this.bufferedPacketIn,
+				this.actions);
+	}
+}
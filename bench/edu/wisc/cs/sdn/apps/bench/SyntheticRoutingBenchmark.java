@@ -0,0 +1,25 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Routing benchmarks on generated data center and WAN-like topologies. The
+ * number of switches is approximate for fat-trees, which only come in some
+ * sizes. The larger sizes take a long time with the current route
+ * computation; pass e.g. "-p switches=10,100" to skip them.
+ */
+@State(Scope.Thread)
+public class SyntheticRoutingBenchmark extends RoutingBenchmark
+{
+	@Param({ "fattree", "leafspine", "ring", "random" })
+	public String kind;
+
+	@Param({ "10", "100", "500", "2000" })
+	public int switches;
+
+	@Override
+	protected Topology createTopology()
+	{ return Topology.create(this.kind, this.switches); }
+}
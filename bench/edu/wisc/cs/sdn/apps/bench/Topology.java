@@ -0,0 +1,330 @@
+package edu.wisc.cs.sdn.apps.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+
+public class Topology
+{
+	// DPIDs of the switches, in the order they were added
+	private final List<Long> switchIds;
+
+	// Links between switches, once in each direction, as link discovery
+	// reports them
+	private final List<Link> links;
+
+	// Switch and port each host is attached to
+	private final List<long[]> hosts;
+
+	// Next free port on each switch
+	private final Map<Long,Integer> nextPort;
+
+	public Topology()
+	{
+		this.switchIds = new ArrayList<Long>();
+		this.links = new ArrayList<Link>();
+		this.hosts = new ArrayList<long[]>();
+		this.nextPort = new HashMap<Long,Integer>();
+	}
+
+	/**
+	 * Add a switch; DPIDs are numbered from 1, like mininet's switches.
+	 * @return DPID of the switch
+	 */
+	public long addSwitch()
+	{
+		long switchId = this.switchIds.size() + 1;
+		this.switchIds.add(switchId);
+		this.nextPort.put(switchId, 1);
+		return switchId;
+	}
+
+	/**
+	 * Connect two switches with a link, using the next free port on each.
+	 */
+	public void connect(long a, long b)
+	{
+		int portA = this.takePort(a);
+		int portB = this.takePort(b);
+		this.links.add(new Link(a, portA, b, portB));
+		this.links.add(new Link(b, portB, a, portA));
+	}
+
+	/**
+	 * Attach a host to the next free port on a switch.
+	 */
+	public void addHost(long switchId)
+	{ this.hosts.add(new long[] { switchId, this.takePort(switchId) }); }
+
+	private int takePort(long switchId)
+	{
+		int port = this.nextPort.get(switchId);
+		this.nextPort.put(switchId, port + 1);
+		return port;
+	}
+
+	public List<Long> getSwitchIds()
+	{ return this.switchIds; }
+
+	public List<Link> getLinks()
+	{ return this.links; }
+
+	/**
+	 * Get the switch and port each host is attached to.
+	 */
+	public List<long[]> getHosts()
+	{ return this.hosts; }
+
+	/**
+	 * Get the ports in use on a switch.
+	 */
+	public List<Integer> getPorts(long switchId)
+	{
+		List<Integer> ports = new ArrayList<Integer>();
+		for (int port = 1; port < this.nextPort.get(switchId); port++)
+		{ ports.add(port); }
+		return ports;
+	}
+
+	/**
+	 * Create a topology of one of the synthetic kinds, with about the given
+	 * number of switches.
+	 * @param kind fattree, leafspine, ring or random
+	 * @param switches the number of switches wanted
+	 * @return the topology
+	 */
+	public static Topology create(String kind, int switches)
+	{
+		if ("fattree".equals(kind))
+		{
+			// A fat-tree(k) has 5k^2/4 switches
+			int k = 2;
+			while (5 * (k + 2) * (k + 2) / 4 <= switches)
+			{ k += 2; }
+			return fatTree(k);
+		}
+		if ("leafspine".equals(kind))
+		{
+			int spines = Math.max(2, switches / 10);
+			return leafSpine(Math.max(1, switches - spines), spines);
+		}
+		if ("ring".equals(kind))
+		{ return ring(switches); }
+		if ("random".equals(kind))
+		{ return randomRegular(switches, Math.min(4, switches - 1), 640); }
+		throw new IllegalArgumentException("Unknown topology " + kind);
+	}
+
+	/**
+	 * Create a fat-tree: k pods of k/2 edge and k/2 aggregation switches,
+	 * and (k/2)^2 core switches. Each edge switch has one host.
+	 * @param k number of ports per switch; must be even
+	 */
+	public static Topology fatTree(int k)
+	{
+		Topology topo = new Topology();
+		int half = k / 2;
+		long[] cores = new long[half * half];
+		for (int i = 0; i < cores.length; i++)
+		{ cores[i] = topo.addSwitch(); }
+		for (int pod = 0; pod < k; pod++)
+		{
+			long[] aggs = new long[half];
+			for (int i = 0; i < half; i++)
+			{
+				aggs[i] = topo.addSwitch();
+				for (int j = 0; j < half; j++)
+				{ topo.connect(aggs[i], cores[i * half + j]); }
+			}
+			for (int i = 0; i < half; i++)
+			{
+				long edge = topo.addSwitch();
+				for (long agg : aggs)
+				{ topo.connect(edge, agg); }
+				topo.addHost(edge);
+			}
+		}
+		return topo;
+	}
+
+	/**
+	 * Create a leaf-spine fabric, where every leaf connects to every spine.
+	 * Each leaf has one host.
+	 */
+	public static Topology leafSpine(int leaves, int spines)
+	{
+		Topology topo = new Topology();
+		long[] spineIds = new long[spines];
+		for (int i = 0; i < spines; i++)
+		{ spineIds[i] = topo.addSwitch(); }
+		for (int i = 0; i < leaves; i++)
+		{
+			long leaf = topo.addSwitch();
+			for (long spine : spineIds)
+			{ topo.connect(leaf, spine); }
+			topo.addHost(leaf);
+		}
+		return topo;
+	}
+
+	/**
+	 * Create a ring of switches, each with one host.
+	 */
+	public static Topology ring(int n)
+	{
+		Topology topo = linear(n);
+		if (n > 2)
+		{ topo.connect(n, 1); }
+		return topo;
+	}
+
+	/**
+	 * Create a random graph where (nearly) every switch has the same number
+	 * of links, using the pairing model; pairs that would make a self-loop or
+	 * a second link between the same switches are dropped. Each switch has
+	 * one host.
+	 * @param n number of switches
+	 * @param degree number of links per switch
+	 * @param seed seed for the random number generator, so runs are repeatable
+	 */
+	public static Topology randomRegular(int n, int degree, long seed)
+	{
+		Topology topo = new Topology();
+		List<Long> stubs = new ArrayList<Long>();
+		for (int i = 0; i < n; i++)
+		{
+			long switchId = topo.addSwitch();
+			topo.addHost(switchId);
+			for (int j = 0; j < degree; j++)
+			{ stubs.add(switchId); }
+		}
+		Collections.shuffle(stubs, new Random(seed));
+
+		Set<Long> pairs = new HashSet<Long>();
+		for (int i = 0; i + 1 < stubs.size(); i += 2)
+		{
+			long a = Math.min(stubs.get(i), stubs.get(i + 1));
+			long b = Math.max(stubs.get(i), stubs.get(i + 1));
+			if (a != b && pairs.add(a * (n + 1) + b))
+			{ topo.connect(a, b); }
+		}
+		return topo;
+	}
+
+	/**
+	 * Create a chain of switches, each with one host, like mininet's
+	 * LinearTopo.
+	 */
+	public static Topology linear(int k)
+	{
+		Topology topo = new Topology();
+		long previous = 0;
+		for (int i = 0; i < k; i++)
+		{
+			long switchId = topo.addSwitch();
+			topo.addHost(switchId);
+			if (previous != 0)
+			{ topo.connect(previous, switchId); }
+			previous = switchId;
+		}
+		return topo;
+	}
+
+	/**
+	 * Create a binary tree of switches with hosts on the leaves, like
+	 * mininet's TreeTopo.
+	 */
+	public static Topology tree(int depth)
+	{
+		Topology topo = new Topology();
+		addTree(topo, depth);
+		return topo;
+	}
+
+	private static long addTree(Topology topo, int depth)
+	{
+		long switchId = topo.addSwitch();
+		for (int i = 0; i < 2; i++)
+		{
+			if (depth > 1)
+			{ topo.connect(switchId, addTree(topo, depth - 1)); }
+			else
+			{ topo.addHost(switchId); }
+		}
+		return switchId;
+	}
+
+	/**
+	 * Create one of the topologies run_mininet.py provides.
+	 * @param spec the topology, given the same way as to run_mininet.py, e.g.
+	 *        "assign1" or "mesh,4"
+	 * @return the topology
+	 */
+	public static Topology fromMininet(String spec)
+	{
+		String[] parts = spec.split(",");
+		int size = (parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+		if ("single".equals(parts[0]))
+		{
+			Topology topo = new Topology();
+			long switchId = topo.addSwitch();
+			for (int i = 0; i < size; i++)
+			{ topo.addHost(switchId); }
+			return topo;
+		}
+		if ("tree".equals(parts[0]))
+		{ return tree(size); }
+		if ("linear".equals(parts[0]))
+		{ return linear(size); }
+		if ("mesh".equals(parts[0]))
+		{
+			Topology topo = linear(0);
+			for (int i = 0; i < size; i++)
+			{ topo.addHost(topo.addSwitch()); }
+			for (long a = 1; a <= size; a++)
+			{
+				for (long b = a + 1; b <= size; b++)
+				{ topo.connect(a, b); }
+			}
+			return topo;
+		}
+		if ("triangle".equals(parts[0]))
+		{ return ring(3); }
+		if ("assign1".equals(parts[0]))
+		{
+			return fromLinks(6, new int[] { 1, 1, 1, 2, 3, 4, 4, 4, 5, 6 },
+					new int[][] { {1,2}, {2,3}, {3,4}, {2,5}, {3,6} });
+		}
+		if ("someloops".equals(parts[0]))
+		{
+			return fromLinks(6, new int[] { 1, 5, 4, 6 },
+					new int[][] { {1,2}, {2,3}, {3,4}, {3,6}, {2,5}, {5,4},
+						{4,6}, {6,1} });
+		}
+		throw new IllegalArgumentException("Unknown topology " + spec);
+	}
+
+	/**
+	 * Create a topology from lists of the switches hosts are attached to and
+	 * of links between switches, added in the same order run_mininet.py adds
+	 * them so ports match.
+	 */
+	private static Topology fromLinks(int switches, int[] hosts, int[][] links)
+	{
+		Topology topo = new Topology();
+		for (int i = 0; i < switches; i++)
+		{ topo.addSwitch(); }
+		for (int host : hosts)
+		{ topo.addHost(host); }
+		for (int[] link : links)
+		{ topo.connect(link[0], link[1]); }
+		return topo;
+	}
+}
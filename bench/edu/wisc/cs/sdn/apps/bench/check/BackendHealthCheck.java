@@ -0,0 +1,236 @@
+package edu.wisc.cs.sdn.apps.bench.check;
+
+import java.util.Arrays;
+
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFMatch;
+
+import edu.wisc.cs.sdn.apps.bench.Mocks;
+import edu.wisc.cs.sdn.apps.loadbalancer.BackendHealth;
+import edu.wisc.cs.sdn.apps.loadbalancer.LoadBalancer;
+import edu.wisc.cs.sdn.apps.loadbalancer.LoadBalancerInstance;
+import edu.wisc.cs.sdn.apps.util.IHostMACService;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Checks passive health checking of load balancer hosts. A sequence of
+ * expired server->client connection rules is replayed into the load
+ * balancer, as a switch would send them, to check that a host is ejected
+ * after BackendHealth.FAILURE_THRESHOLD connections in a row it never
+ * answered, and not before. The load balancer reads the wall clock, so the
+ * probation that follows an ejection is checked by replaying the same
+ * failures into a host's health record on a simulated clock: each failure
+ * after re-admission ejects the host again for twice as long, up to
+ * BackendHealth.MAX_EJECTION, until it serves a connection.
+ * <p>
+ * Each step is printed; the exit status is 1 if any step failed.
+ */
+public class BackendHealthCheck
+{
+	// Load balancer instance for 10.0.100.10, spreading connections over
+	// two hosts
+	private static final String INSTANCE =
+			"10.0.100.10 00:00:00:00:00:fe 10.0.0.2,10.0.0.3";
+	private static final int VIRTUAL_IP = 0x0a00640a;
+	private static final int HOST_IP = 0x0a000002;
+	private static final int OTHER_HOST_IP = 0x0a000003;
+	private static final int CLIENT_IP = 0x0a000001;
+	private static final byte TABLE = 0;
+
+	private final LoadBalancer loadBalancer;
+	private final IOFSwitch sw;
+
+	// Client port of the next connection, so each rule is for a new one
+	private short nextClientPort = (short)40000;
+
+	// Number of steps that failed
+	private int failures;
+
+	public BackendHealthCheck() throws Exception
+	{
+		Mocks.Controller controller = new Mocks.Controller();
+		controller.addSwitch(1, Arrays.asList(1, 2, 3));
+		this.sw = controller.getRecorder(1).getSwitch();
+
+		Mocks.DeviceManager deviceManager = new Mocks.DeviceManager();
+		Mocks.MACService macService = new Mocks.MACService();
+		for (int i = 0; i < 3; i++)
+		{
+			Mocks.Device device = new Mocks.Device(i + 1, CLIENT_IP + i, 1,
+					i + 1);
+			deviceManager.addDevice(device.getDevice());
+			macService.addHost(CLIENT_IP + i, i + 1);
+		}
+
+		FloodlightModuleContext context = new FloodlightModuleContext();
+		context.addService(IFloodlightProviderService.class,
+				controller.getService());
+		context.addService(IDeviceService.class, deviceManager.getService());
+		context.addService(IHostMACService.class, macService.getService());
+		context.addService(IThreadPoolService.class,
+				new Mocks.ThreadPool().getService());
+
+		this.loadBalancer = new LoadBalancer();
+		context.addConfigParam(this.loadBalancer, "table",
+				Byte.toString(TABLE));
+		context.addConfigParam(this.loadBalancer, "instances", INSTANCE);
+		this.loadBalancer.init(context);
+	}
+
+	/**
+	 * Build the message a switch sends when a server->client connection
+	 * rule expires.
+	 * @param hostIP host the connection was assigned to
+	 * @param packets number of packets the host sent back to the client
+	 */
+	private OFFlowRemoved flowRemoved(int hostIP, long packets)
+	{
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkSource(hostIP);
+		match.setNetworkDestination(CLIENT_IP);
+		match.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		match.setTransportSource((short)80);
+		match.setTransportDestination(this.nextClientPort++);
+
+		OFFlowRemoved flowRemoved = new OFFlowRemoved();
+		flowRemoved.setMatch(match);
+		flowRemoved.setTableId(TABLE);
+		flowRemoved.setPriority(LoadBalancer.PRIORITY_CONNECTION_SPECIFIC);
+		flowRemoved.setCookie(VIRTUAL_IP & 0xffffffffL);
+		flowRemoved.setIdleTimeout((short)1);
+		flowRemoved.setDurationSeconds(1);
+		flowRemoved.setPacketCount(packets);
+		flowRemoved.setByteCount(packets * 64);
+		return flowRemoved;
+	}
+
+	private void replay(int hostIP, long packets)
+	{
+		this.loadBalancer.receive(this.sw, this.flowRemoved(hostIP, packets),
+				new FloodlightContext());
+	}
+
+	private LoadBalancerInstance getInstance()
+	{
+		for (LoadBalancerInstance instance : this.loadBalancer.getInstances())
+		{
+			if (instance.getVirtualIP() == VIRTUAL_IP)
+			{ return instance; }
+		}
+		throw new IllegalStateException("Instance missing");
+	}
+
+	private void check(String step, boolean passed)
+	{
+		System.out.println((passed ? "ok   " : "FAIL ") + step);
+		if (!passed)
+		{ this.failures++; }
+	}
+
+	/**
+	 * Replay expired rules into the load balancer and check when the host is
+	 * ejected.
+	 */
+	public void checkThreshold()
+	{
+		LoadBalancerInstance instance = this.getInstance();
+		BackendHealth health = instance.getHealth(HOST_IP);
+
+		for (int i = 1; i < BackendHealth.FAILURE_THRESHOLD; i++)
+		{ this.replay(HOST_IP, 0); }
+		this.check(String.format("%d unanswered connections leave the host "
+				+ "available", BackendHealth.FAILURE_THRESHOLD - 1),
+				instance.isHostAvailable(HOST_IP, System.currentTimeMillis()));
+
+		this.replay(HOST_IP, 5);
+		for (int i = 1; i < BackendHealth.FAILURE_THRESHOLD; i++)
+		{ this.replay(HOST_IP, 0); }
+		this.check("An answered connection resets the failure count",
+				instance.isHostAvailable(HOST_IP, System.currentTimeMillis()));
+
+		this.replay(HOST_IP, 0);
+		long now = System.currentTimeMillis();
+		this.check(String.format("%d unanswered connections in a row eject "
+				+ "the host", BackendHealth.FAILURE_THRESHOLD),
+				!instance.isHostAvailable(HOST_IP, now));
+		long ejection = health.getEjectedUntil() - now;
+		this.check(String.format("The first ejection lasts %d ms (%d ms)",
+				BackendHealth.MIN_EJECTION, ejection),
+				ejection > BackendHealth.MIN_EJECTION - 1000
+				&& ejection <= BackendHealth.MIN_EJECTION);
+
+		long failures = health.getTotalFailures();
+		this.replay(HOST_IP, 0);
+		this.check("Failures while ejected are ignored",
+				health.getTotalFailures() == failures
+				&& 1 == health.getTotalEjections());
+		this.check("Other hosts stay available",
+				instance.isHostAvailable(OTHER_HOST_IP, now)
+				&& 0 == instance.getHealth(OTHER_HOST_IP).getTotalFailures());
+	}
+
+	/**
+	 * Replay failures into a host's health record on a simulated clock and
+	 * check how long each ejection on probation lasts.
+	 */
+	public void checkProbation()
+	{
+		BackendHealth health = new BackendHealth(HOST_IP);
+		long now = 0;
+		for (int i = 0; i < BackendHealth.FAILURE_THRESHOLD; i++)
+		{ health.recordFailure(now, now); }
+		long expected = BackendHealth.MIN_EJECTION;
+		this.check(String.format("Ejected for %d ms", expected),
+				health.getEjectedUntil() - now == expected);
+
+		now = health.getEjectedUntil();
+		this.check("Failures of connections assigned before re-admission "
+				+ "are ignored", !health.recordFailure(now - 1000, now)
+				&& health.isAvailable(now));
+
+		while (expected < BackendHealth.MAX_EJECTION)
+		{
+			expected = Math.min(2 * expected, BackendHealth.MAX_EJECTION);
+			now += 1000;
+			boolean ejected = health.recordFailure(now, now);
+			this.check(String.format("One failure on probation ejects again "
+					+ "for %d ms", expected),
+					ejected && health.getEjectedUntil() - now == expected);
+			now = health.getEjectedUntil();
+		}
+		now += 1000;
+		health.recordFailure(now, now);
+		this.check(String.format("Ejections stay at %d ms",
+				BackendHealth.MAX_EJECTION),
+				health.getEjectedUntil() - now == BackendHealth.MAX_EJECTION);
+
+		now = health.getEjectedUntil();
+		health.recordSuccess();
+		for (int i = 1; i < BackendHealth.FAILURE_THRESHOLD; i++)
+		{ health.recordFailure(now, now); }
+		boolean available = health.isAvailable(now);
+		health.recordFailure(now, now);
+		this.check(String.format("After a served connection, it takes %d "
+				+ "failures and ejects for %d ms",
+				BackendHealth.FAILURE_THRESHOLD, BackendHealth.MIN_EJECTION),
+				available && health.getEjectedUntil() - now
+				== BackendHealth.MIN_EJECTION);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		BackendHealthCheck check = new BackendHealthCheck();
+		check.checkThreshold();
+		check.checkProbation();
+		System.out.println(0 == check.failures ? "All checks passed"
+				: String.format("%d checks failed", check.failures));
+		System.exit(0 == check.failures ? 0 : 1);
+	}
+}
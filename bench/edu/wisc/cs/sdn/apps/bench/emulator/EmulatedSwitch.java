@@ -0,0 +1,223 @@
+package edu.wisc.cs.sdn.apps.bench.emulator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One emulated OpenFlow 1.3 switch, connected to the controller over its
+ * own socket. The switch answers the controller's handshake and requests,
+ * relays LLDP packet-outs to the emulator so link discovery finds the
+ * emulated topology, and counts the rules and packet-outs it is sent. It
+ * keeps no flow table: every frame it is given becomes a packet-in.
+ */
+public class EmulatedSwitch implements Runnable
+{
+	private static final short TYPE_LLDP = (short)0x88cc;
+
+	private final SwitchEmulator emulator;
+	private final long dpid;
+	private final List<Integer> ports;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	// Next transaction ID for messages the switch starts
+	private final AtomicInteger nextXid;
+
+	// Number of messages of each kind the controller sent
+	private final AtomicLong flowMods;
+	private final AtomicLong packetOuts;
+	private final AtomicLong lldps;
+
+	// Whether the controller finished the handshake by asking for the ports
+	private volatile boolean ready;
+
+	/**
+	 * Connect a switch to the controller.
+	 * @param emulator the emulator to report to
+	 * @param dpid DPID of the switch
+	 * @param ports the switch's ports
+	 * @param host address of the controller
+	 * @param port OpenFlow port of the controller
+	 */
+	public EmulatedSwitch(SwitchEmulator emulator, long dpid,
+			List<Integer> ports, String host, int port) throws IOException
+	{
+		this.emulator = emulator;
+		this.dpid = dpid;
+		this.ports = ports;
+		this.socket = new Socket(host, port);
+		this.socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(this.socket.getInputStream());
+		this.out = new DataOutputStream(
+				new BufferedOutputStream(this.socket.getOutputStream()));
+		this.nextXid = new AtomicInteger(1);
+		this.flowMods = new AtomicLong(0);
+		this.packetOuts = new AtomicLong(0);
+		this.lldps = new AtomicLong(0);
+		this.send(OFWire.hello(this.nextXid.getAndIncrement()));
+	}
+
+	public long getId()
+	{ return this.dpid; }
+
+	public boolean isReady()
+	{ return this.ready; }
+
+	public long getFlowMods()
+	{ return this.flowMods.get(); }
+
+	public long getPacketOuts()
+	{ return this.packetOuts.get(); }
+
+	public long getLLDPs()
+	{ return this.lldps.get(); }
+
+	/**
+	 * Send a frame to the controller, as if it arrived on a port and missed
+	 * in the flow table.
+	 * @param inPort port the frame arrived on
+	 * @param bufferId buffer the switch kept the frame in, or
+	 *        OFWire.BUFFER_ID_NONE
+	 * @param data the frame
+	 */
+	public void sendPacketIn(int inPort, int bufferId, byte[] data)
+			throws IOException
+	{
+		this.send(OFWire.packetIn(this.nextXid.getAndIncrement(), bufferId,
+				inPort, data));
+	}
+
+	private void send(byte[] msg) throws IOException
+	{
+		synchronized (this.out)
+		{
+			this.out.write(msg);
+			this.out.flush();
+		}
+	}
+
+	public void close()
+	{
+		try
+		{ this.socket.close(); }
+		catch (IOException e)
+		{ /* Nothing more to do */ }
+	}
+
+	/**
+	 * Read and answer messages from the controller until the connection
+	 * closes.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (true)
+			{
+				byte[] msg = new byte[OFWire.HEADER_LENGTH];
+				this.in.readFully(msg);
+				int length = ((msg[2] & 0xff) << 8) | (msg[3] & 0xff);
+				if (length > OFWire.HEADER_LENGTH)
+				{
+					byte[] full = new byte[length];
+					System.arraycopy(msg, 0, full, 0, msg.length);
+					this.in.readFully(full, msg.length,
+							length - msg.length);
+					msg = full;
+				}
+				this.handle(msg);
+			}
+		}
+		catch (EOFException e)
+		{ /* The controller closed the connection */ }
+		catch (IOException e)
+		{
+			if (!this.socket.isClosed())
+			{
+				System.err.println(String.format("s%d: connection failed: %s",
+						this.dpid, e.getMessage()));
+			}
+		}
+	}
+
+	private void handle(byte[] msg) throws IOException
+	{
+		int xid = OFWire.getXid(msg);
+		switch (OFWire.getType(msg))
+		{
+		case OFWire.ECHO_REQUEST:
+			this.send(OFWire.echoReply(msg));
+			break;
+		case OFWire.FEATURES_REQUEST:
+			this.send(OFWire.featuresReply(xid, this.dpid));
+			break;
+		case OFWire.GET_CONFIG_REQUEST:
+			this.send(OFWire.getConfigReply(xid));
+			break;
+		case OFWire.BARRIER_REQUEST:
+			this.send(OFWire.barrierReply(xid));
+			break;
+		case OFWire.ROLE_REQUEST:
+			this.send(OFWire.roleReply(msg));
+			break;
+		case OFWire.MULTIPART_REQUEST:
+			this.handleMultipart(msg);
+			break;
+		case OFWire.FLOW_MOD:
+			this.flowMods.incrementAndGet();
+			this.emulator.flowModReceived(this, msg);
+			break;
+		case OFWire.PACKET_OUT:
+			this.handlePacketOut(msg);
+			break;
+		default:
+			// Hellos, configuration, group and meter mods need no answer
+			break;
+		}
+	}
+
+	private void handleMultipart(byte[] request) throws IOException
+	{
+		byte[] body;
+		switch (OFWire.getMultipartType(request))
+		{
+		case OFWire.MULTIPART_DESC:
+			body = OFWire.descBody(this.dpid);
+			break;
+		case OFWire.MULTIPART_PORT_DESC:
+			body = OFWire.portDescBody(this.dpid, this.ports);
+			this.ready = true;
+			break;
+		default:
+			body = new byte[0];
+			break;
+		}
+		this.send(OFWire.multipartReply(request, body));
+	}
+
+	private void handlePacketOut(byte[] msg)
+	{
+		byte[] data = OFWire.getPacketOutData(msg);
+		if (data.length >= 14 && TYPE_LLDP == (short)(((data[12] & 0xff) << 8)
+				| (data[13] & 0xff)))
+		{
+			// Link discovery probes are passed to the switch at the other end
+			// of each link they are sent out of
+			this.lldps.incrementAndGet();
+			for (int port : OFWire.getPacketOutPorts(msg))
+			{ this.emulator.relay(this.dpid, port, data); }
+			return;
+		}
+		this.packetOuts.incrementAndGet();
+		this.emulator.packetOutReceived(this, msg, data);
+	}
+}
@@ -0,0 +1,268 @@
+package edu.wisc.cs.sdn.apps.bench.emulator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes the OpenFlow 1.3 messages an emulated switch needs,
+ * directly on byte buffers. Only the fields the emulator uses are decoded.
+ */
+public class OFWire
+{
+	public static final byte VERSION = 0x04;
+	public static final int HEADER_LENGTH = 8;
+
+	// Message types
+	public static final int HELLO = 0;
+	public static final int ERROR = 1;
+	public static final int ECHO_REQUEST = 2;
+	public static final int ECHO_REPLY = 3;
+	public static final int FEATURES_REQUEST = 5;
+	public static final int FEATURES_REPLY = 6;
+	public static final int GET_CONFIG_REQUEST = 7;
+	public static final int GET_CONFIG_REPLY = 8;
+	public static final int PACKET_IN = 10;
+	public static final int PACKET_OUT = 13;
+	public static final int FLOW_MOD = 14;
+	public static final int MULTIPART_REQUEST = 18;
+	public static final int MULTIPART_REPLY = 19;
+	public static final int BARRIER_REQUEST = 20;
+	public static final int BARRIER_REPLY = 21;
+	public static final int ROLE_REQUEST = 24;
+	public static final int ROLE_REPLY = 25;
+
+	// Multipart types with a body in the reply; others get an empty reply
+	public static final int MULTIPART_DESC = 0;
+	public static final int MULTIPART_PORT_DESC = 13;
+
+	// Packet-out and flow mod sentinels
+	public static final int BUFFER_ID_NONE = 0xffffffff;
+	public static final int MAX_PORT = 0xffffff00;
+
+	// Length of the fixed part of a flow mod, where its match starts
+	private static final int FLOW_MOD_MATCH_OFFSET = 48;
+
+	// OXM class and fields used in matches
+	private static final int OXM_CLASS_BASIC = 0x8000;
+	private static final int OXM_IN_PORT = 0;
+	private static final int OXM_IPV4_DST = 12;
+
+	// Port state live, and a 1 Gb/s copper port
+	private static final int PORT_STATE_LIVE = 4;
+	private static final int PORT_FEATURES = 0x0020 | 0x0800;
+
+	private static ByteBuffer message(int type, int length, int xid)
+	{
+		ByteBuffer bb = ByteBuffer.allocate(length);
+		bb.put(VERSION).put((byte)type).putShort((short)length).putInt(xid);
+		return bb;
+	}
+
+	public static int getType(byte[] msg)
+	{ return msg[1] & 0xff; }
+
+	public static int getXid(byte[] msg)
+	{ return ByteBuffer.wrap(msg).getInt(4); }
+
+	public static byte[] hello(int xid)
+	{ return message(HELLO, HEADER_LENGTH, xid).array(); }
+
+	public static byte[] echoReply(byte[] request)
+	{
+		byte[] reply = request.clone();
+		reply[1] = ECHO_REPLY;
+		return reply;
+	}
+
+	public static byte[] barrierReply(int xid)
+	{ return message(BARRIER_REPLY, HEADER_LENGTH, xid).array(); }
+
+	public static byte[] featuresReply(int xid, long dpid)
+	{
+		ByteBuffer bb = message(FEATURES_REPLY, 32, xid);
+		bb.putLong(dpid);
+		bb.putInt(256);                 // Buffers
+		bb.put((byte)254);              // Tables
+		bb.put((byte)0);                // Auxiliary connection ID
+		bb.putShort((short)0);
+		bb.putInt(0x0000004f);          // Flow, table, port and group stats
+		bb.putInt(0);
+		return bb.array();
+	}
+
+	public static byte[] getConfigReply(int xid)
+	{
+		ByteBuffer bb = message(GET_CONFIG_REPLY, 12, xid);
+		bb.putShort((short)0);          // Flags
+		bb.putShort((short)0xffff);     // Send whole packets to the controller
+		return bb.array();
+	}
+
+	/**
+	 * Answer a role request with the role asked for.
+	 */
+	public static byte[] roleReply(byte[] request)
+	{
+		byte[] reply = request.clone();
+		reply[1] = ROLE_REPLY;
+		return reply;
+	}
+
+	public static int getMultipartType(byte[] request)
+	{ return ByteBuffer.wrap(request).getShort(HEADER_LENGTH) & 0xffff; }
+
+	/**
+	 * Answer a multipart request with a single reply.
+	 * @param request the request
+	 * @param body body of the reply; empty for requests the emulator has
+	 *        nothing to report for
+	 */
+	public static byte[] multipartReply(byte[] request, byte[] body)
+	{
+		ByteBuffer bb = message(MULTIPART_REPLY, 16 + body.length,
+				getXid(request));
+		bb.putShort((short)getMultipartType(request));
+		bb.putShort((short)0);          // No more replies follow
+		bb.putInt(0);
+		bb.put(body);
+		return bb.array();
+	}
+
+	public static byte[] descBody(long dpid)
+	{
+		ByteBuffer bb = ByteBuffer.allocate(1056);
+		putString(bb, "cs640", 256);
+		putString(bb, "emulated switch", 256);
+		putString(bb, "SwitchEmulator", 256);
+		putString(bb, Long.toString(dpid), 32);
+		putString(bb, String.format("s%d", dpid), 256);
+		return bb.array();
+	}
+
+	public static byte[] portDescBody(long dpid, List<Integer> ports)
+	{
+		ByteBuffer bb = ByteBuffer.allocate(64 * ports.size());
+		for (int port : ports)
+		{
+			bb.putInt(port);
+			bb.putInt(0);
+			bb.putShort((short)0x0200);    // Locally administered MAC
+			bb.putShort((short)dpid);
+			bb.putShort((short)port);
+			bb.putShort((short)0);
+			putString(bb, String.format("s%d-eth%d", dpid, port), 16);
+			bb.putInt(0);                  // Config
+			bb.putInt(PORT_STATE_LIVE);
+			bb.putInt(PORT_FEATURES);      // Current
+			bb.putInt(PORT_FEATURES);      // Advertised
+			bb.putInt(PORT_FEATURES);      // Supported
+			bb.putInt(PORT_FEATURES);      // Peer
+			bb.putInt(1000000);            // Current speed in kb/s
+			bb.putInt(1000000);            // Maximum speed in kb/s
+		}
+		return bb.array();
+	}
+
+	/**
+	 * Build a packet-in for a frame that missed in the flow table.
+	 * @param xid transaction ID
+	 * @param bufferId buffer the switch kept the frame in, or BUFFER_ID_NONE
+	 * @param inPort port the frame arrived on
+	 * @param data the frame
+	 */
+	public static byte[] packetIn(int xid, int bufferId, int inPort,
+			byte[] data)
+	{
+		ByteBuffer bb = message(PACKET_IN, 42 + data.length, xid);
+		bb.putInt(bufferId);
+		bb.putShort((short)data.length);
+		bb.put((byte)0);                // Reason: no matching rule
+		bb.put((byte)0);                // Table
+		bb.putLong(0);                  // Cookie
+		bb.putShort((short)1);          // OXM match with only the in port
+		bb.putShort((short)12);
+		bb.putInt((OXM_CLASS_BASIC << 16) | (OXM_IN_PORT << 9) | 4);
+		bb.putInt(inPort);
+		bb.putInt(0);                   // Pad match to 8 bytes
+		bb.putShort((short)0);
+		bb.put(data);
+		return bb.array();
+	}
+
+	public static int getPacketOutBufferId(byte[] msg)
+	{ return ByteBuffer.wrap(msg).getInt(HEADER_LENGTH); }
+
+	/**
+	 * Get the ports a packet-out sends its packet out of; reserved ports like
+	 * the flow table or flooding are left out.
+	 */
+	public static List<Integer> getPacketOutPorts(byte[] msg)
+	{
+		ByteBuffer bb = ByteBuffer.wrap(msg);
+		int actionsLength = bb.getShort(16) & 0xffff;
+		List<Integer> ports = new ArrayList<Integer>();
+		int offset = 24;
+		while (offset + 8 <= 24 + actionsLength)
+		{
+			int type = bb.getShort(offset) & 0xffff;
+			int length = bb.getShort(offset + 2) & 0xffff;
+			if (0 == type)
+			{
+				int port = bb.getInt(offset + 4);
+				if (port > 0 && (port & 0xffffffffL) < (MAX_PORT & 0xffffffffL))
+				{ ports.add(port); }
+			}
+			if (length < 8)
+			{ break; }
+			offset += length;
+		}
+		return ports;
+	}
+
+	/**
+	 * Get the frame a packet-out carries; empty if it releases a buffer.
+	 */
+	public static byte[] getPacketOutData(byte[] msg)
+	{
+		int actionsLength = ByteBuffer.wrap(msg).getShort(16) & 0xffff;
+		int offset = 24 + actionsLength;
+		byte[] data = new byte[Math.max(0, msg.length - offset)];
+		System.arraycopy(msg, offset, data, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * Get the IPv4 destination a flow mod matches on.
+	 * @return the address, or 0 if the flow mod does not match on one
+	 */
+	public static int getFlowModIPv4Destination(byte[] msg)
+	{
+		if (msg.length < FLOW_MOD_MATCH_OFFSET + 4)
+		{ return 0; }
+		ByteBuffer bb = ByteBuffer.wrap(msg);
+		int matchLength = bb.getShort(FLOW_MOD_MATCH_OFFSET + 2) & 0xffff;
+		int end = Math.min(msg.length, FLOW_MOD_MATCH_OFFSET + matchLength);
+		int offset = FLOW_MOD_MATCH_OFFSET + 4;
+		while (offset + 4 <= end)
+		{
+			int header = bb.getInt(offset);
+			int field = (header >>> 9) & 0x7f;
+			int length = header & 0xff;
+			if ((header >>> 16) == OXM_CLASS_BASIC && OXM_IPV4_DST == field
+					&& offset + 8 <= end)
+			{ return bb.getInt(offset + 4); }
+			offset += 4 + length;
+		}
+		return 0;
+	}
+
+	private static void putString(ByteBuffer bb, String value, int length)
+	{
+		byte[] bytes = new byte[length];
+		byte[] chars = value.getBytes();
+		System.arraycopy(chars, 0, bytes, 0, Math.min(chars.length,
+				length - 1));
+		bb.put(bytes);
+	}
+}
@@ -0,0 +1,368 @@
+package edu.wisc.cs.sdn.apps.bench.emulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.apps.bench.Packets;
+import edu.wisc.cs.sdn.apps.bench.Topology;
+import edu.wisc.cs.sdn.apps.util.LatencyHistogram;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Load tests a running controller without mininet, in the spirit of cbench.
+ * Emulated switches connect over loopback, let link discovery find the
+ * topology, announce their hosts, and then send packet-ins at a fixed rate.
+ * The time until the controller answers each packet-in is measured:
+ * <ul>
+ * <li>arp: ARP requests from new hosts for known hosts, answered by the ARP
+ *     server's reply</li>
+ * <li>syn: TCP SYNs to a virtual IP, answered by the load balancer releasing
+ *     the buffered SYN once the connection's rules are installed</li>
+ * <li>hosts: new hosts appearing, answered by the first rule L3Routing
+ *     installs for the host</li>
+ * </ul>
+ * Options are given as "--name value"; see the defaults in main.
+ */
+public class SwitchEmulator
+{
+	// First address of the topology's hosts, and of the hosts the arp, syn
+	// and hosts modes make up; MAC addresses use the same prefixes
+	private static final int HOST_IP = 0x0a000001;
+	private static final int CLIENT_IP = 0x0a010000;
+	private static final int NEW_HOST_IP = 0x0a020000;
+	private static final long CLIENT_MAC = 0x020100000000L;
+	private static final long NEW_HOST_MAC = 0x020200000000L;
+
+	// Destination MAC of SYNs; the load balancer only looks at the IP
+	private static final long VIRTUAL_MAC = 0x02fe00000001L;
+
+	private final Topology topo;
+	private final String mode;
+	// Switches, keyed by DPID; filled in while switches connect
+	private final Map<Long,EmulatedSwitch> switches;
+
+	// Switch and port at the other end of each link, keyed by switch and port
+	private final Map<String,long[]> peers;
+
+	// Send time (from System.nanoTime) of each unanswered packet-in, keyed by
+	// what identifies its answer in the mode being run
+	private final ConcurrentMap<Long,Long> outstanding;
+
+	private final LatencyHistogram latency;
+	private final AtomicLong answered;
+
+	public SwitchEmulator(Topology topo, String mode)
+	{
+		this.topo = topo;
+		this.mode = mode;
+		this.switches = new ConcurrentHashMap<Long,EmulatedSwitch>();
+		this.peers = new HashMap<String,long[]>();
+		for (Link link : topo.getLinks())
+		{
+			this.peers.put(link.getSrc() + ":" + link.getSrcPort(),
+					new long[] { link.getDst(), link.getDstPort() });
+		}
+		this.outstanding = new ConcurrentHashMap<Long,Long>();
+		this.latency = new LatencyHistogram();
+		this.answered = new AtomicLong(0);
+	}
+
+	/**
+	 * Connect every switch to the controller and wait for the controller to
+	 * finish each handshake.
+	 */
+	public void connect(String host, int port, long timeout)
+			throws IOException, InterruptedException
+	{
+		for (long switchId : this.topo.getSwitchIds())
+		{
+			EmulatedSwitch sw = new EmulatedSwitch(this, switchId,
+					this.topo.getPorts(switchId), host, port);
+			this.switches.put(switchId, sw);
+			Thread reader = new Thread(sw, String.format("s%d", switchId));
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		for (EmulatedSwitch sw : this.switches.values())
+		{
+			while (!sw.isReady())
+			{
+				if (System.currentTimeMillis() > deadline)
+				{
+					throw new IOException(String.format(
+							"Controller did not finish the handshake with s%d",
+							sw.getId()));
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	/**
+	 * Pass a link discovery probe a switch sent out of a port to the switch
+	 * at the other end of the link, if there is one.
+	 */
+	void relay(long switchId, int port, byte[] data)
+	{
+		long[] peer = this.peers.get(switchId + ":" + port);
+		if (null == peer)
+		{ return; }
+
+		// The peer may not have connected yet; link discovery probes again
+		EmulatedSwitch sw = this.switches.get(peer[0]);
+		if (null == sw)
+		{ return; }
+		try
+		{ sw.sendPacketIn((int)peer[1], OFWire.BUFFER_ID_NONE, data); }
+		catch (IOException e)
+		{ /* The switch's reader reports the failed connection */ }
+	}
+
+	void flowModReceived(EmulatedSwitch sw, byte[] msg)
+	{
+		if ("hosts".equals(this.mode))
+		{ this.answer(OFWire.getFlowModIPv4Destination(msg) & 0xffffffffL); }
+	}
+
+	void packetOutReceived(EmulatedSwitch sw, byte[] msg, byte[] data)
+	{
+		if ("syn".equals(this.mode))
+		{ this.answer(OFWire.getPacketOutBufferId(msg) & 0xffffffffL); }
+		else if ("arp".equals(this.mode) && isARPReply(data))
+		{ this.answer(getMAC(data, 0)); }
+	}
+
+	private void answer(long key)
+	{
+		Long sent = this.outstanding.remove(key);
+		if (null == sent)
+		{ return; }
+		this.latency.recordSince(sent);
+		this.answered.incrementAndGet();
+	}
+
+	/**
+	 * Have every host in the topology send a gratuitous ARP, so the
+	 * controller learns where the hosts are.
+	 */
+	public void announceHosts() throws IOException
+	{
+		List<long[]> hosts = this.topo.getHosts();
+		for (int i = 0; i < hosts.size(); i++)
+		{
+			byte[] frame = Packets.arpRequest(i + 1, HOST_IP + i, HOST_IP + i);
+			this.switches.get(hosts.get(i)[0]).sendPacketIn(
+					(int)hosts.get(i)[1], OFWire.BUFFER_ID_NONE, frame);
+		}
+	}
+
+	/**
+	 * Send packet-ins at a fixed rate, spread over the topology's hosts.
+	 * @param rate number of packet-ins per second
+	 * @param duration number of milliseconds to send for
+	 * @param virtualIP virtual IP SYNs are sent to
+	 * @param clients number of clients SYNs are sent from
+	 * @return number of packet-ins sent
+	 */
+	public long generate(int rate, long duration, int virtualIP, int clients)
+			throws IOException
+	{
+		List<long[]> hosts = this.topo.getHosts();
+		long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+		long next = start;
+		long seq = 0;
+		while (next < end)
+		{
+			long wait = next - System.nanoTime();
+			if (wait > 0)
+			{ LockSupport.parkNanos(wait); }
+
+			seq++;
+			long[] host = hosts.get((int)(seq % hosts.size()));
+			EmulatedSwitch sw = this.switches.get(host[0]);
+			int bufferId = OFWire.BUFFER_ID_NONE;
+			long key;
+			byte[] frame;
+			if ("syn".equals(this.mode))
+			{
+				int client = (int)(seq % clients);
+				short port = (short)(1024 + (seq / clients) % 60000);
+				frame = Packets.tcpSyn(CLIENT_MAC | client, VIRTUAL_MAC,
+						CLIENT_IP | client, virtualIP, port, (short)80);
+				bufferId = (int)(seq & 0x7fffffff);
+				key = bufferId;
+			}
+			else if ("hosts".equals(this.mode))
+			{
+				int ip = NEW_HOST_IP + (int)seq;
+				frame = Packets.arpRequest(NEW_HOST_MAC | seq, ip, ip);
+				key = ip & 0xffffffffL;
+			}
+			else
+			{
+				int target = (int)((seq + 1) % hosts.size());
+				frame = Packets.arpRequest(CLIENT_MAC | seq, 0,
+						HOST_IP + target);
+				key = CLIENT_MAC | seq;
+			}
+
+			this.outstanding.put(key, System.nanoTime());
+			sw.sendPacketIn((int)host[1], bufferId, frame);
+			next += interval;
+		}
+		return seq;
+	}
+
+	public void close()
+	{
+		for (EmulatedSwitch sw : this.switches.values())
+		{ sw.close(); }
+	}
+
+	private static boolean isARPReply(byte[] data)
+	{
+		return data.length >= 22 && 0x08 == data[12] && 0x06 == data[13]
+				&& 0x00 == data[20] && 0x02 == data[21];
+	}
+
+	private static long getMAC(byte[] data, int offset)
+	{
+		long mac = 0;
+		for (int i = 0; i < 6; i++)
+		{ mac = (mac << 8) | (data[offset + i] & 0xff); }
+		return mac;
+	}
+
+	private long[] countMessages()
+	{
+		long[] counts = new long[] { 0, 0 };
+		for (EmulatedSwitch sw : this.switches.values())
+		{
+			counts[0] += sw.getFlowMods();
+			counts[1] += sw.getPacketOuts();
+		}
+		return counts;
+	}
+
+	private String describeFlowMods(Map<Long,Long> before)
+	{
+		StringBuilder result = new StringBuilder();
+		for (long switchId : this.topo.getSwitchIds())
+		{
+			long count = this.switches.get(switchId).getFlowMods()
+					- before.get(switchId);
+			result.append(String.format(" s%d=%d", switchId, count));
+		}
+		return result.toString();
+	}
+
+	private static Topology createTopology(String spec)
+	{
+		String[] parts = spec.split(",");
+		if ("fattree".equals(parts[0]) || "leafspine".equals(parts[0])
+				|| "ring".equals(parts[0]) || "random".equals(parts[0]))
+		{ return Topology.create(parts[0], Integer.parseInt(parts[1])); }
+		return Topology.fromMininet(spec);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String,String> options = new HashMap<String,String>();
+		options.put("controller", "127.0.0.1");
+		options.put("port", "6633");
+		options.put("topo", "assign1");
+		options.put("mode", "arp");
+		options.put("rate", "1000");
+		options.put("duration", "10");
+		options.put("settle", "5");
+		options.put("vip", "10.0.100.1");
+		options.put("clients", "256");
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (!args[i].startsWith("--")
+					|| !options.containsKey(args[i].substring(2)))
+			{
+				System.err.println("Unknown option " + args[i]
+						+ "; options and defaults are " + options);
+				System.exit(1);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		Topology topo = createTopology(options.get("topo"));
+		String mode = options.get("mode");
+		SwitchEmulator emulator = new SwitchEmulator(topo, mode);
+		System.out.println(String.format(
+				"Connecting %d switches (%d links, %d hosts) to %s:%s",
+				topo.getSwitchIds().size(), topo.getLinks().size() / 2,
+				topo.getHosts().size(), options.get("controller"),
+				options.get("port")));
+		emulator.connect(options.get("controller"),
+				Integer.parseInt(options.get("port")), 30000);
+
+		// Give link discovery time to find every link before hosts appear
+		Thread.sleep(TimeUnit.SECONDS.toMillis(
+				Integer.parseInt(options.get("settle"))));
+		emulator.announceHosts();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(
+				Integer.parseInt(options.get("settle"))));
+
+		Map<Long,Long> flowModsBefore = new HashMap<Long,Long>();
+		for (long switchId : topo.getSwitchIds())
+		{
+			flowModsBefore.put(switchId,
+					emulator.switches.get(switchId).getFlowMods());
+		}
+		long[] before = emulator.countMessages();
+		int rate = Integer.parseInt(options.get("rate"));
+		long duration = TimeUnit.SECONDS.toMillis(
+				Integer.parseInt(options.get("duration")));
+		String[] vip = options.get("vip").split("\\.");
+		int virtualIP = 0;
+		for (String octet : vip)
+		{ virtualIP = (virtualIP << 8) | Integer.parseInt(octet); }
+		System.out.println(String.format("Sending %s packet-ins at %d/s for %d s",
+				mode, rate, duration / 1000));
+		long sent = emulator.generate(rate, duration, virtualIP,
+				Integer.parseInt(options.get("clients")));
+
+		// Late answers still count, but not towards the rate
+		long answeredInTime = emulator.answered.get();
+		Thread.sleep(2000);
+		long[] after = emulator.countMessages();
+		emulator.close();
+
+		List<String> report = new ArrayList<String>();
+		report.add(String.format("Sent %d packet-ins (%.0f/s)", sent,
+				sent * 1000.0 / duration));
+		report.add(String.format("Answered %d (%.0f/s sustained), %d unanswered",
+				emulator.answered.get(), answeredInTime * 1000.0 / duration,
+				emulator.outstanding.size()));
+		report.add(String.format(
+				"Latency (us): p50=%d p90=%d p99=%d p99.9=%d max=%d",
+				emulator.latency.getPercentile(50),
+				emulator.latency.getPercentile(90),
+				emulator.latency.getPercentile(99),
+				emulator.latency.getPercentile(99.9),
+				emulator.latency.getPercentile(100)));
+		report.add(String.format("Flow mods: %d, packet-outs: %d",
+				after[0] - before[0], after[1] - before[1]));
+		report.add("Flow mods per switch:"
+				+ emulator.describeFlowMods(flowModsBefore));
+		for (String line : report)
+		{ System.out.println(line); }
+	}
+}
@@ -0,0 +1,364 @@
+package edu.wisc.cs.sdn.apps.bench.replay;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.apps.bench.Mocks;
+import edu.wisc.cs.sdn.apps.l3routing.L3Routing;
+import edu.wisc.cs.sdn.apps.loadbalancer.LoadBalancer;
+import edu.wisc.cs.sdn.apps.util.EventLog;
+import edu.wisc.cs.sdn.apps.util.IHostMACService;
+import edu.wisc.cs.sdn.apps.util.IPacketInService;
+import edu.wisc.cs.sdn.apps.util.LatencyHistogram;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LinkType;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.UpdateOperation;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Replays an event log written by EventRecorder into L3Routing and the
+ * LoadBalancer, offline against stub services, so a change to how the apps
+ * react to topology and host changes can be measured on a real run without
+ * mininet. The stubs track the switches, links and hosts the log describes,
+ * and pass each event to whichever listeners the apps registered, as
+ * Floodlight would. Events are replayed as fast as possible, or paced at the
+ * recorded speed (or a multiple of it) with "--speed".
+ * <p>
+ * The replay reports the rules written to each switch, the time spent in
+ * the apps' handlers, and the time until the apps reach their final state.
+ * The apps' periodic tasks, like statistics polling, are never run.
+ * Options are given as "--name value"; see the defaults in main.
+ */
+public class EventReplayer
+{
+	private final Mocks.Controller controller;
+	private final Mocks.LinkDiscovery linkDisc;
+	private final Mocks.DeviceManager deviceManager;
+	private final Mocks.MACService macService;
+
+	// Hosts the log has described so far, keyed by MAC address
+	private final Map<Long,Mocks.Device> devices;
+
+	// Number of events of each type, and the time spent handling them
+	private final Map<Byte,Integer> eventCounts;
+	private final Map<Byte,Long> eventTimes;
+	private final LatencyHistogram handleTime;
+
+	public EventReplayer()
+	{
+		this.controller = new Mocks.Controller();
+		this.linkDisc = new Mocks.LinkDiscovery();
+		this.deviceManager = new Mocks.DeviceManager();
+		this.macService = new Mocks.MACService();
+		this.devices = new HashMap<Long,Mocks.Device>();
+		this.eventCounts = new TreeMap<Byte,Integer>();
+		this.eventTimes = new TreeMap<Byte,Long>();
+		this.handleTime = new LatencyHistogram();
+	}
+
+	/**
+	 * Create a context holding the stub services. The thread pool hands out
+	 * an executor that never runs anything, and the REST API and packet-in
+	 * dispatcher ignore what is registered with them.
+	 */
+	public FloodlightModuleContext createContext()
+	{
+		FloodlightModuleContext context = new FloodlightModuleContext();
+		context.addService(IFloodlightProviderService.class,
+				this.controller.getService());
+		context.addService(ILinkDiscoveryService.class,
+				this.linkDisc.getService());
+		context.addService(IDeviceService.class,
+				this.deviceManager.getService());
+		context.addService(IHostMACService.class,
+				this.macService.getService());
+		context.addService(IThreadPoolService.class,
+				new Mocks.ThreadPool().getService());
+		context.addService(IRestApiService.class,
+				Mocks.stub(IRestApiService.class));
+		context.addService(IPacketInService.class,
+				Mocks.stub(IPacketInService.class));
+		return context;
+	}
+
+	/**
+	 * Update the stubs for an event and pass it to the apps' listeners.
+	 */
+	private void apply(EventLog.Event event)
+	{
+		switch (event.getType())
+		{
+		case EventLog.DEVICE_ADDED:
+		{
+			IDevice device = this.updateDevice(event).getDevice();
+			for (IDeviceListener listener : this.deviceManager.getListeners())
+			{ listener.deviceAdded(device); }
+			break;
+		}
+		case EventLog.DEVICE_REMOVED:
+		{
+			IDevice device = this.updateDevice(event).getDevice();
+			this.devices.remove(event.getMACAddress());
+			this.deviceManager.removeDevice(device);
+			for (IDeviceListener listener : this.deviceManager.getListeners())
+			{ listener.deviceRemoved(device); }
+			break;
+		}
+		case EventLog.DEVICE_MOVED:
+		{
+			IDevice device = this.updateDevice(event).getDevice();
+			for (IDeviceListener listener : this.deviceManager.getListeners())
+			{ listener.deviceMoved(device); }
+			break;
+		}
+		case EventLog.DEVICE_IPV4_CHANGED:
+		{
+			IDevice device = this.updateDevice(event).getDevice();
+			for (IDeviceListener listener : this.deviceManager.getListeners())
+			{ listener.deviceIPV4AddrChanged(device); }
+			break;
+		}
+		case EventLog.SWITCH_ADDED:
+			this.controller.addSwitch(event.getSwitchId(), event.getPorts());
+			for (IOFSwitchListener listener : this.controller.getListeners())
+			{ listener.switchAdded(event.getSwitchId()); }
+			break;
+		case EventLog.SWITCH_REMOVED:
+			this.controller.removeSwitch(event.getSwitchId());
+			for (IOFSwitchListener listener : this.controller.getListeners())
+			{ listener.switchRemoved(event.getSwitchId()); }
+			break;
+		case EventLog.LINK_UPDATES:
+		{
+			List<LDUpdate> updates = this.updateLinks(event);
+			for (ILinkDiscoveryListener listener : this.linkDisc.getListeners())
+			{ listener.linkDiscoveryUpdate(updates); }
+			break;
+		}
+		}
+	}
+
+	/**
+	 * Bring the stub for the host an event is about up to date.
+	 */
+	private Mocks.Device updateDevice(EventLog.Event event)
+	{
+		Mocks.Device device = this.devices.get(event.getMACAddress());
+		if (null == device)
+		{
+			device = new Mocks.Device(event.getMACAddress(),
+					event.getIPv4Address(), event.getSwitchId(),
+					event.getPort());
+			this.devices.put(event.getMACAddress(), device);
+			this.deviceManager.addDevice(device.getDevice());
+		}
+		else
+		{
+			device.setIPv4Address(event.getIPv4Address());
+			device.moveTo(event.getSwitchId(), event.getPort());
+		}
+		if (event.getIPv4Address() != 0)
+		{ this.macService.addHost(event.getIPv4Address(), event.getMACAddress()); }
+		return device;
+	}
+
+	/**
+	 * Add and remove links between switches for a batch of link updates, and
+	 * build the updates link discovery would have passed to its listeners.
+	 */
+	private List<LDUpdate> updateLinks(EventLog.Event event)
+	{
+		List<LDUpdate> updates = new ArrayList<LDUpdate>();
+		for (EventLog.LinkUpdate update : event.getLinkUpdates())
+		{
+			UpdateOperation operation =
+					UpdateOperation.values()[update.getOperation()];
+			LinkType type = (update.getType() < 0 ? null
+					: LinkType.values()[update.getType()]);
+			if (update.getDst() != 0)
+			{
+				Link link = new Link(update.getSrc(), update.getSrcPort(),
+						update.getDst(), update.getDstPort());
+				if (UpdateOperation.LINK_UPDATED == operation)
+				{ this.linkDisc.addLink(link); }
+				else if (UpdateOperation.LINK_REMOVED == operation)
+				{ this.linkDisc.removeLink(link); }
+			}
+			updates.add(new LDUpdate(update.getSrc(), update.getSrcPort(),
+					update.getDst(), update.getDstPort(), type, operation));
+		}
+		return updates;
+	}
+
+	/**
+	 * Replay every event in a log.
+	 * @param reader the log
+	 * @param speed multiple of the recorded speed to replay at, or 0 to
+	 *        replay as fast as possible
+	 * @return the time of the last event in the log, in microseconds
+	 */
+	public long replay(EventLog.Reader reader, double speed) throws Exception
+	{
+		long start = System.nanoTime();
+		long lastTime = 0;
+		EventLog.Event event;
+		while ((event = reader.read()) != null)
+		{
+			lastTime = event.getTime();
+			if (speed > 0)
+			{
+				long due = start + (long)(event.getTime() * 1000 / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+				{ TimeUnit.NANOSECONDS.sleep(wait); }
+			}
+
+			long begin = System.nanoTime();
+			this.apply(event);
+			long elapsed = System.nanoTime() - begin;
+			this.handleTime.record(elapsed);
+
+			Integer count = this.eventCounts.get(event.getType());
+			this.eventCounts.put(event.getType(),
+					(null == count ? 1 : count + 1));
+			Long time = this.eventTimes.get(event.getType());
+			this.eventTimes.put(event.getType(),
+					(null == time ? elapsed : time + elapsed));
+		}
+		return lastTime;
+	}
+
+	private static String describeEventType(byte type)
+	{
+		switch (type)
+		{
+		case EventLog.DEVICE_ADDED:
+			return "deviceAdded";
+		case EventLog.DEVICE_REMOVED:
+			return "deviceRemoved";
+		case EventLog.DEVICE_MOVED:
+			return "deviceMoved";
+		case EventLog.DEVICE_IPV4_CHANGED:
+			return "deviceIPV4AddrChanged";
+		case EventLog.SWITCH_ADDED:
+			return "switchAdded";
+		case EventLog.SWITCH_REMOVED:
+			return "switchRemoved";
+		default:
+			return "linkDiscoveryUpdate";
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String,String> options = new HashMap<String,String>();
+		options.put("log", "events.log");
+		options.put("speed", "max");
+		options.put("apps", "l3routing,loadbalancer");
+		options.put("l3table", "1");
+		options.put("lbtable", "0");
+		options.put("instances", "10.0.100.1 00:00:01:00:00:01 10.0.0.2,10.0.0.3;"
+				+ "10.0.110.1 00:00:01:10:00:01 10.0.0.4,10.0.0.6");
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (!args[i].startsWith("--")
+					|| !options.containsKey(args[i].substring(2)))
+			{
+				System.err.println("Unknown option " + args[i]
+						+ "; options and defaults are " + options);
+				System.exit(1);
+			}
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		EventReplayer replayer = new EventReplayer();
+		FloodlightModuleContext context = replayer.createContext();
+		List<String> apps = Arrays.asList(options.get("apps").split(","));
+		List<IFloodlightModule> modules = new ArrayList<IFloodlightModule>();
+		if (apps.contains("l3routing"))
+		{
+			L3Routing routing = new L3Routing();
+			context.addConfigParam(routing, "table", options.get("l3table"));
+			modules.add(routing);
+		}
+		if (apps.contains("loadbalancer"))
+		{
+			LoadBalancer loadBalancer = new LoadBalancer();
+			context.addConfigParam(loadBalancer, "table",
+					options.get("lbtable"));
+			context.addConfigParam(loadBalancer, "instances",
+					options.get("instances"));
+			modules.add(loadBalancer);
+		}
+		for (IFloodlightModule module : modules)
+		{ module.init(context); }
+		for (IFloodlightModule module : modules)
+		{ module.startUp(context); }
+
+		double speed = ("max".equals(options.get("speed")) ? 0
+				: Double.parseDouble(options.get("speed")));
+		System.out.println(String.format("Replaying %s into %s at %s speed",
+				options.get("log"), apps, options.get("speed")));
+		EventLog.Reader reader = new EventLog.Reader(
+				new FileInputStream(options.get("log")));
+		long start = System.nanoTime();
+		long recorded;
+		try
+		{ recorded = replayer.replay(reader, speed); }
+		finally
+		{ reader.close(); }
+		long finished = System.nanoTime() - start;
+
+		List<String> report = new ArrayList<String>();
+		long computeTime = replayer.handleTime.getSum();
+		report.add(String.format("Events: %d over %.1f ms recorded",
+				replayer.handleTime.getCount(), recorded / 1000.0));
+		for (byte type : replayer.eventCounts.keySet())
+		{
+			report.add(String.format("  %s: %d, %.1f ms", describeEventType(type),
+					replayer.eventCounts.get(type),
+					replayer.eventTimes.get(type) / 1000000.0));
+		}
+		report.add(String.format("Compute time: %.1f ms total, per event (us): "
+				+ "p50=%d p99=%d max=%d", computeTime / 1000000.0,
+				replayer.handleTime.getPercentile(50),
+				replayer.handleTime.getPercentile(99),
+				replayer.handleTime.getPercentile(100)));
+		report.add(String.format("Time to final state: %.1f ms",
+				finished / 1000000.0));
+
+		long flowMods = 0;
+		StringBuilder perSwitch = new StringBuilder();
+		for (Map.Entry<Long,Mocks.RecordingSwitch> entry : new TreeMap<Long,
+				Mocks.RecordingSwitch>(replayer.controller.getRecorders())
+				.entrySet())
+		{
+			long count = entry.getValue().getFlowMods();
+			flowMods += count;
+			perSwitch.append(String.format(" s%d=%d", entry.getKey(), count));
+		}
+		report.add(String.format("Flow mods: %d, messages: %d", flowMods,
+				replayer.controller.getMessages()));
+		report.add("Flow mods per switch:" + perSwitch);
+		for (String line : report)
+		{ System.out.println(line); }
+	}
+}
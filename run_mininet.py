@@ -120,8 +120,9 @@ if __name__ == '__main__':
     setLogLevel( 'info' )
 
     # Create network
-    if (len(sys.argv) != 2):
+    if (len(sys.argv) != 2 and len(sys.argv) != 3):
         print 'Specify topology single, tree, linear, assign1, triangle, mesh, or someloops'
+        print 'and optionally the ports of local controllers, e.g. 6633,6634'
         sys.exit(1)
     topoName = sys.argv[1]
     topoParts = topoName.split(',')
@@ -151,8 +152,16 @@ if __name__ == '__main__':
         print 'Unknown topology'
         sys.exit(1) 
 
-    net = Mininet(topo=topo, autoSetMacs=True, controller=RemoteController,
-            switch=customConstructor({'ovsk' : OVSSwitch}, "ovsk,protocols=OpenFlow13"))
+    if (len(sys.argv) == 3):
+        # Connect every switch to each controller in a cluster
+        net = Mininet(topo=topo, autoSetMacs=True, controller=None,
+                switch=customConstructor({'ovsk' : OVSSwitch}, "ovsk,protocols=OpenFlow13"))
+        for i, port in enumerate(sys.argv[2].split(',')):
+            net.addController('c%d' % i, controller=RemoteController,
+                    ip='127.0.0.1', port=int(port))
+    else:
+        net = Mininet(topo=topo, autoSetMacs=True, controller=RemoteController,
+                switch=customConstructor({'ovsk' : OVSSwitch}, "ovsk,protocols=OpenFlow13"))
 
     # Run network
     net.start()
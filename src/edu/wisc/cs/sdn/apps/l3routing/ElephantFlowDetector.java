@@ -0,0 +1,732 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.Metrics;
+import edu.wisc.cs.sdn.apps.util.StripedCounter;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Finds elephant flows and moves them off the paths L3Routing chose, so they
+ * do not fill the queues of the small flows sharing those paths. The byte
+ * counts of every rule in the routing table are polled, which gives the
+ * traffic of each destination and the load on each switch port. Detection
+ * then works in two steps:
+ * <ol>
+ * <li>When a switch sends more than the threshold to one destination, it is
+ *     given a counting rule for each host attached to it, which forwards
+ *     that host's traffic to the destination the same way but counts it
+ *     separately.</li>
+ * <li>When a counting rule carries more than the threshold, the traffic from
+ *     that source to that destination is an elephant. If a path with less
+ *     load leads to the destination, rules for the pair are installed along
+ *     it; they expire when the flow goes idle, or after a fixed time.</li>
+ * </ol>
+ * All rules match on the source and destination IPs only. A rule could match
+ * a connection's exact transport ports, but L3Routing installs its rules
+ * before any traffic flows, so no packet of a connection reaches the
+ * controller and its ports are never learned. Every connection between the
+ * two hosts is therefore counted and moved together; a bulk transfer
+ * between two hosts is normally one connection.
+ */
+public class ElephantFlowDetector
+{
+	public static final String NAME = ElephantFlowDetector.class.getSimpleName();
+
+	// Priorities of counting rules and of rules that move elephant flows;
+	// both win over L3Routing's per-destination rules
+	public static final short PRIORITY_COUNT =
+			SwitchCommands.DEFAULT_PRIORITY + 1;
+	public static final short PRIORITY_REROUTE =
+			SwitchCommands.DEFAULT_PRIORITY + 2;
+
+	// Number of seconds between polls, also the longest a poll waits for a
+	// switch to reply
+	public static final int POLL_INTERVAL = 2;
+
+	// Number of seconds counting rules last
+	private static final short COUNT_TIMEOUT = 3 * POLL_INTERVAL;
+
+	// Number of seconds a moved flow may be idle before its rules expire, and
+	// the longest it stays on its new path before it is reconsidered
+	private static final short REROUTE_IDLE_TIMEOUT = 5;
+	private static final short REROUTE_HARD_TIMEOUT = 60;
+
+	// Interface to the logging system
+	private static Logger log = LoggerFactory.getLogger(NAME);
+
+	// Routing module whose rules are polled
+	private final L3Routing routing;
+
+	// Byte rate (in bytes per second) above which a flow is an elephant
+	private final long threshold;
+
+	// Byte counts of the rules at the last poll, keyed by switch DPID
+	private Map<Long,Map<Rule,Long>> byteCounts;
+
+	// Time (in milliseconds) of the last poll
+	private long lastPoll;
+
+	// Counting rules installed, keyed by switch DPID and destination IP
+	private final Map<Long,Map<Integer,Counting>> counting;
+
+	// Flows currently moved to another path
+	private final Map<Rule,Reroute> reroutes;
+
+	// Number of elephant flows moved to another path
+	private final StripedCounter rerouted;
+
+	/**
+	 * A rule in the routing table, identified by its priority and the IPs it
+	 * matches; per-destination rules have a source of 0.
+	 */
+	private static class Rule
+	{
+		private final short priority;
+		private final int source;
+		private final int destination;
+
+		private Rule(short priority, int source, int destination)
+		{
+			this.priority = priority;
+			this.source = source;
+			this.destination = destination;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Rule))
+			{ return false; }
+			Rule other = (Rule)obj;
+			return (other.priority == this.priority
+					&& other.source == this.source
+					&& other.destination == this.destination);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = this.priority;
+			result = 31 * result + this.source;
+			result = 31 * result + this.destination;
+			return result;
+		}
+	}
+
+	/**
+	 * The counting rules on a switch for one destination.
+	 */
+	private static class Counting
+	{
+		private final List<Integer> sources;
+		private final long expires;
+
+		private Counting(List<Integer> sources, long expires)
+		{
+			this.sources = sources;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * A flow moved to another path: the switches along the path, each with
+	 * the port it sends the flow out of.
+	 */
+	private static class Reroute
+	{
+		private final List<long[]> hops;
+		private final long installed;
+
+		private Reroute(List<long[]> hops, long installed)
+		{
+			this.hops = hops;
+			this.installed = installed;
+		}
+	}
+
+	/**
+	 * Create a detector for the rules a routing module installs.
+	 * @param routing the routing module
+	 * @param threshold byte rate (in bytes per second) above which a flow is
+	 *        an elephant
+	 */
+	public ElephantFlowDetector(L3Routing routing, long threshold)
+	{
+		this.routing = routing;
+		this.threshold = threshold;
+		this.byteCounts = new HashMap<Long,Map<Rule,Long>>();
+		this.counting = new HashMap<Long,Map<Integer,Counting>>();
+		this.reroutes = new HashMap<Rule,Reroute>();
+		this.rerouted = Metrics.counter("sdn_elephant_flows_rerouted_total",
+				"Elephant flows moved to a less loaded path");
+	}
+
+	/**
+	 * Polls every switch for the byte counts of its routing rules. The
+	 * replies are collected by a separate task, so the scheduler's thread is
+	 * not held while switches answer.
+	 * @param executor executor on which to collect the replies
+	 */
+	public void poll(ScheduledExecutorService executor)
+	{
+		final long now = System.currentTimeMillis();
+		final Map<Long,Future<List<OFStatistics>>> replies =
+				new HashMap<Long,Future<List<OFStatistics>>>();
+		for (IOFSwitch sw : this.routing.getSwitches().values())
+		{
+			if (!this.routing.isOwner(sw.getId()))
+			{ continue; }
+			try
+			{
+				Future<List<OFStatistics>> reply = sw.queryStatistics(
+						SwitchCommands.buildFlowStatsRequest(L3Routing.table));
+				if (reply != null)
+				{ replies.put(sw.getId(), reply); }
+			}
+			catch (Exception e)
+			{ log.warn(String.format("Failed to poll switch s%d", sw.getId())); }
+		}
+
+		executor.schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{ collect(replies, now); }
+						catch (RuntimeException e)
+						{ log.error("Failed to collect rule statistics", e); }
+					}
+				}, POLL_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Counts the traffic of busy destinations by source and moves elephant
+	 * flows to less loaded paths, using the replies to a poll that have
+	 * arrived.
+	 * @param replies pending replies to the poll, keyed by switch DPID
+	 * @param now time (in milliseconds) the poll was sent
+	 */
+	private void collect(Map<Long,Future<List<OFStatistics>>> replies,
+			long now)
+	{
+		Map<Long,List<OFStatistics>> stats =
+				new HashMap<Long,List<OFStatistics>>();
+		for (Map.Entry<Long,Future<List<OFStatistics>>> entry
+				: replies.entrySet())
+		{
+			if (!entry.getValue().isDone())
+			{
+				entry.getValue().cancel(false);
+				log.warn(String.format("No statistics from switch s%d in time",
+						entry.getKey()));
+				continue;
+			}
+			try
+			{
+				List<OFStatistics> reply = entry.getValue().get();
+				if (reply != null)
+				{ stats.put(entry.getKey(), reply); }
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Exception e)
+			{
+				log.warn(String.format("No statistics from switch s%d",
+						entry.getKey()));
+			}
+		}
+		this.update(stats, now);
+	}
+
+	/**
+	 * Works out the byte rate of every rule and the load on every port from
+	 * the statistics of a poll, and acts on busy destinations and elephants.
+	 * @param stats the rules of each switch, keyed by DPID
+	 * @param now current time in milliseconds
+	 */
+	private synchronized void update(Map<Long,List<OFStatistics>> stats,
+			long now)
+	{
+		long elapsed = now - this.lastPoll;
+		this.lastPoll = now;
+		this.expire(now);
+
+		// Byte rates of the rules and ports of each switch, keyed by DPID
+		Map<Long,Map<Rule,Long>> rates = new HashMap<Long,Map<Rule,Long>>();
+		Map<Long,Map<Integer,Long>> loads = new HashMap<Long,Map<Integer,Long>>();
+		Map<Long,Map<Rule,Long>> byteCounts = new HashMap<Long,Map<Rule,Long>>();
+		for (Map.Entry<Long,List<OFStatistics>> entry : stats.entrySet())
+		{
+			long switchId = entry.getKey();
+			Map<Rule,Long> previous = this.byteCounts.get(switchId);
+			Map<Rule,Long> counts = new HashMap<Rule,Long>();
+			Map<Rule,Long> switchRates = new HashMap<Rule,Long>();
+			Map<Integer,Long> switchLoads = new HashMap<Integer,Long>();
+			for (OFStatistics stat : entry.getValue())
+			{
+				if (!(stat instanceof OFFlowStatisticsReply))
+				{ continue; }
+				OFFlowStatisticsReply reply = (OFFlowStatisticsReply)stat;
+				OFMatch match = reply.getMatch();
+				short priority = reply.getPriority();
+				if (match.getDataLayerType() != OFMatch.ETH_TYPE_IPV4
+						|| priority < SwitchCommands.DEFAULT_PRIORITY
+						|| priority > PRIORITY_REROUTE)
+				{ continue; }
+				Rule rule = new Rule(priority,
+						(SwitchCommands.DEFAULT_PRIORITY == priority ? 0
+								: match.getNetworkSource()),
+						match.getNetworkDestination());
+				counts.put(rule, reply.getByteCount());
+
+				// A rule not seen at the last poll counts from when it was
+				// installed
+				Long before = (null == previous ? null : previous.get(rule));
+				long rate;
+				if (before != null && elapsed > 0
+						&& reply.getByteCount() >= before)
+				{ rate = (reply.getByteCount() - before) * 1000 / elapsed; }
+				else
+				{
+					rate = reply.getByteCount()
+							/ Math.max(1, reply.getDurationSeconds());
+				}
+				switchRates.put(rule, rate);
+
+				Integer port = SwitchCommands.getOutputPort(
+						reply.getInstructions());
+				if (port != null)
+				{
+					Long load = switchLoads.get(port);
+					switchLoads.put(port, (null == load ? 0 : load) + rate);
+				}
+			}
+			byteCounts.put(switchId, counts);
+			rates.put(switchId, switchRates);
+			loads.put(switchId, switchLoads);
+		}
+		this.byteCounts = byteCounts;
+		this.forgetIdleReroutes(rates, now);
+
+		for (Map.Entry<Long,Map<Rule,Long>> entry : rates.entrySet())
+		{
+			for (Map.Entry<Rule,Long> rate : entry.getValue().entrySet())
+			{
+				if (rate.getValue() < this.threshold)
+				{ continue; }
+				Rule rule = rate.getKey();
+				if (SwitchCommands.DEFAULT_PRIORITY == rule.priority)
+				{ this.countBySource(entry.getKey(), rule.destination, now); }
+				else if (PRIORITY_COUNT == rule.priority)
+				{
+					this.reroute(entry.getKey(), rule.source, rule.destination,
+							rate.getValue(), loads, now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Installs counting rules on a switch for the traffic each attached host
+	 * sends to a busy destination.
+	 * @param switchId DPID for the switch
+	 * @param destination IP address of the destination
+	 * @param now current time in milliseconds
+	 */
+	private void countBySource(long switchId, int destination, long now)
+	{
+		Map<Integer,Counting> switchCounting = this.counting.get(switchId);
+		if (switchCounting != null && switchCounting.containsKey(destination))
+		{ return; }
+		IOFSwitch sw = this.routing.getSwitches().get(switchId);
+		Integer port = this.routing.getInstalledRules().getPort(switchId,
+				destination);
+		if (null == sw || null == port)
+		{ return; }
+
+		List<Integer> sources = new ArrayList<Integer>();
+		for (Host host : this.routing.getHostsOnSwitch(switchId))
+		{
+			Integer source = host.getIPv4Address();
+			if (null == source)
+			{ continue; }
+			// Traffic to a host on the same switch has no other path
+			if (source == destination)
+			{ return; }
+			if (!this.reroutes.containsKey(
+					new Rule(PRIORITY_REROUTE, source, destination)))
+			{ sources.add(source); }
+		}
+		if (sources.isEmpty())
+		{ return; }
+
+		for (int source : sources)
+		{
+			SwitchCommands.installRule(sw, L3Routing.table, PRIORITY_COUNT,
+					buildMatch(source, destination), buildOutput(port),
+					COUNT_TIMEOUT, SwitchCommands.NO_TIMEOUT);
+		}
+		if (null == switchCounting)
+		{
+			switchCounting = new HashMap<Integer,Counting>();
+			this.counting.put(switchId, switchCounting);
+		}
+		switchCounting.put(destination,
+				new Counting(sources, now + COUNT_TIMEOUT * 1000L));
+	}
+
+	/**
+	 * Moves an elephant flow to the path to its destination with the least
+	 * load, if that is not the path it is on.
+	 * @param switchId DPID for the switch the flow enters the network at
+	 * @param source IP address of the flow's source
+	 * @param destination IP address of the flow's destination
+	 * @param rate byte rate of the flow
+	 * @param loads byte rate sent out of each port of each switch; updated
+	 *        with the flow's new path
+	 * @param now current time in milliseconds
+	 */
+	private void reroute(long switchId, int source, int destination,
+			long rate, Map<Long,Map<Integer,Long>> loads, long now)
+	{
+		Rule key = new Rule(PRIORITY_REROUTE, source, destination);
+		if (this.reroutes.containsKey(key))
+		{ return; }
+		Host host = this.routing.getHost(destination);
+		IOFSwitch hostSwitch = (null == host ? null : host.getSwitch());
+		if (null == hostSwitch || null == host.getPort())
+		{ return; }
+
+		// Follow the rules L3Routing installed to find the flow's path
+		Map<Long,Map<Integer,Long>> neighbors = this.routing.getNeighbors();
+		List<long[]> current = new ArrayList<long[]>();
+		long hop = switchId;
+		while (hop != hostSwitch.getId())
+		{
+			Integer port = this.routing.getInstalledRules().getPort(hop,
+					destination);
+			Map<Integer,Long> hopNeighbors = neighbors.get(hop);
+			if (null == port || null == hopNeighbors
+					|| !hopNeighbors.containsKey(port)
+					|| current.size() > neighbors.size())
+			{ return; }
+			current.add(new long[] { hop, port });
+			hop = hopNeighbors.get(port);
+		}
+
+		// The flow's own traffic does not count against its current path
+		addLoad(loads, current, -rate);
+		List<long[]> best = this.findLeastLoadedPath(switchId,
+				hostSwitch.getId(), neighbors, loads);
+		if (null == best || this.getCost(best, loads)
+				>= this.getCost(current, loads))
+		{
+			addLoad(loads, current, rate);
+			return;
+		}
+
+		// Every switch on the new path, including the destination's, must be
+		// one this controller manages
+		List<long[]> hops = new ArrayList<long[]>(best);
+		hops.add(new long[] { hostSwitch.getId(), host.getPort() });
+		for (long[] step : hops)
+		{
+			if (!this.routing.isOwner(step[0])
+					|| null == this.routing.getSwitches().get(step[0]))
+			{
+				addLoad(loads, current, rate);
+				return;
+			}
+		}
+		addLoad(loads, best, rate);
+
+		// Install from the destination back, so every switch the flow is
+		// sent to already has its rule
+		OFMatch match = buildMatch(source, destination);
+		for (int i = hops.size() - 1; i >= 0; i--)
+		{
+			IOFSwitch sw = this.routing.getSwitches().get(hops.get(i)[0]);
+			SwitchCommands.installRule(sw, L3Routing.table, PRIORITY_REROUTE,
+					match, buildOutput((int)hops.get(i)[1]),
+					REROUTE_HARD_TIMEOUT, REROUTE_IDLE_TIMEOUT);
+		}
+		this.reroutes.put(key, new Reroute(hops, now));
+		this.rerouted.increment();
+		log.info(String.format("Moved elephant flow %s -> %s (%d bytes/s) to "
+				+ "a path through %s", IPv4.fromIPv4Address(source),
+				IPv4.fromIPv4Address(destination), rate, describe(hops)));
+	}
+
+	/**
+	 * Find the path between two switches with the lowest cost, where each
+	 * hop costs one plus the load on the port it leaves from as a fraction
+	 * of the elephant threshold.
+	 * @return each switch on the path but the last, with the port it sends
+	 *         out of; null if there is no path
+	 */
+	private List<long[]> findLeastLoadedPath(long from, long to,
+			Map<Long,Map<Integer,Long>> neighbors,
+			Map<Long,Map<Integer,Long>> loads)
+	{
+		Map<Long,Double> costs = new HashMap<Long,Double>();
+		Map<Long,long[]> previous = new HashMap<Long,long[]>();
+		Set<Long> done = new HashSet<Long>();
+		costs.put(from, 0.0);
+		while (true)
+		{
+			// Nearest switch not yet done
+			Long next = null;
+			for (Map.Entry<Long,Double> entry : costs.entrySet())
+			{
+				if (!done.contains(entry.getKey()) && (null == next
+						|| entry.getValue() < costs.get(next)))
+				{ next = entry.getKey(); }
+			}
+			if (null == next)
+			{ return null; }
+			if (next == to)
+			{ break; }
+			done.add(next);
+
+			for (Map.Entry<Integer,Long> link : neighbors.get(next).entrySet())
+			{
+				long neighbor = link.getValue();
+				double cost = costs.get(next)
+						+ this.getHopCost(next, link.getKey(), loads);
+				Double oldCost = costs.get(neighbor);
+				if (!done.contains(neighbor)
+						&& (null == oldCost || cost < oldCost))
+				{
+					costs.put(neighbor, cost);
+					previous.put(neighbor, new long[] { next, link.getKey() });
+				}
+			}
+		}
+
+		List<long[]> path = new ArrayList<long[]>();
+		for (long hop = to; hop != from; hop = previous.get(hop)[0])
+		{ path.add(previous.get(hop)); }
+		Collections.reverse(path);
+		return path;
+	}
+
+	/**
+	 * Get the cost of sending out of a port of a switch.
+	 */
+	private double getHopCost(long switchId, int port,
+			Map<Long,Map<Integer,Long>> loads)
+	{
+		Map<Integer,Long> switchLoads = loads.get(switchId);
+		Long load = (null == switchLoads ? null : switchLoads.get(port));
+		return 1.0 + (null == load ? 0 : Math.max(0, load))
+				/ (double)this.threshold;
+	}
+
+	/**
+	 * Get the total cost of the hops on a path.
+	 */
+	private double getCost(List<long[]> path,
+			Map<Long,Map<Integer,Long>> loads)
+	{
+		double cost = 0;
+		for (long[] hop : path)
+		{ cost += this.getHopCost(hop[0], (int)hop[1], loads); }
+		return cost;
+	}
+
+	/**
+	 * Add a byte rate to the load on every port a path sends out of.
+	 */
+	private static void addLoad(Map<Long,Map<Integer,Long>> loads,
+			List<long[]> path, long rate)
+	{
+		for (long[] hop : path)
+		{
+			Map<Integer,Long> switchLoads = loads.get(hop[0]);
+			if (null == switchLoads)
+			{
+				switchLoads = new HashMap<Integer,Long>();
+				loads.put(hop[0], switchLoads);
+			}
+			Long load = switchLoads.get((int)hop[1]);
+			switchLoads.put((int)hop[1], (null == load ? 0 : load) + rate);
+		}
+	}
+
+	/**
+	 * Forgets counting rules and moved flows whose rules have timed out.
+	 * @param now current time in milliseconds
+	 */
+	private void expire(long now)
+	{
+		for (Map<Integer,Counting> switchCounting : this.counting.values())
+		{
+			Iterator<Counting> iter = switchCounting.values().iterator();
+			while (iter.hasNext())
+			{
+				if (iter.next().expires <= now)
+				{ iter.remove(); }
+			}
+		}
+		Iterator<Reroute> iter = this.reroutes.values().iterator();
+		while (iter.hasNext())
+		{
+			if (iter.next().installed + REROUTE_HARD_TIMEOUT * 1000L <= now)
+			{ iter.remove(); }
+		}
+	}
+
+	/**
+	 * Forgets moved flows whose rule on their first switch has gone idle and
+	 * expired, so the flow can be moved again if it restarts.
+	 * @param rates byte rates of the rules of each switch that was polled
+	 * @param now current time in milliseconds
+	 */
+	private void forgetIdleReroutes(Map<Long,Map<Rule,Long>> rates, long now)
+	{
+		Iterator<Map.Entry<Rule,Reroute>> iter =
+				this.reroutes.entrySet().iterator();
+		while (iter.hasNext())
+		{
+			Map.Entry<Rule,Reroute> entry = iter.next();
+			Map<Rule,Long> switchRates = rates.get(
+					entry.getValue().hops.get(0)[0]);
+			if (switchRates != null && !switchRates.containsKey(entry.getKey())
+					&& now - entry.getValue().installed
+							> POLL_INTERVAL * 1000L)
+			{ iter.remove(); }
+		}
+	}
+
+	/**
+	 * Removes every counting rule and moved flow, since the paths they were
+	 * chosen for may have changed. Called after L3Routing recomputes routes.
+	 */
+	public synchronized void routesChanged()
+	{
+		for (long switchId : new ArrayList<Long>(this.counting.keySet()))
+		{ this.removeCounting(switchId, null); }
+		for (Rule rule : new ArrayList<Rule>(this.reroutes.keySet()))
+		{ this.removeReroute(rule); }
+	}
+
+	/**
+	 * Removes the counting rules and moved flows to or from a host, since
+	 * its routes have changed.
+	 * @param ip IP address of the host
+	 */
+	public synchronized void hostChanged(int ip)
+	{
+		for (long switchId : new ArrayList<Long>(this.counting.keySet()))
+		{ this.removeCounting(switchId, ip); }
+		for (Rule rule : new ArrayList<Rule>(this.reroutes.keySet()))
+		{
+			if (rule.source == ip || rule.destination == ip)
+			{ this.removeReroute(rule); }
+		}
+	}
+
+	/**
+	 * Removes counting rules from a switch.
+	 * @param switchId DPID for the switch
+	 * @param ip remove only the rules to or from this IP; all rules if null
+	 */
+	private void removeCounting(long switchId, Integer ip)
+	{
+		Map<Integer,Counting> switchCounting = this.counting.get(switchId);
+		IOFSwitch sw = this.routing.getSwitches().get(switchId);
+		Iterator<Map.Entry<Integer,Counting>> iter =
+				switchCounting.entrySet().iterator();
+		while (iter.hasNext())
+		{
+			Map.Entry<Integer,Counting> entry = iter.next();
+			int destination = entry.getKey();
+			if (ip != null && ip != destination
+					&& !entry.getValue().sources.contains(ip))
+			{ continue; }
+			iter.remove();
+			if (null == sw)
+			{ continue; }
+			for (int source : entry.getValue().sources)
+			{
+				SwitchCommands.removeRule(sw, L3Routing.table, PRIORITY_COUNT,
+						buildMatch(source, destination));
+			}
+		}
+		if (switchCounting.isEmpty())
+		{ this.counting.remove(switchId); }
+	}
+
+	/**
+	 * Removes the rules that moved a flow from every switch on its path.
+	 */
+	private void removeReroute(Rule rule)
+	{
+		Reroute reroute = this.reroutes.remove(rule);
+		OFMatch match = buildMatch(rule.source, rule.destination);
+		for (long[] hop : reroute.hops)
+		{
+			IOFSwitch sw = this.routing.getSwitches().get(hop[0]);
+			if (sw != null)
+			{
+				SwitchCommands.removeRule(sw, L3Routing.table,
+						PRIORITY_REROUTE, match);
+			}
+		}
+	}
+
+	private static OFMatch buildMatch(int source, int destination)
+	{
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkSource(source);
+		match.setNetworkDestination(destination);
+		return match;
+	}
+
+	private static List<OFInstruction> buildOutput(int port)
+	{
+		OFAction output = new OFActionOutput(port);
+		return Arrays.asList((OFInstruction)new OFInstructionApplyActions(
+				Arrays.asList(output)));
+	}
+
+	private static String describe(Collection<long[]> hops)
+	{
+		List<String> names = new ArrayList<String>();
+		for (long[] hop : hops)
+		{ names.add(String.format("s%d:%d", hop[0], hop[1])); }
+		return names.toString();
+	}
+}
@@ -0,0 +1,499 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionGroup;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.loadbalancer.LoadBalancer;
+import edu.wisc.cs.sdn.apps.util.ArpServer;
+import edu.wisc.cs.sdn.apps.util.FlightRecorder;
+import edu.wisc.cs.sdn.apps.util.IClusterListener;
+import edu.wisc.cs.sdn.apps.util.IClusterService;
+import edu.wisc.cs.sdn.apps.util.IPacketInService;
+import edu.wisc.cs.sdn.apps.util.LatencyHistogram;
+import edu.wisc.cs.sdn.apps.util.Metrics;
+import edu.wisc.cs.sdn.apps.util.PacketHeaders;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.util.MACAddress;
+
+public class FloodManager implements IFloodlightModule, IOFMessageListener,
+		IOFSwitchListener, ILinkDiscoveryListener, IClusterListener
+{
+	public static final String MODULE_NAME = FloodManager.class.getSimpleName();
+
+	// ID of the group that floods broadcasts in each switch
+	public static final int FLOOD_GROUP_ID = 1;
+
+	// Broadcast Ethernet address
+	private static final long BROADCAST_MAC = 0xffffffffffffL;
+	private static final byte[] BROADCAST_MAC_BYTES =
+			MACAddress.valueOf(BROADCAST_MAC).toBytes();
+
+	// Ethertypes of link discovery packets, which are never flooded
+	private static final short TYPE_LLDP = (short)0x88cc;
+	private static final short TYPE_BDDP = (short)0x8942;
+
+	// Number of milliseconds during which a repeat of a broadcast frame on
+	// the same switch is treated as looping, and dropped; loops can form
+	// briefly while link discovery has not yet reported every link
+	private static final long DUPLICATE_WINDOW = 500;
+
+	// Number of recently flooded frames remembered; must be a power of two
+	private static final int DUPLICATE_SLOTS = 1024;
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to link discovery service
+    private ILinkDiscoveryService linkDiscProv;
+
+    // Interface to the packet-in dispatcher
+    private IPacketInService packetInProv;
+
+    // Interface to the cluster manager; null if this controller runs alone
+    private IClusterService clusterProv;
+
+    // Ports each switch's flood group currently sends out of, keyed by DPID
+    private Map<Long,Set<Integer>> floodPorts;
+
+    // Spanning tree ports of each switch that have a rule sending broadcasts
+    // to the flood group, keyed by DPID
+    private Map<Long,Set<Integer>> treePorts;
+
+    // Ports of each switch off the spanning tree that have a rule dropping
+    // broadcasts, keyed by DPID
+    private Map<Long,Set<Integer>> dropPorts;
+
+    // Ports of each switch that connect to another switch but are not on
+    // the spanning tree; replaced whenever the tree is recomputed
+    private volatile Map<Long,Set<Integer>> blockedPorts;
+
+    // Time taken to recompute the spanning tree and update the switches
+    private LatencyHistogram recomputeTime;
+
+    // Hashes of recently flooded frames, and when each was flooded
+    private final long[] recentHashes = new long[DUPLICATE_SLOTS];
+    private final long[] recentTimes = new long[DUPLICATE_SLOTS];
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
+		this.packetInProv = context.getServiceImpl(IPacketInService.class);
+		this.clusterProv = context.getServiceImpl(IClusterService.class);
+		this.floodPorts = new ConcurrentHashMap<Long,Set<Integer>>();
+		this.treePorts = new HashMap<Long,Set<Integer>>();
+		this.dropPorts = new HashMap<Long,Set<Integer>>();
+		this.blockedPorts = new HashMap<Long,Set<Integer>>();
+		this.recomputeTime = Metrics.histogram("sdn_route_recompute_seconds",
+				"Time taken to recompute routes", "module", MODULE_NAME);
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		this.floodlightProv.addOFSwitchListener(this);
+		this.packetInProv.addListener(this);
+		this.linkDiscProv.addListener(this);
+		if (this.clusterProv != null)
+		{ this.clusterProv.addListener(this); }
+	}
+
+	/**
+	 * Compute a spanning tree over the current topology, and update the flood
+	 * group and broadcast rules of every switch whose flood ports changed.
+	 * @param trigger the event that made the topology change, for the flight
+	 *        recorder
+	 */
+	private synchronized void recompute(String trigger)
+	{
+		long start = System.nanoTime();
+		FlightRecorder.Recompute recompute = FlightRecorder.beginRecompute(
+				MODULE_NAME, trigger, 0);
+		try
+		{ this.updateFloodPorts(); }
+		finally
+		{ FlightRecorder.endRecompute(recompute); }
+		this.recomputeTime.recordSince(start);
+	}
+
+	private void updateFloodPorts()
+	{
+		Map<Long,IOFSwitch> switches = this.floodlightProv.getAllSwitchMap();
+		SpanningTree tree = new SpanningTree(switches.keySet(),
+				this.linkDiscProv.getLinks().keySet());
+
+		Map<Long,Set<Integer>> blocked = new HashMap<Long,Set<Integer>>();
+		for (IOFSwitch sw : switches.values())
+		{
+			long switchId = sw.getId();
+			Set<Integer> linkPorts = new HashSet<Integer>(
+					tree.getLinkPorts(switchId));
+			linkPorts.removeAll(tree.getTreePorts(switchId));
+			blocked.put(switchId, linkPorts);
+			if (this.clusterProv != null && !this.clusterProv.isOwner(switchId))
+			{ continue; }
+
+			Set<Integer> ports = tree.getFloodPorts(switchId,
+					sw.getEnabledPortNumbers());
+			Set<Integer> oldPorts = this.floodPorts.get(switchId);
+			Set<Integer> treePorts = 
+					new HashSet<Integer>(tree.getTreePorts(switchId));
+			if (ports.equals(oldPorts)
+					&& treePorts.equals(this.treePorts.get(switchId))
+					&& linkPorts.equals(this.dropPorts.get(switchId)))
+			{ continue; }
+
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			if (null == oldPorts)
+			{
+				// Clear any group left over from an earlier connection
+				batch.add(SwitchCommands.buildGroupRemoval(FLOOD_GROUP_ID));
+				batch.add(SwitchCommands.buildFloodGroup(OFGroupMod.OFPGC_ADD,
+						FLOOD_GROUP_ID, ports));
+			}
+			else if (!ports.equals(oldPorts))
+			{
+				batch.add(SwitchCommands.buildFloodGroup(
+						OFGroupMod.OFPGC_MODIFY, FLOOD_GROUP_ID, ports));
+			}
+			this.addPortRules(batch, switchId, treePorts, linkPorts);
+
+			// What was installed is only recorded once the switch took it,
+			// so a failed write is retried on the next recompute
+			if (SwitchCommands.writeBatch(sw, batch))
+			{
+				this.floodPorts.put(switchId, ports);
+				this.treePorts.put(switchId, treePorts);
+				this.dropPorts.put(switchId, linkPorts);
+				log.info(String.format("Flooding broadcasts on s%d out of %s",
+						switchId, ports));
+			}
+		}
+		this.blockedPorts = blocked;
+	}
+
+	/**
+	 * Add messages to a batch that make broadcasts arriving on spanning tree
+	 * ports go straight to the flood group, drop broadcasts arriving on
+	 * links off the tree in the switch, and remove the rules for ports whose
+	 * place on the tree changed. Broadcasts from hosts still go to the
+	 * controller, so other modules can answer them.
+	 */
+	private void addPortRules(List<OFMessage> batch, long switchId,
+			Set<Integer> treePorts, Set<Integer> dropPorts)
+	{
+		Set<Integer> oldTreePorts = this.treePorts.get(switchId);
+		if (null == oldTreePorts)
+		{ oldTreePorts = Collections.emptySet(); }
+		Set<Integer> oldDropPorts = this.dropPorts.get(switchId);
+		if (null == oldDropPorts)
+		{ oldDropPorts = Collections.emptySet(); }
+
+		// A port that moved between the tree and the blocked links has its
+		// rule replaced, since both rules have the same match and priority
+		Set<Integer> removed = new HashSet<Integer>(oldTreePorts);
+		removed.addAll(oldDropPorts);
+		removed.removeAll(treePorts);
+		removed.removeAll(dropPorts);
+		for (int port : removed)
+		{
+			batch.add(SwitchCommands.buildRuleRemoval(L3Routing.table,
+					SwitchCommands.DEFAULT_PRIORITY, this.buildMatch(port)));
+		}
+
+		OFInstruction flood = new OFInstructionApplyActions(
+				Arrays.asList((OFAction)new OFActionGroup(FLOOD_GROUP_ID)));
+		for (int port : treePorts)
+		{
+			if (!oldTreePorts.contains(port))
+			{
+				batch.add(SwitchCommands.buildRule(L3Routing.table,
+						SwitchCommands.DEFAULT_PRIORITY, this.buildMatch(port),
+						Arrays.asList(flood)));
+			}
+		}
+		for (int port : dropPorts)
+		{
+			if (!oldDropPorts.contains(port))
+			{
+				batch.add(SwitchCommands.buildRule(L3Routing.table,
+						SwitchCommands.DEFAULT_PRIORITY, this.buildMatch(port),
+						new ArrayList<OFInstruction>()));
+			}
+		}
+	}
+
+	private OFMatch buildMatch(int inPort)
+	{
+		OFMatch match = new OFMatch();
+		match.setInputPort(inPort);
+		match.setDataLayerDestination(BROADCAST_MAC_BYTES);
+		return match;
+	}
+
+	/**
+	 * Forget what was installed on a switch, so everything is installed again
+	 * the next time the tree is recomputed.
+	 */
+	private synchronized void forgetSwitch(long switchId)
+	{
+		this.floodPorts.remove(switchId);
+		this.treePorts.remove(switchId);
+		this.dropPorts.remove(switchId);
+	}
+
+	/**
+	 * Checks whether the same frame was flooded on a switch a moment ago,
+	 * and remembers the frame if it was not.
+	 */
+	private boolean isDuplicate(long switchId, byte[] data, long now)
+	{
+		long hash = switchId * 31 + Arrays.hashCode(data);
+		int slot = (int)(hash ^ (hash >>> 32)) & (DUPLICATE_SLOTS - 1);
+		synchronized (this.recentHashes)
+		{
+			if (this.recentHashes[slot] == hash
+					&& now - this.recentTimes[slot] < DUPLICATE_WINDOW)
+			{ return true; }
+			this.recentHashes[slot] = hash;
+			this.recentTimes[slot] = now;
+			return false;
+		}
+	}
+
+	/**
+	 * Flood broadcasts received from hosts along the spanning tree.
+	 */
+	@Override
+	public net.floodlightcontroller.core.IListener.Command receive(
+			IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		// We only care about packet-in messages
+		if (msg.getType() != OFType.PACKET_IN)
+		{ return Command.CONTINUE; }
+		OFPacketIn pktIn = (OFPacketIn)msg;
+
+		PacketHeaders headers = PacketHeaders.get(cntx, pktIn);
+		if (headers.getDestinationMAC() != BROADCAST_MAC
+				|| TYPE_LLDP == headers.getEtherType()
+				|| TYPE_BDDP == headers.getEtherType())
+		{ return Command.CONTINUE; }
+
+		// Switches without a flood group yet are left to other modules
+		if (!this.floodPorts.containsKey(sw.getId()))
+		{ return Command.CONTINUE; }
+
+		// Broadcasts arriving on links off the tree have already been flooded
+		// along the tree, so forwarding them would make a loop; the switch
+		// drops them itself once its drop rules are installed
+		int inPort = pktIn.getInPort();
+		Set<Integer> blocked = this.blockedPorts.get(sw.getId());
+		if (blocked != null && blocked.contains(inPort))
+		{ return Command.STOP; }
+
+		if (this.isDuplicate(sw.getId(), headers.getData(),
+				System.currentTimeMillis()))
+		{ return Command.STOP; }
+
+		// Only the buffer ID is sent back if the switch buffered the packet
+		SwitchCommands.sendPacket(sw, pktIn,
+				Arrays.asList((OFAction)new OFActionGroup(FLOOD_GROUP_ID)));
+		return Command.STOP;
+	}
+
+    /**
+     * Event handler called when a switch joins the network.
+     * @param DPID for the switch
+     */
+	@Override
+	public void switchAdded(long switchId)
+	{
+		this.forgetSwitch(switchId);
+		this.recompute("switchAdded");
+	}
+
+	/**
+	 * Event handler called when a switch leaves the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId)
+	{
+		this.forgetSwitch(switchId);
+		this.recompute("switchRemoved");
+	}
+
+	/**
+	 * Event handler called when multiple links go up or down.
+	 * @param updateList information about the change in each link's state
+	 */
+	@Override
+	public void linkDiscoveryUpdate(List<LDUpdate> updateList)
+	{ this.recompute("linkDiscoveryUpdate"); }
+
+	/**
+	 * Event handler called when link goes up or down.
+	 * @param update information about the change in link state
+	 */
+	@Override
+	public void linkDiscoveryUpdate(LDUpdate update)
+	{ this.recompute("linkDiscoveryUpdate"); }
+
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ /* Nothing we need to do, since switches are split between controllers
+	     by the cluster manager rather than by controller roles */ }
+
+	/**
+	 * Event handler called when this controller gains or loses switches
+	 * because another controller joined or left the cluster. Switches are
+	 * forgotten either way, so a switch that comes back later gets a fresh
+	 * flood group.
+	 * @param gained DPIDs of switches this controller now owns
+	 * @param lost DPIDs of switches another controller now owns
+	 */
+	@Override
+	public void ownershipChanged(Collection<Long> gained,
+			Collection<Long> lost)
+	{
+		for (long switchId : gained)
+		{ this.forgetSwitch(switchId); }
+		for (long switchId : lost)
+		{ this.forgetSwitch(switchId); }
+		this.recompute("ownershipChanged");
+	}
+
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type)
+	{ this.recompute("switchPortChanged"); }
+
+	/**
+	 * Gets a name for this module.
+	 * @return name for this module
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{
+		return (OFType.PACKET_IN == type
+				&& (name.equals(ArpServer.MODULE_NAME)
+					|| name.equals(LoadBalancer.MODULE_NAME)
+					|| name.equals(DeviceManagerImpl.MODULE_NAME)));
+	}
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+
+    /**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{ return null; }
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{ return null; }
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> floodlightService =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+        floodlightService.add(IFloodlightProviderService.class);
+        floodlightService.add(ILinkDiscoveryService.class);
+        floodlightService.add(IPacketInService.class);
+        return floodlightService;
+	}
+}
@@ -0,0 +1,172 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.wisc.cs.sdn.apps.util.Host;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+
+/**
+ * Known hosts, indexed by device, by IP address and by the switch they are
+ * attached to. A host's IP and switch come from its device, which the device
+ * manager changes in place, so a host must be put again whenever its device
+ * changes for the indexes to follow.
+ */
+public class HostRegistry
+{
+	// Hosts, keyed by device
+	private final Map<IDevice,Host> byDevice;
+
+	// Hosts, keyed by IP address
+	private final Map<Integer,Host> byIP;
+
+	// Hosts attached to each switch, keyed by DPID
+	private final Map<Long,Set<Host>> bySwitch;
+
+	// IP address and switch DPID each host is indexed under
+	private final Map<Host,Integer> ips;
+	private final Map<Host,Long> switches;
+
+	public HostRegistry()
+	{
+		this.byDevice = new HashMap<IDevice,Host>();
+		this.byIP = new HashMap<Integer,Host>();
+		this.bySwitch = new HashMap<Long,Set<Host>>();
+		this.ips = new HashMap<Host,Integer>();
+		this.switches = new HashMap<Host,Long>();
+	}
+
+	/**
+	 * Get the host for a device.
+	 * @return the host, or null if the device is not known
+	 */
+	public synchronized Host get(IDevice device)
+	{ return this.byDevice.get(device); }
+
+	/**
+	 * Get the host with an IP address.
+	 * @return the host, or null if no known host has the IP
+	 */
+	public synchronized Host getByIP(int ip)
+	{ return this.byIP.get(ip); }
+
+	/**
+	 * Get the hosts attached to a switch.
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized Collection<Host> getOnSwitch(long switchId)
+	{
+		Set<Host> hosts = this.bySwitch.get(switchId);
+		if (null == hosts)
+		{ return Collections.emptyList(); }
+		return new ArrayList<Host>(hosts);
+	}
+
+	/**
+	 * Get the DPIDs of the switches that have hosts attached.
+	 */
+	public synchronized Collection<Long> getSwitchIds()
+	{ return new ArrayList<Long>(this.bySwitch.keySet()); }
+
+	/**
+	 * Get every known host.
+	 */
+	public synchronized Collection<Host> getAll()
+	{ return new ArrayList<Host>(this.byDevice.values()); }
+
+	/**
+	 * Get the number of known hosts.
+	 */
+	public synchronized int size()
+	{ return this.byDevice.size(); }
+
+	/**
+	 * Add a host, or index it again under its current IP and switch. A host
+	 * whose IP the host now has is removed, since its device is stale.
+	 * @param device the host's device
+	 * @param host the host
+	 * @return IPs the host or the hosts it replaced were indexed under that
+	 *         no host has now, so their rules can be removed
+	 */
+	public synchronized Collection<Integer> put(IDevice device, Host host)
+	{
+		List<Integer> oldIPs = new ArrayList<Integer>();
+		Host old = this.byDevice.put(device, host);
+		if (old != null)
+		{ oldIPs.add(this.unindex(old)); }
+
+		Integer ip = host.getIPv4Address();
+		Host other = (null == ip ? null : this.byIP.get(ip));
+		if (other != null)
+		{
+			for (Map.Entry<IDevice,Host> entry : this.byDevice.entrySet())
+			{
+				if (entry.getValue() == other)
+				{
+					this.byDevice.remove(entry.getKey());
+					break;
+				}
+			}
+			this.unindex(other);
+		}
+
+		if (ip != null)
+		{
+			this.byIP.put(ip, host);
+			this.ips.put(host, ip);
+		}
+		Long switchId = host.getSwitchDPID();
+		if (switchId != null)
+		{
+			Set<Host> hosts = this.bySwitch.get(switchId);
+			if (null == hosts)
+			{
+				hosts = new HashSet<Host>();
+				this.bySwitch.put(switchId, hosts);
+			}
+			hosts.add(host);
+			this.switches.put(host, switchId);
+		}
+		oldIPs.remove(null);
+		oldIPs.remove(ip);
+		return oldIPs;
+	}
+
+	/**
+	 * Remove the host for a device.
+	 * @return the IP the host was indexed under, or null if the device was
+	 *         not known or the host had no IP
+	 */
+	public synchronized Integer remove(IDevice device)
+	{
+		Host host = this.byDevice.remove(device);
+		return (null == host ? null : this.unindex(host));
+	}
+
+	/**
+	 * Remove a host from the IP and switch indexes.
+	 * @return the IP the host was indexed under, or null if it had none
+	 */
+	private Integer unindex(Host host)
+	{
+		Integer ip = this.ips.remove(host);
+		if (ip != null && this.byIP.get(ip) == host)
+		{ this.byIP.remove(ip); }
+		Long switchId = this.switches.remove(host);
+		if (switchId != null)
+		{
+			Set<Host> hosts = this.bySwitch.get(switchId);
+			hosts.remove(host);
+			if (hosts.isEmpty())
+			{ this.bySwitch.remove(switchId); }
+		}
+		return ip;
+	}
+}
@@ -0,0 +1,129 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Shadow of the routing rules installed on each switch: the port each switch
+ * sends packets for each destination IP out of. Rules are only sent to a
+ * switch when they differ from the shadow, and the shadow can be saved and
+ * restored so a restarted controller knows what switches already have.
+ */
+public class InstalledRules
+{
+	// Output port for each destination IP, keyed by switch DPID
+	private final Map<Long,Map<Integer,Integer>> rules;
+
+	public InstalledRules()
+	{ this.rules = new HashMap<Long,Map<Integer,Integer>>(); }
+
+	/**
+	 * Get the port a switch sends packets for an IP out of.
+	 * @return the port, or null if the switch has no rule for the IP
+	 */
+	public synchronized Integer getPort(long switchId, int ip)
+	{
+		Map<Integer,Integer> switchRules = this.rules.get(switchId);
+		return (null == switchRules ? null : switchRules.get(ip));
+	}
+
+	/**
+	 * Record that a switch has a rule for an IP.
+	 * @return true if the rule is new or its port changed
+	 */
+	public synchronized boolean set(long switchId, int ip, int port)
+	{
+		Map<Integer,Integer> switchRules = this.rules.get(switchId);
+		if (null == switchRules)
+		{
+			switchRules = new HashMap<Integer,Integer>();
+			this.rules.put(switchId, switchRules);
+		}
+		Integer oldPort = switchRules.put(ip, port);
+		return (null == oldPort || oldPort != port);
+	}
+
+	/**
+	 * Record that a switch no longer has a rule for an IP.
+	 * @return true if the switch had a rule for the IP
+	 */
+	public synchronized boolean remove(long switchId, int ip)
+	{
+		Map<Integer,Integer> switchRules = this.rules.get(switchId);
+		return (switchRules != null && switchRules.remove(ip) != null);
+	}
+
+	/**
+	 * Replace every rule recorded for a switch, like after reading its flow
+	 * table.
+	 * @param switchRules output port for each destination IP
+	 */
+	public synchronized void setSwitch(long switchId,
+			Map<Integer,Integer> switchRules)
+	{ this.rules.put(switchId, new HashMap<Integer,Integer>(switchRules)); }
+
+	/**
+	 * Forget every rule recorded for a switch.
+	 */
+	public synchronized void removeSwitch(long switchId)
+	{ this.rules.remove(switchId); }
+
+	/**
+	 * Write the rules of every switch, one per line, as
+	 * "&lt;DPID&gt; &lt;IP&gt; &lt;port&gt;".
+	 */
+	public synchronized List<String> toLines()
+	{
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<Long,Map<Integer,Integer>> switchRules
+				: this.rules.entrySet())
+		{
+			for (Map.Entry<Integer,Integer> rule
+					: switchRules.getValue().entrySet())
+			{
+				lines.add(String.format("%d %s %d", switchRules.getKey(),
+						IPv4.fromIPv4Address(rule.getKey()), rule.getValue()));
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Read rules written by toLines.
+	 * @return output port for each destination IP, keyed by switch DPID
+	 * @throws IllegalArgumentException if a line is malformed
+	 */
+	public static Map<Long,Map<Integer,Integer>> fromLines(List<String> lines)
+	{
+		Map<Long,Map<Integer,Integer>> result =
+				new HashMap<Long,Map<Integer,Integer>>();
+		for (String line : lines)
+		{
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length != 3)
+			{ throw new IllegalArgumentException("Bad rule: " + line); }
+			long switchId;
+			int port;
+			try
+			{
+				switchId = Long.parseLong(fields[0]);
+				port = Integer.parseInt(fields[2]);
+			}
+			catch (NumberFormatException e)
+			{ throw new IllegalArgumentException("Bad rule: " + line); }
+
+			Map<Integer,Integer> switchRules = result.get(switchId);
+			if (null == switchRules)
+			{
+				switchRules = new HashMap<Integer,Integer>();
+				result.put(switchId, switchRules);
+			}
+			switchRules.put(IPv4.toIPv4Address(fields[1]), port);
+		}
+		return result;
+	}
+}
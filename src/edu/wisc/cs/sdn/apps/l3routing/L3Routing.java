@@ -1,19 +1,30 @@
 package edu.wisc.cs.sdn.apps.l3routing;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Queue;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.wisc.cs.sdn.apps.util.FlightRecorder;
 import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.IClusterListener;
+import edu.wisc.cs.sdn.apps.util.IClusterService;
+import edu.wisc.cs.sdn.apps.util.LatencyHistogram;
+import edu.wisc.cs.sdn.apps.util.Metrics;
+import edu.wisc.cs.sdn.apps.util.StateStore;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
 
 import org.openflow.protocol.action.OFAction;
@@ -21,6 +32,8 @@ import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
@@ -37,12 +50,22 @@ import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 public class L3Routing implements IFloodlightModule, IOFSwitchListener, 
-		ILinkDiscoveryListener, IDeviceListener
+		ILinkDiscoveryListener, IDeviceListener, IClusterListener
 {
 	public static final String MODULE_NAME = L3Routing.class.getSimpleName();
 	
+	// Number of seconds to wait for a switch to report its flow table
+	private static final int STATS_REPLY_TIMEOUT = 2;
+	
+	// Number of seconds between snapshots of the installed rules
+	private static final int STATE_SAVE_INTERVAL = 10;
+	
+	// Name of the installed rules snapshot
+	private static final String RULES_SNAPSHOT = "l3routing-rules";
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
     
@@ -55,11 +78,38 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
     // Interface to device manager service
     private IDeviceService deviceProv;
     
+    // Interface to thread pool service, used to save snapshots
+    private IThreadPoolService threadPoolProv;
+    
+    // Interface to the cluster manager; null if this controller runs alone
+    private IClusterService clusterProv;
+    
     // Switch table in which rules should be installed
     public static byte table;
     
-    // Map of hosts to devices
-    private Map<IDevice,Host> knownHosts;
+    // Known hosts, by device, IP address and the switch they are attached to
+    private HostRegistry hosts;
+    
+    // Port each switch sends packets for each host IP out of, as last
+    // computed, keyed by host IP; covers switches another controller owns
+    private Map<Integer,Map<Long,Integer>> routes;
+    
+    // Time taken to recompute routes to every host
+    private LatencyHistogram recomputeTime;
+    
+    // Rules installed on each switch, so only changed rules are sent
+    private InstalledRules installedRules;
+    
+    // Where the installed rules are saved, so a restarted controller does not
+    // reinstall every rule; null if they are not saved
+    private StateStore stateStore;
+    
+    // Rules each switch had when the controller last saved them, used for a
+    // switch that does not report its flow table when it first connects
+    private Map<Long,Map<Integer,Integer>> savedRules;
+    
+    // Moves elephant flows to less loaded paths; null if they are not moved
+    private ElephantFlowDetector elephantDetector;
 
 	/**
      * Loads dependencies and initializes data structures.
@@ -75,7 +125,33 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 							     IFloodlightProviderService.class);
 		this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
 		this.deviceProv = context.getServiceImpl(IDeviceService.class);
-		this.knownHosts = new ConcurrentHashMap<IDevice,Host>();
+		this.clusterProv = context.getServiceImpl(IClusterService.class);
+		this.hosts = new HostRegistry();
+		this.routes = new ConcurrentHashMap<Integer,Map<Long,Integer>>();
+		this.recomputeTime = Metrics.histogram("sdn_route_recompute_seconds",
+				"Time taken to recompute routes", "module", MODULE_NAME);
+		this.installedRules = new InstalledRules();
+		this.savedRules = new ConcurrentHashMap<Long,Map<Integer,Integer>>();
+		this.threadPoolProv = context.getServiceImpl(IThreadPoolService.class);
+		if (config.get("elephantRate") != null)
+		{
+			this.elephantDetector = new ElephantFlowDetector(this,
+					Long.parseLong(config.get("elephantRate")));
+		}
+		if (config.get("stateDir") != null)
+		{
+			try
+			{
+				this.stateStore = new StateStore(
+						new File(config.get("stateDir")));
+				this.savedRules.putAll(InstalledRules.fromLines(
+						this.stateStore.load(RULES_SNAPSHOT)));
+			}
+			catch (IOException e)
+			{ throw new FloodlightModuleException(e.getMessage()); }
+			catch (IllegalArgumentException e)
+			{ log.warn("Ignoring bad rules snapshot: " + e.getMessage()); }
+		}
 	}
 
 	/**
@@ -89,31 +165,130 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		this.floodlightProv.addOFSwitchListener(this);
 		this.linkDiscProv.addListener(this);
 		this.deviceProv.addListener(this);
+		if (this.clusterProv != null)
+		{ this.clusterProv.addListener(this); }
 		
 		/*********************************************************************/
 		/* TODO: Initialize variables or perform startup tasks, if necessary */
 		
 		/*********************************************************************/
+		if (this.stateStore != null)
+		{
+			this.threadPoolProv.getScheduledExecutor().scheduleWithFixedDelay(
+					new Runnable()
+					{
+						@Override
+						public void run()
+						{ saveRules(); }
+					}, STATE_SAVE_INTERVAL, STATE_SAVE_INTERVAL, 
+					TimeUnit.SECONDS);
+			Runtime.getRuntime().addShutdownHook(new Thread()
+			{
+				@Override
+				public void run()
+				{ saveRules(); }
+			});
+		}
+		if (this.elephantDetector != null)
+		{
+			this.threadPoolProv.getScheduledExecutor().scheduleWithFixedDelay(
+					new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							// An exception would cancel every later poll
+							try
+							{
+								elephantDetector.poll(
+										threadPoolProv.getScheduledExecutor());
+							}
+							catch (RuntimeException e)
+							{ log.error("Failed to poll for elephant flows", e); }
+						}
+					}, ElephantFlowDetector.POLL_INTERVAL,
+					ElephantFlowDetector.POLL_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+	
+	/**
+	 * Saves the rules installed on every switch to the snapshot.
+	 */
+	private void saveRules()
+	{
+		try
+		{ this.stateStore.save(RULES_SNAPSHOT, this.installedRules.toLines()); }
+		catch (IOException e)
+		{ log.warn("Failed to save installed rules: " + e.getMessage()); }
 	}
 	
     /**
      * Get a list of all known hosts in the network.
      */
-    private Collection<Host> getHosts()
-    { return this.knownHosts.values(); }
+    Collection<Host> getHosts()
+    { return this.hosts.getAll(); }
 	
     /**
      * Get a map of all active switches in the network. Switch DPID is used as
      * the key.
      */
-	private Map<Long, IOFSwitch> getSwitches()
+	Map<Long, IOFSwitch> getSwitches()
     { return floodlightProv.getAllSwitchMap(); }
 	
+    /**
+     * Checks whether this controller installs rules on a switch; in a
+     * cluster, another controller may own it.
+     */
+    boolean isOwner(long switchId)
+    { return (null == this.clusterProv || this.clusterProv.isOwner(switchId)); }
+	
     /**
      * Get a list of all active links in the network.
      */
     private Collection<Link> getLinks()
     { return linkDiscProv.getLinks().keySet(); }
+    
+    /**
+     * Get the known host with an IP address.
+     * @return the host, or null if no known host has the IP
+     */
+    Host getHost(int ip)
+    { return this.hosts.getByIP(ip); }
+    
+    /**
+     * Get the known hosts attached to a switch.
+     * @param DPID for the switch
+     */
+    Collection<Host> getHostsOnSwitch(long switchId)
+    { return this.hosts.getOnSwitch(switchId); }
+    
+    /**
+     * Get the switch at the other end of each link, keyed by switch DPID and
+     * then the port the link is on. Every active switch has an entry.
+     */
+    Map<Long,Map<Integer,Long>> getNeighbors()
+    {
+    	Map<Long,Map<Integer,Long>> neighbors =
+    			new HashMap<Long,Map<Integer,Long>>();
+    	for (long switchId : this.getSwitches().keySet())
+    	{ neighbors.put(switchId, new HashMap<Integer,Long>()); }
+    	for (Link link : this.getLinks())
+    	{
+    		Map<Integer,Long> srcNeighbors = neighbors.get(link.getSrc());
+    		Map<Integer,Long> dstNeighbors = neighbors.get(link.getDst());
+    		if (null == srcNeighbors || null == dstNeighbors)
+    		{ continue; }
+    		srcNeighbors.put(link.getSrcPort(), link.getDst());
+    		dstNeighbors.put(link.getDstPort(), link.getSrc());
+    	}
+    	return neighbors;
+    }
+    
+    /**
+     * Get the routing rules installed on each switch.
+     */
+    InstalledRules getInstalledRules()
+    { return this.installedRules; }
 
     private Collection<Link> getUniqueLinks() {
 	Collection<Link> allLinks = this.getLinks();
@@ -172,6 +347,12 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		Collection<Link> outboundLinks = this.getOutboundLinks(currentSwitchId, links);
 	    
 		for(Link outboundLink : outboundLinks) {
+		    // Links to a switch that has just been removed can outlive it
+		    if(!distances.containsKey(outboundLink.getSrc())
+		       || !distances.containsKey(outboundLink.getDst())) {
+			links.remove(outboundLink);
+			continue;
+		    }
 		    int curSwitchDistance = distances.get(currentSwitchId);
 		    int nextSwitchDistance = -1;
 		    if(currentSwitchId == outboundLink.getSrc()) { // Switch is on source end of link
@@ -203,45 +384,218 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	return predecessors;
     }
 
-    private void addRulesForHost(Host host) {
-	// Switch ID, outbound port to get packets back to host
-	if(host.getSwitch() == null)
+    /**
+     * Install the rules that route packets to a host, sending each switch
+     * only the rules that differ from what it already has, and removing the
+     * host's rule from switches no longer on a route to it.
+     */
+    private synchronized void addRulesForHost(Host host) {
+	Integer ip = host.getIPv4Address();
+	if(ip == null)
+	    return;
+	if(host.getSwitch() == null) {
+	    this.removeRulesForHost(ip);
 	    return;
+	}
 
+	// Switch ID, outbound port to get packets back to host
 	Map<Long, Integer> switchRoutes = getBestRoutesToHost(host.getSwitch());
-	Set<Long> switchIds = switchRoutes.keySet();
+	switchRoutes.put(host.getSwitch().getId(), host.getPort());
+	this.routes.put(ip, switchRoutes);
 	
 	OFMatch matchRule = new OFMatch();
 	matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-	matchRule.setNetworkDestination(host.getIPv4Address());
+	matchRule.setNetworkDestination(ip);
 	
-	// Add rules for all switches other than one host is connected to
-	for (Long switchId : switchIds) {
-	    OFAction outputAction = new OFActionOutput(switchRoutes.get(switchId));
+	for (IOFSwitch curSwitch : this.getSwitches().values()) {
+	    long switchId = curSwitch.getId();
+	    if(!this.isOwner(switchId))
+		continue;
+	    Integer port = switchRoutes.get(switchId);
+	    if(port == null) {
+		if(this.installedRules.remove(switchId, ip))
+		    SwitchCommands.removeRules(curSwitch, this.table, matchRule);
+		continue;
+	    }
+	    if(!this.installedRules.set(switchId, ip, port))
+		continue;
+
+	    OFAction outputAction = new OFActionOutput(port);
 	    OFInstruction actions = 
 		new OFInstructionApplyActions(Arrays.asList(outputAction));
-	    SwitchCommands.installRule(this.getSwitches().get(switchId), this.table, 
-				       SwitchCommands.DEFAULT_PRIORITY, matchRule, Arrays.asList(actions));
+	    if(!SwitchCommands.installRule(curSwitch, this.table, 
+				       SwitchCommands.DEFAULT_PRIORITY, matchRule, Arrays.asList(actions)))
+		this.installedRules.remove(switchId, ip);
 	}
-	
-	// Add rule for switch host is connected to
-	OFAction outputAction = new OFActionOutput(host.getPort());
-	OFInstruction action = 
-	    new OFInstructionApplyActions(Arrays.asList(outputAction));
-	SwitchCommands.installRule(host.getSwitch(), this.table, 
-				   SwitchCommands.DEFAULT_PRIORITY, matchRule, Arrays.asList(action));
     }
 
-    private void removeRulesForHost(Host host) {
-	Collection<IOFSwitch> switches = this.getSwitches().values();
+    /**
+     * Remove a host's rule from every switch that has one.
+     * @param ip IP address of the host
+     */
+    private synchronized void removeRulesForHost(int ip) {
+	this.routes.remove(ip);
 
 	OFMatch matchRule = new OFMatch();
 	matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-	matchRule.setNetworkDestination(host.getIPv4Address());
+	matchRule.setNetworkDestination(ip);
+
+	for(IOFSwitch curSwitch : this.getSwitches().values()) {
+	    if(this.isOwner(curSwitch.getId())
+	       && this.installedRules.remove(curSwitch.getId(), ip))
+		SwitchCommands.removeRules(curSwitch, this.table, matchRule);
+	}
+    }
 
-	for(IOFSwitch curSwitch : switches) {
-	    SwitchCommands.removeRules(curSwitch, this.table, matchRule);
+    /**
+     * Read the routing rules a switch already has from its reply to a flow
+     * stats request.
+     * @param reply pending reply to the request, or null if none was sent
+     * @return output port for each destination IP, or null if the switch did
+     *         not report its flow table in time
+     */
+    private Map<Integer, Integer> readInstalledRules(
+	    Future<List<OFStatistics>> reply) {
+	if(reply == null)
+	    return null;
+	if(!reply.isDone()) {
+	    reply.cancel(false);
+	    return null;
+	}
+	List<OFStatistics> stats;
+	try {
+	    stats = reply.get();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return null;
+	} catch (Exception e) {
+	    return null;
+	}
+	if(stats == null)
+	    return null;
+
+	Map<Integer, Integer> rules = new HashMap<Integer, Integer>();
+	for(OFStatistics stat : stats) {
+	    if(!(stat instanceof OFFlowStatisticsReply))
+		continue;
+	    OFFlowStatisticsReply rule = (OFFlowStatisticsReply)stat;
+	    OFMatch match = rule.getMatch();
+	    if(rule.getPriority() != SwitchCommands.DEFAULT_PRIORITY
+	       || match.getDataLayerType() != OFMatch.ETH_TYPE_IPV4
+	       || match.getNetworkDestination() == 0)
+		continue;
+
+	    Integer port = SwitchCommands.getOutputPort(rule.getInstructions());
+	    if(port != null)
+		rules.put(match.getNetworkDestination(), port);
 	}
+	return rules;
+    }
+
+    /**
+     * Recompute and reinstall the rules for the hosts whose routes changed:
+     * those whose last computed routes are no longer shortest paths, or that
+     * differ from the rules a switch has.
+     * @param trigger the event that made the routes change, for the flight
+     *        recorder
+     * @param reconciled DPIDs of switches whose rules were just read from
+     *        their flow tables, which may have rules off a host's routes
+     */
+    private void updateRoutes(String trigger, Collection<Long> reconciled) {
+	long start = System.nanoTime();
+	Map<Long, Map<Integer, Long>> neighbors = this.getNeighbors();
+	List<Host> affected = new ArrayList<Host>();
+	for(long switchId : this.hosts.getSwitchIds()) {
+	    Map<Long, Integer> distances = getDistances(switchId, neighbors);
+	    for(Host host : this.hosts.getOnSwitch(switchId)) {
+		if(!this.isRouteCurrent(host, distances, neighbors, reconciled))
+		    affected.add(host);
+	    }
+	}
+
+	FlightRecorder.Recompute recompute = FlightRecorder.beginRecompute(
+		MODULE_NAME, trigger, affected.size());
+	try {
+	    for(Host host : affected)
+		this.addRulesForHost(host);
+	} finally {
+	    FlightRecorder.endRecompute(recompute);
+	}
+	this.recomputeTime.recordSince(start);
+	if(this.elephantDetector != null && !affected.isEmpty())
+	    this.elephantDetector.routesChanged();
+    }
+
+    /**
+     * Get the number of hops from a switch to every switch it can reach.
+     * @param switchId DPID for the switch
+     * @param neighbors switch at the other end of each link
+     * @return number of hops, keyed by DPID; empty if the switch is not active
+     */
+    private Map<Long, Integer> getDistances(long switchId, 
+	    Map<Long, Map<Integer, Long>> neighbors) {
+	Map<Long, Integer> distances = new HashMap<Long, Integer>();
+	if(!neighbors.containsKey(switchId))
+	    return distances;
+	Queue<Long> switchQueue = new LinkedList<Long>();
+	distances.put(switchId, 0);
+	switchQueue.add(switchId);
+	while(!switchQueue.isEmpty()) {
+	    long currentSwitchId = switchQueue.remove();
+	    for(long nextSwitchId : neighbors.get(currentSwitchId).values()) {
+		if(!distances.containsKey(nextSwitchId)) {
+		    distances.put(nextSwitchId, distances.get(currentSwitchId) + 1);
+		    switchQueue.add(nextSwitchId);
+		}
+	    }
+	}
+	return distances;
+    }
+
+    /**
+     * Checks whether the last computed routes to a host are still shortest
+     * paths from every switch that can reach it, and match the rules on the
+     * switches this controller owns.
+     * @param distances number of hops from the host's switch to each switch
+     * @param neighbors switch at the other end of each link
+     * @param reconciled DPIDs of switches whose rules must match exactly
+     */
+    private boolean isRouteCurrent(Host host, Map<Long, Integer> distances,
+	    Map<Long, Map<Integer, Long>> neighbors, Collection<Long> reconciled) {
+	Integer ip = host.getIPv4Address();
+	if(ip == null)
+	    return true;
+	Map<Long, Integer> route = this.routes.get(ip);
+	if(host.getSwitch() == null)
+	    return (route == null);
+	if(route == null || route.size() != distances.size()
+	   || host.getPort() == null
+	   || !host.getPort().equals(route.get(host.getSwitch().getId())))
+	    return false;
+
+	for(Map.Entry<Long, Integer> hop : route.entrySet()) {
+	    long switchId = hop.getKey();
+	    Integer distance = distances.get(switchId);
+	    if(distance == null)
+		return false;
+	    if(this.isOwner(switchId) 
+	       && !hop.getValue().equals(this.installedRules.getPort(switchId, ip)))
+		return false;
+	    if(distance == 0)
+		continue;
+	    Long nextSwitchId = neighbors.get(switchId).get(hop.getValue());
+	    Integer nextDistance = (nextSwitchId == null ? null 
+				    : distances.get(nextSwitchId));
+	    if(nextDistance == null || nextDistance != distance - 1)
+		return false;
+	}
+
+	for(long switchId : reconciled) {
+	    if(this.isOwner(switchId) && !route.containsKey(switchId)
+	       && this.installedRules.getPort(switchId, ip) != null)
+		return false;
+	}
+	return true;
     }
 
     /**
@@ -256,12 +610,19 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		if (host.getIPv4Address() != null)
 		{
 			log.info(String.format("Host %s added", host.getName()));
-			this.knownHosts.put(device, host);
+			Collection<Integer> oldIPs = this.hosts.put(device, host);
+			for (int oldIP : oldIPs)
+			{ this.removeRulesForHost(oldIP); }
 			
 			if(!host.isAttachedToSwitch())
 			    return;
 
-			this.addRulesForHost(host);
+			FlightRecorder.Recompute recompute = 
+				FlightRecorder.beginRecompute(MODULE_NAME, "deviceAdded", 1);
+			try
+			{ this.addRulesForHost(host); }
+			finally
+			{ FlightRecorder.endRecompute(recompute); }
 		}
 	}
 
@@ -272,15 +633,24 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public void deviceRemoved(IDevice device) 
 	{
-		Host host = this.knownHosts.get(device);
+		Host host = this.hosts.get(device);
 		if (null == host)
 		{ return; }
-		this.knownHosts.remove(host);
+		Integer ip = this.hosts.remove(device);
 		
 		log.info(String.format("Host %s is no longer attached to a switch", 
 				host.getName()));
+		if (null == ip)
+		{ return; }
 		
-		this.removeRulesForHost(host);
+		FlightRecorder.Recompute recompute = FlightRecorder.beginRecompute(
+				MODULE_NAME, "deviceRemoved", 1);
+		try
+		{ this.removeRulesForHost(ip); }
+		finally
+		{ FlightRecorder.endRecompute(recompute); }
+		if (this.elephantDetector != null)
+		{ this.elephantDetector.hostChanged(ip); }
 	}
 
 	/**
@@ -290,11 +660,13 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public void deviceMoved(IDevice device) 
 	{
-		Host host = this.knownHosts.get(device);
+		Host host = this.hosts.get(device);
 		if (null == host)
 		{
 			host = new Host(device, this.floodlightProv);
-			this.knownHosts.put(device, host);
+			// We only care about a host if we know its IP
+			if (null == host.getIPv4Address())
+			{ return; }
 		}
 		
 		if (!host.isAttachedToSwitch())
@@ -302,11 +674,20 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 			this.deviceRemoved(device);
 			return;
 		}
+		Collection<Integer> oldIPs = this.hosts.put(device, host);
+		for (int oldIP : oldIPs)
+		{ this.removeRulesForHost(oldIP); }
 		log.info(String.format("Host %s moved to s%d:%d", host.getName(),
 				host.getSwitch().getId(), host.getPort()));
 	        
-		this.removeRulesForHost(host);
-		this.addRulesForHost(host);
+		FlightRecorder.Recompute recompute = FlightRecorder.beginRecompute(
+				MODULE_NAME, "deviceMoved", 1);
+		try
+		{ this.addRulesForHost(host); }
+		finally
+		{ FlightRecorder.endRecompute(recompute); }
+		if (this.elephantDetector != null && host.getIPv4Address() != null)
+		{ this.elephantDetector.hostChanged(host.getIPv4Address()); }
 	}
 	
     /**
@@ -316,13 +697,102 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override		
 	public void switchAdded(long switchId) 
 	{
-		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
 		log.info(String.format("Switch s%d added", switchId));
 		
-		for(Host host : this.getHosts()) {
-		    this.removeRulesForHost(host);
-		    this.addRulesForHost(host);
+		if (this.isOwner(switchId))
+		{ this.reconcileSwitches(Arrays.asList(switchId), "switchAdded"); }
+		else
+		{ this.updateRoutes("switchAdded", Arrays.asList(switchId)); }
+	}
+	
+	/**
+	 * Start the shadow of switches' rules from the rules they already have,
+	 * like after a controller restart or when they move from another
+	 * controller, so only the differences are sent to them, then update
+	 * routes. Rules for hosts that are not known (yet) are left alone. The
+	 * flow tables are read STATS_REPLY_TIMEOUT seconds after they are
+	 * requested, on the scheduler, so the calling thread is not held while
+	 * the switches answer.
+	 * @param switchIds DPIDs for the switches
+	 * @param trigger the event that made the switches ours, for the flight
+	 *        recorder
+	 */
+	private void reconcileSwitches(final Collection<Long> switchIds, 
+			final String trigger)
+	{
+		final Map<Long,Future<List<OFStatistics>>> replies = 
+				new HashMap<Long,Future<List<OFStatistics>>>();
+		for (long switchId : switchIds)
+		{
+			IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+			if (null == sw)
+			{ continue; }
+			try
+			{
+				Future<List<OFStatistics>> reply = sw.queryStatistics(
+						SwitchCommands.buildFlowStatsRequest(this.table));
+				if (reply != null)
+				{ replies.put(switchId, reply); }
+			}
+			catch (IOException e)
+			{
+				log.warn(String.format("Failed to read rules from switch s%d",
+						switchId));
+			}
+		}
+		
+		// Nothing to wait for if no switch was asked
+		if (replies.isEmpty())
+		{
+			this.finishReconcile(switchIds, replies, trigger);
+			return;
 		}
+		this.threadPoolProv.getScheduledExecutor().schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{ finishReconcile(switchIds, replies, trigger); }
+						catch (RuntimeException e)
+						{ log.error("Failed to reconcile switch rules", e); }
+					}
+				}, STATS_REPLY_TIMEOUT, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Set the shadow of switches' rules from their replies to flow stats
+	 * requests, or from their saved rules if they did not reply in time,
+	 * then update routes.
+	 * @param switchIds DPIDs for the switches
+	 * @param replies pending replies to the requests, keyed by DPID
+	 * @param trigger the event that made the switches ours
+	 */
+	private void finishReconcile(Collection<Long> switchIds, 
+			Map<Long,Future<List<OFStatistics>>> replies, String trigger)
+	{
+		List<Long> reconciled = new ArrayList<Long>();
+		for (long switchId : switchIds)
+		{
+			// The switch may have left or moved to another controller while
+			// its rules were read
+			if (!this.isOwner(switchId) 
+					|| null == this.floodlightProv.getSwitch(switchId))
+			{ continue; }
+			Map<Integer,Integer> rules = 
+					this.readInstalledRules(replies.get(switchId));
+			Map<Integer,Integer> saved = this.savedRules.remove(switchId);
+			if (null == rules)
+			{
+				rules = (null == saved ? new HashMap<Integer,Integer>() 
+						: saved);
+				log.info(String.format("Using %s rules for switch s%d", 
+						(null == saved ? "no" : "saved"), switchId));
+			}
+			this.installedRules.setSwitch(switchId, rules);
+			reconciled.add(switchId);
+		}
+		this.updateRoutes(trigger, reconciled);
 	}
 
 	/**
@@ -335,10 +805,8 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
 		log.info(String.format("Switch s%d removed", switchId));
 		
-		for(Host host : this.getHosts()) {
-		    this.removeRulesForHost(host);
-		    this.addRulesForHost(host);
-		}
+		this.installedRules.removeSwitch(switchId);
+		this.updateRoutes("switchRemoved", Collections.<Long>emptyList());
 	}
 
 	/**
@@ -366,10 +834,8 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 			}
 		}
 		
-		for(Host host : this.getHosts()) {
-		    this.removeRulesForHost(host);
-		    this.addRulesForHost(host);
-		}
+		this.updateRoutes("linkDiscoveryUpdate", 
+				Collections.<Long>emptyList());
 	}
 
 	/**
@@ -402,7 +868,32 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public void switchActivated(long switchId) 
-	{ /* Nothing we need to do, since we're not switching controller roles */ }
+	{ /* Nothing we need to do, since switches are split between controllers
+	     by the cluster manager rather than by controller roles */ }
+	
+	/**
+	 * Event handler called when this controller gains or loses switches
+	 * because another controller joined or left the cluster.
+	 * @param gained DPIDs of switches this controller now owns
+	 * @param lost DPIDs of switches another controller now owns
+	 */
+	@Override
+	public void ownershipChanged(Collection<Long> gained, 
+			Collection<Long> lost)
+	{
+		for (long switchId : lost)
+		{ this.installedRules.removeSwitch(switchId); }
+		if (gained.isEmpty())
+		{
+			this.updateRoutes("ownershipChanged", 
+					Collections.<Long>emptyList());
+		}
+		else
+		{
+			this.reconcileSwitches(new ArrayList<Long>(gained), 
+					"ownershipChanged");
+		}
+	}
 
 	/**
 	 * Event handler called when some attribute of a switch changes.
@@ -475,6 +966,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
         floodlightService.add(IFloodlightProviderService.class);
         floodlightService.add(ILinkDiscoveryService.class);
         floodlightService.add(IDeviceService.class);
+        floodlightService.add(IThreadPoolService.class);
         return floodlightService;
 	}
 }
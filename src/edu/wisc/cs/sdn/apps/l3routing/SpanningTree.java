@@ -0,0 +1,126 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+
+public class SpanningTree
+{
+	// Ports of each switch that connect to another switch
+	private Map<Long,Set<Integer>> linkPorts;
+
+	// Ports of each switch that are on the spanning tree
+	private Map<Long,Set<Integer>> treePorts;
+
+	/**
+	 * Compute a spanning tree over the switches, by breadth-first search
+	 * from the switch with the lowest DPID in each connected part of the
+	 * network. Links whose ends are not both among the switches are ignored.
+	 * @param switchIds DPIDs of the switches
+	 * @param links links between switches; each link may be listed once or
+	 *        once in each direction
+	 */
+	public SpanningTree(Collection<Long> switchIds, Collection<Link> links)
+	{
+		this.linkPorts = new HashMap<Long,Set<Integer>>();
+		this.treePorts = new HashMap<Long,Set<Integer>>();
+		Map<Long,List<Link>> adjacent = new HashMap<Long,List<Link>>();
+		for (long switchId : switchIds)
+		{
+			this.linkPorts.put(switchId, new HashSet<Integer>());
+			this.treePorts.put(switchId, new HashSet<Integer>());
+			adjacent.put(switchId, new ArrayList<Link>());
+		}
+		for (Link link : links)
+		{
+			if (!adjacent.containsKey(link.getSrc())
+					|| !adjacent.containsKey(link.getDst())
+					|| link.getSrc() == link.getDst())
+			{ continue; }
+			this.linkPorts.get(link.getSrc()).add(link.getSrcPort());
+			this.linkPorts.get(link.getDst()).add(link.getDstPort());
+			adjacent.get(link.getSrc()).add(link);
+			adjacent.get(link.getDst()).add(link);
+		}
+
+		// Visit switches in DPID order, so the same topology always yields
+		// the same tree
+		List<Long> roots = new ArrayList<Long>(adjacent.keySet());
+		Collections.sort(roots);
+		Set<Long> visited = new HashSet<Long>();
+		Queue<Long> queue = new LinkedList<Long>();
+		for (long root : roots)
+		{
+			if (!visited.add(root))
+			{ continue; }
+			queue.add(root);
+			while (!queue.isEmpty())
+			{
+				long switchId = queue.remove();
+				for (Link link : adjacent.get(switchId))
+				{
+					boolean outbound = (link.getSrc() == switchId);
+					long next = (outbound ? link.getDst() : link.getSrc());
+					if (!visited.add(next))
+					{ continue; }
+					this.treePorts.get(link.getSrc()).add(link.getSrcPort());
+					this.treePorts.get(link.getDst()).add(link.getDstPort());
+					queue.add(next);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the ports of a switch that connect to another switch.
+	 * @param switchId DPID for the switch
+	 * @return the ports, empty if the switch is unknown
+	 */
+	public Set<Integer> getLinkPorts(long switchId)
+	{
+		Set<Integer> ports = this.linkPorts.get(switchId);
+		return (null == ports ? Collections.<Integer>emptySet() : ports);
+	}
+
+	/**
+	 * Get the ports of a switch that are on the spanning tree.
+	 * @param switchId DPID for the switch
+	 * @return the ports, empty if the switch is unknown
+	 */
+	public Set<Integer> getTreePorts(long switchId)
+	{
+		Set<Integer> ports = this.treePorts.get(switchId);
+		return (null == ports ? Collections.<Integer>emptySet() : ports);
+	}
+
+	/**
+	 * Get the ports of a switch a broadcast should be sent out of: the ports
+	 * on the spanning tree, plus every port that does not connect to another
+	 * switch.
+	 * @param switchId DPID for the switch
+	 * @param enabledPorts all enabled ports of the switch
+	 * @return the ports
+	 */
+	public Set<Integer> getFloodPorts(long switchId,
+			Collection<Integer> enabledPorts)
+	{
+		Set<Integer> ports = new HashSet<Integer>(this.getTreePorts(switchId));
+		Set<Integer> linkPorts = this.getLinkPorts(switchId);
+		for (int port : enabledPorts)
+		{
+			// Reserved ports, like the local port, are never flooded to
+			if (port > 0 && !linkPorts.contains(port))
+			{ ports.add(port); }
+		}
+		return ports;
+	}
+}
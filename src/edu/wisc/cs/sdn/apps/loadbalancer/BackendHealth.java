@@ -0,0 +1,95 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+public class BackendHealth
+{
+	// Number of failed connections in a row after which a host is ejected
+	public static final int FAILURE_THRESHOLD = 3;
+
+	// Number of milliseconds a host is ejected for the first time; doubled
+	// for each further ejection until the host serves a connection again
+	public static final long MIN_EJECTION = 10 * 1000;
+	public static final long MAX_EJECTION = 5 * 60 * 1000;
+
+	// IP address of the host
+	private final int hostIP;
+
+	// Number of failed connections since the last successful one
+	private int failures;
+
+	// Number of ejections since the last successful connection
+	private int ejections;
+
+	// Total number of failed connections and ejections, for monitoring
+	private long totalFailures;
+	private long totalEjections;
+
+	// Time (in milliseconds) until which the host is ejected; read without
+	// locking on every selection
+	private volatile long ejectedUntil;
+
+	/**
+	 * Create the health record for a host, which starts out healthy.
+	 * @param hostIP IP address of the host
+	 */
+	public BackendHealth(int hostIP)
+	{ this.hostIP = hostIP; }
+
+	public int getHostIP()
+	{ return this.hostIP; }
+
+	/**
+	 * Checks whether new connections may be sent to the host.
+	 * @param now current time in milliseconds
+	 */
+	public boolean isAvailable(long now)
+	{ return (now >= this.ejectedUntil); }
+
+	/**
+	 * Record a connection that the host failed to serve. A host that was
+	 * ejected before is re-admitted on probation, so a single failure ejects
+	 * it again for twice as long. Failures of connections assigned before
+	 * the host was last re-admitted are ignored.
+	 * @param assignedTime time (in milliseconds) the connection was assigned
+	 * @param now current time in milliseconds
+	 * @return true if the host was ejected as a result, otherwise false
+	 */
+	public synchronized boolean recordFailure(long assignedTime, long now)
+	{
+		if (!this.isAvailable(now) || assignedTime < this.ejectedUntil)
+		{ return false; }
+		this.totalFailures++;
+		this.failures++;
+		if (this.failures < (this.ejections > 0 ? 1 : FAILURE_THRESHOLD))
+		{ return false; }
+
+		long ejection = MIN_EJECTION << Math.min(this.ejections, 30);
+		this.ejectedUntil = now + Math.min(ejection, MAX_EJECTION);
+		this.ejections++;
+		this.totalEjections++;
+		this.failures = 0;
+		return true;
+	}
+
+	/**
+	 * Record a connection the host served, which clears its failures and
+	 * resets its ejection backoff.
+	 */
+	public synchronized void recordSuccess()
+	{
+		this.failures = 0;
+		this.ejections = 0;
+	}
+
+	public synchronized long getTotalFailures()
+	{ return this.totalFailures; }
+
+	public synchronized long getTotalEjections()
+	{ return this.totalEjections; }
+
+	/**
+	 * Get the time until which the host is ejected.
+	 * @return time in milliseconds, in the past if the host is available
+	 */
+	public long getEjectedUntil()
+	{ return this.ejectedUntil; }
+}
@@ -0,0 +1,187 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+
+public class EdgeSwitchTracker implements IDeviceListener
+{
+	public static final String NAME = EdgeSwitchTracker.class.getSimpleName();
+
+	// Load balancer to notify when switches become or stop being edge switches,
+	// and when the addresses of a host are learned
+	private LoadBalancer loadBalancer;
+
+	// Switches each host is attached to, keyed by the host's MAC address
+	private Map<Long,Set<Long>> hostSwitches;
+
+	// Number of hosts attached to each edge switch
+	private Map<Long,Integer> hostCounts;
+
+	// Switches with at least one host attached; safe to read from any thread
+	private Set<Long> edgeSwitches;
+
+	/**
+	 * Create a tracker of the switches to which hosts are attached.
+	 * @param loadBalancer load balancer to notify of changes
+	 */
+	public EdgeSwitchTracker(LoadBalancer loadBalancer)
+	{
+		this.loadBalancer = loadBalancer;
+		this.hostSwitches = new HashMap<Long,Set<Long>>();
+		this.hostCounts = new HashMap<Long,Integer>();
+		this.edgeSwitches =
+				Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+	}
+
+	/**
+	 * Checks whether a switch has at least one host attached to it.
+	 * @param switchId DPID for the switch
+	 */
+	public boolean isEdgeSwitch(long switchId)
+	{ return this.edgeSwitches.contains(switchId); }
+
+	/**
+	 * Get the switches with at least one host attached to them.
+	 */
+	public Set<Long> getEdgeSwitches()
+	{ return Collections.unmodifiableSet(this.edgeSwitches); }
+
+	/**
+	 * Record the switches a host is currently attached to.
+	 * @param device information about the host
+	 */
+	private synchronized void update(IDevice device)
+	{
+		Set<Long> switches = new HashSet<Long>();
+		SwitchPort[] attachmentPoints = device.getAttachmentPoints();
+		if (attachmentPoints != null)
+		{
+			for (SwitchPort attachmentPoint : attachmentPoints)
+			{ switches.add(attachmentPoint.getSwitchDPID()); }
+		}
+
+		Set<Long> previous = this.hostSwitches.remove(device.getMACAddress());
+		if (!switches.isEmpty())
+		{ this.hostSwitches.put(device.getMACAddress(), switches); }
+		if (previous != null)
+		{
+			for (long switchId : previous)
+			{
+				if (!switches.contains(switchId))
+				{ this.removeHost(switchId); }
+			}
+		}
+		for (long switchId : switches)
+		{
+			if (null == previous || !previous.contains(switchId))
+			{ this.addHost(switchId); }
+		}
+	}
+
+	private void addHost(long switchId)
+	{
+		Integer count = this.hostCounts.get(switchId);
+		this.hostCounts.put(switchId, (null == count ? 1 : count + 1));
+		if (null == count)
+		{
+			this.edgeSwitches.add(switchId);
+			this.loadBalancer.edgeSwitchAdded(switchId);
+		}
+	}
+
+	private void removeHost(long switchId)
+	{
+		Integer count = this.hostCounts.get(switchId);
+		if (null == count)
+		{ return; }
+		if (count > 1)
+		{
+			this.hostCounts.put(switchId, count - 1);
+			return;
+		}
+		this.hostCounts.remove(switchId);
+		this.edgeSwitches.remove(switchId);
+		this.loadBalancer.edgeSwitchRemoved(switchId);
+	}
+
+	/**
+	 * Event handler called when a host joins the network.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceAdded(IDevice device)
+	{
+		this.update(device);
+		this.loadBalancer.hostAddressesLearned(device.getIPv4Addresses());
+	}
+
+	/**
+	 * Event handler called when a host is no longer attached to a switch.
+	 * @param device information about the host
+	 */
+	@Override
+	public synchronized void deviceRemoved(IDevice device)
+	{
+		Set<Long> previous = this.hostSwitches.remove(device.getMACAddress());
+		if (null == previous)
+		{ return; }
+		for (long switchId : previous)
+		{ this.removeHost(switchId); }
+	}
+
+	/**
+	 * Event handler called when a host moves within the network.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceMoved(IDevice device)
+	{ this.update(device); }
+
+	/**
+	 * Event handler called when the IP address of a host changes.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ this.loadBalancer.hostAddressesLearned(device.getIPv4Addresses()); }
+
+	/**
+	 * Event handler called when the VLAN of a host changes.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ /* Nothing we need to do, since we're not using VLANs */ }
+
+	/**
+	 * Gets a name for this listener.
+	 * @return name for this listener
+	 */
+	@Override
+	public String getName()
+	{ return NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name)
+	{ return false; }
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name)
+	{ return false; }
+}
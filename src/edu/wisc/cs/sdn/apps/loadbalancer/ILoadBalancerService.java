@@ -0,0 +1,47 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+import java.util.Map;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface ILoadBalancerService extends IFloodlightService
+{
+	/**
+	 * Get all load balancer instances.
+	 */
+	public Collection<LoadBalancerInstance> getInstances();
+
+	/**
+	 * Add a load balancer instance, or update the instance with the same
+	 * virtual IP.
+	 * @param instance the load balancer instance
+	 * @return false if the existing instance cannot be updated yet, 
+	 *         otherwise true
+	 */
+	public boolean addInstance(LoadBalancerInstance instance);
+
+	/**
+	 * Remove a load balancer instance.
+	 * @param virtualIP the virtual IP of the instance to remove
+	 * @return true if the instance existed, otherwise false
+	 */
+	public boolean removeInstance(int virtualIP);
+
+	/**
+	 * Change the weights of the hosts behind a virtual IP.
+	 * @param virtualIP the virtual IP whose host weights should change
+	 * @param hostWeights new weight for each host, in configuration order
+	 * @return false if the virtual IP is unknown or the weights cannot be
+	 *         changed yet, otherwise true
+	 */
+	public boolean setHostWeights(int virtualIP, int[] hostWeights);
+
+	/**
+	 * Get the number of unexpired connections assigned to each host of a
+	 * load balancer instance.
+	 * @param virtualIP the virtual IP of the instance
+	 * @return the number of connections, keyed by host IP
+	 */
+	public Map<Integer,Integer> getConnectionCounts(int virtualIP);
+}
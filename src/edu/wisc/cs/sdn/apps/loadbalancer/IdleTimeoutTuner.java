@@ -0,0 +1,321 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.wisc.cs.sdn.apps.util.Metrics;
+import edu.wisc.cs.sdn.apps.util.StripedCounter;
+
+import net.floodlightcontroller.packet.IPv4;
+
+public class IdleTimeoutTuner
+{
+	// Idle timeouts (in seconds) connection rules can be given, shortest
+	// first; they are also the upper bounds of the histogram buckets, with a
+	// last bucket for anything longer
+	public static final short[] TIMEOUTS =
+			{ 1, 2, 3, 5, 8, 13, 20, 30, 60, 120 };
+
+	// Idle timeout used until enough connections have been seen
+	public static final short DEFAULT_TIMEOUT = 20;
+
+	// Number of rule-seconds a packet-in is worth: a connection that goes
+	// back to the controller costs as much as holding its rules this much
+	// longer
+	public static final double REPUNT_COST = 10;
+
+	// Number of milliseconds between changes to the timeout
+	private static final long ADAPT_INTERVAL = 30000;
+
+	// Number of connections that must have ended before the timeout changes
+	private static final int MIN_SAMPLES = 20;
+
+	// Fraction of the histograms kept after each change, so the timeout
+	// follows changes in the traffic
+	private static final double DECAY = 0.5;
+
+	// Fraction kept of the pauses too short to come back to the controller at
+	// the current timeout; nothing new is learned about them, so they fade
+	// slowly and shorter timeouts are only tried again after a while
+	private static final double UNSEEN_DECAY = 0.9;
+
+	// Number of expired connections remembered at once
+	private static final int MAX_EXPIRED = 64 * 1024;
+
+	// Connections that ended, by how long they were active, and connections
+	// sent back to the controller, by how long they paused
+	private final double[] lifetimes;
+	private final double[] pauses;
+
+	// Total time (in seconds) the connections in the lifetime histogram were
+	// active
+	private double activeSeconds;
+
+	// Index in TIMEOUTS of the current idle timeout
+	private volatile int timeoutIndex;
+
+	// Connections whose rules expired recently, keyed by their client and
+	// virtual endpoints, so a packet that comes back to the controller can
+	// be matched with the host it was assigned to
+	private final ConcurrentHashMap<LoadBalancerConnection,Expired> expired;
+
+	// Number of connections sent back to the controller after their rules
+	// expired
+	private final StripedCounter repunts;
+
+	// Number of connection rules on the switches at the last poll
+	private volatile int occupancy;
+
+	// Re-punt count and time (in milliseconds) when the rate was last
+	// updated, the re-punt rate (in connections per second) since then, and
+	// the time the timeout was last changed
+	private long lastRepunts;
+	private long lastRateTime;
+	private volatile double repuntRate;
+	private long lastAdapt;
+
+	/**
+	 * Create a tuner for the idle timeout of a virtual IP's connection rules.
+	 * @param virtualIP the virtual IP
+	 */
+	public IdleTimeoutTuner(int virtualIP)
+	{
+		this.lifetimes = new double[TIMEOUTS.length + 1];
+		this.pauses = new double[TIMEOUTS.length + 1];
+		this.timeoutIndex = getBucket(DEFAULT_TIMEOUT);
+		this.expired = 
+				new ConcurrentHashMap<LoadBalancerConnection,Expired>();
+		this.repunts = Metrics.counter("sdn_lb_repunts_total",
+				"Connections sent back to the controller after their rules "
+				+ "expired", "vip", IPv4.fromIPv4Address(virtualIP));
+	}
+
+	/**
+	 * Get the idle timeout new connection rules should be given.
+	 * @return the timeout in seconds
+	 */
+	public short getTimeout()
+	{ return TIMEOUTS[this.timeoutIndex]; }
+
+	/**
+	 * Get the histogram bucket for a number of seconds.
+	 */
+	private static int getBucket(long seconds)
+	{
+		for (int i = 0; i < TIMEOUTS.length; i++)
+		{
+			if (seconds <= TIMEOUTS[i])
+			{ return i; }
+		}
+		return TIMEOUTS.length;
+	}
+
+	/**
+	 * Record that a connection's rules were removed from a switch. Rules that
+	 * were removed before their idle timeout were deleted rather than
+	 * expired, and say nothing about the connection.
+	 * @param conn the connection, with the host it was assigned to
+	 * @param durationSeconds number of seconds the rules existed
+	 * @param idleTimeout idle timeout of the rules
+	 * @param now current time in milliseconds
+	 */
+	public void recordExpired(LoadBalancerConnection conn,
+			long durationSeconds, short idleTimeout, long now)
+	{
+		if (durationSeconds < idleTimeout)
+		{ return; }
+		long active = durationSeconds - idleTimeout;
+		synchronized (this)
+		{
+			this.lifetimes[getBucket(active)]++;
+			this.activeSeconds += active;
+		}
+
+		if (this.expired.size() >= MAX_EXPIRED)
+		{ this.purge(now); }
+		if (this.expired.size() < MAX_EXPIRED)
+		{ 
+			this.expired.put(conn, 
+					new Expired(conn, now - idleTimeout * 1000L)); 
+		}
+	}
+
+	/**
+	 * Record a packet that came to the controller in the middle of a
+	 * connection. If the connection's rules recently expired, it paused for
+	 * longer than its idle timeout.
+	 * @param key the connection's client and virtual endpoints
+	 * @param now current time in milliseconds
+	 * @return the connection, with the host it was assigned to, if its rules
+	 *         expired recently; otherwise null
+	 */
+	public LoadBalancerConnection recordRepunt(LoadBalancerConnection key,
+			long now)
+	{
+		Expired expired = this.expired.remove(key);
+		if (null == expired)
+		{ return null; }
+
+		this.repunts.increment();
+		synchronized (this)
+		{ this.pauses[getBucket((now - expired.lastActive) / 1000)]++; }
+		return expired.conn;
+	}
+
+	/**
+	 * Forget connections whose rules expired too long ago for a pause to
+	 * matter: every timeout would have sent them back to the controller.
+	 * @param now current time in milliseconds
+	 */
+	public void purge(long now)
+	{
+		long oldest = now - TIMEOUTS[TIMEOUTS.length - 1] * 1000L;
+		Iterator<Expired> iterator = this.expired.values().iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().lastActive < oldest)
+			{ iterator.remove(); }
+		}
+	}
+
+	/**
+	 * Record the number of connection rules for the virtual IP on the
+	 * switches.
+	 */
+	public void setOccupancy(int occupancy)
+	{ this.occupancy = occupancy; }
+
+	/**
+	 * Updates the re-punt rate, and every ADAPT_INTERVAL picks the timeout
+	 * that minimizes the expected cost of a connection: the time its rules
+	 * stay on a switch, plus REPUNT_COST for each time it is expected to come
+	 * back to the controller.
+	 * @param now current time in milliseconds
+	 */
+	public synchronized void adapt(long now)
+	{
+		long repunts = this.repunts.sum();
+		if (this.lastRateTime > 0 && now > this.lastRateTime)
+		{
+			this.repuntRate = (repunts - this.lastRepunts) * 1000.0
+					/ (now - this.lastRateTime);
+		}
+		this.lastRepunts = repunts;
+		this.lastRateTime = now;
+		this.purge(now);
+
+		if (0 == this.lastAdapt)
+		{ this.lastAdapt = now; }
+		double ended = 0;
+		for (double count : this.lifetimes)
+		{ ended += count; }
+		if (now - this.lastAdapt < ADAPT_INTERVAL || ended < MIN_SAMPLES)
+		{ return; }
+		this.lastAdapt = now;
+
+		// Pauses shorter than the current timeout never reach the controller,
+		// so shorter timeouts are tried one step at a time, and the current
+		// timeout is kept unless another is cheaper
+		double meanActive = this.activeSeconds / ended;
+		int best = this.timeoutIndex;
+		double bestCost = this.getCost(best, meanActive, ended);
+		for (int i = Math.max(0, this.timeoutIndex - 1); i < TIMEOUTS.length;
+				i++)
+		{
+			double cost = this.getCost(i, meanActive, ended);
+			if (cost < bestCost)
+			{
+				best = i;
+				bestCost = cost;
+			}
+		}
+		this.timeoutIndex = best;
+
+		for (int i = 0; i < this.lifetimes.length; i++)
+		{
+			this.lifetimes[i] *= DECAY;
+			this.pauses[i] *= (i > best ? DECAY : UNSEEN_DECAY);
+		}
+		this.activeSeconds *= DECAY;
+	}
+
+	/**
+	 * Get the expected cost of a connection with a timeout: the rule-seconds
+	 * it holds, plus REPUNT_COST for each time it comes back to the
+	 * controller.
+	 * @param index index of the timeout in TIMEOUTS
+	 * @param meanActive average number of seconds connections are active
+	 * @param ended number of connections in the lifetime histogram
+	 */
+	private double getCost(int index, double meanActive, double ended)
+	{
+		double longerPauses = 0;
+		for (int i = index + 1; i < this.pauses.length; i++)
+		{ longerPauses += this.pauses[i]; }
+		return meanActive + TIMEOUTS[index]
+				+ REPUNT_COST * longerPauses / ended;
+	}
+
+	/**
+	 * Get the number of connection rules for the virtual IP on the switches
+	 * at the last poll.
+	 */
+	public int getOccupancy()
+	{ return this.occupancy; }
+
+	public long getRepunts()
+	{ return this.repunts.sum(); }
+
+	/**
+	 * Get the re-punt rate as of the last update.
+	 * @return the rate in connections per second
+	 */
+	public double getRepuntRate()
+	{ return this.repuntRate; }
+
+	/**
+	 * Get the recent connections by how long they were active, with older
+	 * connections counting for less.
+	 * @return the count for each bucket, keyed by its upper bound in seconds,
+	 *         with "+Inf" for the last bucket
+	 */
+	public synchronized Map<String,Double> getLifetimes()
+	{ return describe(this.lifetimes); }
+
+	/**
+	 * Get the recent connections that came back to the controller by how
+	 * long they paused, with older connections counting for less.
+	 * @return the count for each bucket, keyed by its upper bound in seconds,
+	 *         with "+Inf" for the last bucket
+	 */
+	public synchronized Map<String,Double> getPauses()
+	{ return describe(this.pauses); }
+
+	private static Map<String,Double> describe(double[] histogram)
+	{
+		Map<String,Double> result = new LinkedHashMap<String,Double>();
+		for (int i = 0; i < histogram.length; i++)
+		{
+			result.put((i < TIMEOUTS.length ? Short.toString(TIMEOUTS[i])
+					: "+Inf"), histogram[i]);
+		}
+		return result;
+	}
+
+	private static class Expired
+	{
+		// The connection, with the host it was assigned to
+		private final LoadBalancerConnection conn;
+
+		// Time (in milliseconds) of the connection's last packet
+		private final long lastActive;
+
+		public Expired(LoadBalancerConnection conn, long lastActive)
+		{
+			this.conn = conn;
+			this.lastActive = lastActive;
+		}
+	}
+}
@@ -1,26 +1,53 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFOXMFieldType;
 
+import org.sdnplatform.sync.IStoreClient;
+import org.sdnplatform.sync.IStoreListener;
+import org.sdnplatform.sync.error.SyncException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.wisc.cs.sdn.apps.util.ArpReplyTemplate;
 import edu.wisc.cs.sdn.apps.util.ArpServer;
 import edu.wisc.cs.sdn.apps.l3routing.L3Routing;
+import edu.wisc.cs.sdn.apps.loadbalancer.web.LoadBalancerWebRoutable;
 
+import edu.wisc.cs.sdn.apps.util.FlightRecorder;
 import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.IClusterListener;
+import edu.wisc.cs.sdn.apps.util.IClusterService;
+import edu.wisc.cs.sdn.apps.util.IHostMACService;
+import edu.wisc.cs.sdn.apps.util.IPacketInService;
+import edu.wisc.cs.sdn.apps.util.IpMacTable;
+import edu.wisc.cs.sdn.apps.util.PacketHeaders;
+import edu.wisc.cs.sdn.apps.util.StateStore;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
 
 import org.openflow.protocol.action.OFAction;
@@ -30,6 +57,9 @@ import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.openflow.protocol.instruction.OFInstruction;
 import org.openflow.protocol.instruction.OFInstructionGotoTable;
+import org.openflow.protocol.instruction.OFInstructionMeter;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -45,20 +75,46 @@ import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
-import net.floodlightcontroller.packet.Ethernet;
-import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.IPv4;
-import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.util.MACAddress;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
-		IOFMessageListener
+		IOFMessageListener, ILoadBalancerService, IClusterListener
 {
 	public static final String MODULE_NAME = LoadBalancer.class.getSimpleName();
 	
 	private static final byte TCP_FLAG_SYN = 0x02;
 	
-	private static final short IDLE_TIMEOUT = 20;
+	// Idle timeout of rules pinning connections during a migration; other
+	// connection rules use a timeout learned for each virtual IP
+	private static final short IDLE_TIMEOUT = IdleTimeoutTuner.DEFAULT_TIMEOUT;
+	
+	// Number of seconds packets from migrating clients are sent to the
+	// controller before their partition moves to its new host
+	private static final int MIGRATION_PERIOD = IDLE_TIMEOUT;
+	
+	// Number of seconds between checks for changes to the instances file
+	private static final int INSTANCES_FILE_POLL_INTERVAL = 5;
+	
+	// Number of seconds between polls of connection rule statistics, and
+	// until the replies to a poll are collected; switches that have not
+	// replied by then are skipped for that poll
+	private static final int STATS_POLL_INTERVAL = 5;
+	private static final int STATS_REPLY_TIMEOUT = 2;
+	
+	// Number of seconds between snapshots of the connection table
+	private static final int STATE_SAVE_INTERVAL = 10;
+	
+	// Name of the connection table snapshot
+	private static final String CONNECTIONS_SNAPSHOT = 
+			"loadbalancer-connections";
+	
+	// Name of the store connection assignments are replicated through when
+	// controllers run as a cluster
+	private static final String CONNECTIONS_STORE = 
+			LoadBalancer.class.getCanonicalName() + ".connections";
 	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
@@ -69,15 +125,88 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
     // Interface to device manager service
     private IDeviceService deviceProv;
     
+    // Interface to the cache of host MAC addresses
+    private IHostMACService macCacheProv;
+    
+    // Interface to the packet-in dispatcher
+    private IPacketInService packetInProv;
+    
+    // Interface to thread pool service, used to finish partition migrations
+    private IThreadPoolService threadPoolProv;
+    
+    // Interface to the REST API server
+    private IRestApiService restApiProv;
+    
+    // Interface to the cluster manager; null if this controller runs alone
+    private IClusterService clusterProv;
+    
+    // Connection assignments shared with the other controllers of a cluster,
+    // so a switch keeps its connections' hosts when it moves to another
+    // controller; null if this controller runs alone
+    private IStoreClient<String,String> connectionStore;
+    
+    // Switches with hosts attached, which are the only switches that need
+    // rules for virtual IPs
+    private EdgeSwitchTracker edgeTracker;
+    
     // Switch table in which rules should be installed
     private byte table;
     
-    // Set of virtual IPs and the load balancer instances they correspond with
-    private Map<Integer,LoadBalancerInstance> instances;
+    // Set of virtual IPs and the load balancer instances they correspond with;
+    // the map is never modified once published, so packet-in threads can read
+    // it without locking
+    private volatile Map<Integer,LoadBalancerInstance> instances;
+    
+    // Held while the set of instances is being replaced
+    private final Object instancesLock = new Object();
+    
+    // File listing the instances, one per line, that replaces the configured
+    // instances whenever it changes; null if instances are only changed
+    // through the REST API
+    private File instancesFile;
+    
+    // Modification time of the instances file when it was last read
+    private long instancesFileModified;
+    
+    // Connections that have been assigned to a host, keyed by the client and
+    // virtual endpoints of the connection
+    private ConcurrentHashMap<LoadBalancerConnection,LoadBalancerConnection> 
+    		connections;
+    
+    // Where the connection table is saved, so assignments survive a
+    // controller restart; null if it is not saved
+    private StateStore stateStore;
+    
+    // Number of assignments since expired connections were last purged
+    private AtomicInteger assignmentsSincePurge;
+    
+    // Byte counts of connection rules at the last statistics poll each
+    // switch replied to, keyed by switch DPID; only used while collecting
+    // statistics
+    private Map<Long,Map<OFMatch,Long>> ruleByteCounts;
+    
+    // Time (in milliseconds) of the last statistics poll
+    private long lastStatsPoll;
+    
+    // Hosts whose partition rules were skipped because their MAC address was
+    // unknown; the rules are installed once the host is seen
+    private Set<Integer> unresolvedHosts;
+    
+    // Next meter ID to assign to an instance with a SYN rate
+    private AtomicInteger nextMeterId;
+    
+    // Number of assignments between purges of expired connections
+    private static final int PURGE_INTERVAL = 1024;
 
     public static final short PRIORITY_GENERAL_RULE = 2;
     public static final short PRIORITY_TABLE_FORWARD = 1;
-    public static final short PRIORITY_CONNECTION_SPECIFIC = 3;
+    // Partition rules use this priority plus their prefix length, so longer
+    // prefixes win while old and new partitions briefly overlap
+    public static final short PRIORITY_PARTITION_BASE = 3;
+    public static final short PRIORITY_PARTITION_MIGRATION = 
+    		PRIORITY_PARTITION_BASE + SourcePartitioning.MAX_BITS + 1;
+    public static final short PRIORITY_CONNECTION_SPECIFIC = 
+    		PRIORITY_PARTITION_MIGRATION + 1;
 
     /**
      * Loads dependencies and initializes data structures.
@@ -93,30 +222,56 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
         this.table = Byte.parseByte(config.get("table"));
         
         // Create instances from config
-        this.instances = new HashMap<Integer,LoadBalancerInstance>();
+        this.nextMeterId = new AtomicInteger(1);
+        Map<Integer,LoadBalancerInstance> instances = 
+        		new HashMap<Integer,LoadBalancerInstance>();
         String[] instanceConfigs = config.get("instances").split(";");
         for (String instanceConfig : instanceConfigs)
         {
-        	String[] configItems = instanceConfig.split(" ");
-        	if (configItems.length != 3)
+        	LoadBalancerInstance instance;
+        	try
+        	{ instance = LoadBalancerInstance.fromConfig(instanceConfig); }
+        	catch (IllegalArgumentException e)
         	{ 
         		log.error("Ignoring bad instance config: " + instanceConfig);
         		continue;
         	}
-        	LoadBalancerInstance instance = new LoadBalancerInstance(
-        			configItems[0], configItems[1], configItems[2].split(","));
-            this.instances.put(instance.getVirtualIP(), instance);
+            this.assignMeter(instance);
+            instances.put(instance.getVirtualIP(), instance);
             log.info("Added load balancer instance: " + instance);
         }
+        this.instances = Collections.unmodifiableMap(instances);
+        if (config.get("instancesFile") != null)
+        { this.instancesFile = new File(config.get("instancesFile")); }
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
+        this.macCacheProv = context.getServiceImpl(IHostMACService.class);
+        this.packetInProv = context.getServiceImpl(IPacketInService.class);
+        this.threadPoolProv = context.getServiceImpl(IThreadPoolService.class);
+        this.restApiProv = context.getServiceImpl(IRestApiService.class);
+        this.clusterProv = context.getServiceImpl(IClusterService.class);
         
         /*********************************************************************/
         /* TODO: Initialize other class variables, if necessary              */
         
         /*********************************************************************/
+        this.connections = 
+        		new ConcurrentHashMap<LoadBalancerConnection,LoadBalancerConnection>();
+        this.assignmentsSincePurge = new AtomicInteger(0);
+        this.edgeTracker = new EdgeSwitchTracker(this);
+        this.ruleByteCounts = new HashMap<Long,Map<OFMatch,Long>>();
+        this.unresolvedHosts = 
+        		Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
+        if (config.get("stateDir") != null)
+        {
+        	try
+        	{ this.stateStore = new StateStore(new File(config.get("stateDir"))); }
+        	catch (IOException e)
+        	{ throw new FloodlightModuleException(e.getMessage()); }
+        	this.loadConnections();
+        }
 	}
 
 	/**
@@ -128,57 +283,322 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
 		this.floodlightProv.addOFSwitchListener(this);
-		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.packetInProv.addListener(this);
+		this.floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, this);
 		
 		/*********************************************************************/
 		/* TODO: Perform other tasks, if necessary                           */
 		
 		/*********************************************************************/
+		this.restApiProv.addRestletRoutable(new LoadBalancerWebRoutable());
+		if (this.clusterProv != null)
+		{
+			try
+			{ this.connectionStore = this.clusterProv.getStore(CONNECTIONS_STORE); }
+			catch (SyncException e)
+			{ throw new FloodlightModuleException(e.getMessage()); }
+			this.connectionStore.addStoreListener(new IStoreListener<String>()
+			{
+				@Override
+				public void keysModified(Iterator<String> keys, 
+						UpdateType type)
+				{
+					if (UpdateType.REMOTE == type)
+					{ loadReplicatedConnections(keys); }
+				}
+			});
+			this.clusterProv.addListener(this);
+		}
+		this.deviceProv.addListener(this.edgeTracker);
+		for (IDevice device : this.deviceProv.getAllDevices())
+		{ this.edgeTracker.deviceAdded(device); }
+		if (this.instancesFile != null)
+		{
+			this.threadPoolProv.getScheduledExecutor().scheduleWithFixedDelay(
+					new Runnable()
+					{
+						@Override
+						public void run()
+						{ checkInstancesFile(); }
+					}, 0, INSTANCES_FILE_POLL_INTERVAL, TimeUnit.SECONDS);
+		}
+		this.threadPoolProv.getScheduledExecutor().scheduleWithFixedDelay(
+				new Runnable()
+				{
+					@Override
+					public void run()
+					{ pollFlowStatistics(); }
+				}, STATS_POLL_INTERVAL, STATS_POLL_INTERVAL, TimeUnit.SECONDS);
+		if (this.stateStore != null)
+		{
+			this.threadPoolProv.getScheduledExecutor().scheduleWithFixedDelay(
+					new Runnable()
+					{
+						@Override
+						public void run()
+						{ saveConnections(); }
+					}, STATE_SAVE_INTERVAL, STATE_SAVE_INTERVAL, 
+					TimeUnit.SECONDS);
+			Runtime.getRuntime().addShutdownHook(new Thread()
+			{
+				@Override
+				public void run()
+				{ saveConnections(); }
+			});
+		}
 	}
 	
-    private void installVirtualIPRules(IOFSwitch curSwitch) {
-
-	Collection<LoadBalancerInstance> loadBalancers = instances.values();
-
-	for (LoadBalancerInstance loadBalancer : loadBalancers) {
-	    OFMatch matchRule = new OFMatch();
-	    matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-	    matchRule.setNetworkDestination(loadBalancer.getVirtualIP());
-	    matchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+    private void addVirtualIPRule(List<OFMessage> batch, LoadBalancerInstance loadBalancer) {
+	OFMatch matchRule = new OFMatch();
+	matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+	matchRule.setNetworkDestination(loadBalancer.getVirtualIP());
+	matchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
 
-	    OFAction outputAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
-	    OFInstruction actions = 
-		new OFInstructionApplyActions(Arrays.asList(outputAction));
-	    SwitchCommands.installRule(curSwitch, this.table, 
-				       PRIORITY_GENERAL_RULE, matchRule, Arrays.asList(actions));
+	OFAction outputAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+	OFInstruction actions = 
+	    new OFInstructionApplyActions(Arrays.asList(outputAction));
+	if(loadBalancer.getMeterId() == 0) {
+	    batch.add(SwitchCommands.buildRule(this.table, PRIORITY_GENERAL_RULE, 
+					       matchRule, Arrays.asList(actions)));
+	    return;
 	}
-    }
 
-    private void installARPRules(IOFSwitch curSwitch) {
-	Collection<LoadBalancerInstance> loadBalancers = instances.values();
+	// Packets beyond the VIP's SYN rate are dropped by the switch, before
+	// they can reach the controller. Meter IDs start over when the
+	// controller restarts, so a meter left on the switch with the same ID
+	// is deleted first; adding an existing meter fails
+	batch.add(SwitchCommands.buildMeterRemoval(loadBalancer.getMeterId()));
+	batch.add(SwitchCommands.buildMeter(loadBalancer.getMeterId(), 
+					    loadBalancer.getSynRate()));
+	OFInstruction meter = new OFInstructionMeter(loadBalancer.getMeterId());
+	batch.add(SwitchCommands.buildRule(this.table, PRIORITY_GENERAL_RULE, 
+					   matchRule, Arrays.asList(meter, actions)));
+    }
 
-	for (LoadBalancerInstance loadBalancer : loadBalancers) {
-	    OFMatch matchRule = new OFMatch();
-	    matchRule.setDataLayerType(OFMatch.ETH_TYPE_ARP);
-	    matchRule.setNetworkDestination(loadBalancer.getVirtualIP());
+    private void addARPRule(List<OFMessage> batch, LoadBalancerInstance loadBalancer) {
+	OFMatch matchRule = new OFMatch();
+	matchRule.setDataLayerType(OFMatch.ETH_TYPE_ARP);
+	matchRule.setNetworkDestination(loadBalancer.getVirtualIP());
 
-	    OFAction outputAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
-	    OFInstruction actions = 
-		new OFInstructionApplyActions(Arrays.asList(outputAction));
-	    SwitchCommands.installRule(curSwitch, this.table, 
-				       PRIORITY_GENERAL_RULE, matchRule, Arrays.asList(actions));
-	}
+	OFAction outputAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+	OFInstruction actions = 
+	    new OFInstructionApplyActions(Arrays.asList(outputAction));
+	batch.add(SwitchCommands.buildRule(this.table, PRIORITY_GENERAL_RULE, 
+					   matchRule, Arrays.asList(actions)));
     }
 
-    private void installTableForwardRules(IOFSwitch curSwitch) {
+    private void addTableForwardRule(List<OFMessage> batch) {
 	OFMatch matchRule = new OFMatch();
 
 	OFInstruction actions = 
 	    new OFInstructionGotoTable(L3Routing.table);
-	SwitchCommands.installRule(curSwitch, this.table, 
-				    PRIORITY_TABLE_FORWARD, matchRule, Arrays.asList(actions));	
+	batch.add(SwitchCommands.buildRule(this.table, PRIORITY_TABLE_FORWARD, 
+					   matchRule, Arrays.asList(actions)));
     }
 
+	/**
+	 * Adds all rules for a load balancer instance to a batch.
+	 * @param batch the batch to which the rules should be added
+	 * @param instance the load balancer instance
+	 */
+	private void addInstanceRules(List<OFMessage> batch, 
+			LoadBalancerInstance instance)
+	{
+		this.addVirtualIPRule(batch, instance);
+		this.addARPRule(batch, instance);
+		if (null == instance.getPartitioning())
+		{ return; }
+		
+		synchronized (instance)
+		{
+			// A migration in progress is finished on every switch at once,
+			// so a new switch starts out with the previous partitions
+			SourcePartitioning previous = instance.getPreviousPartitioning();
+			if (previous != null)
+			{
+				this.addPartitionRules(batch, instance, previous.getPrefixes());
+				this.addMigrationRules(batch, instance, 
+						previous.getChangedBuckets(instance.getPartitioning()));
+			}
+			else
+			{
+				this.addPartitionRules(batch, instance, 
+						instance.getPartitioning().getPrefixes());
+			}
+		}
+	}
+	
+	/**
+	 * Adds removals of the rules that send a load balancer instance's traffic
+	 * to the controller or to its partitions to a batch. Connection-specific
+	 * rules are left to time out, so existing connections drain gracefully.
+	 * @param batch the batch to which the removals should be added
+	 * @param instance the load balancer instance
+	 */
+	private void addInstanceRemovals(List<OFMessage> batch, 
+			LoadBalancerInstance instance)
+	{
+		OFMatch matchRule = new OFMatch();
+		matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		matchRule.setNetworkDestination(instance.getVirtualIP());
+		matchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		batch.add(SwitchCommands.buildRuleRemoval(this.table, 
+				PRIORITY_GENERAL_RULE, matchRule));
+		
+		OFMatch arpMatchRule = new OFMatch();
+		arpMatchRule.setDataLayerType(OFMatch.ETH_TYPE_ARP);
+		arpMatchRule.setNetworkDestination(instance.getVirtualIP());
+		batch.add(SwitchCommands.buildRuleRemoval(this.table, 
+				PRIORITY_GENERAL_RULE, arpMatchRule));
+		if (instance.getMeterId() != 0)
+		{ batch.add(SwitchCommands.buildMeterRemoval(instance.getMeterId())); }
+		
+		if (null == instance.getPartitioning())
+		{ return; }
+		synchronized (instance)
+		{
+			SourcePartitioning previous = instance.getPreviousPartitioning();
+			if (previous != null)
+			{
+				for (SourcePrefix prefix : previous.getPrefixes())
+				{ this.addPartitionRemovals(batch, instance, prefix, true); }
+				this.addMigrationRemovals(batch, instance, previous, 
+						previous.getChangedBuckets(instance.getPartitioning()));
+			}
+			for (SourcePrefix prefix : instance.getPartitioning().getPrefixes())
+			{ this.addPartitionRemovals(batch, instance, prefix, true); }
+		}
+	}
+	
+	/**
+	 * Gives an instance with a SYN rate its own meter. Must be called before
+	 * the instance is published to packet-in threads.
+	 * @param instance the load balancer instance
+	 */
+	private void assignMeter(LoadBalancerInstance instance)
+	{
+		if (instance.getSynRate() > 0 && 0 == instance.getMeterId())
+		{ instance.setMeterId(this.nextMeterId.getAndIncrement()); }
+	}
+	
+	/**
+	 * Sends the same batch of rule changes to every edge switch. Core 
+	 * switches only see traffic that was already rewritten at an edge, which
+	 * their table forward rule sends through the L3 routing table.
+	 * @param batch the rule changes to send
+	 */
+	private void writeToEdgeSwitches(List<OFMessage> batch)
+	{
+		for (long switchId : this.edgeTracker.getEdgeSwitches())
+		{
+			if (!this.isOwner(switchId))
+			{ continue; }
+			IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+			if (sw != null)
+			{ SwitchCommands.writeBatch(sw, batch); }
+		}
+	}
+	
+	/**
+	 * Checks whether this controller installs rules on a switch; in a
+	 * cluster, another controller may own it.
+	 * @param switchId DPID for the switch
+	 */
+	private boolean isOwner(long switchId)
+	{ return (null == this.clusterProv || this.clusterProv.isOwner(switchId)); }
+	
+	/**
+	 * Called when the first host attaches to a switch. Installs the rules
+	 * for every load balancer instance on the switch.
+	 * @param switchId DPID for the switch
+	 */
+	void edgeSwitchAdded(long switchId)
+	{
+		synchronized (this.instancesLock)
+		{
+			IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+			if (null == sw || !this.isOwner(switchId))
+			{ return; }
+			log.info(String.format("Switch s%d is an edge switch", switchId));
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			for (LoadBalancerInstance instance : this.instances.values())
+			{ this.addInstanceRules(batch, instance); }
+			SwitchCommands.writeBatch(sw, batch);
+		}
+	}
+	
+	/**
+	 * Called when the IP addresses of a host are learned. Installs the
+	 * partition rules that were skipped because the host's MAC address was
+	 * unknown.
+	 * @param hostIPs IP addresses of the host
+	 */
+	void hostAddressesLearned(Integer[] hostIPs)
+	{
+		Set<Integer> learned = new HashSet<Integer>();
+		if (hostIPs != null)
+		{
+			for (Integer hostIP : hostIPs)
+			{
+				if (this.unresolvedHosts.remove(hostIP))
+				{ learned.add(hostIP); }
+			}
+		}
+		if (learned.isEmpty())
+		{ return; }
+		
+		synchronized (this.instancesLock)
+		{
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			for (LoadBalancerInstance instance : this.instances.values())
+			{
+				if (null == instance.getPartitioning())
+				{ continue; }
+				synchronized (instance)
+				{
+					// Switches keep the previous partitions until a migration
+					// is finished
+					SourcePartitioning installed = 
+							instance.getPreviousPartitioning();
+					if (null == installed)
+					{ installed = instance.getPartitioning(); }
+					List<SourcePrefix> prefixes = new ArrayList<SourcePrefix>();
+					for (SourcePrefix prefix : installed.getPrefixes())
+					{
+						if (learned.contains(prefix.getHostIP()))
+						{ prefixes.add(prefix); }
+					}
+					this.addPartitionRules(batch, instance, prefixes);
+				}
+			}
+			if (batch.isEmpty())
+			{ return; }
+			log.info(String.format("Installing %d partition rules for %d "
+					+ "learned hosts", batch.size(), learned.size()));
+			this.writeToEdgeSwitches(batch);
+		}
+	}
+	
+	/**
+	 * Called when the last host detaches from a switch. Removes the rules 
+	 * for every load balancer instance from the switch.
+	 * @param switchId DPID for the switch
+	 */
+	void edgeSwitchRemoved(long switchId)
+	{
+		synchronized (this.instancesLock)
+		{
+			IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+			if (null == sw || !this.isOwner(switchId))
+			{ return; }
+			log.info(String.format("Switch s%d is a core switch", switchId));
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			for (LoadBalancerInstance instance : this.instances.values())
+			{ this.addInstanceRemovals(batch, instance); }
+			SwitchCommands.writeBatch(sw, batch);
+		}
+	}
+
 	/**
      * Event handler called when a switch joins the network.
      * @param DPID for the switch
@@ -188,6 +608,8 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	{
 		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
 		log.info(String.format("Switch s%d added", switchId));
+		if (null == sw || !this.isOwner(switchId))
+		{ return; }
 		
 		/*********************************************************************/
 		/* TODO: Install rules to send:                                      */
@@ -197,9 +619,465 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*       (3) all other packets to the next rule table in the switch  */
 		
 		/*********************************************************************/
-		this.installVirtualIPRules(sw);
-		this.installARPRules(sw);
-		this.installTableForwardRules(sw);
+		List<OFMessage> batch = new ArrayList<OFMessage>();
+		if (this.edgeTracker.isEdgeSwitch(switchId))
+		{
+			for (LoadBalancerInstance instance : this.instances.values())
+			{ this.addInstanceRules(batch, instance); }
+		}
+		this.addTableForwardRule(batch);
+		SwitchCommands.writeBatch(sw, batch);
+	}
+	
+	/**
+	 * Get all load balancer instances.
+	 */
+	@Override
+	public Collection<LoadBalancerInstance> getInstances()
+	{ return this.instances.values(); }
+	
+	/**
+	 * Add a load balancer instance, or update the instance with the same
+	 * virtual IP. An instance that only differs in its hosts and their 
+	 * weights is updated in place; otherwise the old instance's rules are
+	 * replaced with the new instance's rules in a single batch per switch.
+	 * @param instance the load balancer instance
+	 * @return false if the hosts of the existing instance cannot be changed
+	 *         while its clients are migrating, otherwise true
+	 */
+	@Override
+	public boolean addInstance(LoadBalancerInstance instance)
+	{
+		synchronized (this.instancesLock)
+		{
+			LoadBalancerInstance existing = 
+					this.instances.get(instance.getVirtualIP());
+			if (existing != null && existing.isCompatible(instance))
+			{
+				if (!existing.toString().equals(instance.toString()))
+				{
+					log.info("Updating load balancer instance: " + instance);
+					if (!this.setHosts(existing, instance.getHostIPs(), 
+							instance.getHostWeights()))
+					{
+						log.warn("Cannot update load balancer instance while "
+								+ "its clients are migrating: " + instance);
+						return false;
+					}
+				}
+				return true;
+			}
+			
+			this.assignMeter(instance);
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			if (existing != null)
+			{
+				this.addInstanceRemovals(batch, existing);
+				synchronized (existing)
+				{ existing.endMigration(); }
+			}
+			this.addInstanceRules(batch, instance);
+			
+			Map<Integer,LoadBalancerInstance> instances = 
+					new HashMap<Integer,LoadBalancerInstance>(this.instances);
+			instances.put(instance.getVirtualIP(), instance);
+			this.instances = Collections.unmodifiableMap(instances);
+			this.writeToEdgeSwitches(batch);
+			log.info("Added load balancer instance: " + instance);
+			return true;
+		}
+	}
+	
+	/**
+	 * Remove a load balancer instance. Connections already assigned to its
+	 * hosts keep their rules until they go idle.
+	 * @param virtualIP the virtual IP of the instance to remove
+	 * @return true if the instance existed, otherwise false
+	 */
+	@Override
+	public boolean removeInstance(int virtualIP)
+	{
+		synchronized (this.instancesLock)
+		{
+			LoadBalancerInstance existing = this.instances.get(virtualIP);
+			if (null == existing)
+			{ return false; }
+			
+			Map<Integer,LoadBalancerInstance> instances = 
+					new HashMap<Integer,LoadBalancerInstance>(this.instances);
+			instances.remove(virtualIP);
+			this.instances = Collections.unmodifiableMap(instances);
+			
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			this.addInstanceRemovals(batch, existing);
+			synchronized (existing)
+			{ existing.endMigration(); }
+			this.writeToEdgeSwitches(batch);
+			log.info("Removed load balancer instance: " + existing);
+			return true;
+		}
+	}
+	
+	/**
+	 * Replace the set of load balancer instances. Instances that are not in
+	 * the new set are removed.
+	 * @param newInstances the new load balancer instances
+	 * @return false if any instance could not be updated yet, otherwise true
+	 */
+	private boolean setInstances(Collection<LoadBalancerInstance> newInstances)
+	{
+		boolean applied = true;
+		synchronized (this.instancesLock)
+		{
+			Set<Integer> removed = 
+					new HashSet<Integer>(this.instances.keySet());
+			for (LoadBalancerInstance instance : newInstances)
+			{
+				removed.remove(instance.getVirtualIP());
+				applied &= this.addInstance(instance);
+			}
+			for (int virtualIP : removed)
+			{ this.removeInstance(virtualIP); }
+		}
+		return applied;
+	}
+	
+	/**
+	 * Get the number of unexpired connections assigned to each host of a
+	 * load balancer instance, including hosts that are being drained.
+	 * @param virtualIP the virtual IP of the instance
+	 * @return the number of connections, keyed by host IP
+	 */
+	@Override
+	public Map<Integer,Integer> getConnectionCounts(int virtualIP)
+	{
+		long now = System.currentTimeMillis();
+		Map<Integer,Integer> counts = new HashMap<Integer,Integer>();
+		for (LoadBalancerConnection conn : this.connections.values())
+		{
+			if (conn.getVirtualIP() != virtualIP || conn.isExpired(now))
+			{ continue; }
+			Integer count = counts.get(conn.getHostIP());
+			counts.put(conn.getHostIP(), (null == count ? 1 : count + 1));
+		}
+		return counts;
+	}
+	
+	/**
+	 * Re-read the instances file if it changed since it was last read, or if
+	 * some of its instances could not be applied when it was last read.
+	 */
+	private void checkInstancesFile()
+	{
+		long modified = this.instancesFile.lastModified();
+		if (0 == modified || modified == this.instancesFileModified)
+		{ return; }
+		
+		List<LoadBalancerInstance> fileInstances = 
+				new ArrayList<LoadBalancerInstance>();
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(this.instancesFile));
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+				{ continue; }
+				fileInstances.add(LoadBalancerInstance.fromConfig(line));
+			}
+		}
+		catch (IOException e)
+		{
+			log.error("Failed to read instances file: " + e.getMessage());
+			return;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Leave the current instances alone until the file is fixed
+			log.error("Ignoring instances file: " + e.getMessage());
+			this.instancesFileModified = modified;
+			return;
+		}
+		finally
+		{
+			if (reader != null)
+			{
+				try { reader.close(); }
+				catch (IOException e) { /* Nothing more we can do */ }
+			}
+		}
+		
+		log.info(String.format("Loaded %d instances from %s", 
+				fileInstances.size(), this.instancesFile));
+		
+		// Instances whose clients are migrating are retried on the next 
+		// check, so the file is only marked as read once all are applied
+		if (this.setInstances(fileInstances))
+		{ this.instancesFileModified = modified; }
+	}
+	
+	/**
+	 * Change the weights of the hosts behind a virtual IP.
+	 * @param virtualIP the virtual IP whose host weights should change
+	 * @param hostWeights new weight for each host, in configuration order
+	 * @return false if the virtual IP is unknown or a migration is already in
+	 *         progress, otherwise true
+	 */
+	@Override
+	public boolean setHostWeights(int virtualIP, int[] hostWeights)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return false; }
+		return this.setHosts(instance, instance.getHostIPs(), hostWeights);
+	}
+	
+	/**
+	 * Change the hosts behind a load balancer instance. If clients are 
+	 * partitioned between hosts, clients whose partition changes host are
+	 * migrated gradually: for one migration period their packets are sent to
+	 * the controller, which pins existing connections to their old host and
+	 * sends new connections to the new host.
+	 * @param instance the load balancer instance
+	 * @param hostIPs IPs for hosts to which requests should be balanced
+	 * @param hostWeights the weight for each host
+	 * @return false if a migration is already in progress, otherwise true
+	 */
+	private boolean setHosts(LoadBalancerInstance instance, int[] hostIPs,
+			int[] hostWeights)
+	{
+		synchronized (instance)
+		{
+			if (instance.getPreviousPartitioning() != null)
+			{ return false; }
+			SourcePartitioning partitioning = 
+					instance.setHosts(hostIPs, hostWeights);
+			if (null == partitioning)
+			{ return true; }
+			
+			List<Integer> changed = 
+					instance.getPartitioning().getChangedBuckets(partitioning);
+			log.info(String.format("Migrating %d of %d partitions for %s", 
+					changed.size(), partitioning.getBucketCount(), 
+					IPv4.fromIPv4Address(instance.getVirtualIP())));
+			if (changed.isEmpty())
+			{ return true; }
+			
+			instance.beginMigration(partitioning);
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			this.addMigrationRules(batch, instance, changed);
+			this.writeToEdgeSwitches(batch);
+		}
+		
+		final LoadBalancerInstance migrating = instance;
+		this.threadPoolProv.getScheduledExecutor().schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{ finishMigration(migrating); }
+				}, MIGRATION_PERIOD, TimeUnit.SECONDS);
+		return true;
+	}
+	
+	/**
+	 * Move migrating clients to their new partitions on every switch.
+	 * @param instance the load balancer instance whose clients are migrating
+	 */
+	private void finishMigration(LoadBalancerInstance instance)
+	{
+		synchronized (instance)
+		{
+			SourcePartitioning previous = instance.getPreviousPartitioning();
+			if (null == previous)
+			{ return; }
+			SourcePartitioning current = instance.getPartitioning();
+			
+			// Install the new partitions before removing the stale ones, so
+			// clients are never left without a partition rule
+			List<SourcePrefix> prefixes = current.getPrefixes();
+			Set<SourcePrefix> stale = 
+					new HashSet<SourcePrefix>(previous.getPrefixes());
+			stale.removeAll(prefixes);
+			List<OFMessage> batch = new ArrayList<OFMessage>();
+			this.addPartitionRules(batch, instance, prefixes);
+			for (SourcePrefix prefix : stale)
+			{
+				// A prefix that only changed host has the same client match
+				// and priority as its new rule, which was just overwritten
+				// in place; removing it would remove the new rule
+				boolean replaced = false;
+				for (SourcePrefix other : prefixes)
+				{
+					if (other.coversSameClients(prefix))
+					{ replaced = true; }
+				}
+				this.addPartitionRemovals(batch, instance, prefix, !replaced);
+			}
+			this.addMigrationRemovals(batch, instance, previous,
+					previous.getChangedBuckets(current));
+			this.writeToEdgeSwitches(batch);
+			instance.endMigration();
+		}
+		log.info(String.format("Finished migrating partitions for %s", 
+				IPv4.fromIPv4Address(instance.getVirtualIP())));
+	}
+	
+	/**
+	 * Adds rules that send clients in each prefix directly to the prefix's
+	 * host, without involving the controller, to a batch.
+	 * @param batch the batch to which the rules should be added
+	 * @param instance the load balancer instance the prefixes belong to
+	 * @param prefixes the prefixes to install
+	 */
+	private void addPartitionRules(List<OFMessage> batch, 
+			LoadBalancerInstance instance, Collection<SourcePrefix> prefixes)
+	{
+		OFInstruction nextTableAction = 
+				new OFInstructionGotoTable(L3Routing.table);
+		for (SourcePrefix prefix : prefixes)
+		{
+			// Clients in prefixes whose host is not known yet are balanced
+			// reactively to the same host until the host is seen
+			byte[] hostMAC = this.getHostMACAddress(prefix.getHostIP());
+			if (null == hostMAC)
+			{
+				log.warn(String.format("Skipping partition %s, host MAC unknown",
+						prefix));
+				this.unresolvedHosts.add(prefix.getHostIP());
+				continue;
+			}
+			short priority = (short)(PRIORITY_PARTITION_BASE 
+					+ prefix.getLength());
+			
+			OFAction changeMACAction = 
+					new OFActionSetField(OFOXMFieldType.ETH_DST, hostMAC);
+			OFAction changeIPAction = new OFActionSetField(
+					OFOXMFieldType.IPV4_DST, prefix.getHostIP());
+			OFInstruction actions = new OFInstructionApplyActions(
+					Arrays.asList(changeMACAction, changeIPAction));
+			batch.add(SwitchCommands.buildRule(this.table, priority, 
+					this.getPartitionMatch(instance, prefix),
+					Arrays.asList(actions, nextTableAction)));
+			
+			OFAction serverChangeMACAction = new OFActionSetField(
+					OFOXMFieldType.ETH_SRC, instance.getVirtualMAC());
+			OFAction serverChangeIPAction = new OFActionSetField(
+					OFOXMFieldType.IPV4_SRC, instance.getVirtualIP());
+			OFInstruction serverActions = new OFInstructionApplyActions(
+					Arrays.asList(serverChangeMACAction, serverChangeIPAction));
+			batch.add(SwitchCommands.buildRule(this.table, priority, 
+					this.getPartitionServerMatch(instance, prefix),
+					Arrays.asList(serverActions, nextTableAction)));
+		}
+	}
+	
+	/**
+	 * Adds removals of the rules for a single partition to a batch.
+	 * @param batch the batch to which the removals should be added
+	 * @param instance the load balancer instance the prefix belongs to
+	 * @param prefix the prefix to remove
+	 * @param clientRule whether to remove the client->server rule as well as
+	 *        the server->client rule
+	 */
+	private void addPartitionRemovals(List<OFMessage> batch, 
+			LoadBalancerInstance instance, SourcePrefix prefix, 
+			boolean clientRule)
+	{
+		short priority = (short)(PRIORITY_PARTITION_BASE + prefix.getLength());
+		if (clientRule)
+		{
+			batch.add(SwitchCommands.buildRuleRemoval(this.table, priority, 
+					this.getPartitionMatch(instance, prefix)));
+		}
+		batch.add(SwitchCommands.buildRuleRemoval(this.table, priority, 
+				this.getPartitionServerMatch(instance, prefix)));
+	}
+	
+	/**
+	 * Adds rules that send packets from clients in migrating buckets to the
+	 * controller to a batch.
+	 * @param batch the batch to which the rules should be added
+	 * @param instance the load balancer instance whose clients are migrating
+	 * @param buckets the buckets that are changing host
+	 */
+	private void addMigrationRules(List<OFMessage> batch, 
+			LoadBalancerInstance instance, Collection<Integer> buckets)
+	{
+		SourcePartitioning partitioning = instance.getPartitioning();
+		OFAction outputAction = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+		OFInstruction actions = 
+				new OFInstructionApplyActions(Arrays.asList(outputAction));
+		for (int bucket : buckets)
+		{
+			batch.add(SwitchCommands.buildRule(this.table, 
+					PRIORITY_PARTITION_MIGRATION, 
+					this.getPartitionMatch(instance, 
+							partitioning.getBucketPrefix(bucket)),
+					Arrays.asList(actions)));
+		}
+	}
+	
+	/**
+	 * Adds removals of the rules for migrating buckets to a batch.
+	 * @param batch the batch to which the removals should be added
+	 * @param instance the load balancer instance whose clients are migrating
+	 * @param partitioning a partitioning with the migrating buckets
+	 * @param buckets the buckets that are changing host
+	 */
+	private void addMigrationRemovals(List<OFMessage> batch, 
+			LoadBalancerInstance instance, SourcePartitioning partitioning,
+			Collection<Integer> buckets)
+	{
+		for (int bucket : buckets)
+		{
+			batch.add(SwitchCommands.buildRuleRemoval(this.table, 
+					PRIORITY_PARTITION_MIGRATION, 
+					this.getPartitionMatch(instance, 
+							partitioning.getBucketPrefix(bucket))));
+		}
+	}
+	
+	/**
+	 * Get the match for packets from clients in a prefix to a virtual IP.
+	 */
+	private OFMatch getPartitionMatch(LoadBalancerInstance instance, 
+			SourcePrefix prefix)
+	{
+		OFMatch matchRule = new OFMatch();
+		matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		if (prefix.getLength() > 0)
+		{ 
+			matchRule.setNetworkSource(OFMatch.ETH_TYPE_IPV4, 
+					prefix.getPrefix(), prefix.getMask());
+		}
+		matchRule.setNetworkDestination(instance.getVirtualIP());
+		matchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		matchRule.setTransportDestination(instance.getServicePort());
+		return matchRule;
+	}
+	
+	/**
+	 * Get the match for packets from a prefix's host to clients in the prefix.
+	 * Only packets from the service port are matched, so the host's other
+	 * traffic to the clients, including from other virtual IPs it serves, is
+	 * not rewritten.
+	 */
+	private OFMatch getPartitionServerMatch(LoadBalancerInstance instance,
+			SourcePrefix prefix)
+	{
+		OFMatch matchRule = new OFMatch();
+		matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		matchRule.setNetworkSource(prefix.getHostIP());
+		if (prefix.getLength() > 0)
+		{ 
+			matchRule.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, 
+					prefix.getPrefix(), prefix.getMask());
+		}
+		matchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		matchRule.setTransportSource(instance.getServicePort());
+		return matchRule;
 	}
 	
 	/**
@@ -213,15 +1091,22 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	public net.floodlightcontroller.core.IListener.Command receive(
 			IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
 	{
-		// We're only interested in packet-in messages
+		// Expired connection rules tell us whether the host ever replied
+		if (msg.getType() == OFType.FLOW_REMOVED)
+		{
+			this.handleFlowRemoved((OFFlowRemoved)msg);
+			return Command.CONTINUE;
+		}
+		
+		// We're only interested in packet-in messages otherwise
 		if (msg.getType() != OFType.PACKET_IN)
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
+		long start = FlightRecorder.start();
 		
-		// Handle the packet
-		Ethernet ethPkt = new Ethernet();
-		ethPkt.deserialize(pktIn.getPacketData(), 0,
-				pktIn.getPacketData().length);
+		// Handle the packet; headers are read in place rather than
+		// deserialized, and shared with other modules handling the packet-in
+		PacketHeaders headers = PacketHeaders.get(cntx, pktIn);
 		
 		/*********************************************************************/
 		/* TODO: Send an ARP reply for ARP requests for virtual IPs; for TCP */
@@ -230,84 +1115,109 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*       ignore all other packets                                    */
 		
 		/*********************************************************************/
-		if(ethPkt.getEtherType() == Ethernet.TYPE_ARP) {
+		if(headers.isARP()) {
 		    // Send ARP Reply
-		    ARP arpPkt = (ARP) ethPkt.getPayload();
-		    int targetIp = ByteBuffer.wrap(arpPkt.getTargetProtocolAddress()).getInt();
-		    int senderIp = ByteBuffer.wrap(arpPkt.getSenderProtocolAddress()).getInt();
-		    byte[] replyMAC = this.instances.get(targetIp).getVirtualMAC();
-
-		    // Construct packet
-		    Ethernet ether = new Ethernet();
-		    ARP arp = new ARP();
-		    ether.setPayload(arp);
-		    
-		    // Set relevant parts of Ethernet
-		    ether.setEtherType(Ethernet.TYPE_ARP);
-		    ether.setSourceMACAddress(replyMAC);
-		    ether.setDestinationMACAddress(ethPkt.getSourceMACAddress());
-		    
-		    // Set relevant parts of ARP
-		    arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
-		    arp.setProtocolType(ARP.PROTO_TYPE_IP);
-		    arp.setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH);
-		    arp.setProtocolAddressLength((byte) 4);
-		    arp.setOpCode(ARP.OP_REPLY);
-		    arp.setSenderHardwareAddress(replyMAC);
-		    arp.setSenderProtocolAddress(targetIp);
-		    arp.setTargetHardwareAddress(ethPkt.getSourceMACAddress());
-		    arp.setTargetProtocolAddress(senderIp);
-		    
-		    SwitchCommands.sendPacket(sw, (short) pktIn.getInPort(), ether);
-		    log.info(String.format("Sending ARP reply. DST IP%d DST MAC%d", targetIp, replyMAC[0]));
+		    int targetIp = headers.getARPTargetIP();
+		    int senderIp = headers.getARPSenderIP();
+		    LoadBalancerInstance instance = this.instances.get(targetIp);
+		    if(instance == null)
+			return Command.CONTINUE;
+		    long replyMAC = MACAddress.valueOf(instance.getVirtualMAC()).toLong();
 
-		} else if(ethPkt.getEtherType() == Ethernet.TYPE_IPv4) {
+		    // Construct packet by patching the addresses into a template
+		    byte[] reply = ArpReplyTemplate.build(replyMAC, targetIp,
+			    headers.getSourceMAC(), senderIp);
+		    SwitchCommands.sendPacket(sw, (short) pktIn.getInPort(), reply);
+		    if(log.isDebugEnabled())
+			log.debug(String.format("Sending ARP reply for %s", IPv4.fromIPv4Address(targetIp)));
+		    // Answered here, so the request must not be flooded
+		    return FlightRecorder.packetIn(start, MODULE_NAME, "arp", "reply",
+			    Command.STOP);
+
+		} else if(headers.isIPv4()) {
 		    // Only sending TCP pkts to controller so can bank on it being TCP
-		    IPv4 ipPkt = (IPv4) ethPkt.getPayload();
-		    TCP tcpPkt = (TCP) ipPkt.getPayload();
-		    
-		    if(tcpPkt.getFlags() != TCP_FLAG_SYN)
+		    if(!headers.isTCP())
 			return Command.CONTINUE;
+		    int clientIP = headers.getIPv4Source();
+		    byte tcpFlags = headers.getTCPFlags();
 
-		    LoadBalancerInstance loadBalancer = this.instances.get(ipPkt.getDestinationAddress());
-		    int newDstIP = loadBalancer.getNextHostIP();
-		    byte[] newDstMAC = this.getHostMACAddress(newDstIP);
-
-		    // Install the new rules, first install client->server rule
-		     OFMatch matchRule = new OFMatch();
-		     matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-		     matchRule.setNetworkSource(ipPkt.getSourceAddress());
-		     matchRule.setNetworkDestination(ipPkt.getDestinationAddress());
-		     matchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
-		     matchRule.setTransportSource(tcpPkt.getSourcePort());
-		     matchRule.setTransportDestination(tcpPkt.getDestinationPort());
-
-		     OFAction changeMACAction = new OFActionSetField(OFOXMFieldType.ETH_DST, newDstMAC);
-		     OFAction changeIPAction = new OFActionSetField(OFOXMFieldType.IPV4_DST, newDstIP);
-		     OFInstruction actions = 
-			 new OFInstructionApplyActions(Arrays.asList(changeMACAction, changeIPAction));
-		     OFInstruction nextTableAction = 
-			 new OFInstructionGotoTable(L3Routing.table);
-		     SwitchCommands.installRule(sw, this.table,	PRIORITY_CONNECTION_SPECIFIC, matchRule,
-						Arrays.asList(actions, nextTableAction), (short) 0, (short) 20);
-
-		     // Now for the server->client
-		     OFMatch serverMatchRule = new OFMatch();
-		     serverMatchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-		     serverMatchRule.setNetworkSource(newDstIP);
-		     serverMatchRule.setNetworkDestination(ipPkt.getSourceAddress());
-		     serverMatchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
-		     serverMatchRule.setTransportSource(tcpPkt.getDestinationPort());
-		     serverMatchRule.setTransportDestination(tcpPkt.getSourcePort());
-
-		     OFAction serverChangeMACAction = 
-			 new OFActionSetField(OFOXMFieldType.ETH_SRC, ethPkt.getDestinationMACAddress());
-		     OFAction serverChangeIPAction = 
-			 new OFActionSetField(OFOXMFieldType.IPV4_SRC, ipPkt.getDestinationAddress());
-		     OFInstruction serverActions = 
-			 new OFInstructionApplyActions(Arrays.asList(serverChangeMACAction, serverChangeIPAction));
-		     SwitchCommands.installRule(sw, this.table,	PRIORITY_CONNECTION_SPECIFIC, serverMatchRule,
-						Arrays.asList(serverActions, nextTableAction), (short) 0, (short) 20);
+		    LoadBalancerInstance loadBalancer = this.instances.get(headers.getIPv4Destination());
+		    if(loadBalancer == null)
+			return Command.CONTINUE;
+		    SynGuard synGuard = loadBalancer.getSynGuard();
+		    synGuard.countPacketIn();
+
+		    // While clients are migrated between partitions, their packets are
+		    // sent here so connections opened before the migration can be
+		    // pinned to the host they started on
+		    SourcePartitioning previous = loadBalancer.getPreviousPartitioning();
+		    if(previous != null && tcpFlags != TCP_FLAG_SYN) {
+			int oldDstIP = previous.getHostIP(clientIP);
+			byte[] oldDstMAC = this.getHostMACAddress(oldDstIP);
+			if(oldDstMAC == null)
+			    return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+				    "unknownHost", Command.CONTINUE);
+			LoadBalancerConnection conn = new LoadBalancerConnection(clientIP,
+				headers.getTransportSource(), loadBalancer.getVirtualIP(),
+				headers.getTransportDestination(), oldDstIP, IDLE_TIMEOUT);
+			this.connections.put(conn, conn);
+			this.replicateConnection(conn);
+			this.installConnectionRules(sw, pktIn, loadBalancer, conn, oldDstMAC, true);
+			return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+				"pinned", Command.CONTINUE);
+		    }
+		    
+		    if(tcpFlags != TCP_FLAG_SYN) {
+			// A connection whose rules expired while it paused comes back
+			// here; its rules are put back for the host it was assigned to
+			IdleTimeoutTuner idleTimeouts = loadBalancer.getIdleTimeouts();
+			LoadBalancerConnection expired = idleTimeouts.recordRepunt(
+				new LoadBalancerConnection(clientIP, headers.getTransportSource(),
+				    loadBalancer.getVirtualIP(), headers.getTransportDestination(),
+				    0, (short)0), System.currentTimeMillis());
+			if(expired == null)
+			    return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+				    "notSyn", Command.CONTINUE);
+			byte[] hostMAC = this.getHostMACAddress(expired.getHostIP());
+			if(hostMAC == null)
+			    return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+				    "unknownHost", Command.CONTINUE);
+			LoadBalancerConnection conn = new LoadBalancerConnection(clientIP,
+				expired.getClientPort(), expired.getVirtualIP(),
+				expired.getVirtualPort(), expired.getHostIP(),
+				idleTimeouts.getTimeout());
+			this.connections.put(conn, conn);
+			this.replicateConnection(conn);
+			this.installConnectionRules(sw, pktIn, loadBalancer, conn, hostMAC, true);
+			return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+				"repunted", Command.CONTINUE);
+		    }
+
+		    // Drop SYNs from clients over their rate before any rules are
+		    // generated for them
+		    if(!synGuard.admit(clientIP, System.currentTimeMillis()))
+			return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+				"rateLimited", Command.STOP);
+
+		    // With client affinity, one pair of rules matching only on the
+		    // client and the VIP port covers every connection the client 
+		    // makes to that port
+		    boolean affinity = loadBalancer.hasClientAffinity();
+		    short timeout = affinity ? loadBalancer.getAffinityTimeout() 
+			: loadBalancer.getIdleTimeouts().getTimeout();
+		    short clientPort = affinity ? 0 : headers.getTransportSource();
+		    short virtualPort = headers.getTransportDestination();
+
+		    LoadBalancerConnection conn = this.assignConnection(loadBalancer, 
+			    clientIP, clientPort, virtualPort, timeout);
+		    byte[] newDstMAC = this.getHostMACAddress(conn.getHostIP());
+		    if(newDstMAC == null)
+			return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+				"unknownHost", Command.CONTINUE);
+
+		    this.installConnectionRules(sw, pktIn, loadBalancer, conn, newDstMAC, !affinity);
+		    return FlightRecorder.packetIn(start, MODULE_NAME, "tcp",
+			    "assigned", Command.CONTINUE);
 		}
 		
 		
@@ -315,6 +1225,559 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		return Command.CONTINUE;
 	}
 	
+	/**
+	 * Installs rules that rewrite a connection's packets between the virtual
+	 * IP and the host the connection is assigned to, then releases the packet
+	 * that opened the connection so it is forwarded by the new rules.
+	 * @param sw the switch in which the rules should be installed
+	 * @param pktIn the packet-in for the packet that opened the connection
+	 * @param instance the load balancer instance the client connected to
+	 * @param conn the connection and the host it is assigned to
+	 * @param hostMAC MAC address of the host
+	 * @param matchPorts false if the rules should cover every connection 
+	 *        between the client and the virtual IP's port
+	 */
+	private void installConnectionRules(IOFSwitch sw, OFPacketIn pktIn,
+			LoadBalancerInstance instance, LoadBalancerConnection conn, 
+			byte[] hostMAC, boolean matchPorts)
+	{
+		// Install the new rules, first install client->server rule
+		OFMatch matchRule = new OFMatch();
+		matchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		matchRule.setNetworkSource(conn.getClientIP());
+		matchRule.setNetworkDestination(instance.getVirtualIP());
+		matchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		matchRule.setTransportDestination(conn.getVirtualPort());
+		if (matchPorts)
+		{ matchRule.setTransportSource(conn.getClientPort()); }
+
+		OFAction changeMACAction = 
+				new OFActionSetField(OFOXMFieldType.ETH_DST, hostMAC);
+		OFAction changeIPAction = 
+				new OFActionSetField(OFOXMFieldType.IPV4_DST, conn.getHostIP());
+		OFInstruction actions = new OFInstructionApplyActions(
+				Arrays.asList(changeMACAction, changeIPAction));
+		OFInstruction nextTableAction = 
+				new OFInstructionGotoTable(L3Routing.table);
+		OFFlowMod rule = SwitchCommands.buildRule(this.table, 
+				PRIORITY_CONNECTION_SPECIFIC, matchRule,
+				Arrays.asList(actions, nextTableAction), 
+				SwitchCommands.NO_TIMEOUT, conn.getTimeout(),
+				OFPacketOut.BUFFER_ID_NONE);
+		rule.setCookie(instance.getVirtualIP() & 0xffffffffL);
+
+		// Now for the server->client
+		OFMatch serverMatchRule = new OFMatch();
+		serverMatchRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		serverMatchRule.setNetworkSource(conn.getHostIP());
+		serverMatchRule.setNetworkDestination(conn.getClientIP());
+		serverMatchRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		// The VIP port is always matched, so other traffic from the host to
+		// the client is not rewritten
+		serverMatchRule.setTransportSource(conn.getVirtualPort());
+		if (matchPorts)
+		{ serverMatchRule.setTransportDestination(conn.getClientPort()); }
+
+		OFAction serverChangeMACAction = new OFActionSetField(
+				OFOXMFieldType.ETH_SRC, instance.getVirtualMAC());
+		OFAction serverChangeIPAction = new OFActionSetField(
+				OFOXMFieldType.IPV4_SRC, instance.getVirtualIP());
+		OFInstruction serverActions = new OFInstructionApplyActions(
+				Arrays.asList(serverChangeMACAction, serverChangeIPAction));
+		OFFlowMod serverRule = SwitchCommands.buildRule(this.table, 
+				PRIORITY_CONNECTION_SPECIFIC, serverMatchRule,
+				Arrays.asList(serverActions, nextTableAction), 
+				SwitchCommands.NO_TIMEOUT, conn.getTimeout(),
+				OFPacketOut.BUFFER_ID_NONE);
+		
+		// Ask to be told when the server->client rule expires, so the host's
+		// health can be judged by whether it sent any packets back to the
+		// client; both rules are tagged with the virtual IP
+		serverRule.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM);
+		serverRule.setCookie(instance.getVirtualIP() & 0xffffffffL);
+		
+		List<OFMessage> batch = new ArrayList<OFMessage>();
+		batch.add(rule);
+		batch.add(serverRule);
+		
+		// The packet is released only after the rules are in place; if the
+		// switch buffered it, only the buffer ID is sent back
+		SwitchCommands.writeBatch(sw, batch, 
+				SwitchCommands.buildPacketRelease(pktIn));
+	}
+	
+	/**
+	 * Judges a host's health from an expired server->client connection rule.
+	 * A rule that never matched a packet means the host never answered the
+	 * client. Also records how long the connection was active, to tune the
+	 * idle timeout of the instance's connection rules.
+	 * @param flowRemoved the message describing the expired rule
+	 */
+	private void handleFlowRemoved(OFFlowRemoved flowRemoved)
+	{
+		if (flowRemoved.getTableId() != this.table
+				|| flowRemoved.getPriority() != PRIORITY_CONNECTION_SPECIFIC)
+		{ return; }
+		LoadBalancerInstance instance = 
+				this.instances.get((int)flowRemoved.getCookie());
+		if (null == instance)
+		{ return; }
+		OFMatch match = flowRemoved.getMatch();
+		int hostIP = match.getNetworkSource();
+		long now = System.currentTimeMillis();
+		
+		// Client affinity rules cover many connections, and keep their
+		// configured timeout
+		if (!instance.hasClientAffinity() 
+				&& match.getTransportDestination() != 0)
+		{
+			instance.getIdleTimeouts().recordExpired(
+					new LoadBalancerConnection(match.getNetworkDestination(),
+							match.getTransportDestination(), 
+							instance.getVirtualIP(), match.getTransportSource(), 
+							hostIP, (short)0),
+					flowRemoved.getDurationSeconds(), 
+					flowRemoved.getIdleTimeout(), now);
+		}
+		if (!instance.hasHost(hostIP))
+		{ return; }
+		
+		BackendHealth health = instance.getHealth(hostIP);
+		if (flowRemoved.getPacketCount() > 0)
+		{
+			health.recordSuccess();
+			return;
+		}
+		long assignedTime = now - flowRemoved.getDurationSeconds() * 1000L;
+		this.recordFailure(instance, health, assignedTime, now);
+	}
+	
+	/**
+	 * Polls every edge switch for the byte counts of its connection rules.
+	 * The replies are collected STATS_REPLY_TIMEOUT seconds later, so the
+	 * shared scheduler thread never waits on a switch.
+	 */
+	private void pollFlowStatistics()
+	{
+		final long now = System.currentTimeMillis();
+		final Map<Long,Future<List<OFStatistics>>> replies = 
+				new HashMap<Long,Future<List<OFStatistics>>>();
+		for (long switchId : this.edgeTracker.getEdgeSwitches())
+		{
+			IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+			if (null == sw || !this.isOwner(switchId))
+			{ continue; }
+			try
+			{ 
+				replies.put(switchId, 
+						sw.queryStatistics(
+								SwitchCommands.buildFlowStatsRequest(this.table))); 
+			}
+			catch (IOException e)
+			{ log.warn(String.format("Failed to poll switch s%d", switchId)); }
+		}
+		
+		this.threadPoolProv.getScheduledExecutor().schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{ collectFlowStatistics(replies, now); }
+				}, STATS_REPLY_TIMEOUT, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Records the byte rate of each host since the last poll from the
+	 * replies that have arrived, and adjusts host weights so hosts carrying
+	 * bulk transfers get fewer new connections. Also updates the packet-in
+	 * rate of each virtual IP, and the number of connection rules it has on
+	 * the switches, and tunes the idle timeout of its connection rules.
+	 * @param replies pending replies to the poll, keyed by switch DPID
+	 * @param now time (in milliseconds) the poll was sent
+	 */
+	private synchronized void collectFlowStatistics(
+			Map<Long,Future<List<OFStatistics>>> replies, long now)
+	{
+		// Bytes sent through connection rules since the last poll, keyed by
+		// virtual IP and then host IP
+		Map<Integer,Map<Integer,Long>> bytes = 
+				new HashMap<Integer,Map<Integer,Long>>();
+		
+		// Switches that did not reply keep their previous byte counts, so
+		// their rules are not counted from zero at the next poll; switches
+		// that are no longer edge switches are forgotten
+		Map<Long,Map<OFMatch,Long>> ruleByteCounts = 
+				new HashMap<Long,Map<OFMatch,Long>>(this.ruleByteCounts);
+		ruleByteCounts.keySet().retainAll(this.edgeTracker.getEdgeSwitches());
+		
+		// Number of connection rules on the switches, keyed by virtual IP
+		Map<Integer,Integer> occupancy = new HashMap<Integer,Integer>();
+		for (Map.Entry<Long,Future<List<OFStatistics>>> entry 
+				: replies.entrySet())
+		{
+			if (!entry.getValue().isDone())
+			{
+				entry.getValue().cancel(false);
+				log.warn(String.format("No statistics from switch s%d in time",
+						entry.getKey()));
+				continue;
+			}
+			List<OFStatistics> stats;
+			try
+			{ stats = entry.getValue().get(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Exception e)
+			{
+				log.warn(String.format("No statistics from switch s%d", 
+						entry.getKey()));
+				continue;
+			}
+			if (null == stats)
+			{ continue; }
+			
+			Map<OFMatch,Long> previous = this.ruleByteCounts.get(entry.getKey());
+			Map<OFMatch,Long> counts = new HashMap<OFMatch,Long>();
+			for (OFStatistics stat : stats)
+			{
+				if (!(stat instanceof OFFlowStatisticsReply))
+				{ continue; }
+				OFFlowStatisticsReply reply = (OFFlowStatisticsReply)stat;
+				if (reply.getPriority() != PRIORITY_CONNECTION_SPECIFIC)
+				{ continue; }
+				LoadBalancerInstance instance = 
+						this.instances.get((int)reply.getCookie());
+				if (null == instance)
+				{ continue; }
+				Integer rules = occupancy.get(instance.getVirtualIP());
+				occupancy.put(instance.getVirtualIP(), 
+						(null == rules ? 0 : rules) + 1);
+				int hostIP = this.getRuleHostIP(instance, reply.getMatch());
+				if (0 == hostIP)
+				{ continue; }
+				
+				// Rules are matched up between polls by their match criteria;
+				// a rule not seen before counts from zero
+				counts.put(reply.getMatch(), reply.getByteCount());
+				Long before = (null == previous ? null 
+						: previous.get(reply.getMatch()));
+				long delta = reply.getByteCount() - (null == before ? 0 : before);
+				if (delta < 0)
+				{ delta = reply.getByteCount(); }
+				
+				Map<Integer,Long> hostBytes = bytes.get(instance.getVirtualIP());
+				if (null == hostBytes)
+				{
+					hostBytes = new HashMap<Integer,Long>();
+					bytes.put(instance.getVirtualIP(), hostBytes);
+				}
+				Long total = hostBytes.get(hostIP);
+				hostBytes.put(hostIP, (null == total ? 0 : total) + delta);
+			}
+			ruleByteCounts.put(entry.getKey(), counts);
+		}
+		this.ruleByteCounts = ruleByteCounts;
+		
+		// The first poll only learns the byte counts rules started with
+		long elapsed = now - this.lastStatsPoll;
+		boolean first = (0 == this.lastStatsPoll);
+		this.lastStatsPoll = now;
+		
+		for (LoadBalancerInstance instance : this.instances.values())
+		{
+			instance.getSynGuard().updateRate(now);
+			instance.getSynGuard().purge(now);
+			Integer rules = occupancy.get(instance.getVirtualIP());
+			instance.getIdleTimeouts().setOccupancy(null == rules ? 0 : rules);
+			instance.getIdleTimeouts().adapt(now);
+			if (first || elapsed <= 0)
+			{ continue; }
+			
+			Map<Integer,Long> hostBytes = bytes.get(instance.getVirtualIP());
+			for (int hostIP : instance.getHostIPs())
+			{
+				Long total = (null == hostBytes ? null : hostBytes.get(hostIP));
+				long rate = (null == total ? 0 : total * 1000 / elapsed);
+				instance.getThroughput(hostIP).add(now, rate);
+			}
+			instance.updateDynamicWeights();
+		}
+	}
+	
+	/**
+	 * Get the host whose traffic passes through a connection rule.
+	 * @param instance the load balancer instance the rule belongs to
+	 * @param match match criteria of the rule
+	 * @return the IP address of the host, 0 if unknown
+	 */
+	private int getRuleHostIP(LoadBalancerInstance instance, OFMatch match)
+	{
+		// Server->client rules match on the host; client->server rules match
+		// on the virtual IP, so their host comes from the connection table
+		if (match.getNetworkDestination() != instance.getVirtualIP())
+		{
+			int hostIP = match.getNetworkSource();
+			return (instance.hasHost(hostIP) ? hostIP : 0);
+		}
+		LoadBalancerConnection conn = this.connections.get(
+				new LoadBalancerConnection(match.getNetworkSource(), 
+						match.getTransportSource(), instance.getVirtualIP(), 
+						match.getTransportDestination(), 0, (short)0));
+		return (null == conn ? 0 : conn.getHostIP());
+	}
+	
+	/**
+	 * Records a connection a host failed to serve, logging if the host is
+	 * ejected as a result.
+	 * @param instance the load balancer instance the connection belongs to
+	 * @param health the health record of the host
+	 * @param assignedTime time (in milliseconds) the connection was assigned
+	 * @param now current time in milliseconds
+	 */
+	private void recordFailure(LoadBalancerInstance instance, 
+			BackendHealth health, long assignedTime, long now)
+	{
+		if (health.recordFailure(assignedTime, now))
+		{
+			log.warn(String.format("Ejected host %s from %s for %d seconds",
+					IPv4.fromIPv4Address(health.getHostIP()),
+					IPv4.fromIPv4Address(instance.getVirtualIP()),
+					(health.getEjectedUntil() - now) / 1000));
+		}
+	}
+	
+	/**
+	 * Selects the host for a connection. A retransmitted SYN for a connection
+	 * that is already assigned is sent to the same host, so concurrent 
+	 * packet-ins for one connection always agree on the host. The 
+	 * retransmission counts against the host's health, and once the host is
+	 * ejected the connection is assigned to another host instead.
+	 * @param instance the load balancer instance the client connected to
+	 * @param clientIP IP address of the client
+	 * @param clientPort TCP port of the client, 0 for client affinity
+	 * @param virtualPort TCP port on the virtual IP
+	 * @param timeout number of seconds for which the assignment is valid
+	 * @return the connection and the host it is assigned to
+	 */
+	private LoadBalancerConnection assignConnection(LoadBalancerInstance instance, int clientIP,
+			short clientPort, short virtualPort, short timeout)
+	{
+		long now = System.currentTimeMillis();
+		LoadBalancerConnection key = new LoadBalancerConnection(clientIP,
+				clientPort, instance.getVirtualIP(), virtualPort, 0, timeout);
+		while (true)
+		{
+			// Reuse an earlier assignment while its rules may still exist
+			LoadBalancerConnection existing = this.connections.get(key);
+			if (existing != null && !existing.isExpired(now))
+			{
+				// Client affinity assignments are shared by many connections,
+				// so only a SYN for the same ports is a retransmission
+				if (0 == clientPort)
+				{ return existing; }
+				this.recordFailure(instance, 
+						instance.getHealth(existing.getHostIP()), 
+						existing.getAssignedTime(), now);
+				if (instance.isHostAvailable(existing.getHostIP(), now))
+				{ return existing; }
+			}
+			
+			LoadBalancerConnection conn = new LoadBalancerConnection(clientIP,
+					clientPort, instance.getVirtualIP(), virtualPort, 
+					instance.getHostIP(clientIP), timeout);
+			if (null == existing)
+			{
+				existing = this.connections.putIfAbsent(conn, conn);
+				if (null == existing)
+				{ 
+					this.countAssignment(instance, conn, now);
+					return conn; 
+				}
+				continue;
+			}
+			
+			// Connections compare equal on their endpoints alone, so an expired
+			// assignment is replaced while holding its lock rather than with a
+			// conditional replace
+			synchronized (existing)
+			{
+				if (this.connections.get(key) == existing)
+				{
+					this.connections.put(conn, conn);
+					this.countAssignment(instance, conn, now);
+					return conn;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Records that a connection was assigned, and periodically purges expired
+	 * connections from the connection table.
+	 * @param instance the load balancer instance the client connected to
+	 * @param conn the connection and the host it is assigned to
+	 * @param now current time in milliseconds
+	 */
+	private void countAssignment(LoadBalancerInstance instance, 
+			LoadBalancerConnection conn, long now)
+	{
+		instance.getSelections(conn.getHostIP()).increment();
+		this.replicateConnection(conn);
+		if (this.assignmentsSincePurge.incrementAndGet() >= PURGE_INTERVAL)
+		{
+			this.assignmentsSincePurge.set(0);
+			this.purgeExpiredConnections(now);
+		}
+	}
+	
+	/**
+	 * Removes connections whose rules have timed out from the connection
+	 * table.
+	 * @param now current time in milliseconds
+	 */
+	private void purgeExpiredConnections(long now)
+	{
+		for (LoadBalancerConnection conn : this.connections.values())
+		{
+			if (!conn.isExpired(now))
+			{ continue; }
+			synchronized (conn)
+			{
+				if (this.connections.get(conn) == conn)
+				{ this.connections.remove(conn); }
+			}
+			if (this.connectionStore != null)
+			{
+				try
+				{ this.connectionStore.delete(getConnectionKey(conn)); }
+				catch (SyncException e)
+				{ /* Another controller may have replaced it; it expires there */ }
+			}
+		}
+	}
+	
+	/**
+	 * Get the key of a connection in the replicated store: its client and
+	 * virtual endpoints.
+	 */
+	private static String getConnectionKey(LoadBalancerConnection conn)
+	{
+		return String.format("%d:%d %d:%d", conn.getClientIP(), 
+				conn.getClientPort() & 0xffff, conn.getVirtualIP(), 
+				conn.getVirtualPort() & 0xffff);
+	}
+	
+	/**
+	 * Shares a connection assignment with the other controllers of a
+	 * cluster.
+	 */
+	private void replicateConnection(LoadBalancerConnection conn)
+	{
+		if (null == this.connectionStore)
+		{ return; }
+		try
+		{ this.connectionStore.put(getConnectionKey(conn), conn.toConfig()); }
+		catch (SyncException e)
+		{ log.warn("Failed to replicate connection " + conn); }
+	}
+	
+	/**
+	 * Adds connection assignments made by other controllers to the
+	 * connection table, unless this controller has a newer assignment for
+	 * the same connection.
+	 * @param keys keys of the assignments in the replicated store
+	 */
+	private void loadReplicatedConnections(Iterator<String> keys)
+	{
+		long now = System.currentTimeMillis();
+		while (keys.hasNext())
+		{
+			String value;
+			try
+			{ value = this.connectionStore.getValue(keys.next()); }
+			catch (SyncException e)
+			{ continue; }
+			if (null == value)
+			{ continue; }
+			
+			LoadBalancerConnection conn;
+			try
+			{ conn = LoadBalancerConnection.fromConfig(value); }
+			catch (IllegalArgumentException e)
+			{
+				log.warn("Ignoring bad replicated connection: " + value);
+				continue;
+			}
+			if (conn.isExpired(now) 
+					|| !this.instances.containsKey(conn.getVirtualIP()))
+			{ continue; }
+			LoadBalancerConnection existing = this.connections.get(conn);
+			if (null == existing 
+					|| existing.getAssignedTime() < conn.getAssignedTime())
+			{ this.connections.put(conn, conn); }
+		}
+	}
+	
+	/**
+	 * Restores the unexpired connections in the connection table snapshot,
+	 * so connections assigned before a restart stay with their host. The
+	 * connection rules on the switches outlive the controller, so restored
+	 * connections whose packets still reach the controller are pinned to
+	 * the same host as their rules.
+	 */
+	private void loadConnections()
+	{
+		List<String> lines;
+		try
+		{ lines = this.stateStore.load(CONNECTIONS_SNAPSHOT); }
+		catch (IOException e)
+		{
+			log.warn("Failed to load connection table: " + e.getMessage());
+			return;
+		}
+		
+		long now = System.currentTimeMillis();
+		for (String line : lines)
+		{
+			LoadBalancerConnection conn;
+			try
+			{ conn = LoadBalancerConnection.fromConfig(line); }
+			catch (IllegalArgumentException e)
+			{
+				log.warn("Ignoring bad connection in snapshot: " + line);
+				continue;
+			}
+			LoadBalancerInstance instance = 
+					this.instances.get(conn.getVirtualIP());
+			if (conn.isExpired(now) || null == instance
+					|| !instance.hasHost(conn.getHostIP()))
+			{ continue; }
+			this.connections.put(conn, conn);
+		}
+		log.info(String.format("Restored %d connections", 
+				this.connections.size()));
+	}
+	
+	/**
+	 * Saves the unexpired connections to the connection table snapshot.
+	 */
+	private void saveConnections()
+	{
+		long now = System.currentTimeMillis();
+		List<String> lines = new ArrayList<String>();
+		for (LoadBalancerConnection conn : this.connections.values())
+		{
+			if (!conn.isExpired(now))
+			{ lines.add(conn.toConfig()); }
+		}
+		try
+		{ this.stateStore.save(CONNECTIONS_SNAPSHOT, lines); }
+		catch (IOException e)
+		{ log.warn("Failed to save connection table: " + e.getMessage()); }
+	}
+	
 	/**
 	 * Returns the MAC address for a host, given the host's IP address.
 	 * @param hostIPAddress the host's IP address
@@ -322,12 +1785,10 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	 */
 	private byte[] getHostMACAddress(int hostIPAddress)
 	{
-		Iterator<? extends IDevice> iterator = this.deviceProv.queryDevices(
-				null, null, hostIPAddress, null, null);
-		if (!iterator.hasNext())
+		long mac = this.macCacheProv.getMACAddress(hostIPAddress);
+		if (IpMacTable.UNKNOWN_MAC == mac)
 		{ return null; }
-		IDevice device = iterator.next();
-		return MACAddress.valueOf(device.getMACAddress()).toBytes();
+		return IpMacTable.toBytes(mac);
 	}
 
 	/**
@@ -344,7 +1805,24 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public void switchActivated(long switchId)
-	{ /* Nothing we need to do, since we're not switching controller roles */ }
+	{ /* Nothing we need to do, since switches are split between controllers
+	     by the cluster manager rather than by controller roles */ }
+	
+	/**
+	 * Event handler called when this controller gains or loses switches
+	 * because another controller joined or left the cluster. Switches that
+	 * were gained get the same rules as a switch that just connected; the
+	 * rules on switches that were lost are left to their new owner.
+	 * @param gained DPIDs of switches this controller now owns
+	 * @param lost DPIDs of switches another controller now owns
+	 */
+	@Override
+	public void ownershipChanged(Collection<Long> gained, 
+			Collection<Long> lost)
+	{
+		for (long switchId : gained)
+		{ this.switchAdded(switchId); }
+	}
 
 	/**
 	 * Event handler called when a port on a switch goes up or down, or is
@@ -371,7 +1849,12 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(ILoadBalancerService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -379,7 +1862,13 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> impls =
+				new HashMap<Class<? extends IFloodlightService>, 
+						IFloodlightService>();
+		impls.put(ILoadBalancerService.class, this);
+		return impls;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -392,6 +1881,10 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	            new ArrayList<Class<? extends IFloodlightService>>();
         floodlightService.add(IFloodlightProviderService.class);
         floodlightService.add(IDeviceService.class);
+        floodlightService.add(IThreadPoolService.class);
+        floodlightService.add(IHostMACService.class);
+        floodlightService.add(IPacketInService.class);
+        floodlightService.add(IRestApiService.class);
         return floodlightService;
 	}
 
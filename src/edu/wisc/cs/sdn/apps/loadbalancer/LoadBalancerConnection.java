@@ -0,0 +1,162 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import net.floodlightcontroller.packet.IPv4;
+
+public class LoadBalancerConnection
+{
+	// Client side of the connection
+	private final int clientIP;
+	private final short clientPort;
+
+	// Virtual side of the connection
+	private final int virtualIP;
+	private final short virtualPort;
+
+	// Host to which the connection was assigned
+	private final int hostIP;
+
+	// Time (in milliseconds) at which the connection was assigned
+	private final long assignedTime;
+
+	// Number of seconds for which the assignment is valid
+	private final short timeout;
+
+	/**
+	 * Create a connection. Connections are compared only by their client and
+	 * virtual endpoints, so a connection with a host IP of 0 can be used to
+	 * look up the assignment for a connection. Client affinity assignments 
+	 * use a client port of 0, so they cover every connection between a 
+	 * client and a virtual IP's port.
+	 * @param clientIP IP address of the client
+	 * @param clientPort TCP port of the client
+	 * @param virtualIP virtual IP to which the client connected
+	 * @param virtualPort TCP port on the virtual IP
+	 * @param hostIP IP address of the host the connection is assigned to
+	 * @param timeout number of seconds for which the assignment is valid
+	 */
+	public LoadBalancerConnection(int clientIP, short clientPort,
+			int virtualIP, short virtualPort, int hostIP, short timeout)
+	{
+		this(clientIP, clientPort, virtualIP, virtualPort, hostIP, 
+				System.currentTimeMillis(), timeout);
+	}
+
+	/**
+	 * Create a connection that was assigned at an earlier time, like one
+	 * restored from a snapshot.
+	 * @param assignedTime time (in milliseconds) at which the connection was
+	 *        assigned
+	 */
+	public LoadBalancerConnection(int clientIP, short clientPort,
+			int virtualIP, short virtualPort, int hostIP, long assignedTime,
+			short timeout)
+	{
+		this.clientIP = clientIP;
+		this.clientPort = clientPort;
+		this.virtualIP = virtualIP;
+		this.virtualPort = virtualPort;
+		this.hostIP = hostIP;
+		this.assignedTime = assignedTime;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Create a connection from a line written by toConfig.
+	 * @param config "&lt;clientIP&gt;:&lt;clientPort&gt; 
+	 *        &lt;virtualIP&gt;:&lt;virtualPort&gt; &lt;hostIP&gt; 
+	 *        &lt;assignedTime&gt; &lt;timeout&gt;"
+	 * @throws IllegalArgumentException if the line is malformed
+	 */
+	public static LoadBalancerConnection fromConfig(String config)
+	{
+		String[] configItems = config.trim().split(" +");
+		if (configItems.length != 5)
+		{ throw new IllegalArgumentException("Bad connection: " + config); }
+		String[] client = configItems[0].split(":");
+		String[] virtual = configItems[1].split(":");
+		if (client.length != 2 || virtual.length != 2)
+		{ throw new IllegalArgumentException("Bad connection: " + config); }
+		return new LoadBalancerConnection(
+				IPv4.toIPv4Address(client[0]), 
+				(short)Integer.parseInt(client[1]),
+				IPv4.toIPv4Address(virtual[0]), 
+				(short)Integer.parseInt(virtual[1]),
+				IPv4.toIPv4Address(configItems[2]), 
+				Long.parseLong(configItems[3]),
+				Short.parseShort(configItems[4]));
+	}
+
+	/**
+	 * Describe the connection in the form read by fromConfig.
+	 */
+	public String toConfig()
+	{
+		return String.format("%s:%d %s:%d %s %d %d",
+				IPv4.fromIPv4Address(this.clientIP), this.clientPort & 0xffff,
+				IPv4.fromIPv4Address(this.virtualIP), 
+				this.virtualPort & 0xffff,
+				IPv4.fromIPv4Address(this.hostIP), this.assignedTime, 
+				this.timeout);
+	}
+
+	public int getClientIP()
+	{ return this.clientIP; }
+
+	public short getClientPort()
+	{ return this.clientPort; }
+
+	public int getVirtualIP()
+	{ return this.virtualIP; }
+
+	public short getVirtualPort()
+	{ return this.virtualPort; }
+
+	public int getHostIP()
+	{ return this.hostIP; }
+
+	public long getAssignedTime()
+	{ return this.assignedTime; }
+
+	public short getTimeout()
+	{ return this.timeout; }
+
+	/**
+	 * Checks whether the connection has been assigned for longer than its
+	 * timeout.
+	 * @param now current time in milliseconds
+	 * @return true if the assignment has expired, otherwise false
+	 */
+	public boolean isExpired(long now)
+	{ return (now - this.assignedTime) > (this.timeout * 1000L); }
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof LoadBalancerConnection))
+		{ return false; }
+		LoadBalancerConnection other = (LoadBalancerConnection)obj;
+		return (other.clientIP == this.clientIP
+				&& other.clientPort == this.clientPort
+				&& other.virtualIP == this.virtualIP
+				&& other.virtualPort == this.virtualPort);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int result = this.clientIP;
+		result = 31 * result + this.clientPort;
+		result = 31 * result + this.virtualIP;
+		result = 31 * result + this.virtualPort;
+		return result;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s:%d -> %s:%d via %s",
+				IPv4.fromIPv4Address(this.clientIP), this.clientPort & 0xffff,
+				IPv4.fromIPv4Address(this.hostIP), this.virtualPort & 0xffff,
+				IPv4.fromIPv4Address(this.virtualIP));
+	}
+}
@@ -1,90 +1,704 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.wisc.cs.sdn.apps.util.Metrics;
+import edu.wisc.cs.sdn.apps.util.StripedCounter;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
-public class LoadBalancerInstance 
+public class LoadBalancerInstance
 {
+	// Number of steps in a weight; a host's weight is adjusted by at most a
+	// factor of MAX_ADJUSTMENT in either direction based on its throughput
+	public static final int WEIGHT_RESOLUTION = 4;
+	public static final int MAX_ADJUSTMENT = 4;
+
+	// Number of throughput samples averaged when adjusting weights
+	public static final int LOAD_SAMPLES = 3;
+
+	// Total byte rate (in bytes per second) below which throughput is too
+	// low to say anything about load, so the configured weights are used
+	public static final long MIN_ADJUSTED_RATE = 64 * 1024;
+
+	// TCP port clients connect to on the virtual IP unless configured
+	public static final short DEFAULT_SERVICE_PORT = 80;
+
+	// Maximum number of entries in the round-robin schedule
+	private static final int MAX_SCHEDULE = 1024;
+
 	// Virtual IP for this load balancer instance
-	private int virtualIP;
-	
+	private final int virtualIP;
+
 	// Virtual MAC address for this load balancer instance
-	private byte[] virtualMAC;
-	
-	// IPs for the hosts to which a flow could be sent
-	private List<Integer> hostIPs;
-	
-	// The index for the last host to which a flow was sent;
-	private int lastHost;
-	
+	private final byte[] virtualMAC;
+
+	// IPs for the hosts to which a flow could be sent; the array is never
+	// modified, only replaced as a whole, so it can be read from any thread
+	// without locking
+	private volatile int[] hostIPs;
+
+	// Relative weight of each host; replaced together with the host IPs
+	private volatile int[] hostWeights;
+
+	// Hosts in round-robin order, each appearing in proportion to its
+	// dynamic weight; replaced as a whole whenever the weights change
+	private volatile int[] schedule;
+
+	// Weight of each host after adjusting for its measured throughput
+	private volatile int[] dynamicWeights;
+
+	// Count of flows assigned so far; the next host is chosen from this
+	// counter, so concurrent callers never observe a torn round-robin index
+	private final AtomicInteger assignments;
+
+	// Number of seconds a client stays pinned to a host; 0 if connections
+	// from a client are balanced independently
+	private short affinityTimeout;
+
+	// Number of packets per second the switches send to the controller for
+	// the virtual IP, enforced by a meter; 0 if not metered
+	private int synRate;
+
+	// Meter used to enforce the SYN rate, assigned by the load balancer
+	private int meterId;
+
+	// Per-client SYN limits and packet-in counters
+	private SynGuard synGuard;
+
+	// Idle timeout of connection rules, learned from how connections behave
+	private final IdleTimeoutTuner idleTimeouts;
+
+	// Split of the client IPv4 space between hosts; null if connections are
+	// balanced reactively
+	private volatile SourcePartitioning partitioning;
+
+	// TCP port clients connect to on the virtual IP; partition rules only
+	// cover this port, so the rules for the reverse direction do not catch
+	// other traffic from the hosts
+	private short servicePort = DEFAULT_SERVICE_PORT;
+
+	// Partitioning clients are being migrated away from; null unless a
+	// change in weights is being applied
+	private volatile SourcePartitioning previousPartitioning;
+
+	// Passive health of each host, keyed by host IP; hosts that are ejected
+	// are skipped when new connections are assigned
+	private final ConcurrentHashMap<Integer,BackendHealth> health =
+			new ConcurrentHashMap<Integer,BackendHealth>();
+
+	// Recent byte rates of each host, keyed by host IP
+	private final ConcurrentHashMap<Integer,ThroughputHistory> throughput =
+			new ConcurrentHashMap<Integer,ThroughputHistory>();
+
+	// Number of connections assigned to each host, keyed by host IP; the
+	// counters live in the metrics registry, and are cached here so
+	// assigning a connection does not have to look them up
+	private final ConcurrentHashMap<Integer,StripedCounter> selections =
+			new ConcurrentHashMap<Integer,StripedCounter>();
+
 	/**
 	 * Create a load balancer instance.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced
 	 */
-	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC, 
+	public LoadBalancerInstance(int virtualIP, byte[] virtualMAC,
 			List<Integer> hostIPs)
 	{
 		this.virtualIP = virtualIP;
 		this.virtualMAC = virtualMAC;
-		this.hostIPs = hostIPs;
-		this.lastHost = -1;
+		this.hostIPs = new int[hostIPs.size()];
+		for (int i = 0; i < this.hostIPs.length; i++)
+		{ this.hostIPs[i] = hostIPs.get(i); }
+		this.hostWeights = new int[this.hostIPs.length];
+		Arrays.fill(this.hostWeights, 1);
+		this.assignments = new AtomicInteger(0);
+		this.synGuard = new SynGuard(SynGuard.DEFAULT_CLIENT_RATE);
+		this.idleTimeouts = new IdleTimeoutTuner(this.virtualIP);
+		this.resetDynamicWeights();
 	}
-	
+
 	/**
 	 * Create a load balancer instance.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced, each
+	 *        optionally followed by *weight
 	 */
 	public LoadBalancerInstance(String virtualIP, String virtualMAC,
 			String[] hostIPs)
 	{
 		this.virtualIP = IPv4.toIPv4Address(virtualIP);
 		this.virtualMAC = MACAddress.valueOf(virtualMAC).toBytes();
-		this.hostIPs = new ArrayList<Integer>();
-		for (String hostIP : hostIPs)
-		{ this.hostIPs.add(IPv4.toIPv4Address(hostIP)); }
-		this.lastHost = -1;
+		this.hostIPs = new int[hostIPs.length];
+		this.hostWeights = new int[hostIPs.length];
+		for (int i = 0; i < this.hostIPs.length; i++)
+		{
+			String[] hostItems = hostIPs[i].split("\\*");
+			this.hostIPs[i] = IPv4.toIPv4Address(hostItems[0]);
+			this.hostWeights[i] = (hostItems.length > 1 ? 
+					Integer.parseInt(hostItems[1]) : 1);
+		}
+		this.assignments = new AtomicInteger(0);
+		this.synGuard = new SynGuard(SynGuard.DEFAULT_CLIENT_RATE);
+		this.idleTimeouts = new IdleTimeoutTuner(this.virtualIP);
+		this.resetDynamicWeights();
 	}
-	
+
+	/**
+	 * Create a load balancer instance from its configuration.
+	 * @param config virtual IP, virtual MAC and comma-separated host IPs (each
+	 *        optionally followed by *weight), then options of the form 
+	 *        name=value, all separated by spaces
+	 * @return the load balancer instance
+	 * @throws IllegalArgumentException if the configuration is malformed
+	 */
+	public static LoadBalancerInstance fromConfig(String config)
+	{
+		String[] configItems = config.trim().split(" +");
+		if (configItems.length < 3)
+		{ throw new IllegalArgumentException("Bad instance config: " + config); }
+		LoadBalancerInstance instance = new LoadBalancerInstance(
+				configItems[0], configItems[1], configItems[2].split(","));
+
+		// Remaining items are options of the form name=value
+		for (int i = 3; i < configItems.length; i++)
+		{
+			String[] option = configItems[i].split("=");
+			if (option.length == 2 && option[0].equals("affinity"))
+			{ instance.setAffinityTimeout(Short.parseShort(option[1])); }
+			else if (option.length == 2 && option[0].equals("partition"))
+			{ instance.setPartitionBits(Integer.parseInt(option[1])); }
+			else if (option.length == 2 && option[0].equals("port"))
+			{ instance.setServicePort((short)Integer.parseInt(option[1])); }
+			else if (option.length == 2 && option[0].equals("synrate"))
+			{ instance.setSynRate(Integer.parseInt(option[1])); }
+			else if (option.length == 2 && option[0].equals("clientrate"))
+			{ instance.setClientRate(Integer.parseInt(option[1])); }
+			else
+			{
+				throw new IllegalArgumentException(
+						"Bad instance option: " + configItems[i]);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Checks whether another instance for the same virtual IP only differs
+	 * in its hosts and their weights, so this instance can be updated in 
+	 * place.
+	 * @param other the other instance
+	 * @return true if the instance can be updated in place, otherwise false
+	 */
+	public boolean isCompatible(LoadBalancerInstance other)
+	{
+		if (other.virtualIP != this.virtualIP 
+				|| !Arrays.equals(other.virtualMAC, this.virtualMAC)
+				|| other.affinityTimeout != this.affinityTimeout
+				|| other.synRate != this.synRate
+				|| other.servicePort != this.servicePort
+				|| other.getClientRate() != this.getClientRate())
+		{ return false; }
+		if (null == other.partitioning || null == this.partitioning)
+		{ return (other.partitioning == this.partitioning); }
+		return (other.partitioning.getBits() == this.partitioning.getBits());
+	}
+
 	/**
 	 * Get the virtual IP address for this load balancer instance.
 	 */
 	public int getVirtualIP()
 	{ return this.virtualIP; }
-	
+
 	/**
 	 * Get the virtual MAC address for this load balancer instance.
 	 */
 	public byte[] getVirtualMAC()
 	{ return this.virtualMAC; }
-	
+
+	/**
+	 * Get the IPs for the hosts to which requests are balanced. The returned
+	 * array must not be modified.
+	 */
+	public int[] getHostIPs()
+	{ return this.hostIPs; }
+
+	/**
+	 * Get the relative weight of each host, in the same order as the host
+	 * IPs. The returned array must not be modified.
+	 */
+	public int[] getHostWeights()
+	{ return this.hostWeights; }
+
+	/**
+	 * Set the relative weight of each host, in the same order as the host IPs.
+	 * If clients are partitioned between hosts, the returned partitioning 
+	 * must be applied by migrating clients.
+	 * @param hostWeights the new weight for each host
+	 * @return the new partitioning, null if clients are not partitioned
+	 */
+	public synchronized SourcePartitioning setHostWeights(int[] hostWeights)
+	{ return this.setHosts(this.hostIPs, hostWeights); }
+
+	/**
+	 * Replace the hosts to which requests are balanced. Connections already
+	 * assigned to a removed host keep their rules until they go idle, so
+	 * removed hosts drain gracefully. If clients are partitioned between 
+	 * hosts, the returned partitioning must be applied by migrating clients.
+	 * @param hostIPs IPs for hosts to which requests should be balanced
+	 * @param hostWeights the weight for each host
+	 * @return the new partitioning, null if clients are not partitioned
+	 */
+	public synchronized SourcePartitioning setHosts(int[] hostIPs, 
+			int[] hostWeights)
+	{
+		if (0 == hostIPs.length || hostWeights.length != hostIPs.length)
+		{ 
+			throw new IllegalArgumentException(
+					"Expected a weight for each of " + hostIPs.length
+					+ " hosts");
+		}
+		this.hostWeights = hostWeights.clone();
+		this.hostIPs = hostIPs.clone();
+		this.resetDynamicWeights();
+		for (Integer hostIP : this.health.keySet())
+		{
+			if (!this.hasHost(hostIP))
+			{ this.health.remove(hostIP); }
+		}
+		for (Integer hostIP : this.throughput.keySet())
+		{
+			if (!this.hasHost(hostIP))
+			{ this.throughput.remove(hostIP); }
+		}
+		for (Integer hostIP : this.selections.keySet())
+		{
+			if (!this.hasHost(hostIP))
+			{ this.selections.remove(hostIP); }
+		}
+		if (null == this.partitioning)
+		{ return null; }
+		return this.partitioning.rebalance(this.hostIPs, this.hostWeights);
+	}
+
+	/**
+	 * Get the split of the client IPv4 space between hosts.
+	 * @return the partitioning, null if connections are balanced reactively
+	 */
+	public SourcePartitioning getPartitioning()
+	{ return this.partitioning; }
+
+	/**
+	 * Get the partitioning clients are being migrated away from.
+	 * @return the previous partitioning, null if no migration is in progress
+	 */
+	public SourcePartitioning getPreviousPartitioning()
+	{ return this.previousPartitioning; }
+
+	/**
+	 * Split the client IPv4 space between hosts according to their weights.
+	 * Must only be called before the instance is published to packet-in
+	 * threads.
+	 * @param bits number of low-order client IP bits used to pick a bucket
+	 */
+	public void setPartitionBits(int bits)
+	{
+		this.partitioning = new SourcePartitioning(bits, this.hostIPs, 
+				this.hostWeights);
+	}
+
+	/**
+	 * Get the TCP port clients connect to on the virtual IP.
+	 */
+	public short getServicePort()
+	{ return this.servicePort; }
+
+	/**
+	 * Set the TCP port clients connect to on the virtual IP. Must only be
+	 * called before the instance is published to packet-in threads.
+	 */
+	public void setServicePort(short servicePort)
+	{ this.servicePort = servicePort; }
+
+	/**
+	 * Start migrating clients to a new partitioning. Until the migration is
+	 * finished, the previous partitioning is kept so existing connections can
+	 * be sent to their original hosts.
+	 * @param partitioning the new partitioning
+	 */
+	public void beginMigration(SourcePartitioning partitioning)
+	{
+		this.previousPartitioning = this.partitioning;
+		this.partitioning = partitioning;
+	}
+
+	/**
+	 * Finish migrating clients to the current partitioning.
+	 */
+	public void endMigration()
+	{ this.previousPartitioning = null; }
+
+	/**
+	 * Get the number of seconds a client stays pinned to a host.
+	 * @return the affinity timeout, 0 if client affinity is disabled
+	 */
+	public short getAffinityTimeout()
+	{ return this.affinityTimeout; }
+
+	/**
+	 * Set the number of seconds a client stays pinned to a host. Must only
+	 * be called before the instance is published to packet-in threads.
+	 * @param affinityTimeout the affinity timeout, 0 to disable affinity
+	 */
+	public void setAffinityTimeout(short affinityTimeout)
+	{ this.affinityTimeout = affinityTimeout; }
+
 	/**
-	 * Get the IP address for the next host in round-robin order.
+	 * Get the number of packets per second switches may send to the 
+	 * controller for the virtual IP.
+	 * @return the rate, 0 if not metered
+	 */
+	public int getSynRate()
+	{ return this.synRate; }
+
+	/**
+	 * Set the number of packets per second switches may send to the 
+	 * controller for the virtual IP. Must only be called before the instance
+	 * is published to packet-in threads.
+	 * @param synRate the rate, 0 to disable metering
+	 */
+	public void setSynRate(int synRate)
+	{
+		if (synRate < 0)
+		{ throw new IllegalArgumentException("Bad SYN rate: " + synRate); }
+		this.synRate = synRate;
+	}
+
+	/**
+	 * Get the meter used to enforce the SYN rate.
+	 * @return the meter ID, 0 if none has been assigned
+	 */
+	public int getMeterId()
+	{ return this.meterId; }
+
+	/**
+	 * Set the meter used to enforce the SYN rate. Must only be called before
+	 * the instance is published to packet-in threads.
+	 * @param meterId the meter ID
+	 */
+	public void setMeterId(int meterId)
+	{ this.meterId = meterId; }
+
+	/**
+	 * Get the number of SYNs per second each client may send.
+	 * @return the rate, 0 if clients are not limited
+	 */
+	public int getClientRate()
+	{ return this.synGuard.getClientRate(); }
+
+	/**
+	 * Set the number of SYNs per second each client may send. Must only be
+	 * called before the instance is published to packet-in threads.
+	 * @param clientRate the rate, 0 to not limit clients
+	 */
+	public void setClientRate(int clientRate)
+	{
+		if (clientRate < 0)
+		{ 
+			throw new IllegalArgumentException(
+					"Bad client rate: " + clientRate); 
+		}
+		this.synGuard = new SynGuard(clientRate);
+	}
+
+	/**
+	 * Get the per-client SYN limits and packet-in counters.
+	 */
+	public SynGuard getSynGuard()
+	{ return this.synGuard; }
+
+	/**
+	 * Get the tuner for the idle timeout of connection rules.
+	 */
+	public IdleTimeoutTuner getIdleTimeouts()
+	{ return this.idleTimeouts; }
+
+	/**
+	 * Checks whether all connections from a client should be sent to the
+	 * same host.
+	 */
+	public boolean hasClientAffinity()
+	{ return (this.affinityTimeout > 0); }
+
+	/**
+	 * Get the IP address for the next host in weighted round-robin order.
+	 * Safe to call concurrently from multiple packet-in threads.
 	 * @return the IP address for the next host
 	 */
 	public int getNextHostIP()
 	{
-		lastHost++;
-		if (lastHost >= hostIPs.size())
-		{ lastHost = 0; }
-		return hostIPs.get(lastHost);
+		// Mask off the sign bit so the index stays valid after the counter
+		// wraps around, and reduce it before adding the offset of a host
+		// that is tried, so the sum cannot overflow
+		int[] schedule = this.schedule;
+		long now = System.currentTimeMillis();
+		int next = (this.assignments.getAndIncrement() & Integer.MAX_VALUE)
+				% schedule.length;
+		for (int i = 0; i < schedule.length; i++)
+		{
+			int hostIP = schedule[(next + i) % schedule.length];
+			if (this.isHostAvailable(hostIP, now))
+			{ return hostIP; }
+		}
+
+		// Every host is ejected, so keep balancing rather than refusing
+		return schedule[next];
+	}
+
+	/**
+	 * Get the weight of each host after adjusting for its throughput, in the
+	 * same order as the host IPs.
+	 */
+	public int[] getDynamicWeights()
+	{ return this.dynamicWeights; }
+
+	/**
+	 * Get the throughput history for a host, creating it if necessary.
+	 * @param hostIP IP address of the host
+	 * @return the host's throughput history
+	 */
+	public ThroughputHistory getThroughput(int hostIP)
+	{
+		ThroughputHistory throughput = this.throughput.get(hostIP);
+		if (null == throughput)
+		{
+			throughput = new ThroughputHistory();
+			ThroughputHistory existing = 
+					this.throughput.putIfAbsent(hostIP, throughput);
+			if (existing != null)
+			{ throughput = existing; }
+		}
+		return throughput;
+	}
+
+	/**
+	 * Get the counter of connections assigned to a host, creating it if
+	 * necessary.
+	 * @param hostIP IP address of the host
+	 * @return the counter
+	 */
+	public StripedCounter getSelections(int hostIP)
+	{
+		StripedCounter selections = this.selections.get(hostIP);
+		if (null == selections)
+		{
+			selections = Metrics.counter("sdn_lb_selections_total",
+					"Connections assigned to a load balancer backend",
+					"vip", IPv4.fromIPv4Address(this.virtualIP),
+					"backend", IPv4.fromIPv4Address(hostIP));
+			StripedCounter existing = 
+					this.selections.putIfAbsent(hostIP, selections);
+			if (existing != null)
+			{ selections = existing; }
+		}
+		return selections;
+	}
+
+	/**
+	 * Adjust the weight of each host by comparing the share of the traffic
+	 * it should carry, according to its configured weight, with the share it
+	 * actually carried recently. Hosts carrying more than their share get
+	 * fewer new connections and vice versa.
+	 */
+	public synchronized void updateDynamicWeights()
+	{
+		int[] hostIPs = this.hostIPs;
+		int[] hostWeights = this.hostWeights;
+		long[] rates = new long[hostIPs.length];
+		long totalRate = 0;
+		long totalWeight = 0;
+		for (int i = 0; i < hostIPs.length; i++)
+		{
+			rates[i] = this.getThroughput(hostIPs[i]).getAverage(LOAD_SAMPLES);
+			totalRate += rates[i];
+			totalWeight += Math.max(hostWeights[i], 0);
+		}
+		if (totalRate < MIN_ADJUSTED_RATE || 0 == totalWeight)
+		{
+			this.resetDynamicWeights();
+			return;
+		}
+
+		int[] dynamicWeights = new int[hostIPs.length];
+		for (int i = 0; i < hostIPs.length; i++)
+		{
+			if (hostWeights[i] <= 0)
+			{ continue; }
+			double expected = (double)hostWeights[i] / totalWeight;
+			double actual = (double)rates[i] / totalRate;
+			double factor = expected / Math.max(actual, 
+					expected / MAX_ADJUSTMENT);
+			factor = Math.max(factor, 1.0 / MAX_ADJUSTMENT);
+			dynamicWeights[i] = (int)Math.max(1, 
+					Math.round(hostWeights[i] * WEIGHT_RESOLUTION * factor));
+		}
+		this.dynamicWeights = dynamicWeights;
+		this.schedule = buildSchedule(hostIPs, dynamicWeights);
+	}
+
+	/**
+	 * Go back to selecting hosts according to their configured weights.
+	 */
+	private synchronized void resetDynamicWeights()
+	{
+		int[] dynamicWeights = new int[this.hostIPs.length];
+		for (int i = 0; i < dynamicWeights.length; i++)
+		{ 
+			dynamicWeights[i] = 
+					Math.max(this.hostWeights[i], 0) * WEIGHT_RESOLUTION; 
+		}
+		this.dynamicWeights = dynamicWeights;
+		this.schedule = buildSchedule(this.hostIPs, dynamicWeights);
+	}
+
+	/**
+	 * Create a round-robin schedule in which each host appears in proportion
+	 * to its weight, spread out as evenly as possible.
+	 * @param hostIPs IPs for the hosts
+	 * @param weights the weight for each host
+	 * @return host IPs in the order they should be picked
+	 */
+	private static int[] buildSchedule(int[] hostIPs, int[] weights)
+	{
+		long total = 0;
+		for (int weight : weights)
+		{ total += Math.max(weight, 0); }
+		if (0 == total)
+		{ return hostIPs.clone(); }
+
+		// Scale the weights down if the schedule would be too long
+		int[] scaled = new int[weights.length];
+		int length = 0;
+		for (int i = 0; i < weights.length; i++)
+		{
+			scaled[i] = (int)(Math.max(weights[i], 0) 
+					* Math.min(1.0, (double)MAX_SCHEDULE / total));
+			if (weights[i] > 0 && 0 == scaled[i])
+			{ scaled[i] = 1; }
+			length += scaled[i];
+		}
+
+		// Smooth weighted round-robin: each step, every host gains its weight
+		// and the host with the most credit is picked and pays the total
+		int[] schedule = new int[length];
+		int[] credit = new int[scaled.length];
+		for (int step = 0; step < length; step++)
+		{
+			int best = 0;
+			for (int i = 0; i < scaled.length; i++)
+			{
+				credit[i] += scaled[i];
+				if (credit[i] > credit[best])
+				{ best = i; }
+			}
+			credit[best] -= length;
+			schedule[step] = hostIPs[best];
+		}
+		return schedule;
+	}
+
+	/**
+	 * Get the IP address of the host to which a new connection from a client
+	 * should be sent.
+	 * @param clientIP IP address of the client
+	 * @return the IP address of the host
+	 */
+	public int getHostIP(int clientIP)
+	{
+		SourcePartitioning partitioning = this.partitioning;
+		if (partitioning != null)
+		{
+			int hostIP = partitioning.getHostIP(clientIP);
+			if (this.isHostAvailable(hostIP, System.currentTimeMillis()))
+			{ return hostIP; }
+		}
+		return this.getNextHostIP();
 	}
-	
+
+	/**
+	 * Get the health record for a host, creating it if necessary.
+	 * @param hostIP IP address of the host
+	 * @return the host's health record
+	 */
+	public BackendHealth getHealth(int hostIP)
+	{
+		BackendHealth health = this.health.get(hostIP);
+		if (null == health)
+		{
+			health = new BackendHealth(hostIP);
+			BackendHealth existing = this.health.putIfAbsent(hostIP, health);
+			if (existing != null)
+			{ health = existing; }
+		}
+		return health;
+	}
+
+	/**
+	 * Checks whether a host is one of the hosts requests are balanced to.
+	 * @param hostIP IP address of the host
+	 */
+	public boolean hasHost(int hostIP)
+	{
+		for (int ip : this.hostIPs)
+		{
+			if (ip == hostIP)
+			{ return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether new connections may be sent to a host.
+	 * @param hostIP IP address of the host
+	 * @param now current time in milliseconds
+	 */
+	public boolean isHostAvailable(int hostIP, long now)
+	{
+		BackendHealth health = this.health.get(hostIP);
+		return (null == health || health.isAvailable(now));
+	}
+
 	@Override
-	public String toString()
+	public synchronized String toString()
 	{
 		String result = IPv4.fromIPv4Address(this.virtualIP);
 		result += " " + MACAddress.valueOf(this.virtualMAC).toString() + " ";
-		for (Integer hostIP : this.hostIPs)
-		{ result += IPv4.fromIPv4Address(hostIP) + ","; }
+		int[] hostWeights = this.hostWeights;
+		for (int i = 0; i < this.hostIPs.length; i++)
+		{
+			result += IPv4.fromIPv4Address(this.hostIPs[i]);
+			if (hostWeights[i] != 1)
+			{ result += "*" + hostWeights[i]; }
+			result += ",";
+		}
 		if (',' == result.charAt(result.length()-1))
 		{ result = result.substring(0, result.length()-1); }
+		if (this.hasClientAffinity())
+		{ result += " affinity=" + this.affinityTimeout; }
+		if (this.partitioning != null)
+		{ result += " partition=" + this.partitioning.getBits(); }
+		if (this.servicePort != DEFAULT_SERVICE_PORT)
+		{ result += " port=" + (this.servicePort & 0xffff); }
+		if (this.synRate > 0)
+		{ result += " synrate=" + this.synRate; }
+		if (this.getClientRate() != SynGuard.DEFAULT_CLIENT_RATE)
+		{ result += " clientrate=" + this.getClientRate(); }
 		return result;
 	}
 }
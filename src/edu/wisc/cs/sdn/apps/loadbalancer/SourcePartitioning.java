@@ -0,0 +1,242 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SourcePartitioning
+{
+	// Largest number of prefix bits allowed, which bounds the number of rules
+	// installed per virtual IP to 2^MAX_BITS
+	public static final int MAX_BITS = 12;
+
+	// Number of low-order client IP bits used to pick a bucket; clients
+	// usually share a subnet, so the high-order bits would put them all in
+	// the same bucket
+	private final int bits;
+
+	// Host IP that owns each bucket; never modified after construction
+	private final int[] owners;
+
+	/**
+	 * Split the client IPv4 space between hosts in proportion to their
+	 * weights.
+	 * @param bits number of low-order client IP bits used to pick a bucket
+	 * @param hostIPs IPs for hosts to which requests should be balanced
+	 * @param weights relative weight of each host
+	 */
+	public SourcePartitioning(int bits, int[] hostIPs, int[] weights)
+	{
+		this(bits, new int[1 << bits], hostIPs, weights);
+	}
+
+	/**
+	 * Split the client IPv4 space between hosts, keeping as many buckets with
+	 * their previous owners as the new weights allow.
+	 * @param bits number of low-order client IP bits used to pick a bucket
+	 * @param previous owner of each bucket in the previous partitioning
+	 * @param hostIPs IPs for hosts to which requests should be balanced
+	 * @param weights relative weight of each host
+	 */
+	private SourcePartitioning(int bits, int[] previous, int[] hostIPs,
+			int[] weights)
+	{
+		if (bits < 1 || bits > MAX_BITS)
+		{
+			throw new IllegalArgumentException(
+					"Partition bits must be between 1 and " + MAX_BITS);
+		}
+		if (0 == hostIPs.length || hostIPs.length != weights.length)
+		{
+			throw new IllegalArgumentException(
+					"Partitioning needs a weight for each of at least one host");
+		}
+		this.bits = bits;
+		this.owners = new int[1 << bits];
+
+		// Keep each bucket with its previous owner while that owner still
+		// needs buckets
+		int[] quotas = computeQuotas(this.owners.length, weights);
+		boolean[] free = new boolean[this.owners.length];
+		for (int bucket = 0; bucket < this.owners.length; bucket++)
+		{
+			int host = indexOf(hostIPs, previous[bucket]);
+			if (host >= 0 && quotas[host] > 0)
+			{
+				this.owners[bucket] = previous[bucket];
+				quotas[host]--;
+			}
+			else
+			{ free[bucket] = true; }
+		}
+
+		// Hand the remaining buckets to hosts that are still short, in the
+		// order the lowest bit is split first, so each host's buckets can be
+		// merged into as few prefixes as possible
+		int host = 0;
+		for (int i = 0; i < this.owners.length; i++)
+		{
+			int bucket = reverse(i, bits);
+			if (!free[bucket])
+			{ continue; }
+			while (0 == quotas[host])
+			{ host++; }
+			this.owners[bucket] = hostIPs[host];
+			quotas[host]--;
+		}
+	}
+
+	/**
+	 * Create a partitioning for new weights that moves as few clients as
+	 * possible away from the hosts they are currently assigned to.
+	 * @param hostIPs IPs for hosts to which requests should be balanced
+	 * @param weights relative weight of each host
+	 * @return the new partitioning
+	 */
+	public SourcePartitioning rebalance(int[] hostIPs, int[] weights)
+	{ return new SourcePartitioning(this.bits, this.owners, hostIPs, weights); }
+
+	/**
+	 * Get the number of low-order client IP bits used to pick a bucket.
+	 */
+	public int getBits()
+	{ return this.bits; }
+
+	/**
+	 * Get the number of buckets the client IPv4 space is split into.
+	 */
+	public int getBucketCount()
+	{ return this.owners.length; }
+
+	/**
+	 * Get the bucket a client falls into.
+	 * @param clientIP IP address of the client
+	 * @return the bucket index
+	 */
+	public int getBucket(int clientIP)
+	{ return (clientIP & (this.owners.length - 1)); }
+
+	/**
+	 * Get the host to which a client's connections are sent.
+	 * @param clientIP IP address of the client
+	 * @return the IP address of the host
+	 */
+	public int getHostIP(int clientIP)
+	{ return this.owners[this.getBucket(clientIP)]; }
+
+	/**
+	 * Get the prefix that covers a single bucket.
+	 * @param bucket the bucket index
+	 * @return the prefix for the bucket
+	 */
+	public SourcePrefix getBucketPrefix(int bucket)
+	{
+		return new SourcePrefix(bucket, this.bits, this.owners[bucket]);
+	}
+
+	/**
+	 * Get the smallest set of non-overlapping prefixes that covers the
+	 * client IPv4 space. Buckets that differ only in their highest bits and
+	 * have the same owner are merged into a single shorter prefix.
+	 * @return the prefixes for this partitioning
+	 */
+	public List<SourcePrefix> getPrefixes()
+	{
+		List<SourcePrefix> prefixes = new ArrayList<SourcePrefix>();
+		this.addPrefixes(prefixes, 0, 0);
+		return prefixes;
+	}
+
+	/**
+	 * Get the buckets whose owner differs between two partitionings.
+	 * @param other partitioning with the same number of bits
+	 * @return indexes of the buckets that changed owner
+	 */
+	public List<Integer> getChangedBuckets(SourcePartitioning other)
+	{
+		List<Integer> changed = new ArrayList<Integer>();
+		for (int bucket = 0; bucket < this.owners.length; bucket++)
+		{
+			if (this.owners[bucket] != other.owners[bucket])
+			{ changed.add(bucket); }
+		}
+		return changed;
+	}
+
+	/**
+	 * Adds prefixes covering the buckets whose lowest bits match a value.
+	 * @param value value of the lowest bits
+	 * @param length number of lowest bits that must match
+	 */
+	private void addPrefixes(List<SourcePrefix> prefixes, int value,
+			int length)
+	{
+		boolean uniform = true;
+		for (int bucket = value + (1 << length); 
+				bucket < this.owners.length && uniform; 
+				bucket += (1 << length))
+		{ uniform = (this.owners[bucket] == this.owners[value]); }
+
+		if (uniform)
+		{
+			prefixes.add(new SourcePrefix(value, length, this.owners[value]));
+			return;
+		}
+		this.addPrefixes(prefixes, value, length + 1);
+		this.addPrefixes(prefixes, value | (1 << length), length + 1);
+	}
+
+	/**
+	 * Split a number of buckets between hosts in proportion to their
+	 * weights, handing leftover buckets to the largest remainders.
+	 */
+	private static int[] computeQuotas(int buckets, int[] weights)
+	{
+		long total = 0;
+		for (int weight : weights)
+		{ total += Math.max(weight, 0); }
+
+		int[] quotas = new int[weights.length];
+		long[] remainders = new long[weights.length];
+		int assigned = 0;
+		for (int i = 0; i < weights.length; i++)
+		{
+			// Hosts are weighted equally if none has a positive weight
+			long weight = (0 == total) ? 1 : Math.max(weights[i], 0);
+			long share = weight * buckets;
+			long divisor = (0 == total) ? weights.length : total;
+			quotas[i] = (int)(share / divisor);
+			remainders[i] = share % divisor;
+			assigned += quotas[i];
+		}
+
+		while (assigned < buckets)
+		{
+			int largest = 0;
+			for (int i = 1; i < remainders.length; i++)
+			{
+				if (remainders[i] > remainders[largest])
+				{ largest = i; }
+			}
+			quotas[largest]++;
+			remainders[largest] = -1;
+			assigned++;
+		}
+		return quotas;
+	}
+
+	/**
+	 * Reverse the order of the lowest bits of a value.
+	 */
+	private static int reverse(int value, int bits)
+	{ return (Integer.reverse(value) >>> (32 - bits)); }
+
+	private static int indexOf(int[] values, int value)
+	{
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] == value)
+			{ return i; }
+		}
+		return -1;
+	}
+}
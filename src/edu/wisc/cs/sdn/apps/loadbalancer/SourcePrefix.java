@@ -0,0 +1,82 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import net.floodlightcontroller.packet.IPv4;
+
+public class SourcePrefix
+{
+	// Value of the low-order client IPv4 bits covered by this partition
+	private final int prefix;
+
+	// Number of significant low-order bits in the prefix
+	private final int length;
+
+	// Host to which clients in the prefix are sent
+	private final int hostIP;
+
+	/**
+	 * Create a source prefix.
+	 * @param prefix value of the low-order client IPv4 bits; bits beyond the
+	 *        length must be 0
+	 * @param length number of significant low-order bits in the prefix
+	 * @param hostIP IP address of the host clients in the prefix are sent to
+	 */
+	public SourcePrefix(int prefix, int length, int hostIP)
+	{
+		this.prefix = prefix;
+		this.length = length;
+		this.hostIP = hostIP;
+	}
+
+	public int getPrefix()
+	{ return this.prefix; }
+
+	public int getLength()
+	{ return this.length; }
+
+	public int getHostIP()
+	{ return this.hostIP; }
+
+	/**
+	 * Get the network mask for the prefix.
+	 * @return the mask, 0 if the prefix covers every address
+	 */
+	public int getMask()
+	{
+		// Shifting an int by 32 is a no-op in Java, so a full length prefix
+		// must be handled separately
+		if (32 == this.length)
+		{ return 0xffffffff; }
+		return ((1 << this.length) - 1);
+	}
+
+	/**
+	 * Check whether another prefix covers the same clients, regardless of
+	 * the host they are sent to.
+	 * @param other the prefix to compare with
+	 * @return true if both prefixes have the same value and length
+	 */
+	public boolean coversSameClients(SourcePrefix other)
+	{ return (other.prefix == this.prefix && other.length == this.length); }
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof SourcePrefix))
+		{ return false; }
+		SourcePrefix other = (SourcePrefix)obj;
+		return (other.prefix == this.prefix && other.length == this.length
+				&& other.hostIP == this.hostIP);
+	}
+
+	@Override
+	public int hashCode()
+	{ return (31 * (31 * this.prefix + this.length) + this.hostIP); }
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s/%s -> %s", IPv4.fromIPv4Address(this.prefix),
+				IPv4.fromIPv4Address(this.getMask()), 
+				IPv4.fromIPv4Address(this.hostIP));
+	}
+}
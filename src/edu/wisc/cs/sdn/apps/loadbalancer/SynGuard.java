@@ -0,0 +1,186 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SynGuard
+{
+	// Number of SYNs per second a client may send to a virtual IP, unless
+	// configured otherwise
+	public static final int DEFAULT_CLIENT_RATE = 100;
+
+	// Number of clients tracked at once; once reached, clients without a
+	// bucket of their own share a single bucket, so spoofed sources cannot
+	// grow the table without bound
+	public static final int MAX_CLIENTS = 64 * 1024;
+
+	// Number of SYNs per second each client may send; 0 for no limit
+	private final int clientRate;
+
+	// Token bucket for each client, keyed by client IP
+	private final ConcurrentHashMap<Integer,TokenBucket> buckets;
+
+	// Bucket shared by clients that arrive while the table is full
+	private final TokenBucket overflow;
+
+	// Number of packet-ins received and SYNs dropped for the virtual IP
+	private final AtomicLong packetIns;
+	private final AtomicLong drops;
+
+	// Packet-in count and time (in milliseconds) when the rate was last
+	// updated, and the packet-in rate (in packets per second) since then
+	private long lastPacketIns;
+	private long lastRateTime;
+	private volatile long packetInRate;
+
+	/**
+	 * Create a guard against SYN floods for a virtual IP.
+	 * @param clientRate number of SYNs per second each client may send; 0
+	 *        for no limit
+	 */
+	public SynGuard(int clientRate)
+	{
+		this.clientRate = clientRate;
+		this.buckets = new ConcurrentHashMap<Integer,TokenBucket>();
+		this.overflow = new TokenBucket(clientRate);
+		this.packetIns = new AtomicLong(0);
+		this.drops = new AtomicLong(0);
+	}
+
+	public int getClientRate()
+	{ return this.clientRate; }
+
+	/**
+	 * Record a packet-in for the virtual IP.
+	 */
+	public void countPacketIn()
+	{ this.packetIns.incrementAndGet(); }
+
+	/**
+	 * Checks whether a SYN from a client should be handled, or dropped
+	 * because the client exceeded its rate.
+	 * @param clientIP IP address of the client
+	 * @param now current time in milliseconds
+	 * @return true if the SYN should be handled, false if it was dropped
+	 */
+	public boolean admit(int clientIP, long now)
+	{
+		if (0 == this.clientRate)
+		{ return true; }
+
+		TokenBucket bucket = this.buckets.get(clientIP);
+		if (null == bucket)
+		{
+			if (this.buckets.size() >= MAX_CLIENTS)
+			{ this.purge(now); }
+			if (this.buckets.size() >= MAX_CLIENTS)
+			{ bucket = this.overflow; }
+			else
+			{
+				bucket = new TokenBucket(this.clientRate);
+				TokenBucket existing =
+						this.buckets.putIfAbsent(clientIP, bucket);
+				if (existing != null)
+				{ bucket = existing; }
+			}
+		}
+
+		if (bucket.take(now))
+		{ return true; }
+		this.drops.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Forget clients whose buckets have refilled, since they behave the same
+	 * as clients that were never seen.
+	 * @param now current time in milliseconds
+	 */
+	public void purge(long now)
+	{
+		Iterator<TokenBucket> iterator = this.buckets.values().iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().isFull(now))
+			{ iterator.remove(); }
+		}
+	}
+
+	/**
+	 * Compute the packet-in rate since the last time it was updated.
+	 * @param now current time in milliseconds
+	 */
+	public synchronized void updateRate(long now)
+	{
+		long packetIns = this.packetIns.get();
+		if (this.lastRateTime > 0 && now > this.lastRateTime)
+		{
+			this.packetInRate = (packetIns - this.lastPacketIns) * 1000
+					/ (now - this.lastRateTime);
+		}
+		this.lastPacketIns = packetIns;
+		this.lastRateTime = now;
+	}
+
+	public long getPacketIns()
+	{ return this.packetIns.get(); }
+
+	public long getDrops()
+	{ return this.drops.get(); }
+
+	/**
+	 * Get the packet-in rate as of the last update.
+	 * @return the rate in packets per second
+	 */
+	public long getPacketInRate()
+	{ return this.packetInRate; }
+
+	/**
+	 * Get the number of clients currently tracked.
+	 */
+	public int getClientCount()
+	{ return this.buckets.size(); }
+
+	private static class TokenBucket
+	{
+		// Tokens added per second; the bucket holds at most two seconds worth
+		private final int rate;
+		private final double capacity;
+
+		private double tokens;
+		private long lastRefill;
+
+		public TokenBucket(int rate)
+		{
+			this.rate = rate;
+			this.capacity = 2.0 * rate;
+			this.tokens = this.capacity;
+		}
+
+		private void refill(long now)
+		{
+			if (now > this.lastRefill)
+			{
+				this.tokens = Math.min(this.capacity,
+						this.tokens + (now - this.lastRefill) * this.rate / 1000.0);
+			}
+			this.lastRefill = now;
+		}
+
+		public synchronized boolean take(long now)
+		{
+			this.refill(now);
+			if (this.tokens < 1)
+			{ return false; }
+			this.tokens -= 1;
+			return true;
+		}
+
+		public synchronized boolean isFull(long now)
+		{
+			this.refill(now);
+			return (this.tokens >= this.capacity);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+public class ThroughputHistory
+{
+	// Number of samples kept; older samples are overwritten
+	public static final int CAPACITY = 60;
+
+	// Byte rates (in bytes per second), in a ring starting at next - count
+	private final long[] rates;
+
+	// Index at which the next sample is stored
+	private int next;
+
+	// Number of samples stored so far, up to the capacity
+	private int count;
+
+	// Time (in milliseconds) at which the latest sample was taken
+	private long latestTime;
+
+	/**
+	 * Create an empty history of the byte rates of a host.
+	 */
+	public ThroughputHistory()
+	{ this.rates = new long[CAPACITY]; }
+
+	/**
+	 * Record the byte rate of a host, overwriting the oldest sample once the
+	 * history is full.
+	 * @param time time (in milliseconds) at which the sample was taken
+	 * @param rate the byte rate in bytes per second
+	 */
+	public synchronized void add(long time, long rate)
+	{
+		this.rates[this.next] = rate;
+		this.next = (this.next + 1) % CAPACITY;
+		if (this.count < CAPACITY)
+		{ this.count++; }
+		this.latestTime = time;
+	}
+
+	/**
+	 * Get the average byte rate over the latest samples.
+	 * @param samples the number of samples to average
+	 * @return the average rate in bytes per second, 0 if there are no samples
+	 */
+	public synchronized long getAverage(int samples)
+	{
+		samples = Math.min(samples, this.count);
+		if (0 == samples)
+		{ return 0; }
+		long total = 0;
+		for (int i = 1; i <= samples; i++)
+		{ total += this.rates[(this.next - i + CAPACITY) % CAPACITY]; }
+		return total / samples;
+	}
+
+	/**
+	 * Get every sample in the history.
+	 * @return the byte rates in bytes per second, oldest first
+	 */
+	public synchronized long[] getRates()
+	{
+		long[] result = new long[this.count];
+		for (int i = 0; i < this.count; i++)
+		{
+			result[i] = this.rates[
+					(this.next - this.count + i + CAPACITY) % CAPACITY];
+		}
+		return result;
+	}
+
+	/**
+	 * Get the time at which the latest sample was taken.
+	 * @return time in milliseconds, 0 if there are no samples
+	 */
+	public synchronized long getLatestTime()
+	{ return this.latestTime; }
+}
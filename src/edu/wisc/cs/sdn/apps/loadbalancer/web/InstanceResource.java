@@ -0,0 +1,153 @@
+package edu.wisc.cs.sdn.apps.loadbalancer.web;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.restlet.data.Status;
+import org.restlet.resource.Delete;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import edu.wisc.cs.sdn.apps.loadbalancer.BackendHealth;
+import edu.wisc.cs.sdn.apps.loadbalancer.ILoadBalancerService;
+import edu.wisc.cs.sdn.apps.loadbalancer.IdleTimeoutTuner;
+import edu.wisc.cs.sdn.apps.loadbalancer.LoadBalancerInstance;
+import edu.wisc.cs.sdn.apps.loadbalancer.SynGuard;
+import edu.wisc.cs.sdn.apps.loadbalancer.ThroughputHistory;
+import net.floodlightcontroller.packet.IPv4;
+
+public class InstanceResource extends ServerResource
+{
+	/**
+	 * Describe a single load balancer instance.
+	 * @return the instance and the connections assigned to its hosts
+	 */
+	@Get("json")
+	public Map<String,Object> retrieve()
+	{
+		ILoadBalancerService loadBalancer = this.getLoadBalancer();
+		LoadBalancerInstance instance = this.getInstance(loadBalancer);
+		if (null == instance)
+		{ return null; }
+		return describe(loadBalancer, instance);
+	}
+
+	/**
+	 * Remove a load balancer instance; its hosts keep serving connections
+	 * that are already assigned to them until the connections go idle.
+	 * @return the instance that was removed
+	 */
+	@Delete
+	public Map<String,Object> remove()
+	{
+		ILoadBalancerService loadBalancer = this.getLoadBalancer();
+		LoadBalancerInstance instance = this.getInstance(loadBalancer);
+		if (null == instance)
+		{ return null; }
+		loadBalancer.removeInstance(instance.getVirtualIP());
+		return describe(loadBalancer, instance);
+	}
+
+	private ILoadBalancerService getLoadBalancer()
+	{
+		return (ILoadBalancerService)this.getContext().getAttributes().get(
+				ILoadBalancerService.class.getCanonicalName());
+	}
+
+	/**
+	 * Get the instance named in the request.
+	 * @return the instance, null if it does not exist
+	 */
+	private LoadBalancerInstance getInstance(ILoadBalancerService loadBalancer)
+	{
+		int virtualIP;
+		try
+		{ 
+			virtualIP = IPv4.toIPv4Address(
+					(String)this.getRequestAttributes().get("vip")); 
+		}
+		catch (IllegalArgumentException e)
+		{
+			this.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return null;
+		}
+		for (LoadBalancerInstance instance : loadBalancer.getInstances())
+		{
+			if (instance.getVirtualIP() == virtualIP)
+			{ return instance; }
+		}
+		this.setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+		return null;
+	}
+
+	/**
+	 * Describe a load balancer instance.
+	 * @param loadBalancer the load balancer the instance belongs to
+	 * @param instance the instance
+	 * @return the instance's configuration, connection counts, host health,
+	 *         host throughput, packet-in counters and connection rule idle
+	 *         timeout
+	 */
+	static Map<String,Object> describe(ILoadBalancerService loadBalancer,
+			LoadBalancerInstance instance)
+	{
+		Map<String,Integer> connections = new HashMap<String,Integer>();
+		for (Map.Entry<Integer,Integer> entry 
+				: loadBalancer.getConnectionCounts(
+						instance.getVirtualIP()).entrySet())
+		{ 
+			connections.put(IPv4.fromIPv4Address(entry.getKey()), 
+					entry.getValue()); 
+		}
+		
+		long now = System.currentTimeMillis();
+		Map<String,Object> health = new HashMap<String,Object>();
+		Map<String,Object> throughput = new HashMap<String,Object>();
+		int[] hostIPs = instance.getHostIPs();
+		int[] dynamicWeights = instance.getDynamicWeights();
+		for (int i = 0; i < hostIPs.length; i++)
+		{
+			int hostIP = hostIPs[i];
+			ThroughputHistory history = instance.getThroughput(hostIP);
+			Map<String,Object> hostThroughput = new HashMap<String,Object>();
+			if (i < dynamicWeights.length)
+			{ hostThroughput.put("weight", dynamicWeights[i]); }
+			hostThroughput.put("bytesPerSecond", history.getRates());
+			hostThroughput.put("latestTime", history.getLatestTime());
+			throughput.put(IPv4.fromIPv4Address(hostIP), hostThroughput);
+			
+			BackendHealth hostHealth = instance.getHealth(hostIP);
+			Map<String,Object> hostResult = new HashMap<String,Object>();
+			hostResult.put("available", hostHealth.isAvailable(now));
+			hostResult.put("failures", hostHealth.getTotalFailures());
+			hostResult.put("ejections", hostHealth.getTotalEjections());
+			health.put(IPv4.fromIPv4Address(hostIP), hostResult);
+		}
+		
+		SynGuard synGuard = instance.getSynGuard();
+		Map<String,Object> packetIns = new HashMap<String,Object>();
+		packetIns.put("total", synGuard.getPacketIns());
+		packetIns.put("perSecond", synGuard.getPacketInRate());
+		packetIns.put("dropped", synGuard.getDrops());
+		packetIns.put("clients", synGuard.getClientCount());
+		
+		IdleTimeoutTuner idleTimeouts = instance.getIdleTimeouts();
+		Map<String,Object> idleTimeout = new HashMap<String,Object>();
+		idleTimeout.put("seconds", idleTimeouts.getTimeout());
+		idleTimeout.put("rules", idleTimeouts.getOccupancy());
+		idleTimeout.put("repunts", idleTimeouts.getRepunts());
+		idleTimeout.put("repuntsPerSecond", idleTimeouts.getRepuntRate());
+		idleTimeout.put("lifetimes", idleTimeouts.getLifetimes());
+		idleTimeout.put("pauses", idleTimeouts.getPauses());
+		
+		Map<String,Object> result = new HashMap<String,Object>();
+		result.put("vip", IPv4.fromIPv4Address(instance.getVirtualIP()));
+		result.put("config", instance.toString());
+		result.put("connections", connections);
+		result.put("health", health);
+		result.put("throughput", throughput);
+		result.put("packetIns", packetIns);
+		result.put("idleTimeout", idleTimeout);
+		return result;
+	}
+}
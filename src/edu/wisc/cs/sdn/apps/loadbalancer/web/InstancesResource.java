@@ -0,0 +1,62 @@
+package edu.wisc.cs.sdn.apps.loadbalancer.web;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+import edu.wisc.cs.sdn.apps.loadbalancer.ILoadBalancerService;
+import edu.wisc.cs.sdn.apps.loadbalancer.LoadBalancerInstance;
+
+public class InstancesResource extends ServerResource
+{
+	/**
+	 * List every load balancer instance.
+	 * @return the instances and the connections assigned to their hosts
+	 */
+	@Get("json")
+	public List<Map<String,Object>> retrieve()
+	{
+		ILoadBalancerService loadBalancer = 
+				(ILoadBalancerService)this.getContext().getAttributes().get(
+						ILoadBalancerService.class.getCanonicalName());
+		List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+		for (LoadBalancerInstance instance : loadBalancer.getInstances())
+		{ result.add(InstanceResource.describe(loadBalancer, instance)); }
+		return result;
+	}
+
+	/**
+	 * Add a load balancer instance, or update the instance with the same
+	 * virtual IP.
+	 * @param config the instance, in the same format as the instances in the
+	 *        module's configuration
+	 * @return the instance that was added, null if the existing instance
+	 *         cannot be updated while its clients are migrating
+	 */
+	@Post
+	public Map<String,Object> store(String config)
+	{
+		ILoadBalancerService loadBalancer = 
+				(ILoadBalancerService)this.getContext().getAttributes().get(
+						ILoadBalancerService.class.getCanonicalName());
+		LoadBalancerInstance instance;
+		try
+		{ instance = LoadBalancerInstance.fromConfig(config); }
+		catch (IllegalArgumentException e)
+		{
+			this.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return null;
+		}
+		if (!loadBalancer.addInstance(instance))
+		{
+			this.setStatus(Status.CLIENT_ERROR_CONFLICT);
+			return null;
+		}
+		return InstanceResource.describe(loadBalancer, instance);
+	}
+}
@@ -0,0 +1,29 @@
+package edu.wisc.cs.sdn.apps.loadbalancer.web;
+
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.routing.Router;
+
+import net.floodlightcontroller.restserver.RestletRoutable;
+
+public class LoadBalancerWebRoutable implements RestletRoutable
+{
+	/**
+	 * Create the routes for the load balancer's REST API.
+	 */
+	@Override
+	public Restlet getRestlet(Context context)
+	{
+		Router router = new Router(context);
+		router.attach("/instances/json", InstancesResource.class);
+		router.attach("/instances/{vip}/json", InstanceResource.class);
+		return router;
+	}
+
+	/**
+	 * Get the base path of the load balancer's REST API.
+	 */
+	@Override
+	public String basePath()
+	{ return "/wm/loadbalancer"; }
+}
@@ -0,0 +1,67 @@
+package edu.wisc.cs.sdn.apps.util;
+
+public class ArpReplyTemplate
+{
+	// Offsets of the fields that differ between replies
+	private static final int ETH_DST = 0;
+	private static final int ETH_SRC = 6;
+	private static final int ARP_SHA = 22;
+	private static final int ARP_SPA = 28;
+	private static final int ARP_THA = 32;
+	private static final int ARP_TPA = 38;
+
+	// An Ethernet frame carrying an ARP reply for IPv4 over Ethernet, with
+	// every address left zero
+	private static final byte[] TEMPLATE = new byte[] {
+		0, 0, 0, 0, 0, 0,          // Ethernet destination
+		0, 0, 0, 0, 0, 0,          // Ethernet source
+		0x08, 0x06,                // Ethertype ARP
+		0x00, 0x01,                // Hardware type Ethernet
+		0x08, 0x00,                // Protocol type IPv4
+		6, 4,                      // Hardware and protocol address lengths
+		0x00, 0x02,                // Opcode reply
+		0, 0, 0, 0, 0, 0,          // Sender hardware address
+		0, 0, 0, 0,                // Sender protocol address
+		0, 0, 0, 0, 0, 0,          // Target hardware address
+		0, 0, 0, 0                 // Target protocol address
+	};
+
+	/**
+	 * Create the packet data for an ARP reply by copying a template and
+	 * patching in the addresses, without building a packet object.
+	 * @param senderMAC MAC address being announced
+	 * @param senderIP IP address being announced
+	 * @param targetMAC MAC address of the host that sent the request
+	 * @param targetIP IP address of the host that sent the request
+	 * @return the Ethernet frame for the reply
+	 */
+	public static byte[] build(long senderMAC, int senderIP, long targetMAC,
+			int targetIP)
+	{
+		byte[] data = TEMPLATE.clone();
+		putMAC(data, ETH_DST, targetMAC);
+		putMAC(data, ETH_SRC, senderMAC);
+		putMAC(data, ARP_SHA, senderMAC);
+		putInt(data, ARP_SPA, senderIP);
+		putMAC(data, ARP_THA, targetMAC);
+		putInt(data, ARP_TPA, targetIP);
+		return data;
+	}
+
+	private static void putMAC(byte[] data, int offset, long mac)
+	{
+		for (int i = 5; i >= 0; i--)
+		{
+			data[offset + i] = (byte)mac;
+			mac >>>= 8;
+		}
+	}
+
+	private static void putInt(byte[] data, int offset, int value)
+	{
+		data[offset] = (byte)(value >>> 24);
+		data[offset + 1] = (byte)(value >>> 16);
+		data[offset + 2] = (byte)(value >>> 8);
+		data[offset + 3] = (byte)value;
+	}
+}
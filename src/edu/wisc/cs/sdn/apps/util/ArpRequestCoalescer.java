@@ -0,0 +1,51 @@
+package edu.wisc.cs.sdn.apps.util;
+
+public class ArpRequestCoalescer
+{
+	// Number of milliseconds during which repeated requests are coalesced
+	public static final long WINDOW = 1000;
+
+	// Number of requests remembered; a request whose slot was taken over by
+	// another request is simply answered again
+	private static final int SLOTS = 1024;
+
+	// Requesting host, requested IP and time (in milliseconds) of the last
+	// reply for each slot
+	private final long[] senderMACs;
+	private final int[] targetIPs;
+	private final long[] replyTimes;
+
+	/**
+	 * Create a coalescer that remembers no requests.
+	 */
+	public ArpRequestCoalescer()
+	{
+		this.senderMACs = new long[SLOTS];
+		this.targetIPs = new int[SLOTS];
+		this.replyTimes = new long[SLOTS];
+	}
+
+	/**
+	 * Checks whether a request should be answered, or whether the same host
+	 * already got a reply for the same IP within the window.
+	 * @param senderMAC MAC address of the host that sent the request
+	 * @param targetIP IP address being requested
+	 * @param now current time in milliseconds
+	 * @return true if a reply should be sent, otherwise false
+	 */
+	public synchronized boolean shouldReply(long senderMAC, int targetIP,
+			long now)
+	{
+		long h = (senderMAC ^ (senderMAC >>> 32) ^ targetIP)
+				* 0x9e3779b97f4a7c15L;
+		int slot = (int)(h >>> 54) & (SLOTS - 1);
+		if (this.senderMACs[slot] == senderMAC
+				&& this.targetIPs[slot] == targetIP
+				&& now - this.replyTimes[slot] < WINDOW)
+		{ return false; }
+		this.senderMACs[slot] = senderMAC;
+		this.targetIPs[slot] = targetIP;
+		this.replyTimes[slot] = now;
+		return true;
+	}
+}
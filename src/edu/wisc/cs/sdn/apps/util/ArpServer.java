@@ -2,7 +2,7 @@ package edu.wisc.cs.sdn.apps.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.openflow.protocol.OFMessage;
@@ -19,11 +19,9 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
-import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
 import net.floodlightcontroller.packet.ARP;
-import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
@@ -39,6 +37,15 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
     
     // Interface to device manager service
     private IDeviceService deviceProv;
+    
+    // Interface to the packet-in dispatcher
+    private IPacketInService packetInProv;
+    
+    // Cache of host MAC addresses, shared with other modules
+    private HostMACCache macCache;
+    
+    // Recent replies, so repeated requests are only answered once
+    private ArpRequestCoalescer coalescer;
 
 	@Override
 	public void init(FloodlightModuleContext context)
@@ -48,6 +55,9 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
 		this.deviceProv = context.getServiceImpl(IDeviceService.class);
+		this.packetInProv = context.getServiceImpl(IPacketInService.class);
+		this.macCache = new HostMACCache(this.deviceProv);
+		this.coalescer = new ArpRequestCoalescer();
 	}
 
 	/**
@@ -58,7 +68,8 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 			throws FloodlightModuleException 
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
-		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.packetInProv.addListener(this);
+		this.deviceProv.addListener(this.macCache);
 	}
 
 	/**
@@ -66,7 +77,12 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IHostMACService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -74,7 +90,13 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> impls =
+				new HashMap<Class<? extends IFloodlightService>, 
+						IFloodlightService>();
+		impls.put(IHostMACService.class, this.macCache);
+		return impls;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -87,6 +109,7 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	            new ArrayList<Class<? extends IFloodlightService>>();
         floodlightService.add(IFloodlightProviderService.class);
         floodlightService.add(IDeviceService.class);
+        floodlightService.add(IPacketInService.class);
         return floodlightService;
 	}
 
@@ -128,46 +151,54 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		if (msg.getType() != OFType.PACKET_IN)
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
+		long start = FlightRecorder.start();
 		
-		// We only care about ARP packets
-		Ethernet eth = new Ethernet();
-		eth.deserialize(pktIn.getPacketData(), 0, pktIn.getPacketData().length);
-		if (eth.getEtherType() != Ethernet.TYPE_ARP)
-		{ return Command.CONTINUE; }
-		ARP arp = (ARP)eth.getPayload();
-		
-		// We only care about ARP requests for IPv4 addresses
-		if (arp.getOpCode() != ARP.OP_REQUEST 
-				|| arp.getProtocolType() != ARP.PROTO_TYPE_IP)
+		// We only care about ARP requests for IPv4 addresses; the headers are
+		// checked in place, so other packets are never deserialized
+		PacketHeaders headers = PacketHeaders.get(cntx, pktIn);
+		if (!headers.isARP() || headers.getARPOpCode() != ARP.OP_REQUEST 
+				|| headers.getARPProtocolType() != ARP.PROTO_TYPE_IP)
 		{ return Command.CONTINUE; }
 				
 		// See if we known about the device whose MAC address is being requested
-		int targetIP = IPv4.toIPv4Address(arp.getTargetProtocolAddress());
-		log.info(String.format("Received ARP request for %s from %s",
-				IPv4.fromIPv4Address(targetIP),
-				MACAddress.valueOf(arp.getSenderHardwareAddress()).toString()));
-		Iterator<? extends IDevice> deviceIterator = 
-				this.deviceProv.queryDevices(null, null, targetIP, null, null);
-		if (!deviceIterator.hasNext())
-		{ return Command.CONTINUE; }
+		int targetIP = headers.getARPTargetIP();
+		long senderMAC = headers.getARPSenderMAC();
+		if (log.isDebugEnabled())
+		{
+			log.debug(String.format("Received ARP request for %s from %s",
+					IPv4.fromIPv4Address(targetIP),
+					MACAddress.valueOf(senderMAC).toString()));
+		}
+		long mac = this.macCache.getMACAddress(targetIP);
+		if (IpMacTable.UNKNOWN_MAC == mac)
+		{
+			return FlightRecorder.packetIn(start, MODULE_NAME, "arp",
+					"unknownHost", Command.CONTINUE);
+		}
+		
+		// A host that repeats its request before the reply arrives gets a
+		// single reply
+		if (!this.coalescer.shouldReply(senderMAC, targetIP, 
+				System.currentTimeMillis()))
+		{
+			return FlightRecorder.packetIn(start, MODULE_NAME, "arp",
+					"coalesced", Command.STOP);
+		}
 		
-		// Create ARP reply
-		IDevice device = deviceIterator.next();
-		byte[] deviceMac = MACAddress.valueOf(device.getMACAddress()).toBytes();
-		arp.setOpCode(ARP.OP_REPLY);
-		arp.setTargetHardwareAddress(arp.getSenderHardwareAddress());
-		arp.setTargetProtocolAddress(arp.getSenderProtocolAddress());
-		arp.setSenderHardwareAddress(deviceMac);
-		arp.setSenderProtocolAddress(IPv4.toIPv4AddressBytes(targetIP));
-		eth.setDestinationMACAddress(eth.getSourceMACAddress());
-		eth.setSourceMACAddress(deviceMac);
+		// Create ARP reply by patching the addresses into a template
+		byte[] reply = ArpReplyTemplate.build(mac, targetIP, senderMAC,
+				headers.getARPSenderIP());
 		
 		// Send the ARP reply
-		log.info(String.format("Sending ARP reply %s->%s",
-				IPv4.fromIPv4Address(targetIP),
-				MACAddress.valueOf(deviceMac).toString()));
-		SwitchCommands.sendPacket(sw, (short)pktIn.getInPort(), eth);
+		if (log.isDebugEnabled())
+		{
+			log.debug(String.format("Sending ARP reply %s->%s",
+					IPv4.fromIPv4Address(targetIP),
+					MACAddress.valueOf(mac).toString()));
+		}
+		SwitchCommands.sendPacket(sw, (short)pktIn.getInPort(), reply);
 	
-		return Command.STOP;
+		return FlightRecorder.packetIn(start, MODULE_NAME, "arp", "reply",
+				Command.STOP);
 	}
 }
@@ -0,0 +1,312 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.sdnplatform.sync.IStoreClient;
+import org.sdnplatform.sync.IStoreListener;
+import org.sdnplatform.sync.ISyncService;
+import org.sdnplatform.sync.ISyncService.Scope;
+import org.sdnplatform.sync.error.SyncException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Splits the switches between the controllers of a cluster. Every switch
+ * connects to every controller, and each switch is owned by one running
+ * controller, chosen by rendezvous hashing of its DPID, so when a controller
+ * joins or leaves only the switches it owns move. Controllers find out which
+ * others are running from heartbeats in a replicated store; a controller that
+ * misses heartbeats for NODE_TIMEOUT is treated as gone, and its switches
+ * move to the others.
+ */
+public class ClusterManager implements IFloodlightModule, IClusterService,
+		IStoreListener<String>
+{
+	public static final String MODULE_NAME =
+			ClusterManager.class.getSimpleName();
+
+	// Name of the store the controllers write heartbeats to
+	private static final String MEMBERS_STORE =
+			ClusterManager.class.getCanonicalName() + ".members";
+
+	// Number of milliseconds between heartbeats
+	private static final long HEARTBEAT_INTERVAL = 1000;
+
+	// Number of milliseconds without a heartbeat after which a controller is
+	// treated as gone; also how long a starting controller waits to hear from
+	// the others before it takes any switches
+	private static final long NODE_TIMEOUT = 3000;
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+	// Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to the sync service, which replicates stores
+    private ISyncService syncProv;
+
+    // Interface to thread pool service, used to send heartbeats
+    private IThreadPoolService threadPoolProv;
+
+    // Store the controllers write heartbeats to
+    private IStoreClient<String,String> members;
+
+    // Stores handed out to other modules, keyed by name
+    private Map<String,IStoreClient<String,String>> stores;
+
+    // Modules to tell when switches change owner
+    private List<IClusterListener> listeners;
+
+    // Time (in milliseconds) each other controller's heartbeat was last
+    // received, keyed by node ID
+    private Map<Short,Long> lastHeard;
+
+    // Controllers currently running, in order of node ID; empty until this
+    // controller has waited NODE_TIMEOUT to hear from the others
+    private volatile List<Short> liveNodes;
+
+    // Number of heartbeats this controller has sent
+    private long heartbeats;
+
+    // Time (in milliseconds) this controller started
+    private long startTime;
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.syncProv = context.getServiceImpl(ISyncService.class);
+		this.threadPoolProv = context.getServiceImpl(IThreadPoolService.class);
+		this.stores = new HashMap<String,IStoreClient<String,String>>();
+		this.listeners = new CopyOnWriteArrayList<IClusterListener>();
+		this.lastHeard = new ConcurrentHashMap<Short,Long>();
+		this.liveNodes = Collections.emptyList();
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s as node %d...", MODULE_NAME,
+				this.getLocalNodeId()));
+		try
+		{ this.members = this.getStore(MEMBERS_STORE); }
+		catch (SyncException e)
+		{ throw new FloodlightModuleException(e.getMessage()); }
+		this.members.addStoreListener(this);
+		this.startTime = System.currentTimeMillis();
+		this.threadPoolProv.getScheduledExecutor().scheduleWithFixedDelay(
+				new Runnable()
+				{
+					@Override
+					public void run()
+					{ heartbeat(); }
+				}, 0, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public short getLocalNodeId()
+	{ return this.syncProv.getLocalNodeId(); }
+
+	@Override
+	public Collection<Short> getLiveNodes()
+	{ return this.liveNodes; }
+
+	@Override
+	public boolean isOwner(long switchId)
+	{
+		Short owner = getOwner(switchId, this.liveNodes);
+		return (owner != null && owner == this.getLocalNodeId());
+	}
+
+	@Override
+	public void addListener(IClusterListener listener)
+	{ this.listeners.add(listener); }
+
+	@Override
+	public synchronized IStoreClient<String,String> getStore(String storeName)
+			throws SyncException
+	{
+		IStoreClient<String,String> store = this.stores.get(storeName);
+		if (null == store)
+		{
+			this.syncProv.registerStore(storeName, Scope.GLOBAL);
+			store = this.syncProv.getStoreClient(storeName, String.class,
+					String.class);
+			this.stores.put(storeName, store);
+		}
+		return store;
+	}
+
+	/**
+	 * Pick the controller that owns a switch: the one whose hash with the
+	 * switch's DPID is highest.
+	 * @param switchId DPID for the switch
+	 * @param nodes controllers currently running
+	 * @return node ID of the owner, or null if no controller is running
+	 */
+	private static Short getOwner(long switchId, List<Short> nodes)
+	{
+		Short owner = null;
+		long ownerWeight = 0;
+		for (Short node : nodes)
+		{
+			long weight = weight(switchId, node);
+			if (null == owner || weight > ownerWeight)
+			{
+				owner = node;
+				ownerWeight = weight;
+			}
+		}
+		return owner;
+	}
+
+	private static long weight(long switchId, short node)
+	{
+		long hash = switchId * 0x9e3779b97f4a7c15L + node;
+		hash ^= (hash >>> 33);
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= (hash >>> 33);
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= (hash >>> 33);
+		return hash;
+	}
+
+	/**
+	 * Records when a heartbeat from another controller arrives.
+	 */
+	@Override
+	public void keysModified(Iterator<String> keys, UpdateType type)
+	{
+		if (type != UpdateType.REMOTE)
+		{ return; }
+		long now = System.currentTimeMillis();
+		while (keys.hasNext())
+		{
+			String key = keys.next();
+			try
+			{ this.lastHeard.put(Short.parseShort(key), now); }
+			catch (NumberFormatException e)
+			{ log.warn("Ignoring heartbeat from unknown node " + key); }
+		}
+	}
+
+	/**
+	 * Sends a heartbeat, and works out which controllers are running. If
+	 * that changed, tells listeners which switches this controller gained
+	 * and lost.
+	 */
+	private void heartbeat()
+	{
+		short localNode = this.getLocalNodeId();
+		try
+		{
+			this.heartbeats++;
+			this.members.put(Short.toString(localNode),
+					Long.toString(this.heartbeats));
+		}
+		catch (SyncException e)
+		{ log.warn("Failed to send heartbeat: " + e.getMessage()); }
+
+		long now = System.currentTimeMillis();
+		if (now - this.startTime < NODE_TIMEOUT)
+		{ return; }
+
+		List<Short> nodes = new ArrayList<Short>();
+		nodes.add(localNode);
+		for (Map.Entry<Short,Long> entry : this.lastHeard.entrySet())
+		{
+			if (entry.getKey() != localNode
+					&& now - entry.getValue() <= NODE_TIMEOUT)
+			{ nodes.add(entry.getKey()); }
+		}
+		Collections.sort(nodes);
+		List<Short> oldNodes = this.liveNodes;
+		if (nodes.equals(oldNodes))
+		{ return; }
+		this.liveNodes = Collections.unmodifiableList(nodes);
+
+		List<Long> gained = new ArrayList<Long>();
+		List<Long> lost = new ArrayList<Long>();
+		for (long switchId : this.floodlightProv.getAllSwitchMap().keySet())
+		{
+			Short oldOwner = getOwner(switchId, oldNodes);
+			boolean owned = (oldOwner != null && oldOwner == localNode);
+			if (owned != this.isOwner(switchId))
+			{ (owned ? lost : gained).add(switchId); }
+		}
+		log.info(String.format("Controllers running: %s; gained %d switches, "
+				+ "lost %d", nodes, gained.size(), lost.size()));
+		if (gained.isEmpty() && lost.isEmpty())
+		{ return; }
+		for (IClusterListener listener : this.listeners)
+		{ listener.ownershipChanged(gained, lost); }
+	}
+
+    /**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IClusterService.class);
+		return services;
+	}
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> impls =
+				new HashMap<Class<? extends IFloodlightService>,
+						IFloodlightService>();
+		impls.put(IClusterService.class, this);
+		return impls;
+	}
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> floodlightService =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+        floodlightService.add(IFloodlightProviderService.class);
+        floodlightService.add(ISyncService.class);
+        floodlightService.add(IThreadPoolService.class);
+        return floodlightService;
+	}
+}
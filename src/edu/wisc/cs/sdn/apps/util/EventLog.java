@@ -0,0 +1,364 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary log of the topology and host events the apps react to, so a run
+ * can be replayed offline. The log starts with a magic number and version,
+ * followed by one record per event: a type byte, the time since the
+ * previous event in microseconds, and the event's fields. Numbers other than
+ * IP addresses are written as variable-length integers, so most records are
+ * only a few bytes.
+ */
+public class EventLog
+{
+	// Identifies the log and the version of its format
+	public static final int MAGIC = 0x53444e45;
+	public static final byte VERSION = 1;
+
+	// Types of events
+	public static final byte DEVICE_ADDED = 1;
+	public static final byte DEVICE_REMOVED = 2;
+	public static final byte DEVICE_MOVED = 3;
+	public static final byte DEVICE_IPV4_CHANGED = 4;
+	public static final byte SWITCH_ADDED = 5;
+	public static final byte SWITCH_REMOVED = 6;
+	public static final byte LINK_UPDATES = 7;
+
+	// Written for a link update without a link type
+	private static final int NO_LINK_TYPE = 0xff;
+
+	/**
+	 * One change to a link's state, in a LINK_UPDATES event.
+	 */
+	public static class LinkUpdate
+	{
+		private final long src;
+		private final int srcPort;
+		private final long dst;
+		private final int dstPort;
+		private final int type;
+		private final int operation;
+
+		/**
+		 * @param type ordinal of the link's type, or -1 if it has none
+		 * @param operation ordinal of the update's operation
+		 */
+		public LinkUpdate(long src, int srcPort, long dst, int dstPort,
+				int type, int operation)
+		{
+			this.src = src;
+			this.srcPort = srcPort;
+			this.dst = dst;
+			this.dstPort = dstPort;
+			this.type = type;
+			this.operation = operation;
+		}
+
+		public long getSrc()
+		{ return this.src; }
+
+		public int getSrcPort()
+		{ return this.srcPort; }
+
+		public long getDst()
+		{ return this.dst; }
+
+		public int getDstPort()
+		{ return this.dstPort; }
+
+		public int getType()
+		{ return this.type; }
+
+		public int getOperation()
+		{ return this.operation; }
+	}
+
+	/**
+	 * An event read from a log. Only the fields for the event's type are set:
+	 * the host's MAC address, IP address and attachment point for device
+	 * events, the switch and its ports for switch events, and the updates for
+	 * link events.
+	 */
+	public static class Event
+	{
+		private final byte type;
+		private final long time;
+		private long mac;
+		private int ip;
+		private long switchId;
+		private int port;
+		private List<Integer> ports;
+		private List<LinkUpdate> links;
+
+		private Event(byte type, long time)
+		{
+			this.type = type;
+			this.time = time;
+			this.ports = Collections.emptyList();
+			this.links = Collections.emptyList();
+		}
+
+		public byte getType()
+		{ return this.type; }
+
+		/**
+		 * Get when the event happened, in microseconds since the log started.
+		 */
+		public long getTime()
+		{ return this.time; }
+
+		public long getMACAddress()
+		{ return this.mac; }
+
+		/**
+		 * Get the host's IP address, or 0 if it had none.
+		 */
+		public int getIPv4Address()
+		{ return this.ip; }
+
+		/**
+		 * Get the switch the event is for, or for device events the switch the
+		 * host is attached to; 0 if the host is not attached.
+		 */
+		public long getSwitchId()
+		{ return this.switchId; }
+
+		public int getPort()
+		{ return this.port; }
+
+		public List<Integer> getPorts()
+		{ return this.ports; }
+
+		public List<LinkUpdate> getLinkUpdates()
+		{ return this.links; }
+	}
+
+	/**
+	 * Writes events to a log. Writes are synchronized, since events arrive on
+	 * several of Floodlight's threads.
+	 */
+	public static class Writer implements Closeable
+	{
+		private final DataOutputStream out;
+
+		// When the last event was written, in nanoseconds
+		private long lastTime;
+
+		public Writer(OutputStream out) throws IOException
+		{
+			this.out = new DataOutputStream(new BufferedOutputStream(out));
+			this.out.writeInt(MAGIC);
+			this.out.writeByte(VERSION);
+			this.out.flush();
+			this.lastTime = System.nanoTime();
+		}
+
+		/**
+		 * Write an event about a host.
+		 * @param type DEVICE_ADDED, DEVICE_REMOVED, DEVICE_MOVED or
+		 *        DEVICE_IPV4_CHANGED
+		 * @param mac the host's MAC address
+		 * @param ip the host's IP address, or 0 if it has none
+		 * @param switchId the switch the host is attached to, or 0
+		 * @param port the port the host is attached to
+		 */
+		public synchronized void writeDevice(byte type, long mac, int ip,
+				long switchId, int port) throws IOException
+		{
+			this.writeHeader(type);
+			writeVarLong(this.out, mac);
+			this.out.writeInt(ip);
+			writeVarLong(this.out, switchId);
+			writeVarInt(this.out, port);
+			this.out.flush();
+		}
+
+		/**
+		 * Write an event about a switch.
+		 * @param type SWITCH_ADDED or SWITCH_REMOVED
+		 * @param switchId DPID of the switch
+		 * @param ports the switch's enabled ports; only written for
+		 *        SWITCH_ADDED
+		 */
+		public synchronized void writeSwitch(byte type, long switchId,
+				Collection<Integer> ports) throws IOException
+		{
+			this.writeHeader(type);
+			writeVarLong(this.out, switchId);
+			if (SWITCH_ADDED == type)
+			{
+				writeVarInt(this.out, ports.size());
+				for (int port : ports)
+				{ writeVarInt(this.out, port); }
+			}
+			this.out.flush();
+		}
+
+		/**
+		 * Write a batch of link updates, which are replayed together.
+		 */
+		public synchronized void writeLinks(List<LinkUpdate> updates)
+				throws IOException
+		{
+			this.writeHeader(LINK_UPDATES);
+			writeVarInt(this.out, updates.size());
+			for (LinkUpdate update : updates)
+			{
+				writeVarLong(this.out, update.getSrc());
+				writeVarInt(this.out, update.getSrcPort());
+				writeVarLong(this.out, update.getDst());
+				writeVarInt(this.out, update.getDstPort());
+				this.out.writeByte(update.getType() < 0 ? NO_LINK_TYPE
+						: update.getType());
+				this.out.writeByte(update.getOperation());
+			}
+			this.out.flush();
+		}
+
+		private void writeHeader(byte type) throws IOException
+		{
+			long now = System.nanoTime();
+			this.out.writeByte(type);
+			writeVarLong(this.out, (now - this.lastTime) / 1000);
+			this.lastTime = now;
+		}
+
+		@Override
+		public synchronized void close() throws IOException
+		{ this.out.close(); }
+	}
+
+	/**
+	 * Reads events back from a log.
+	 */
+	public static class Reader implements Closeable
+	{
+		private final DataInputStream in;
+
+		// When the last event happened, in microseconds since the log started
+		private long time;
+
+		public Reader(InputStream in) throws IOException
+		{
+			this.in = new DataInputStream(new BufferedInputStream(in));
+			if (this.in.readInt() != MAGIC)
+			{ throw new IOException("Not an event log"); }
+			byte version = this.in.readByte();
+			if (version != VERSION)
+			{ throw new IOException("Unsupported event log version " + version); }
+			this.time = 0;
+		}
+
+		/**
+		 * Read the next event.
+		 * @return the event, or null at the end of the log
+		 */
+		public Event read() throws IOException
+		{
+			int type = this.in.read();
+			if (type < 0)
+			{ return null; }
+
+			try
+			{
+				this.time += readVarLong(this.in);
+				Event event = new Event((byte)type, this.time);
+				switch (event.type)
+				{
+				case DEVICE_ADDED:
+				case DEVICE_REMOVED:
+				case DEVICE_MOVED:
+				case DEVICE_IPV4_CHANGED:
+					event.mac = readVarLong(this.in);
+					event.ip = this.in.readInt();
+					event.switchId = readVarLong(this.in);
+					event.port = readVarInt(this.in);
+					break;
+				case SWITCH_ADDED:
+					event.switchId = readVarLong(this.in);
+					int count = readVarInt(this.in);
+					event.ports = new ArrayList<Integer>(count);
+					for (int i = 0; i < count; i++)
+					{ event.ports.add(readVarInt(this.in)); }
+					break;
+				case SWITCH_REMOVED:
+					event.switchId = readVarLong(this.in);
+					break;
+				case LINK_UPDATES:
+					int updates = readVarInt(this.in);
+					event.links = new ArrayList<LinkUpdate>(updates);
+					for (int i = 0; i < updates; i++)
+					{
+						long src = readVarLong(this.in);
+						int srcPort = readVarInt(this.in);
+						long dst = readVarLong(this.in);
+						int dstPort = readVarInt(this.in);
+						int linkType = this.in.readUnsignedByte();
+						int operation = this.in.readUnsignedByte();
+						event.links.add(new LinkUpdate(src, srcPort, dst,
+								dstPort, (NO_LINK_TYPE == linkType ? -1
+										: linkType), operation));
+					}
+					break;
+				default:
+					throw new IOException("Unknown event type " + type);
+				}
+				return event;
+			}
+			catch (EOFException e)
+			{ throw new IOException("Event log ends in the middle of an event"); }
+		}
+
+		@Override
+		public void close() throws IOException
+		{ this.in.close(); }
+	}
+
+	/**
+	 * Write a number seven bits at a time, low bits first, with the top bit
+	 * of each byte set if more bytes follow.
+	 */
+	private static void writeVarLong(DataOutputStream out, long value)
+			throws IOException
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out.writeByte((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int)value);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value)
+			throws IOException
+	{ writeVarLong(out, value & 0xffffffffL); }
+
+	private static long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7f) << shift;
+			if (0 == (b & 0x80))
+			{ return value; }
+		}
+		throw new IOException("Malformed number in event log");
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException
+	{ return (int)readVarLong(in); }
+}
@@ -0,0 +1,338 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+
+/**
+ * Records the switch, link and host events the apps react to in an
+ * EventLog, so a run can be replayed offline. Nothing is recorded unless the
+ * "file" config param names the log to write.
+ */
+public class EventRecorder implements IFloodlightModule, IOFSwitchListener,
+		ILinkDiscoveryListener, IDeviceListener
+{
+	public static final String MODULE_NAME = EventRecorder.class.getSimpleName();
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to link discovery service
+    private ILinkDiscoveryService linkDiscProv;
+
+    // Interface to device manager service
+    private IDeviceService deviceProv;
+
+    // Log to record events in, if any
+    private String file;
+
+    // Writer for the log; null once recording stops
+    private volatile EventLog.Writer writer;
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		this.file = config.get("file");
+
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
+		this.deviceProv = context.getServiceImpl(IDeviceService.class);
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		if (null == this.file)
+		{
+			log.info("No event log configured; not recording events");
+			return;
+		}
+
+		try
+		{ this.writer = new EventLog.Writer(new FileOutputStream(this.file)); }
+		catch (IOException e)
+		{
+			log.error(String.format("Cannot create event log %s: %s",
+					this.file, e.getMessage()));
+			return;
+		}
+		log.info("Recording events in " + this.file);
+
+		this.floodlightProv.addOFSwitchListener(this);
+		this.linkDiscProv.addListener(this);
+		this.deviceProv.addListener(this);
+	}
+
+	/**
+	 * Stop recording after a write fails, rather than logging an error for
+	 * every later event.
+	 */
+	private void stopRecording(IOException e)
+	{
+		EventLog.Writer writer = this.writer;
+		this.writer = null;
+		if (null == writer)
+		{ return; }
+		log.error(String.format("Stopped recording events in %s: %s",
+				this.file, e.getMessage()));
+		try
+		{ writer.close(); }
+		catch (IOException closeError)
+		{ /* Nothing more to do */ }
+	}
+
+	private void recordDevice(byte type, IDevice device)
+	{
+		EventLog.Writer writer = this.writer;
+		if (null == writer)
+		{ return; }
+
+		Integer[] ips = device.getIPv4Addresses();
+		SwitchPort[] attachmentPoints = device.getAttachmentPoints();
+		int ip = (ips.length > 0 ? ips[0] : 0);
+		long switchId = 0;
+		int port = 0;
+		if (attachmentPoints.length > 0)
+		{
+			switchId = attachmentPoints[0].getSwitchDPID();
+			port = attachmentPoints[0].getPort();
+		}
+
+		try
+		{
+			writer.writeDevice(type, device.getMACAddress(), ip, switchId,
+					port);
+		}
+		catch (IOException e)
+		{ this.stopRecording(e); }
+	}
+
+	/**
+     * Event handler called when a host joins the network.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceAdded(IDevice device)
+	{ this.recordDevice(EventLog.DEVICE_ADDED, device); }
+
+	/**
+     * Event handler called when a host is no longer attached to a switch.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceRemoved(IDevice device)
+	{ this.recordDevice(EventLog.DEVICE_REMOVED, device); }
+
+	/**
+     * Event handler called when a host moves within the network.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceMoved(IDevice device)
+	{ this.recordDevice(EventLog.DEVICE_MOVED, device); }
+
+	/**
+     * Event handler called when the IP address of a host changes.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ this.recordDevice(EventLog.DEVICE_IPV4_CHANGED, device); }
+
+	/**
+     * Event handler called when the VLAN of a host changes.
+     * @param device information about the host
+     */
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ /* Nothing we need to record, since the apps don't use VLANs */ }
+
+	private void recordSwitch(byte type, long switchId)
+	{
+		EventLog.Writer writer = this.writer;
+		if (null == writer)
+		{ return; }
+
+		Collection<Integer> ports = Collections.emptyList();
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (sw != null)
+		{ ports = sw.getEnabledPortNumbers(); }
+
+		try
+		{ writer.writeSwitch(type, switchId, ports); }
+		catch (IOException e)
+		{ this.stopRecording(e); }
+	}
+
+	/**
+     * Event handler called when a switch joins the network.
+     * @param DPID for the switch
+     */
+	@Override
+	public void switchAdded(long switchId)
+	{ this.recordSwitch(EventLog.SWITCH_ADDED, switchId); }
+
+	/**
+	 * Event handler called when a switch leaves the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId)
+	{ this.recordSwitch(EventLog.SWITCH_REMOVED, switchId); }
+
+	/**
+	 * Event handler called when multiple links go up or down.
+	 * @param updateList information about the change in each link's state
+	 */
+	@Override
+	public void linkDiscoveryUpdate(List<LDUpdate> updateList)
+	{
+		EventLog.Writer writer = this.writer;
+		if (null == writer)
+		{ return; }
+
+		List<EventLog.LinkUpdate> updates =
+				new ArrayList<EventLog.LinkUpdate>(updateList.size());
+		for (LDUpdate update : updateList)
+		{
+			updates.add(new EventLog.LinkUpdate(update.getSrc(),
+					update.getSrcPort(), update.getDst(), update.getDstPort(),
+					(null == update.getType() ? -1 : update.getType().ordinal()),
+					update.getOperation().ordinal()));
+		}
+
+		try
+		{ writer.writeLinks(updates); }
+		catch (IOException e)
+		{ this.stopRecording(e); }
+	}
+
+	/**
+	 * Event handler called when link goes up or down.
+	 * @param update information about the change in link state
+	 */
+	@Override
+	public void linkDiscoveryUpdate(LDUpdate update)
+	{ this.linkDiscoveryUpdate(Arrays.asList(update)); }
+
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ /* Nothing we need to record */ }
+
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId)
+	{ /* Nothing we need to record */ }
+
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type)
+	{ /* Nothing we need to record, since we'll get a linkDiscoveryUpdate */ }
+
+	/**
+	 * Gets a name for this module.
+	 * @return name for this module
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name)
+	{ return false; }
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name)
+	{ return false; }
+
+    /**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{ return null; }
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{ return null; }
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> floodlightService =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+        floodlightService.add(IFloodlightProviderService.class);
+        floodlightService.add(ILinkDiscoveryService.class);
+        floodlightService.add(IDeviceService.class);
+        return floodlightService;
+	}
+}
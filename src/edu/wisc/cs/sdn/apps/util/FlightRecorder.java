@@ -0,0 +1,288 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+
+import net.floodlightcontroller.core.IListener.Command;
+
+/**
+ * Keeps the most recent controller events, like a continuous flight
+ * recording, so spikes in controller latency can be traced to the network
+ * events that caused them. Three kinds of events are recorded:
+ * <ul>
+ * <li>recompute: a module recomputing routes, with what triggered it, the
+ *     hosts and switches it touched and the FlowMods it sent</li>
+ * <li>batch: a batch of messages written to a switch</li>
+ * <li>packetIn: a packet-in a module handled, and what it decided</li>
+ * </ul>
+ * Recording is off by default. While it is off, each call costs a single
+ * volatile read, and callers check isEnabled before building an event.
+ * Events are kept in a fixed-size ring, so old events are overwritten.
+ */
+public class FlightRecorder
+{
+	// Number of events kept by default
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	// Whether events are being recorded
+	private static volatile boolean enabled = false;
+
+	// Most recent events; the event with sequence number n is in slot
+	// n % the ring's length
+	private static volatile AtomicReferenceArray<Event> ring =
+			new AtomicReferenceArray<Event>(DEFAULT_CAPACITY);
+
+	// Sequence number of the next event
+	private static final AtomicLong nextSequence = new AtomicLong(0);
+
+	// Recompute in progress on each thread, if any, which counts the FlowMods
+	// SwitchCommands sends on its behalf
+	private static final ThreadLocal<Recompute> currentRecompute =
+			new ThreadLocal<Recompute>();
+
+	/**
+	 * A recorded event.
+	 */
+	public static class Event
+	{
+		private final long sequence;
+		private final String type;
+		private final long time;
+		private final long duration;
+		private final String thread;
+		private final Map<String,Object> fields;
+
+		private Event(long sequence, String type, long time, long duration,
+				Map<String,Object> fields)
+		{
+			this.sequence = sequence;
+			this.type = type;
+			this.time = time;
+			this.duration = duration;
+			this.thread = Thread.currentThread().getName();
+			this.fields = fields;
+		}
+
+		public long getSequence()
+		{ return this.sequence; }
+
+		/**
+		 * Describe the event for the REST API.
+		 * @return the event's sequence number, type, start time (in
+		 *         milliseconds since the epoch), duration (in microseconds),
+		 *         thread and fields
+		 */
+		public Map<String,Object> describe()
+		{
+			Map<String,Object> result = new LinkedHashMap<String,Object>();
+			result.put("sequence", this.sequence);
+			result.put("type", this.type);
+			result.put("time", this.time);
+			result.put("duration", this.duration / 1000);
+			result.put("thread", this.thread);
+			result.putAll(this.fields);
+			return result;
+		}
+	}
+
+	/**
+	 * A route recompute in progress, from beginRecompute.
+	 */
+	public static class Recompute
+	{
+		private final String module;
+		private final String trigger;
+		private final int hosts;
+		private final long start;
+		private final Recompute outer;
+		private final Set<Long> switches;
+		private int flowMods;
+
+		private Recompute(String module, String trigger, int hosts,
+				Recompute outer)
+		{
+			this.module = module;
+			this.trigger = trigger;
+			this.hosts = hosts;
+			this.outer = outer;
+			this.switches = new HashSet<Long>();
+			this.flowMods = 0;
+			this.start = System.nanoTime();
+		}
+	}
+
+	public static boolean isEnabled()
+	{ return enabled; }
+
+	/**
+	 * Start or stop recording. Events already recorded are kept.
+	 */
+	public static void setEnabled(boolean enable)
+	{ enabled = enable; }
+
+	/**
+	 * Change how many events are kept, discarding every event recorded so
+	 * far.
+	 */
+	public static void setCapacity(int capacity)
+	{
+		if (capacity <= 0)
+		{ throw new IllegalArgumentException("Capacity must be positive"); }
+		ring = new AtomicReferenceArray<Event>(capacity);
+	}
+
+	/**
+	 * Get the time an event starts, to pass when it is recorded.
+	 * @return the time from System.nanoTime(), or 0 if recording is off
+	 */
+	public static long start()
+	{ return (enabled ? System.nanoTime() : 0); }
+
+	private static void record(String type, long start,
+			Map<String,Object> fields)
+	{
+		long duration = System.nanoTime() - start;
+		long time = System.currentTimeMillis() - duration / 1000000;
+		long sequence = nextSequence.getAndIncrement();
+		AtomicReferenceArray<Event> events = ring;
+		events.set((int)(sequence % events.length()),
+				new Event(sequence, type, time, duration, fields));
+	}
+
+	/**
+	 * Start recording a route recompute on this thread; FlowMods sent through
+	 * SwitchCommands until it ends are counted towards it.
+	 * @param module the module recomputing routes
+	 * @param trigger the event that caused the recompute
+	 * @param hosts number of hosts whose routes are recomputed
+	 * @return the recompute, to pass to endRecompute, or null if recording
+	 *         is off
+	 */
+	public static Recompute beginRecompute(String module, String trigger,
+			int hosts)
+	{
+		if (!enabled)
+		{ return null; }
+		Recompute recompute = new Recompute(module, trigger, hosts,
+				currentRecompute.get());
+		currentRecompute.set(recompute);
+		return recompute;
+	}
+
+	/**
+	 * Finish recording a route recompute.
+	 * @param recompute the recompute from beginRecompute; ignored if null
+	 */
+	public static void endRecompute(Recompute recompute)
+	{
+		if (null == recompute)
+		{ return; }
+		currentRecompute.set(recompute.outer);
+
+		Map<String,Object> fields = new LinkedHashMap<String,Object>();
+		fields.put("module", recompute.module);
+		fields.put("trigger", recompute.trigger);
+		fields.put("hosts", recompute.hosts);
+		fields.put("switches", recompute.switches.size());
+		fields.put("flowMods", recompute.flowMods);
+		record("recompute", recompute.start, fields);
+	}
+
+	/**
+	 * Count a message written to a switch towards the recompute in progress
+	 * on this thread, if any.
+	 */
+	public static void countWrite(long switchId, OFMessage message)
+	{
+		if (!enabled)
+		{ return; }
+		Recompute recompute = currentRecompute.get();
+		if (recompute != null && OFType.FLOW_MOD == message.getType())
+		{
+			recompute.flowMods++;
+			recompute.switches.add(switchId);
+		}
+	}
+
+	/**
+	 * Record a batch of messages written to a switch.
+	 * @param start when the write started, from start(); nothing is recorded
+	 *        if it is 0
+	 * @param switchId the switch written to
+	 * @param messages the messages written
+	 */
+	public static void batch(long start, long switchId,
+			List<OFMessage> messages)
+	{
+		if (0 == start || !enabled)
+		{ return; }
+		int bytes = 0;
+		for (OFMessage message : messages)
+		{ bytes += message.getLengthU(); }
+
+		Map<String,Object> fields = new LinkedHashMap<String,Object>();
+		fields.put("dpid", switchId);
+		fields.put("messages", messages.size());
+		fields.put("bytes", bytes);
+		record("batch", start, fields);
+	}
+
+	/**
+	 * Record a packet-in a module handled. Returns the module's command, so
+	 * a handler can record its decision as it returns.
+	 * @param start when handling started, from start(); nothing is recorded
+	 *        if it is 0
+	 * @param module the module that handled the packet-in
+	 * @param packet the kind of packet, like "arp" or "tcp"
+	 * @param decision what the module did with the packet
+	 * @param command the command the module returns
+	 * @return the command
+	 */
+	public static Command packetIn(long start, String module, String packet,
+			String decision, Command command)
+	{
+		if (0 == start || !enabled)
+		{ return command; }
+		Map<String,Object> fields = new LinkedHashMap<String,Object>();
+		fields.put("module", module);
+		fields.put("packet", packet);
+		fields.put("decision", decision);
+		record("packetIn", start, fields);
+		return command;
+	}
+
+	/**
+	 * Get the events recorded since a sequence number, oldest first. Events
+	 * that have been overwritten are skipped.
+	 * @param since sequence number of the first event wanted
+	 */
+	public static List<Event> getEvents(long since)
+	{
+		AtomicReferenceArray<Event> events = ring;
+		long next = nextSequence.get();
+		long first = Math.max(since, Math.max(0, next - events.length()));
+		List<Event> result = new ArrayList<Event>();
+		for (long sequence = first; sequence < next; sequence++)
+		{
+			Event event = events.get((int)(sequence % events.length()));
+			if (event != null && event.getSequence() == sequence)
+			{ result.add(event); }
+		}
+		return result;
+	}
+
+	/**
+	 * Get the sequence number the next event will have.
+	 */
+	public static long getNextSequence()
+	{ return nextSequence.get(); }
+}
@@ -62,6 +62,19 @@ public class Host
 		return this.floodlightProv.getSwitch(switchDPID);
 	}
 	
+	/**
+	 * Get the DPID of the switch to which the host is connected, whether or
+	 * not the switch is connected to the controller.
+	 * @return DPID of the switch, null if unknown
+	 */
+	public Long getSwitchDPID()
+	{
+		if (null == this.device.getAttachmentPoints()
+				|| 0 == this.device.getAttachmentPoints().length)
+		{ return null; }
+		return this.device.getAttachmentPoints()[0].getSwitchDPID();
+	}
+	
 	/**
 	 * Get the port on the switch to which the host is connected.
 	 * @return the port to which the host is connected, null if unknown
@@ -89,4 +102,8 @@ public class Host
 		Host other = (Host)obj;
 		return other.device.equals(this.device);
 	}
+	
+	@Override
+	public int hashCode()
+	{ return this.device.hashCode(); }
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Iterator;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+
+public class HostMACCache implements IHostMACService, IDeviceListener
+{
+	public static final String NAME = HostMACCache.class.getSimpleName();
+
+	// Interface to device manager service, queried on cache misses
+	private IDeviceService deviceProv;
+
+	// Current mappings; replaced as a whole on every change, so lookups from
+	// packet-in threads never lock
+	private volatile IpMacTable table;
+
+	// Number of lookups answered from and not found in the cache
+	private final StripedCounter hits;
+	private final StripedCounter misses;
+
+	/**
+	 * Create a cache of host MAC addresses.
+	 * @param deviceProv device manager to query on cache misses
+	 */
+	public HostMACCache(IDeviceService deviceProv)
+	{
+		this.deviceProv = deviceProv;
+		this.table = new IpMacTable();
+		this.hits = Metrics.counter("sdn_mac_cache_hits_total",
+				"Host MAC lookups answered from the cache");
+		this.misses = Metrics.counter("sdn_mac_cache_misses_total",
+				"Host MAC lookups sent to the device manager");
+	}
+
+	@Override
+	public long getMACAddress(int hostIPAddress)
+	{
+		long mac = this.table.get(hostIPAddress);
+		if (mac != IpMacTable.UNKNOWN_MAC)
+		{
+			this.hits.increment();
+			return mac;
+		}
+		this.misses.increment();
+
+		Iterator<? extends IDevice> iterator = this.deviceProv.queryDevices(
+				null, null, hostIPAddress, null, null);
+		if (!iterator.hasNext())
+		{ return IpMacTable.UNKNOWN_MAC; }
+		IDevice device = iterator.next();
+		this.update(device);
+		return device.getMACAddress();
+	}
+
+	@Override
+	public long getHits()
+	{ return this.hits.sum(); }
+
+	@Override
+	public long getMisses()
+	{ return this.misses.sum(); }
+
+	/**
+	 * Get the number of IP addresses in the cache.
+	 */
+	public int size()
+	{ return this.table.size(); }
+
+	/**
+	 * Replace the cached IP addresses for a device with its current ones.
+	 * @param device information about the host
+	 */
+	private synchronized void update(IDevice device)
+	{
+		IpMacTable table = this.table.removeMAC(device.getMACAddress());
+		Integer[] ips = device.getIPv4Addresses();
+		if (ips != null)
+		{
+			for (Integer ip : ips)
+			{ table = table.put(ip, device.getMACAddress()); }
+		}
+		this.table = table;
+	}
+
+	/**
+	 * Event handler called when a host joins the network.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceAdded(IDevice device)
+	{ this.update(device); }
+
+	/**
+	 * Event handler called when a host is no longer attached to a switch.
+	 * @param device information about the host
+	 */
+	@Override
+	public synchronized void deviceRemoved(IDevice device)
+	{ this.table = this.table.removeMAC(device.getMACAddress()); }
+
+	/**
+	 * Event handler called when a host moves within the network.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceMoved(IDevice device)
+	{ /* Nothing we need to do, since a host keeps its addresses */ }
+
+	/**
+	 * Event handler called when the IP address of a host changes.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ this.update(device); }
+
+	/**
+	 * Event handler called when the VLAN of a host changes.
+	 * @param device information about the host
+	 */
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ /* Nothing we need to do, since we're not using VLANs */ }
+
+	/**
+	 * Gets a name for this listener.
+	 * @return name for this listener
+	 */
+	@Override
+	public String getName()
+	{ return NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name)
+	{ return false; }
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name)
+	{ return false; }
+}
@@ -0,0 +1,15 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Collection;
+
+public interface IClusterListener
+{
+	/**
+	 * Called when a controller joins or leaves the cluster and the set of
+	 * connected switches this controller owns changes.
+	 * @param gained DPIDs of switches this controller now owns
+	 * @param lost DPIDs of switches another controller now owns
+	 */
+	public void ownershipChanged(Collection<Long> gained,
+			Collection<Long> lost);
+}
@@ -0,0 +1,47 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Collection;
+
+import org.sdnplatform.sync.IStoreClient;
+import org.sdnplatform.sync.error.SyncException;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface IClusterService extends IFloodlightService
+{
+	/**
+	 * Get the ID of this controller in the cluster.
+	 */
+	public short getLocalNodeId();
+
+	/**
+	 * Get the IDs of the controllers that are currently running, including
+	 * this one.
+	 */
+	public Collection<Short> getLiveNodes();
+
+	/**
+	 * Checks whether this controller is responsible for a switch: it handles
+	 * the switch's packet-ins and installs its rules. Every switch has exactly
+	 * one owner among the running controllers.
+	 * @param switchId DPID for the switch
+	 * @return true if this controller owns the switch, otherwise false
+	 */
+	public boolean isOwner(long switchId);
+
+	/**
+	 * Register a module to be told when this controller gains or loses
+	 * switches, because a controller joined or left the cluster.
+	 * @param listener the module to tell
+	 */
+	public void addListener(IClusterListener listener);
+
+	/**
+	 * Get a store whose entries are replicated to every controller in the
+	 * cluster, registering it the first time it is asked for.
+	 * @param storeName name of the store, unique across modules
+	 * @return client for the store
+	 */
+	public IStoreClient<String,String> getStore(String storeName)
+			throws SyncException;
+}
@@ -0,0 +1,23 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface IHostMACService extends IFloodlightService
+{
+	/**
+	 * Get the MAC address for a host, given the host's IP address.
+	 * @param hostIPAddress the host's IP address
+	 * @return the host's MAC address, IpMacTable.UNKNOWN_MAC if unknown
+	 */
+	public long getMACAddress(int hostIPAddress);
+
+	/**
+	 * Get the number of lookups answered from the cache.
+	 */
+	public long getHits();
+
+	/**
+	 * Get the number of lookups that had to query the device manager.
+	 */
+	public long getMisses();
+}
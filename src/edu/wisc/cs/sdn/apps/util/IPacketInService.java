@@ -0,0 +1,24 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.List;
+
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+public interface IPacketInService extends IFloodlightService
+{
+	/**
+	 * Register a module to handle packet-ins on a worker shard rather than
+	 * on the thread that read them from the switch. Packet-ins from the same
+	 * switch are always handled by the same shard, in the order they arrived.
+	 * Listeners are called in the order given by their callback ordering, and
+	 * a listener that returns STOP ends the handling of the packet-in.
+	 * @param listener the module to call for each packet-in
+	 */
+	public void addListener(IOFMessageListener listener);
+
+	/**
+	 * Get the worker shards packet-ins are handed to.
+	 */
+	public List<PacketInShard> getShards();
+}
@@ -0,0 +1,166 @@
+package edu.wisc.cs.sdn.apps.util;
+
+public class IpMacTable
+{
+	// Value returned for IP addresses that are not in the table
+	public static final long UNKNOWN_MAC = -1;
+
+	// Marks an empty slot; 0.0.0.0 is never a host's address
+	private static final int EMPTY_IP = 0;
+
+	// Open-addressed slots; an IP's MAC address is stored at the same index
+	private final int[] ips;
+	private final long[] macs;
+
+	// Number of occupied slots
+	private final int size;
+
+	/**
+	 * Create an empty table.
+	 */
+	public IpMacTable()
+	{ this(new int[16], new long[16], 0); }
+
+	private IpMacTable(int[] ips, long[] macs, int size)
+	{
+		this.ips = ips;
+		this.macs = macs;
+		this.size = size;
+	}
+
+	/**
+	 * Get the number of IP addresses in the table.
+	 */
+	public int size()
+	{ return this.size; }
+
+	/**
+	 * Get the MAC address for an IP address. Tables are never modified once
+	 * created, so lookups need no locking.
+	 * @param ip the IP address
+	 * @return the MAC address, UNKNOWN_MAC if the IP address is not known
+	 */
+	public long get(int ip)
+	{
+		if (EMPTY_IP == ip)
+		{ return UNKNOWN_MAC; }
+		int mask = this.ips.length - 1;
+		for (int slot = hash(ip) & mask; ; slot = (slot + 1) & mask)
+		{
+			if (this.ips[slot] == ip)
+			{ return this.macs[slot]; }
+			if (EMPTY_IP == this.ips[slot])
+			{ return UNKNOWN_MAC; }
+		}
+	}
+
+	/**
+	 * Create a table that also maps an IP address to a MAC address.
+	 * @param ip the IP address
+	 * @param mac the MAC address
+	 * @return the new table, or this table if it already has the mapping
+	 */
+	public IpMacTable put(int ip, long mac)
+	{
+		if (EMPTY_IP == ip || this.get(ip) == mac)
+		{ return this; }
+
+		// Keep the load factor at or below one half so probes stay short
+		int capacity = this.ips.length;
+		while ((this.size + 1) * 2 > capacity)
+		{ capacity *= 2; }
+		int[] ips = new int[capacity];
+		long[] macs = new long[capacity];
+		int size = copy(this.ips, this.macs, ips, macs, EMPTY_IP, UNKNOWN_MAC);
+		if (insert(ips, macs, ip, mac))
+		{ size++; }
+		return new IpMacTable(ips, macs, size);
+	}
+
+	/**
+	 * Create a table without any IP addresses that map to a MAC address.
+	 * @param mac the MAC address
+	 * @return the new table, or this table if no IP maps to the MAC address
+	 */
+	public IpMacTable removeMAC(long mac)
+	{ return this.remove(EMPTY_IP, mac); }
+
+	/**
+	 * Create a table without an IP address.
+	 * @param ip the IP address
+	 * @return the new table, or this table if the IP address is not known
+	 */
+	public IpMacTable remove(int ip)
+	{ return this.remove(ip, UNKNOWN_MAC); }
+
+	private IpMacTable remove(int ip, long mac)
+	{
+		// Removing from an open-addressed table would break probe chains, so
+		// the remaining entries are rehashed into new arrays
+		int[] ips = new int[this.ips.length];
+		long[] macs = new long[this.macs.length];
+		int size = copy(this.ips, this.macs, ips, macs, ip, mac);
+		if (size == this.size)
+		{ return this; }
+		return new IpMacTable(ips, macs, size);
+	}
+
+	/**
+	 * Copy every entry that does not match the excluded IP or MAC address.
+	 * @return the number of entries copied
+	 */
+	private static int copy(int[] fromIPs, long[] fromMACs, int[] toIPs,
+			long[] toMACs, int excludedIP, long excludedMAC)
+	{
+		int size = 0;
+		for (int slot = 0; slot < fromIPs.length; slot++)
+		{
+			if (EMPTY_IP == fromIPs[slot] || excludedIP == fromIPs[slot]
+					|| excludedMAC == fromMACs[slot])
+			{ continue; }
+			insert(toIPs, toMACs, fromIPs[slot], fromMACs[slot]);
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Store a mapping in a slot array that has at least one empty slot.
+	 * @return true if the IP address was not already present
+	 */
+	private static boolean insert(int[] ips, long[] macs, int ip, long mac)
+	{
+		int mask = ips.length - 1;
+		int slot = hash(ip) & mask;
+		while (ips[slot] != EMPTY_IP && ips[slot] != ip)
+		{ slot = (slot + 1) & mask; }
+		boolean added = (EMPTY_IP == ips[slot]);
+		ips[slot] = ip;
+		macs[slot] = mac;
+		return added;
+	}
+
+	private static int hash(int ip)
+	{
+		// Hosts in one subnet differ only in their low bits, so spread them
+		// across the table with a multiplicative hash
+		int h = ip * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Convert a MAC address to its byte representation.
+	 * @param mac the MAC address
+	 * @return the six bytes of the MAC address
+	 */
+	public static byte[] toBytes(long mac)
+	{
+		byte[] bytes = new byte[6];
+		for (int i = 5; i >= 0; i--)
+		{
+			bytes[i] = (byte)mac;
+			mac >>>= 8;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,160 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram
+{
+	// Number of buckets each power of two is split into, and its log
+	private static final int SUB_BUCKETS = 4;
+	private static final int SUB_BUCKET_BITS = 2;
+
+	// Largest power of two (in microseconds, about a minute) with buckets of
+	// its own; longer durations are counted in the last bucket
+	private static final int MAX_EXPONENT = 26;
+
+	// Number of buckets; values below SUB_BUCKETS microseconds each have a
+	// bucket, and every power of two above has SUB_BUCKETS buckets
+	private static final int BUCKETS =
+			SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	// Number of durations in each bucket
+	private final AtomicLongArray counts;
+
+	// Number of durations recorded, and their total in nanoseconds
+	private final StripedCounter count;
+	private final StripedCounter sum;
+
+	/**
+	 * Create an empty histogram of durations. Like an HDR histogram, buckets
+	 * are a fixed fraction of the durations they hold, so the relative error
+	 * is the same from microseconds up to a minute.
+	 */
+	public LatencyHistogram()
+	{
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.count = new StripedCounter();
+		this.sum = new StripedCounter();
+	}
+
+	/**
+	 * Record a duration.
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+		{ nanos = 0; }
+		this.counts.incrementAndGet(getBucket(nanos / 1000));
+		this.count.increment();
+		this.sum.add(nanos);
+	}
+
+	/**
+	 * Record the time elapsed since a start time.
+	 * @param startNanos start time, from System.nanoTime()
+	 */
+	public void recordSince(long startNanos)
+	{ this.record(System.nanoTime() - startNanos); }
+
+	private static int getBucket(long micros)
+	{
+		if (micros < SUB_BUCKETS)
+		{ return (int)micros; }
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT)
+		{ return BUCKETS - 1; }
+		int shift = exponent - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS
+				+ (int)(micros >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * Get the smallest duration that falls after a bucket.
+	 * @param bucket index of the bucket
+	 * @return the duration in microseconds
+	 */
+	private static long getUpperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{ return bucket + 1; }
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return (long)(SUB_BUCKETS + sub + 1) << shift;
+	}
+
+	public long getCount()
+	{ return this.count.sum(); }
+
+	/**
+	 * Get the total of every recorded duration.
+	 * @return the total in nanoseconds
+	 */
+	public long getSum()
+	{ return this.sum.sum(); }
+
+	/**
+	 * Estimate a percentile of the recorded durations.
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile, in
+	 *         microseconds; 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long[] counts = this.getCounts();
+		long total = 0;
+		for (long count : counts)
+		{ total += count; }
+		if (0 == total)
+		{ return 0; }
+
+		long rank = (long)Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+			{ return getUpperBound(i); }
+		}
+		return getUpperBound(counts.length - 1);
+	}
+
+	private long[] getCounts()
+	{
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+		{ counts[i] = this.counts.get(i); }
+		return counts;
+	}
+
+	/**
+	 * Write the histogram in the Prometheus text format, with cumulative
+	 * buckets at every power of two microseconds.
+	 * @param out where to write the histogram
+	 * @param name name of the metric
+	 * @param labels labels of the histogram, already formatted without braces;
+	 *        empty if none
+	 */
+	public void writePrometheus(StringBuilder out, String name, String labels)
+	{
+		String separator = (labels.length() > 0 ? "," : "");
+		long[] counts = this.getCounts();
+		long cumulative = 0;
+		for (int i = 0; i < counts.length - 1; i++)
+		{
+			cumulative += counts[i];
+			long bound = getUpperBound(i);
+			if (Long.bitCount(bound) != 1)
+			{ continue; }
+			out.append(String.format("%s_bucket{%s%sle=\"%s\"} %d\n", name,
+					labels, separator, Double.toString(bound / 1e6),
+					cumulative));
+		}
+		cumulative += counts[counts.length - 1];
+		out.append(String.format("%s_bucket{%s%sle=\"+Inf\"} %d\n", name,
+				labels, separator, cumulative));
+		String braces = (labels.length() > 0 ? "{" + labels + "}" : "");
+		out.append(String.format("%s_sum%s %s\n", name, braces,
+				Double.toString(this.getSum() / 1e9)));
+		out.append(String.format("%s_count%s %d\n", name, braces, cumulative));
+	}
+}
@@ -0,0 +1,49 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LogSampler
+{
+	// Minimum number of milliseconds between logged events
+	private final long interval;
+
+	// Time (in milliseconds) before which events are not logged
+	private final AtomicLong nextTime;
+
+	// Number of events not logged since the last one that was
+	private final AtomicLong suppressed;
+
+	/**
+	 * Create a sampler that lets at most one event per interval be logged,
+	 * so an event on a hot path cannot flood the log.
+	 * @param interval minimum number of milliseconds between logged events
+	 */
+	public LogSampler(long interval)
+	{
+		this.interval = interval;
+		this.nextTime = new AtomicLong(0);
+		this.suppressed = new AtomicLong(0);
+	}
+
+	/**
+	 * Checks whether an event should be logged; if not, it is counted as
+	 * suppressed.
+	 * @return true if the event should be logged
+	 */
+	public boolean sample()
+	{
+		long now = System.currentTimeMillis();
+		long next = this.nextTime.get();
+		if (now >= next && this.nextTime.compareAndSet(next, now + this.interval))
+		{ return true; }
+		this.suppressed.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Get the number of events suppressed since the last call, to be
+	 * mentioned in the next logged event.
+	 */
+	public long takeSuppressed()
+	{ return this.suppressed.getAndSet(0); }
+}
@@ -0,0 +1,148 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class Metrics
+{
+	// Metrics registered so far, keyed by name
+	private static final ConcurrentMap<String,Family> families =
+			new ConcurrentHashMap<String,Family>();
+
+	/**
+	 * Get a counter, creating it the first time it is asked for. Callers on
+	 * hot paths should keep the counter rather than look it up every time.
+	 * @param name name of the metric, which should end in _total
+	 * @param help description of the metric
+	 * @param labels label names and values, alternating
+	 * @return the counter
+	 */
+	public static StripedCounter counter(String name, String help,
+			String... labels)
+	{ return (StripedCounter)get(name, help, "counter", labels); }
+
+	/**
+	 * Get a histogram of durations, creating it the first time it is asked
+	 * for. Callers on hot paths should keep the histogram rather than look it
+	 * up every time.
+	 * @param name name of the metric, which should end in _seconds
+	 * @param help description of the metric
+	 * @param labels label names and values, alternating
+	 * @return the histogram
+	 */
+	public static LatencyHistogram histogram(String name, String help,
+			String... labels)
+	{ return (LatencyHistogram)get(name, help, "histogram", labels); }
+
+	private static Object get(String name, String help, String type,
+			String[] labels)
+	{
+		Family family = families.get(name);
+		if (null == family)
+		{
+			family = new Family(help, type);
+			Family existing = families.putIfAbsent(name, family);
+			if (existing != null)
+			{ family = existing; }
+		}
+		if (!family.type.equals(type))
+		{
+			throw new IllegalArgumentException(String.format(
+					"Metric %s is a %s", name, family.type));
+		}
+
+		String key = formatLabels(labels);
+		Object metric = family.metrics.get(key);
+		if (null == metric)
+		{
+			metric = ("counter".equals(type) ? new StripedCounter()
+					: new LatencyHistogram());
+			Object existing = family.metrics.putIfAbsent(key, metric);
+			if (existing != null)
+			{ metric = existing; }
+		}
+		return metric;
+	}
+
+	private static String formatLabels(String[] labels)
+	{
+		if (labels.length % 2 != 0)
+		{ throw new IllegalArgumentException("Labels must be name/value pairs"); }
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2)
+		{
+			if (i > 0)
+			{ result.append(','); }
+			result.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int j = 0; j < value.length(); j++)
+			{
+				char c = value.charAt(j);
+				if ('\\' == c || '"' == c)
+				{ result.append('\\').append(c); }
+				else if ('\n' == c)
+				{ result.append("\\n"); }
+				else
+				{ result.append(c); }
+			}
+			result.append('"');
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Write every metric in the Prometheus text format, sorted by name and
+	 * labels.
+	 * @return the metrics
+	 */
+	public static String toPrometheus()
+	{
+		StringBuilder out = new StringBuilder();
+		Map<String,Family> sorted = new TreeMap<String,Family>(families);
+		for (Map.Entry<String,Family> entry : sorted.entrySet())
+		{
+			String name = entry.getKey();
+			Family family = entry.getValue();
+			out.append(String.format("# HELP %s %s\n", name, family.help));
+			out.append(String.format("# TYPE %s %s\n", name, family.type));
+			Map<String,Object> metrics =
+					new TreeMap<String,Object>(family.metrics);
+			for (Map.Entry<String,Object> metric : metrics.entrySet())
+			{
+				String labels = metric.getKey();
+				if (metric.getValue() instanceof LatencyHistogram)
+				{
+					((LatencyHistogram)metric.getValue()).writePrometheus(
+							out, name, labels);
+					continue;
+				}
+				out.append(name);
+				if (labels.length() > 0)
+				{ out.append('{').append(labels).append('}'); }
+				out.append(' ')
+						.append(((StripedCounter)metric.getValue()).sum())
+						.append('\n');
+			}
+		}
+		return out.toString();
+	}
+
+	private static class Family
+	{
+		public final String help;
+		public final String type;
+
+		// Metrics with each combination of labels, keyed by the labels
+		// formatted the way they are written out
+		public final ConcurrentMap<String,Object> metrics;
+
+		public Family(String help, String type)
+		{
+			this.help = help;
+			this.type = type;
+			this.metrics = new ConcurrentHashMap<String,Object>();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import org.openflow.protocol.OFPacketIn;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+public class PacketHeaders
+{
+	// Key under which decoded headers are stored in a Floodlight context
+	public static final String CONTEXT_KEY =
+			PacketHeaders.class.getCanonicalName();
+
+	// Store shared by every module that decodes packet-in headers
+	private static final FloodlightContextStore<PacketHeaders> store =
+			new FloodlightContextStore<PacketHeaders>();
+
+	// Offsets of fields in Ethernet, 802.1Q, IPv4, TCP/UDP and ARP headers
+	private static final int ETH_DST = 0;
+	private static final int ETH_SRC = 6;
+	private static final int ETH_TYPE = 12;
+	private static final int ETH_HEADER_LENGTH = 14;
+	private static final int VLAN_HEADER_LENGTH = 4;
+	private static final short TYPE_VLAN = (short)0x8100;
+	private static final int IP_PROTO = 9;
+	private static final int IP_SRC = 12;
+	private static final int IP_DST = 16;
+	private static final int IP_MIN_HEADER_LENGTH = 20;
+	private static final int L4_SRC = 0;
+	private static final int L4_DST = 2;
+	private static final int TCP_FLAGS = 13;
+	private static final int ARP_PROTO_TYPE = 2;
+	private static final int ARP_OP = 6;
+	private static final int ARP_SHA = 8;
+	private static final int ARP_SPA = 14;
+	private static final int ARP_THA = 18;
+	private static final int ARP_TPA = 24;
+	private static final int ARP_LENGTH = 28;
+
+	// Packet data from the packet-in; never copied or modified
+	private final byte[] data;
+
+	// Ethertype after any VLAN tag, and where the next header starts
+	private final short etherType;
+	private final int l3Offset;
+
+	// Where the transport header starts; -1 if not IPv4 or truncated
+	private final int l4Offset;
+
+	/**
+	 * Decode the headers of a packet. Only the offsets of each header are
+	 * computed; fields are read from the packet data on demand.
+	 * @param data the packet data, starting with the Ethernet header
+	 */
+	public PacketHeaders(byte[] data)
+	{
+		this.data = (null == data ? new byte[0] : data);
+		int offset = ETH_HEADER_LENGTH;
+		short etherType = this.getShort(ETH_TYPE);
+		if (TYPE_VLAN == etherType)
+		{
+			etherType = this.getShort(ETH_TYPE + VLAN_HEADER_LENGTH);
+			offset += VLAN_HEADER_LENGTH;
+		}
+		this.etherType = etherType;
+		this.l3Offset = offset;
+
+		int l4Offset = -1;
+		if (Ethernet.TYPE_IPv4 == etherType
+				&& this.has(offset, IP_MIN_HEADER_LENGTH))
+		{
+			int headerLength = (this.data[offset] & 0x0f) * 4;
+			if (headerLength >= IP_MIN_HEADER_LENGTH)
+			{ l4Offset = offset + headerLength; }
+		}
+		this.l4Offset = l4Offset;
+	}
+
+	/**
+	 * Get the decoded headers of a packet-in, decoding them only if no other
+	 * module has done so while handling the same message. Headers left in
+	 * the context by another message are decoded again.
+	 * @param cntx the Floodlight context in which the message is handled
+	 * @param pktIn the packet-in message
+	 * @return the decoded headers
+	 */
+	public static PacketHeaders get(FloodlightContext cntx, OFPacketIn pktIn)
+	{
+		PacketHeaders headers = store.get(cntx, CONTEXT_KEY);
+		if (null == headers || headers.getData() != pktIn.getPacketData())
+		{
+			headers = new PacketHeaders(pktIn.getPacketData());
+			store.put(cntx, CONTEXT_KEY, headers);
+		}
+		return headers;
+	}
+
+	/**
+	 * Get the raw packet data the headers were decoded from.
+	 */
+	public byte[] getData()
+	{ return this.data; }
+
+	public short getEtherType()
+	{ return this.etherType; }
+
+	public long getSourceMAC()
+	{ return this.getMAC(ETH_SRC); }
+
+	public long getDestinationMAC()
+	{ return this.getMAC(ETH_DST); }
+
+	/**
+	 * Checks whether the packet is a complete ARP packet for IPv4 addresses
+	 * over Ethernet.
+	 */
+	public boolean isARP()
+	{
+		return (Ethernet.TYPE_ARP == this.etherType
+				&& this.has(this.l3Offset, ARP_LENGTH));
+	}
+
+	public short getARPOpCode()
+	{ return this.getShort(this.l3Offset + ARP_OP); }
+
+	public short getARPProtocolType()
+	{ return this.getShort(this.l3Offset + ARP_PROTO_TYPE); }
+
+	public long getARPSenderMAC()
+	{ return this.getMAC(this.l3Offset + ARP_SHA); }
+
+	public int getARPSenderIP()
+	{ return this.getInt(this.l3Offset + ARP_SPA); }
+
+	public long getARPTargetMAC()
+	{ return this.getMAC(this.l3Offset + ARP_THA); }
+
+	public int getARPTargetIP()
+	{ return this.getInt(this.l3Offset + ARP_TPA); }
+
+	/**
+	 * Checks whether the packet has a complete IPv4 header.
+	 */
+	public boolean isIPv4()
+	{ return (this.l4Offset >= 0); }
+
+	public byte getIPProtocol()
+	{ return (this.isIPv4() ? this.data[this.l3Offset + IP_PROTO] : 0); }
+
+	public int getIPv4Source()
+	{ return this.getInt(this.l3Offset + IP_SRC); }
+
+	public int getIPv4Destination()
+	{ return this.getInt(this.l3Offset + IP_DST); }
+
+	/**
+	 * Checks whether the packet has complete IPv4 and TCP headers, up to and
+	 * including the TCP flags.
+	 */
+	public boolean isTCP()
+	{
+		return (this.isIPv4() && IPv4.PROTOCOL_TCP == this.getIPProtocol()
+				&& this.has(this.l4Offset, TCP_FLAGS + 1));
+	}
+
+	public short getTransportSource()
+	{ return this.getShort(this.l4Offset + L4_SRC); }
+
+	public short getTransportDestination()
+	{ return this.getShort(this.l4Offset + L4_DST); }
+
+	/**
+	 * Get the TCP flags, excluding the NS flag.
+	 * @return the flags, 0 if the packet is not TCP
+	 */
+	public byte getTCPFlags()
+	{ return (this.isTCP() ? this.data[this.l4Offset + TCP_FLAGS] : 0); }
+
+	private boolean has(int offset, int length)
+	{ return (offset >= 0 && offset + length <= this.data.length); }
+
+	private short getShort(int offset)
+	{
+		if (!this.has(offset, 2))
+		{ return 0; }
+		return (short)(((this.data[offset] & 0xff) << 8)
+				| (this.data[offset + 1] & 0xff));
+	}
+
+	private int getInt(int offset)
+	{
+		if (!this.has(offset, 4))
+		{ return 0; }
+		return ((this.data[offset] & 0xff) << 24)
+				| ((this.data[offset + 1] & 0xff) << 16)
+				| ((this.data[offset + 2] & 0xff) << 8)
+				| (this.data[offset + 3] & 0xff);
+	}
+
+	private long getMAC(int offset)
+	{
+		if (!this.has(offset, 6))
+		{ return 0; }
+		long mac = 0;
+		for (int i = 0; i < 6; i++)
+		{ mac = (mac << 8) | (this.data[offset + i] & 0xff); }
+		return mac;
+	}
+}
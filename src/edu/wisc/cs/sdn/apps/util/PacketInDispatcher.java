@@ -0,0 +1,290 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.web.PacketInWebRoutable;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
+import net.floodlightcontroller.restserver.IRestApiService;
+
+public class PacketInDispatcher implements IFloodlightModule,
+		IOFMessageListener, IPacketInService
+{
+	public static final String MODULE_NAME =
+			PacketInDispatcher.class.getSimpleName();
+
+	// Number of packet-ins each shard may queue, unless configured otherwise
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	// Number of milliseconds to wait for room in a full queue before a
+	// packet-in is dropped
+	private static final long QUEUE_TIMEOUT = 100;
+
+	// Number of dropped packet-ins between warnings
+	private static final long DROP_LOG_INTERVAL = 1000;
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+	// Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+
+    // Interface to the REST API server
+    private IRestApiService restApiProv;
+
+    // Interface to the cluster manager; null if this controller runs alone
+    private IClusterService clusterProv;
+
+    // Packet-ins from switches another controller owns, which are skipped
+    private StripedCounter notOwned;
+
+    // Worker shards; a switch's packet-ins always go to the same shard
+    private List<PacketInShard> shards;
+
+    // Modules that handle packet-ins, in the order they are called; replaced
+    // whenever a module is added, so shards can iterate without locking
+    private volatile List<IOFMessageListener> listeners;
+
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		int shardCount = Runtime.getRuntime().availableProcessors();
+		int queueSize = DEFAULT_QUEUE_SIZE;
+		try
+		{
+			if (config.get("shards") != null)
+			{ shardCount = Integer.parseInt(config.get("shards")); }
+			if (config.get("queueSize") != null)
+			{ queueSize = Integer.parseInt(config.get("queueSize")); }
+		}
+		catch (NumberFormatException e)
+		{ throw new FloodlightModuleException("Bad shard configuration"); }
+		if (shardCount < 1 || queueSize < 1)
+		{ throw new FloodlightModuleException("Bad shard configuration"); }
+
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+		this.restApiProv = context.getServiceImpl(IRestApiService.class);
+		this.clusterProv = context.getServiceImpl(IClusterService.class);
+		this.notOwned = Metrics.counter("sdn_packet_ins_not_owned_total",
+				"Packet-ins skipped because another controller owns the switch");
+		this.shards = new ArrayList<PacketInShard>();
+		for (int i = 0; i < shardCount; i++)
+		{ this.shards.add(new PacketInShard(i, queueSize, this)); }
+		this.shards = Collections.unmodifiableList(this.shards);
+		this.listeners = Collections.emptyList();
+	}
+
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s with %d shards...", MODULE_NAME,
+				this.shards.size()));
+		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.restApiProv.addRestletRoutable(new PacketInWebRoutable());
+		for (PacketInShard shard : this.shards)
+		{
+			Thread thread = new Thread(shard,
+					String.format("PacketInShard-%d", shard.getIndex()));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Register a module to handle packet-ins on the worker shards.
+	 * @param listener the module to call for each packet-in
+	 */
+	@Override
+	public synchronized void addListener(IOFMessageListener listener)
+	{
+		List<IOFMessageListener> unordered =
+				new ArrayList<IOFMessageListener>(this.listeners);
+		unordered.add(listener);
+
+		// Repeatedly take a listener that no remaining listener must come
+		// before; if none can be found, the ordering has a cycle, so the
+		// remaining listeners are called in the order they were added
+		List<IOFMessageListener> ordered = new ArrayList<IOFMessageListener>();
+		while (!unordered.isEmpty())
+		{
+			IOFMessageListener next = unordered.get(0);
+			for (IOFMessageListener candidate : unordered)
+			{
+				if (this.isReady(candidate, unordered))
+				{
+					next = candidate;
+					break;
+				}
+			}
+			unordered.remove(next);
+			ordered.add(next);
+		}
+		this.listeners = Collections.unmodifiableList(ordered);
+		log.info(String.format("Packet-in listeners: %s", this.getNames()));
+	}
+
+	/**
+	 * Checks whether a listener may be called before all of the others.
+	 */
+	private boolean isReady(IOFMessageListener listener,
+			List<IOFMessageListener> others)
+	{
+		for (IOFMessageListener other : others)
+		{
+			if (other == listener)
+			{ continue; }
+			if (listener.isCallbackOrderingPrereq(OFType.PACKET_IN,
+						other.getName())
+					|| other.isCallbackOrderingPostreq(OFType.PACKET_IN,
+						listener.getName()))
+			{ return false; }
+		}
+		return true;
+	}
+
+	private List<String> getNames()
+	{
+		List<String> names = new ArrayList<String>();
+		for (IOFMessageListener listener : this.listeners)
+		{ names.add(listener.getName()); }
+		return names;
+	}
+
+	/**
+	 * Get the modules that handle packet-ins, in the order they are called.
+	 */
+	List<IOFMessageListener> getListeners()
+	{ return this.listeners; }
+
+	@Override
+	public List<PacketInShard> getShards()
+	{ return this.shards; }
+
+	/**
+	 * Hand a packet-in to the shard for the switch it came from. In a cluster,
+	 * packet-ins from switches another controller owns are left to it.
+	 */
+	@Override
+	public net.floodlightcontroller.core.IListener.Command receive(
+			IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		if (msg.getType() != OFType.PACKET_IN || this.listeners.isEmpty())
+		{ return Command.CONTINUE; }
+
+		long switchId = sw.getId();
+		if (this.clusterProv != null && !this.clusterProv.isOwner(switchId))
+		{
+			this.notOwned.increment();
+			return Command.CONTINUE;
+		}
+
+		int hash = (int)(switchId ^ (switchId >>> 32));
+		hash ^= (hash >>> 16);
+		PacketInShard shard = this.shards.get(
+				(hash & Integer.MAX_VALUE) % this.shards.size());
+		if (!shard.offer(sw, msg, cntx, QUEUE_TIMEOUT)
+				&& 1 == shard.getDropped() % DROP_LOG_INTERVAL)
+		{
+			log.warn(String.format("Packet-in queue for shard %d is full; "
+					+ "dropped %d packet-ins so far", shard.getIndex(),
+					shard.getDropped()));
+		}
+		return Command.CONTINUE;
+	}
+
+    /**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IPacketInService.class);
+		return services;
+	}
+
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> impls =
+				new HashMap<Class<? extends IFloodlightService>,
+						IFloodlightService>();
+		impls.put(IPacketInService.class, this);
+		return impls;
+	}
+
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> floodlightService =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+        floodlightService.add(IFloodlightProviderService.class);
+        floodlightService.add(IRestApiService.class);
+        return floodlightService;
+	}
+
+	/**
+	 * Gets a name for this module.
+	 * @return name for this module
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{
+		return (OFType.PACKET_IN == type
+				&& name.equals(DeviceManagerImpl.MODULE_NAME));
+	}
+
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+}
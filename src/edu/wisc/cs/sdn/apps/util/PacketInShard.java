@@ -0,0 +1,228 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IListener.Command;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+
+public class PacketInShard implements Runnable
+{
+	// Interface to the logging system
+	private static Logger log = LoggerFactory.getLogger(
+			PacketInShard.class.getSimpleName());
+
+	// Index of the shard, used in thread names and statistics
+	private final int index;
+
+	// Packet-ins waiting to be handled
+	private final BlockingQueue<Task> queue;
+
+	// Dispatcher whose listeners are called for each packet-in
+	private final PacketInDispatcher dispatcher;
+
+	// Number of packet-ins handled, dropped because the queue stayed full,
+	// and queued only after waiting for room
+	private final AtomicLong handled;
+	private final AtomicLong dropped;
+	private final AtomicLong delayed;
+
+	// Total nanoseconds packet-ins spent queued and being handled, and the
+	// longest time spent handling a single packet-in
+	private final AtomicLong totalQueueTime;
+	private final AtomicLong totalHandleTime;
+	private volatile long maxHandleTime;
+
+	// Histogram of each module's handling time, shared by every shard
+	private final Map<IOFMessageListener,LatencyHistogram> handleTimes;
+
+	/**
+	 * Create a shard that handles packet-ins on its own thread.
+	 * @param index index of the shard
+	 * @param capacity number of packet-ins that may be queued at once
+	 * @param dispatcher dispatcher whose listeners handle the packet-ins
+	 */
+	public PacketInShard(int index, int capacity, PacketInDispatcher dispatcher)
+	{
+		this.index = index;
+		this.queue = new ArrayBlockingQueue<Task>(capacity);
+		this.dispatcher = dispatcher;
+		this.handled = new AtomicLong(0);
+		this.dropped = new AtomicLong(0);
+		this.delayed = new AtomicLong(0);
+		this.totalQueueTime = new AtomicLong(0);
+		this.totalHandleTime = new AtomicLong(0);
+		this.handleTimes =
+				new IdentityHashMap<IOFMessageListener,LatencyHistogram>();
+	}
+
+	/**
+	 * Queue a packet-in to be handled. If the queue is full, the caller
+	 * waits for room, which slows down reading from the switches; if the
+	 * queue stays full, the packet-in is dropped.
+	 * @param sw switch on which the packet was received
+	 * @param msg the packet-in message
+	 * @param cntx the Floodlight context in which the message is handled;
+	 *        it is copied, since Floodlight reuses it for the next message
+	 * @param timeout milliseconds to wait for room in the queue
+	 * @return true if the packet-in was queued, false if it was dropped
+	 */
+	public boolean offer(IOFSwitch sw, OFMessage msg, FloodlightContext cntx,
+			long timeout)
+	{
+		Task task = new Task(sw, msg, cntx);
+		if (this.queue.offer(task))
+		{ return true; }
+
+		this.delayed.incrementAndGet();
+		try
+		{
+			if (this.queue.offer(task, timeout, TimeUnit.MILLISECONDS))
+			{ return true; }
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		this.dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Handle queued packet-ins until the thread is interrupted.
+	 */
+	@Override
+	public void run()
+	{
+		while (!Thread.currentThread().isInterrupted())
+		{
+			Task task;
+			try
+			{ task = this.queue.take(); }
+			catch (InterruptedException e)
+			{ break; }
+
+			long start = System.nanoTime();
+			this.totalQueueTime.addAndGet(start - task.queuedTime);
+			for (IOFMessageListener listener : this.dispatcher.getListeners())
+			{
+				long listenerStart = System.nanoTime();
+				Command command = Command.CONTINUE;
+				try
+				{ command = listener.receive(task.sw, task.msg, task.cntx); }
+				catch (RuntimeException e)
+				{
+					// One module failing must not stop the shard
+					log.error(String.format("%s failed to handle packet-in "
+							+ "from s%d", listener.getName(), task.sw.getId()),
+							e);
+				}
+				this.getHandleTime(listener).recordSince(listenerStart);
+				if (Command.STOP == command)
+				{ break; }
+			}
+			long time = System.nanoTime() - start;
+			this.totalHandleTime.addAndGet(time);
+			if (time > this.maxHandleTime)
+			{ this.maxHandleTime = time; }
+			this.handled.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the histogram of the time a module takes to handle a packet-in.
+	 * Only the shard's own thread calls this, so the cache needs no locking.
+	 */
+	private LatencyHistogram getHandleTime(IOFMessageListener listener)
+	{
+		LatencyHistogram histogram = this.handleTimes.get(listener);
+		if (null == histogram)
+		{
+			histogram = Metrics.histogram("sdn_packet_in_handle_seconds",
+					"Time a module takes to handle a packet-in", "module",
+					listener.getName());
+			this.handleTimes.put(listener, histogram);
+		}
+		return histogram;
+	}
+
+	public int getIndex()
+	{ return this.index; }
+
+	/**
+	 * Get the number of packet-ins waiting to be handled.
+	 */
+	public int getQueueDepth()
+	{ return this.queue.size(); }
+
+	/**
+	 * Get the number of packet-ins that may be queued at once.
+	 */
+	public int getQueueCapacity()
+	{ return this.queue.size() + this.queue.remainingCapacity(); }
+
+	public long getHandled()
+	{ return this.handled.get(); }
+
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	/**
+	 * Get the number of packet-ins the reading thread had to wait to queue.
+	 */
+	public long getDelayed()
+	{ return this.delayed.get(); }
+
+	/**
+	 * Get the average time packet-ins spent waiting in the queue.
+	 * @return time in microseconds, 0 if none were handled
+	 */
+	public long getAverageQueueTime()
+	{ return average(this.totalQueueTime.get(), this.handled.get()); }
+
+	/**
+	 * Get the average time spent handling a packet-in.
+	 * @return time in microseconds, 0 if none were handled
+	 */
+	public long getAverageHandleTime()
+	{ return average(this.totalHandleTime.get(), this.handled.get()); }
+
+	/**
+	 * Get the longest time spent handling a single packet-in.
+	 * @return time in microseconds
+	 */
+	public long getMaxHandleTime()
+	{ return this.maxHandleTime / 1000; }
+
+	private static long average(long totalNanos, long count)
+	{ return (0 == count ? 0 : totalNanos / count / 1000); }
+
+	private static class Task
+	{
+		public final IOFSwitch sw;
+		public final OFMessage msg;
+		public final FloodlightContext cntx;
+		public final long queuedTime;
+
+		public Task(IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+		{
+			this.sw = sw;
+			this.msg = msg;
+
+			// Floodlight clears the reading thread's context and reuses it
+			// for the next message once the listeners return, which may be
+			// before the shard handles this one
+			this.cntx = new FloodlightContext();
+			this.cntx.getStorage().putAll(cntx.getStorage());
+			this.queuedTime = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps snapshots of module state in a local directory, so a restarted
+ * controller can pick up where it left off. Each snapshot is a text file
+ * with one entry per line. A snapshot is written to a temporary file and
+ * renamed into place, so a crash while saving leaves the previous snapshot
+ * intact.
+ */
+public class StateStore
+{
+	private final File directory;
+
+	/**
+	 * @param directory directory to keep snapshots in; created if needed
+	 */
+	public StateStore(File directory) throws IOException
+	{
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{ throw new IOException("Cannot create state directory " + directory); }
+	}
+
+	public File getDirectory()
+	{ return this.directory; }
+
+	/**
+	 * Replace a snapshot.
+	 * @param name name of the snapshot
+	 * @param lines entries in the snapshot, without line breaks
+	 */
+	public void save(String name, Collection<String> lines) throws IOException
+	{
+		File file = new File(this.directory, name);
+		File temp = new File(this.directory, name + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try
+		{
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			for (String line : lines)
+			{ writer.write(line + "\n"); }
+			writer.flush();
+			out.getFD().sync();
+		}
+		finally
+		{ out.close(); }
+
+		if (!temp.renameTo(file))
+		{ throw new IOException("Cannot replace snapshot " + file); }
+	}
+
+	/**
+	 * Read a snapshot.
+	 * @param name name of the snapshot
+	 * @return entries in the snapshot; empty if there is no snapshot
+	 */
+	public List<String> load(String name) throws IOException
+	{
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(new File(this.directory, name)),
+					"UTF-8"));
+		}
+		catch (FileNotFoundException e)
+		{ return lines; }
+
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (!line.trim().isEmpty())
+				{ lines.add(line); }
+			}
+		}
+		finally
+		{ reader.close(); }
+		return lines;
+	}
+}
@@ -0,0 +1,46 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class StripedCounter
+{
+	// Number of stripes; must be a power of two
+	private static final int STRIPES = 16;
+
+	// Distance between stripes in the array, so each stripe sits on its own
+	// cache line and threads updating different stripes do not contend
+	private static final int PADDING = 8;
+
+	// Partial counts, one per stripe
+	private final AtomicLongArray cells;
+
+	/**
+	 * Create a counter that many threads can update without contending on a
+	 * single value; updates go to a stripe chosen by thread, and reads add up
+	 * every stripe.
+	 */
+	public StripedCounter()
+	{ this.cells = new AtomicLongArray(STRIPES * PADDING); }
+
+	public void increment()
+	{ this.add(1); }
+
+	public void add(long amount)
+	{
+		long id = Thread.currentThread().getId();
+		int stripe = (int)(id ^ (id >>> 16)) & (STRIPES - 1);
+		this.cells.addAndGet(stripe * PADDING, amount);
+	}
+
+	/**
+	 * Get the current total; updates made while summing may or may not be
+	 * included.
+	 */
+	public long sum()
+	{
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+		{ sum += this.cells.get(i * PADDING); }
+		return sum;
+	}
+}
@@ -1,15 +1,35 @@
 package edu.wisc.cs.sdn.apps.util;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFBucket;
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroupMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFMeterMod;
+import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.meter.OFMeterBand;
+import org.openflow.protocol.meter.OFMeterBandDrop;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +46,14 @@ public class SwitchCommands
 	// Interface to the logging system
     private static Logger log =
             LoggerFactory.getLogger(SwitchCommands.class.getSimpleName());
+    
+    // Failed writes and forwarded packets are logged at most once a second
+    private static final LogSampler failureSampler = new LogSampler(1000);
+    private static final LogSampler forwardSampler = new LogSampler(1000);
+    
+    // Counters for each switch, keyed by DPID
+    private static final ConcurrentMap<Long,SwitchMetrics> switchMetrics =
+    		new ConcurrentHashMap<Long,SwitchMetrics>();
 
 	/**
      * Installs a rule in a switch's flow table.
@@ -49,30 +77,25 @@ public class SwitchCommands
             OFMatch matchCriteria, List<OFInstruction> instructions, 
             short hardTimeout, short idleTimeout, int bufferId)
     {
-        OFFlowMod rule = new OFFlowMod();
-        rule.setHardTimeout(hardTimeout);
-        rule.setIdleTimeout(idleTimeout);
-        rule.setPriority(priority);
-        rule.setTableId(table);
-        rule.setBufferId(bufferId);
-
-        rule.setMatch(matchCriteria.clone());
-        rule.setInstructions(instructions);
-        
-        int length = OFFlowMod.MINIMUM_LENGTH;
-        for (OFInstruction instruction : instructions)
-        { length += instruction.getLengthU(); }
-        rule.setLength((short)length);
+        OFFlowMod rule = buildRule(table, priority, matchCriteria, 
+        		instructions, hardTimeout, idleTimeout, bufferId);
 
         try
         {
             sw.write(rule, null);
             sw.flush();
-            log.debug("Installing rule: "+rule);
+            countWrite(sw, rule);
+            if (log.isDebugEnabled())
+            { log.debug("Installing rule: "+rule); }
         }
         catch (IOException e)
         {
-            log.error("Failed to install rule: "+rule);
+            countFailure(sw);
+            if (failureSampler.sample())
+            {
+            	log.error(withSuppressed(failureSampler, 
+            			"Failed to install rule: "+rule)); 
+            }
             return false;
         }
 
@@ -141,11 +164,290 @@ public class SwitchCommands
         {
             sw.write(rule, null);
             sw.flush();
-            log.debug("Removing rule: "+rule);
+            countWrite(sw, rule);
+            if (log.isDebugEnabled())
+            { log.debug("Removing rule: "+rule); }
         }
         catch (IOException e)
         {
-            log.error("Failed to remove rule: "+rule);
+            countFailure(sw);
+            if (failureSampler.sample())
+            {
+            	log.error(withSuppressed(failureSampler, 
+            			"Failed to remove rule: "+rule)); 
+            }
+            return false;
+        }
+
+        return true;
+    }
+    
+    /**
+     * Remove the single rule with exactly the given priority and match 
+     * criteria from a switch's flow table; rules whose match criteria are a
+     * subset of the given criteria are left in place.
+     * @param sw the switch from which the rule should be removed
+     * @param table the table from which the rule should be removed
+     * @param priority the priority of the rule to remove
+     * @param matchCriteria match criteria of the rule to remove
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRule(IOFSwitch sw, byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = buildRuleRemoval(table, priority, matchCriteria);
+
+        try
+        {
+            sw.write(rule, null);
+            sw.flush();
+            countWrite(sw, rule);
+            if (log.isDebugEnabled())
+            { log.debug("Removing rule: "+rule); }
+        }
+        catch (IOException e)
+        {
+            countFailure(sw);
+            if (failureSampler.sample())
+            {
+            	log.error(withSuppressed(failureSampler, 
+            			"Failed to remove rule: "+rule)); 
+            }
+            return false;
+        }
+
+        return true;
+    }
+    
+    /**
+     * Creates a message that adds a rule to a switch's flow table, without
+     * sending it; see installRule for a description of the parameters.
+     * @return the message
+     */
+    public static OFFlowMod buildRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout, int bufferId)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setHardTimeout(hardTimeout);
+        rule.setIdleTimeout(idleTimeout);
+        rule.setPriority(priority);
+        rule.setTableId(table);
+        rule.setBufferId(bufferId);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setInstructions(instructions);
+        
+        int length = OFFlowMod.MINIMUM_LENGTH;
+        for (OFInstruction instruction : instructions)
+        { length += instruction.getLengthU(); }
+        rule.setLength((short)length);
+        return rule;
+    }
+    
+    /**
+     * Creates a message that adds a rule with no timeout to a switch's flow
+     * table, without sending it.
+     * @param table the table in which the rule should be installed
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria for the rule
+     * @param instructions the actions to apply to packets matching the rule
+     * @return the message
+     */
+    public static OFFlowMod buildRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+    	return buildRule(table, priority, matchCriteria, instructions, 
+    			NO_TIMEOUT, NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE);
+    }
+    
+    /**
+     * Creates a message that removes the single rule with exactly the given
+     * priority and match criteria, without sending it.
+     * @param table the table from which the rule should be removed
+     * @param priority the priority of the rule to remove
+     * @param matchCriteria match criteria of the rule to remove
+     * @return the message
+     */
+    public static OFFlowMod buildRuleRemoval(byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        rule.setTableId(table);
+        rule.setPriority(priority);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+        return rule;
+    }
+    
+    /**
+     * Creates a message that adds a meter to a switch, which drops packets
+     * sent through it beyond a fixed number of packets per second. Adding a
+     * meter whose ID is already in use fails, so a meter that may be left
+     * over should be removed first.
+     * @param meterId the ID of the meter
+     * @param rate the number of packets per second to let through
+     * @return the message
+     */
+    public static OFMeterMod buildMeter(int meterId, int rate)
+    {
+        OFMeterBandDrop band = new OFMeterBandDrop();
+        band.setRate(rate);
+        band.setBurstSize(rate);
+
+        OFMeterMod meter = new OFMeterMod();
+        meter.setCommand(OFMeterMod.OFPMC_ADD);
+        meter.setFlags((short)(OFMeterMod.OFPMF_PKTPS | OFMeterMod.OFPMF_BURST));
+        meter.setMeterId(meterId);
+        meter.setBands(Arrays.asList((OFMeterBand)band));
+        meter.setLength((short)(OFMeterMod.MINIMUM_LENGTH + band.getLength()));
+        return meter;
+    }
+    
+    /**
+     * Creates a message that removes a meter from a switch, along with any
+     * rules that use it.
+     * @param meterId the ID of the meter
+     * @return the message
+     */
+    public static OFMeterMod buildMeterRemoval(int meterId)
+    {
+        OFMeterMod meter = new OFMeterMod();
+        meter.setCommand(OFMeterMod.OFPMC_DELETE);
+        meter.setMeterId(meterId);
+        meter.setLength((short)OFMeterMod.MINIMUM_LENGTH);
+        return meter;
+    }
+    
+    /**
+     * Creates a message that adds or changes a group that sends a copy of
+     * each packet out of every given port, except the port it arrived on.
+     * @param command OFGroupMod.OFPGC_ADD or OFGroupMod.OFPGC_MODIFY
+     * @param groupId the ID of the group
+     * @param ports the ports packets should be sent out of
+     * @return the message
+     */
+    public static OFGroupMod buildFloodGroup(short command, int groupId,
+    		Collection<Integer> ports)
+    {
+        List<OFBucket> buckets = new ArrayList<OFBucket>();
+        int length = OFGroupMod.MINIMUM_LENGTH;
+        for (int port : ports)
+        {
+        	OFBucket bucket = new OFBucket();
+        	bucket.setActions(Arrays.asList((OFAction)new OFActionOutput(port)));
+        	bucket.setLength((short)(OFBucket.MINIMUM_LENGTH 
+        			+ OFActionOutput.MINIMUM_LENGTH));
+        	buckets.add(bucket);
+        	length += bucket.getLengthU();
+        }
+
+        OFGroupMod group = new OFGroupMod();
+        group.setCommand(command);
+        group.setGroupType(OFGroupMod.OFPGT_ALL);
+        group.setGroupId(groupId);
+        group.setBuckets(buckets);
+        group.setLength((short)length);
+        return group;
+    }
+    
+    /**
+     * Creates a message that removes a group from a switch, along with any
+     * rules that use it.
+     * @param groupId the ID of the group
+     * @return the message
+     */
+    public static OFGroupMod buildGroupRemoval(int groupId)
+    {
+        OFGroupMod group = new OFGroupMod();
+        group.setCommand(OFGroupMod.OFPGC_DELETE);
+        group.setGroupId(groupId);
+        group.setLength((short)OFGroupMod.MINIMUM_LENGTH);
+        return group;
+    }
+    
+    /**
+     * Creates a request for the statistics of every rule in a table.
+     * @param table the table whose rules should be reported
+     * @return the request
+     */
+    public static OFStatisticsRequest buildFlowStatsRequest(byte table)
+    {
+        OFFlowStatisticsRequest specificReq = new OFFlowStatisticsRequest();
+        specificReq.setMatch(new OFMatch());
+        specificReq.setTableId(table);
+        specificReq.setOutPort(OFPort.OFPP_ANY.getValue());
+        
+        OFStatisticsRequest req = new OFStatisticsRequest();
+        req.setStatisticType(OFStatisticsType.FLOW);
+        req.setStatistics(Collections.singletonList((OFStatistics)specificReq));
+        req.setLengthU(req.getLengthU() + specificReq.getLength());
+        return req;
+    }
+    
+    /**
+     * Get the port a rule sends packets out of.
+     * @param instructions the rule's instructions
+     * @return the port of the rule's first output action, or null if it has
+     *         none
+     */
+    public static Integer getOutputPort(List<OFInstruction> instructions)
+    {
+        if (null == instructions)
+        { return null; }
+        for (OFInstruction instruction : instructions)
+        {
+            if (!(instruction instanceof OFInstructionApplyActions))
+            { continue; }
+            for (OFAction action 
+                    : ((OFInstructionApplyActions)instruction).getActions())
+            {
+                if (action instanceof OFActionOutput)
+                { return ((OFActionOutput)action).getPort(); }
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Sends a batch of messages to a switch in a single write, followed by a
+     * barrier so the switch finishes applying the whole batch before it 
+     * processes any later message.
+     * @param sw the switch to which the messages should be sent
+     * @param messages the messages to send, in order
+     * @return true if the messages were sent to the switch, otherwise false
+     */
+    public static boolean writeBatch(IOFSwitch sw, List<OFMessage> messages)
+    {
+    	if (messages.isEmpty())
+    	{ return true; }
+    	
+    	List<OFMessage> batch = new ArrayList<OFMessage>(messages);
+    	batch.add(new OFBarrierRequest());
+    	long start = FlightRecorder.start();
+        try
+        {
+            sw.write(batch, null);
+            sw.flush();
+            countWrite(sw, messages);
+            FlightRecorder.batch(start, sw.getId(), batch);
+            if (log.isDebugEnabled())
+            {
+            	log.debug(String.format("Sent batch of %d messages to s%d", 
+            			messages.size(), sw.getId()));
+            }
+        }
+        catch (IOException e)
+        {
+            countFailure(sw);
+            if (failureSampler.sample())
+            {
+            	log.error(withSuppressed(failureSampler, String.format(
+            			"Failed to send batch of %d messages to s%d",
+            			messages.size(), sw.getId())));
+            }
             return false;
         }
 
@@ -162,36 +464,260 @@ public class SwitchCommands
 	public static boolean sendPacket(IOFSwitch outSw, short outPort, 
 			Ethernet eth) 
     {
-		// Create an OFPacketOut for the packet
+        if (!sendPacket(outSw, outPort, eth.serialize()))
+        { return false; }
+        
+        // Describing a packet is expensive, so only a sample is logged
+        if (log.isDebugEnabled() && forwardSampler.sample())
+        {
+        	log.debug(withSuppressed(forwardSampler, 
+        			"Forwarding packet: "+eth.toString())); 
+        }
+        return true;
+	}
+	
+	/**
+	 * Sends a packet that is already serialized through a list of actions in
+	 * a switch, as if it had arrived on a given port.
+	 * @param outSw the switch out which the packet should be forwarded
+	 * @param inPort the port the packet arrived on, so actions like flooding
+	 *        do not send it back out of that port
+	 * @param actions the actions to apply to the packet
+	 * @param packetData the Ethernet frame to forward
+	 * @return true if the packet was sent to the switch, otherwise false
+	 */
+	public static boolean sendPacket(IOFSwitch outSw, int inPort, 
+			List<OFAction> actions, byte[] packetData) 
+    {
+		return writePacketOut(outSw, buildPacketOut(OFPacketOut.BUFFER_ID_NONE, 
+				inPort, actions, packetData));
+	}
+	
+	/**
+	 * Sends a packet that is already serialized out of a switch.
+	 * @param outSw the switch out which the packet should be forwarded
+	 * @param outPort the switch port out which the packet should be forwarded
+	 * @param packetData the Ethernet frame to forward
+	 * @return true if the packet was sent to the switch, otherwise false
+	 */
+	public static boolean sendPacket(IOFSwitch outSw, short outPort, 
+			byte[] packetData) 
+    {
+		// The port the packet arrived on is unknown, so the switch is told
+		// it came from the controller
+		OFAction output = new OFActionOutput(outPort);
+		return writePacketOut(outSw, buildPacketOut(OFPacketOut.BUFFER_ID_NONE,
+				OFPort.OFPP_CONTROLLER.getValue(), Arrays.asList(output), 
+				packetData));
+	}
+	
+	/**
+	 * Sends a packet the switch sent to the controller through a list of
+	 * actions in the switch. If the switch buffered the packet, only the
+	 * buffer ID is sent back, rather than the whole packet.
+	 * @param outSw the switch that sent the packet-in
+	 * @param pktIn the packet-in for the packet
+	 * @param actions the actions to apply to the packet
+	 * @return true if the packet was sent to the switch, otherwise false
+	 */
+	public static boolean sendPacket(IOFSwitch outSw, OFPacketIn pktIn,
+			List<OFAction> actions)
+	{ return writePacketOut(outSw, buildPacketOut(pktIn, actions)); }
+	
+	/**
+	 * Creates a message that sends a packet the switch sent to the controller
+	 * through a list of actions, without sending it. The packet data is only
+	 * included if the switch did not buffer the packet.
+	 * @param pktIn the packet-in for the packet
+	 * @param actions the actions to apply to the packet
+	 * @return the message
+	 */
+	public static OFPacketOut buildPacketOut(OFPacketIn pktIn, 
+			List<OFAction> actions)
+	{
+		return buildPacketOut(pktIn.getBufferId(), pktIn.getInPort(), actions,
+				pktIn.getPacketData());
+	}
+	
+	/**
+	 * Creates a message that sends the packet the switch sent to the
+	 * controller back through the switch's flow table, starting from the
+	 * first table, without sending it. Sent after the rules for the packet
+	 * are installed, the packet is forwarded by those rules.
+	 * @param pktIn the packet-in for the packet
+	 * @return the message
+	 */
+	public static OFPacketOut buildPacketRelease(OFPacketIn pktIn)
+	{
+		OFAction resubmit = new OFActionOutput(OFPort.OFPP_TABLE);
+		return buildPacketOut(pktIn, Arrays.asList(resubmit));
+	}
+	
+	/**
+	 * Creates a message that sends a packet through a list of actions in a
+	 * switch, without sending it.
+	 * @param bufferId the slot on the switch in which the packet is buffered,
+	 *        or OFPacketOut.BUFFER_ID_NONE if the packet is not buffered
+	 * @param inPort the port the packet arrived on
+	 * @param actions the actions to apply to the packet
+	 * @param packetData the Ethernet frame; ignored if the packet is buffered
+	 * @return the message
+	 */
+	public static OFPacketOut buildPacketOut(int bufferId, int inPort,
+			List<OFAction> actions, byte[] packetData)
+	{
         OFPacketOut pktOut = new OFPacketOut();        
+        pktOut.setBufferId(bufferId);
+        pktOut.setInPort(inPort);
         
-        // Update the buffer ID
-        pktOut.setBufferId(OFPacketOut.BUFFER_ID_NONE);
-                
-        // Set the actions to apply for this packet
-        OFAction output = new OFActionOutput(outPort);
-        pktOut.setActions(Arrays.asList(output));
-        pktOut.setActionsLength((short)OFActionOutput.MINIMUM_LENGTH);
-	        
-        // Set packet data
-        byte[] packetData = eth.serialize();
-        pktOut.setPacketData(packetData);
-        pktOut.setLength((short)(OFPacketOut.MINIMUM_LENGTH
-                + pktOut.getActionsLength() + packetData.length));
+        int actionsLength = 0;
+        for (OFAction action : actions)
+        { actionsLength += action.getLengthU(); }
+        pktOut.setActions(actions);
+        pktOut.setActionsLength((short)actionsLength);
         
-        // Send the packet to the switch
+        int length = OFPacketOut.MINIMUM_LENGTH + actionsLength;
+        if (OFPacketOut.BUFFER_ID_NONE == bufferId)
+        {
+        	pktOut.setPacketData(packetData);
+        	length += packetData.length;
+        }
+        pktOut.setLength((short)length);
+        return pktOut;
+	}
+	
+    /**
+     * Sends a batch of messages to a switch in a single write, followed by a
+     * barrier and then a packet-out, so the packet is only released once the
+     * switch finished applying the batch; typically the batch installs the
+     * rules for the packet, and the packet-out is from buildPacketRelease.
+     * @param sw the switch to which the messages should be sent
+     * @param messages the messages to send, in order
+     * @param pktOut the packet-out to send after the batch
+     * @return true if the messages were sent to the switch, otherwise false
+     */
+    public static boolean writeBatch(IOFSwitch sw, List<OFMessage> messages,
+    		OFPacketOut pktOut)
+    {
+    	List<OFMessage> batch = new ArrayList<OFMessage>(messages);
+    	batch.add(new OFBarrierRequest());
+    	batch.add(pktOut);
+    	long start = FlightRecorder.start();
+        try
+        {
+            sw.write(batch, null);
+            sw.flush();
+            countWrite(sw, messages);
+            countWrite(sw, pktOut);
+            FlightRecorder.batch(start, sw.getId(), batch);
+            if (log.isDebugEnabled())
+            {
+            	log.debug(String.format("Sent batch of %d messages and a "
+            			+ "packet to s%d", messages.size(), sw.getId()));
+            }
+        }
+        catch (IOException e)
+        {
+            countFailure(sw);
+            if (failureSampler.sample())
+            {
+            	log.error(withSuppressed(failureSampler, String.format(
+            			"Failed to send batch of %d messages and a packet to s%d",
+            			messages.size(), sw.getId())));
+            }
+            return false;
+        }
+
+        return true;
+    }
+	
+	private static boolean writePacketOut(IOFSwitch outSw, OFPacketOut pktOut)
+	{
         try 
         {
             outSw.write(pktOut, null);
             outSw.flush();
-            log.info("Forwarding packet: "+eth.toString());
+            countWrite(outSw, pktOut);
         }
         catch (IOException e) 
         {
-        	log.error("Failed to forward packet: "+eth.toString());
+        	countFailure(outSw);
+        	if (failureSampler.sample())
+        	{
+        		log.error(withSuppressed(failureSampler, String.format(
+        				"Failed to send %d byte packet-out to s%d",
+        				pktOut.getLengthU(), outSw.getId())));
+        	}
 			return false;
         }
         
         return true;
 	}
+	
+	/**
+	 * Count the FlowMods and packet-outs written to a switch, including
+	 * towards any route recompute the flight recorder is recording.
+	 */
+	private static void countWrite(IOFSwitch sw, List<OFMessage> messages)
+	{
+		for (OFMessage message : messages)
+		{ countWrite(sw, message); }
+	}
+	
+	private static void countWrite(IOFSwitch sw, OFMessage message)
+	{
+		FlightRecorder.countWrite(sw.getId(), message);
+		if (OFType.FLOW_MOD == message.getType())
+		{ getMetrics(sw).flowMods.increment(); }
+		else if (OFType.PACKET_OUT == message.getType())
+		{ getMetrics(sw).packetOuts.increment(); }
+	}
+	
+	private static void countFailure(IOFSwitch sw)
+	{ getMetrics(sw).writeFailures.increment(); }
+	
+	private static SwitchMetrics getMetrics(IOFSwitch sw)
+	{
+		SwitchMetrics metrics = switchMetrics.get(sw.getId());
+		if (null == metrics)
+		{
+			metrics = new SwitchMetrics(sw.getId());
+			SwitchMetrics existing = switchMetrics.putIfAbsent(sw.getId(), 
+					metrics);
+			if (existing != null)
+			{ metrics = existing; }
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Append the number of suppressed events to a sampled log message.
+	 */
+	private static String withSuppressed(LogSampler sampler, String message)
+	{
+		long suppressed = sampler.takeSuppressed();
+		if (0 == suppressed)
+		{ return message; }
+		return String.format("%s (%d similar messages suppressed)", message,
+				suppressed);
+	}
+	
+	private static class SwitchMetrics
+	{
+		public final StripedCounter flowMods;
+		public final StripedCounter packetOuts;
+		public final StripedCounter writeFailures;
+		
+		public SwitchMetrics(long switchId)
+		{
+			String dpid = Long.toString(switchId);
+			this.flowMods = Metrics.counter("sdn_flow_mods_total",
+					"FlowMods sent to a switch", "dpid", dpid);
+			this.packetOuts = Metrics.counter("sdn_packet_outs_total",
+					"Packet-outs sent to a switch", "dpid", dpid);
+			this.writeFailures = Metrics.counter(
+					"sdn_switch_write_failures_total",
+					"Writes to a switch that failed", "dpid", dpid);
+		}
+	}
 }
@@ -0,0 +1,71 @@
+package edu.wisc.cs.sdn.apps.util.web;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+
+import edu.wisc.cs.sdn.apps.util.FlightRecorder;
+
+public class EventsResource extends ServerResource
+{
+	/**
+	 * List the events the flight recorder kept. A collector can poll with
+	 * ?since= set to the last "next" it was given to get only new events.
+	 * @return whether recording is on, the sequence number of the next
+	 *         event, and the events, oldest first
+	 */
+	@Get("json")
+	public Map<String,Object> retrieve()
+	{
+		long since = 0;
+		String sinceParam = this.getQueryValue("since");
+		if (sinceParam != null)
+		{
+			try
+			{ since = Long.parseLong(sinceParam); }
+			catch (NumberFormatException e)
+			{
+				this.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+				return null;
+			}
+		}
+
+		long next = FlightRecorder.getNextSequence();
+		List<Map<String,Object>> events = new ArrayList<Map<String,Object>>();
+		for (FlightRecorder.Event event : FlightRecorder.getEvents(since))
+		{ events.add(event.describe()); }
+
+		Map<String,Object> result = new HashMap<String,Object>();
+		result.put("enabled", FlightRecorder.isEnabled());
+		result.put("next", next);
+		result.put("events", events);
+		return result;
+	}
+
+	/**
+	 * Start or stop recording.
+	 * @param enabled "true" to start recording, or "false" to stop
+	 * @return whether recording is on
+	 */
+	@Post
+	public Map<String,Object> store(String enabled)
+	{
+		String value = (null == enabled ? "" : enabled.trim());
+		if (!"true".equals(value) && !"false".equals(value))
+		{
+			this.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+			return null;
+		}
+		FlightRecorder.setEnabled(Boolean.parseBoolean(value));
+
+		Map<String,Object> result = new HashMap<String,Object>();
+		result.put("enabled", FlightRecorder.isEnabled());
+		return result;
+	}
+}
@@ -0,0 +1,24 @@
+package edu.wisc.cs.sdn.apps.util.web;
+
+import org.restlet.data.MediaType;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import edu.wisc.cs.sdn.apps.util.Metrics;
+
+public class MetricsResource extends ServerResource
+{
+	// Content type Prometheus expects for its text format
+	private static final MediaType PROMETHEUS_TEXT = 
+			MediaType.valueOf("text/plain; version=0.0.4");
+
+	/**
+	 * List every metric, in the Prometheus text format.
+	 * @return the metrics
+	 */
+	@Get
+	public Representation retrieve()
+	{ return new StringRepresentation(Metrics.toPrometheus(), PROMETHEUS_TEXT); }
+}
@@ -0,0 +1,29 @@
+package edu.wisc.cs.sdn.apps.util.web;
+
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.routing.Router;
+
+import net.floodlightcontroller.restserver.RestletRoutable;
+
+public class MetricsWebRoutable implements RestletRoutable
+{
+	/**
+	 * Create the routes for the metrics REST API.
+	 */
+	@Override
+	public Restlet getRestlet(Context context)
+	{
+		Router router = new Router(context);
+		router.attach("/prometheus", MetricsResource.class);
+		router.attach("/events/json", EventsResource.class);
+		return router;
+	}
+
+	/**
+	 * Get the base path of the metrics REST API.
+	 */
+	@Override
+	public String basePath()
+	{ return "/wm/metrics"; }
+}
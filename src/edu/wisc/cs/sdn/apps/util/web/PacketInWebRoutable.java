@@ -0,0 +1,28 @@
+package edu.wisc.cs.sdn.apps.util.web;
+
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.routing.Router;
+
+import net.floodlightcontroller.restserver.RestletRoutable;
+
+public class PacketInWebRoutable implements RestletRoutable
+{
+	/**
+	 * Create the routes for the packet-in dispatcher's REST API.
+	 */
+	@Override
+	public Restlet getRestlet(Context context)
+	{
+		Router router = new Router(context);
+		router.attach("/shards/json", ShardsResource.class);
+		return router;
+	}
+
+	/**
+	 * Get the base path of the packet-in dispatcher's REST API.
+	 */
+	@Override
+	public String basePath()
+	{ return "/wm/packetin"; }
+}
@@ -0,0 +1,44 @@
+package edu.wisc.cs.sdn.apps.util.web;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import edu.wisc.cs.sdn.apps.util.IPacketInService;
+import edu.wisc.cs.sdn.apps.util.PacketInShard;
+
+public class ShardsResource extends ServerResource
+{
+	/**
+	 * List every packet-in shard.
+	 * @return the queue depth, counters and latencies (in microseconds) of
+	 *         each shard
+	 */
+	@Get("json")
+	public List<Map<String,Object>> retrieve()
+	{
+		IPacketInService packetIn =
+				(IPacketInService)this.getContext().getAttributes().get(
+						IPacketInService.class.getCanonicalName());
+		List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+		for (PacketInShard shard : packetIn.getShards())
+		{
+			Map<String,Object> shardResult = new HashMap<String,Object>();
+			shardResult.put("shard", shard.getIndex());
+			shardResult.put("queueDepth", shard.getQueueDepth());
+			shardResult.put("queueCapacity", shard.getQueueCapacity());
+			shardResult.put("handled", shard.getHandled());
+			shardResult.put("dropped", shard.getDropped());
+			shardResult.put("delayed", shard.getDelayed());
+			shardResult.put("averageQueueTime", shard.getAverageQueueTime());
+			shardResult.put("averageHandleTime", shard.getAverageHandleTime());
+			shardResult.put("maxHandleTime", shard.getMaxHandleTime());
+			result.add(shardResult);
+		}
+		return result;
+	}
+}